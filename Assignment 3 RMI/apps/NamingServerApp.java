@@ -1,20 +1,73 @@
 package apps;
 
+import java.io.*;
+
 import rmi.*;
 
 import naming.NamingServer;
+import naming.NamingStubs;
 
 /** Naming server application.
 
     <p>
-    The naming server application does not take any arguments. It starts a
-    naming server listening on the default client and registration ports for
-    clients and storage servers, respectively.
+    The naming server application starts a naming server listening on the
+    default client and registration ports for clients and storage servers,
+    respectively. It takes an optional argument: a directory in which the
+    naming server logs its directory tree, and from which it recovers the tree
+    when it is started again.
+
+    <p>
+    The option <code>-placement=</code><em>policy</em> may precede the
+    directory. It selects the policy that chooses the storage server of each
+    new file, as described in <code>NamingServer.setPlacementPolicy</code>.
+    The option <code>-replica-selection=</code><em>selection</em> selects how
+    clients are directed among the copies of replicated files, as described in
+    <code>NamingServer.setReplicaSelection</code>. The option
+    <code>-rebalance=</code><em>bytes-per-second</em> moves files from storage
+    servers hosting more than their share to the others, copying at most the
+    given number of bytes per second, as described in
+    <code>NamingServer.setRebalancing</code>.
+
+    <p>
+    The option <code>-sorted</code> keeps every directory in a sorted index,
+    so that listings are in lexicographic order and paged listings by name
+    resume from their last entry. Without it, a directory builds its sorted
+    index the first time it is listed page by page in order. The option
+    <code>-snapshots</code> serves reads from lock-free snapshots of the
+    directory tree. Both are described in
+    <code>NamingServer(boolean, boolean)</code>.
+
+    <p>
+    The option <code>-port=</code><em>port</em> makes the naming server listen
+    on the given client service port, and on the next port for registration,
+    so that several naming servers of a federated filesystem can run on the
+    same host. See <code>naming.MountTable</code>. The naming server ships the
+    changes it logs on the port after the registration port.
+
+    <p>
+    The option <code>-follow=</code><em>hostname</em>[<code>:</code><em>port</em>]
+    makes the naming server a read-only standby of the naming server at the
+    given address and log shipping port, as described in
+    <code>NamingServer.follow</code>. It cannot be given with a directory.
  */
 public class NamingServerApp extends ServerApplication
 {
     /** The naming server. */
     private static StoppingNamingServer     server;
+    /** Prefix of the placement policy option. */
+    private static final String             PLACEMENT = "-placement=";
+    /** Prefix of the replica selection option. */
+    private static final String             SELECTION = "-replica-selection=";
+    /** Prefix of the rebalancing option. */
+    private static final String             REBALANCE = "-rebalance=";
+    /** Sorted directories option. */
+    private static final String             SORTED = "-sorted";
+    /** Snapshots option. */
+    private static final String             SNAPSHOTS = "-snapshots";
+    /** Prefix of the port option. */
+    private static final String             PORT = "-port=";
+    /** Prefix of the standby option. */
+    private static final String             FOLLOW = "-follow=";
 
     /** Naming server application entry point. */
     public static void main(String[] arguments)
@@ -32,17 +85,153 @@ public class NamingServerApp extends ServerApplication
     /** Starts the naming server.
 
         @param arguments Command line arguments.
-        @throws BadUsageException If there are any command line arguments.
-        @throws RMIException If the naming server cannot be started.
+        @throws BadUsageException If there is more than one command line
+                                  argument besides the options, if the
+                                  placement policy or replica selection is
+                                  unknown, if a port or bandwidth is
+                                  malformed, or if both
+                                  a primary and a directory are given.
+        @throws RMIException If the naming server cannot be started, or if the
+                             directory tree cannot be recovered.
      */
     @Override
     protected void startServer(String[] arguments)
         throws BadUsageException, RMIException
     {
-        if(arguments.length != 0)
-            throw new BadUsageException("naming server expects no arguments");
+        String      placement = null;
+        String      selection = null;
+        String      directory = null;
+        int         port = NamingStubs.SERVICE_PORT;
+        String      primary = null;
+        long        bandwidth = 0;
+        boolean     sorted = false;
+        boolean     snapshots = false;
+
+        for(String argument : arguments)
+        {
+            if(argument.startsWith(PLACEMENT))
+                placement = argument.substring(PLACEMENT.length());
+            else if(argument.startsWith(SELECTION))
+                selection = argument.substring(SELECTION.length());
+            else if(argument.equals(SORTED))
+                sorted = true;
+            else if(argument.equals(SNAPSHOTS))
+                snapshots = true;
+            else if(argument.startsWith(FOLLOW))
+                primary = argument.substring(FOLLOW.length());
+            else if(argument.startsWith(REBALANCE))
+            {
+                try
+                {
+                    bandwidth =
+                        Long.parseLong(argument.substring(REBALANCE.length()));
+                }
+                catch(NumberFormatException e)
+                {
+                    throw new BadUsageException("malformed bandwidth: " +
+                                                argument);
+                }
+            }
+            else if(argument.startsWith(PORT))
+            {
+                try
+                {
+                    port = Integer.parseInt(argument.substring(PORT.length()));
+                }
+                catch(NumberFormatException e)
+                {
+                    throw new BadUsageException("malformed port: " + argument);
+                }
+            }
+            else if(directory == null)
+                directory = argument;
+            else
+            {
+                throw new BadUsageException("arguments: [" + PLACEMENT +
+                                            "policy] [" + SELECTION +
+                                            "selection] [" + REBALANCE +
+                                            "bytes-per-second] [" + SORTED +
+                                            "] [" + SNAPSHOTS + "] [" + PORT +
+                                            "port] [" + FOLLOW +
+                                            "primary | log-directory]");
+            }
+        }
+
+        server = new StoppingNamingServer(sorted, snapshots, port);
+
+        if(placement != null)
+        {
+            try
+            {
+                server.setPlacementPolicy(placement);
+            }
+            catch(IllegalArgumentException e)
+            {
+                throw new BadUsageException("placement policies: " +
+                                            "round-robin, least-used, " +
+                                            "least-loaded, consistent-hash");
+            }
+        }
+
+        if(selection != null)
+        {
+            try
+            {
+                server.setReplicaSelection(selection);
+            }
+            catch(IllegalArgumentException e)
+            {
+                throw new BadUsageException("replica selections: " +
+                                            "round-robin, primary, " +
+                                            "least-loaded, nearest");
+            }
+        }
+
+        try
+        {
+            server.setRebalancing(bandwidth);
+        }
+        catch(IllegalArgumentException e)
+        {
+            throw new BadUsageException("negative bandwidth: " + bandwidth);
+        }
+
+        if(primary != null)
+        {
+            if(directory != null)
+            {
+                throw new BadUsageException("a standby naming server has no " +
+                                            "log directory");
+            }
+
+            int     colon = primary.lastIndexOf(':');
+
+            try
+            {
+                server.follow(colon == -1
+                    ? NamingStubs.shipping(primary)
+                    : NamingStubs.shipping(primary.substring(0, colon),
+                          Integer.parseInt(primary.substring(colon + 1))));
+            }
+            catch(NumberFormatException e)
+            {
+                throw new BadUsageException("malformed primary port: " +
+                                            primary);
+            }
+        }
+
+        if(directory != null)
+        {
+            try
+            {
+                server.recover(new File(directory));
+            }
+            catch(IOException e)
+            {
+                throw new RMIException("unable to recover directory tree", e);
+            }
+        }
 
-        server = new StoppingNamingServer();
         server.start();
     }
 
@@ -56,6 +245,17 @@ public class NamingServerApp extends ServerApplication
     /** Application naming server. */
     private class StoppingNamingServer extends NamingServer
     {
+        /** Creates the naming server.
+
+            @param sorted Whether every directory keeps a sorted index.
+            @param snapshots Whether reads are served from snapshots.
+            @param port Client service port. The registration port follows it.
+         */
+        StoppingNamingServer(boolean sorted, boolean snapshots, int port)
+        {
+            super(sorted, snapshots, port, port + 1);
+        }
+
         /** Schedules a timeout before attempting to stop the server
             gracefully. */
         @Override
@@ -14,7 +14,10 @@ import storage.StorageServer;
     <p>
     The storage server application expects three arguments: in order, the
     local hostname, the hostname of the remote naming server, and the directory
-    that the storage server will use as its local storage for files.
+    that the storage server will use as its local storage for files. The naming
+    server may be given as <code>hostname:port</code>, where the port is its
+    registration port, for a naming server of a federated filesystem that does
+    not listen on the default ports.
 
     <p>
     The directory can be given as an absolute or a relative path. The current
@@ -54,7 +57,8 @@ public class StorageServerApp extends ServerApplication
 
         @param arguments The command line arguments.
         @throws BadUsageException If there are not three arguments on the
-                                  command line.
+                                  command line, or if the naming server port
+                                  is malformed.
         @throws UnknownHostException If a storage server stub cannot be created
                                      due to an unassigned address.
         @throws FileNotFoundException If the directory in which the storage
@@ -84,7 +88,28 @@ public class StorageServerApp extends ServerApplication
         server = new StoppingStorageServer(local_root);
 
         // Start and register the storage server.
-        server.start(arguments[0], NamingStubs.registration(arguments[1]));
+        String          naming = arguments[1];
+        int             colon = naming.lastIndexOf(':');
+        Registration    registration;
+
+        if(colon == -1)
+            registration = NamingStubs.registration(naming);
+        else
+        {
+            try
+            {
+                registration = NamingStubs.registration(
+                    naming.substring(0, colon),
+                    Integer.parseInt(naming.substring(colon + 1)));
+            }
+            catch(NumberFormatException e)
+            {
+                throw new BadUsageException("malformed naming server port: " +
+                                            naming);
+            }
+        }
+
+        server.start(arguments[0], registration);
     }
 
     /** Stops the storage server. */
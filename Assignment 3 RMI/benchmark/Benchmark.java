@@ -0,0 +1,41 @@
+package benchmark;
+
+import java.util.*;
+
+import test.*;
+
+/** Base class of benchmarks.
+
+    <p>
+    A benchmark is a test that records measurements with <code>report</code>.
+    Measurements are printed by {@link Benchmarks} after all benchmarks have
+    run, so that they are not interleaved with the progress messages of the
+    test series.
+ */
+public abstract class Benchmark extends Test
+{
+    /** Measurements reported by all benchmarks, in order. */
+    private static final List<String>   measurements =
+        new ArrayList<String>();
+
+    /** Records a measurement.
+
+        @param measurement Line of text describing the measurement.
+     */
+    protected void report(String measurement)
+    {
+        synchronized(measurements)
+        {
+            measurements.add(getClass().getSimpleName() + ": " + measurement);
+        }
+    }
+
+    /** Returns the measurements reported so far. */
+    static String[] measurements()
+    {
+        synchronized(measurements)
+        {
+            return measurements.toArray(new String[measurements.size()]);
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package benchmark;
+
+import test.*;
+
+/** Runs all benchmarks.
+
+    <p>
+    Benchmarks run are:
+    <ul>
+    <li>{@link benchmark.TransportBenchmark}</li>
+    <li>{@link naming.RegistrationBenchmark}</li>
+    <li>{@link naming.RecoveryBenchmark}</li>
+    <li>{@link naming.PlacementBenchmark}</li>
+    </ul>
+ */
+public class Benchmarks
+{
+    /** Benchmark timeout, in seconds, as given to <code>Series.run</code>. */
+    private static final int    TIMEOUT = 60;
+
+    /** Runs the benchmarks and prints their measurements.
+
+        @param arguments Ignored.
+     */
+    public static void main(String[] arguments)
+    {
+        // Create the benchmark list, the series object, and run the series.
+        @SuppressWarnings("unchecked")
+        Class<? extends Test>[]     benchmarks =
+            new Class[] {benchmark.TransportBenchmark.class,
+                         naming.RegistrationBenchmark.class,
+                         naming.RecoveryBenchmark.class,
+                         naming.PlacementBenchmark.class};
+        Series                      series = new Series(benchmarks);
+        SeriesReport                report = series.run(TIMEOUT, System.out);
+
+        // Print the measurements, then the report, and exit with an
+        // appropriate exit status.
+        for(String measurement : Benchmark.measurements())
+            System.out.println(measurement);
+
+        System.out.println();
+
+        report.print(System.out);
+        System.exit(report.successful() ? 0 : 2);
+    }
+}
@@ -0,0 +1,135 @@
+package benchmark;
+
+import rmi.*;
+import test.*;
+
+/** Measures RMI call latency and transfer throughput over an emulated wide
+    area network.
+
+    <p>
+    The benchmark runs the same workload on the loopback interface, and through
+    a {@link test.ShapedTransport} emulating a wide area link with latency,
+    jitter, a bandwidth cap and packet loss. The workload is a series of small
+    calls, followed by a series of large byte array transfers in the manner of
+    <code>Storage.write</code>.
+ */
+public class TransportBenchmark extends Benchmark
+{
+    /** Benchmark notice. */
+    public static final String  notice =
+        "measuring RMI latency and throughput on loopback and emulated WAN";
+
+    /** Number of small calls made on each network. */
+    private static final int    CALLS = 50;
+    /** Number of large transfers made on each network. */
+    private static final int    TRANSFERS = 4;
+    /** Size of each large transfer, in bytes. */
+    private static final int    TRANSFER_SIZE = 4 * 1024 * 1024;
+
+    /** Skeleton receiving the calls. */
+    private Skeleton<Sink>      skeleton;
+    /** Transport in use before the benchmark. */
+    private Transport           previous;
+
+    /** Remote interface receiving data. */
+    public interface Sink
+    {
+        /** Returns the length of the given array. */
+        public int accept(byte[] data) throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Sink>(Sink.class, new Sink()
+        {
+            @Override
+            public int accept(byte[] data)
+            {
+                return data.length;
+            }
+        });
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Runs the workload on both networks. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        previous = Transport.get();
+
+        measure("loopback", previous);
+        measure("WAN 40ms+-5ms 10MB/s 0.1% loss",
+                new ShapedTransport(40, 5, 10 * 1000 * 1000, 0.001, 0));
+    }
+
+    /** Runs the workload with the given transport and reports the results. */
+    private void measure(String network, Transport transport)
+        throws TestFailed
+    {
+        Transport.set(transport);
+
+        Sink        stub;
+
+        try
+        {
+            stub = Stub.create(Sink.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        byte[]      small = new byte[16];
+        byte[]      large = new byte[TRANSFER_SIZE];
+
+        try
+        {
+            long    start = System.nanoTime();
+
+            for(int call = 0; call < CALLS; ++call)
+                stub.accept(small);
+
+            long    latency = (System.nanoTime() - start) / CALLS / 1000;
+
+            start = System.nanoTime();
+
+            for(int transfer = 0; transfer < TRANSFERS; ++transfer)
+                stub.accept(large);
+
+            double  seconds = (System.nanoTime() - start) / 1e9;
+            double  throughput =
+                (double)TRANSFERS * TRANSFER_SIZE / seconds / (1024 * 1024);
+
+            report(network + ": " + latency + "us per call, " +
+                   String.format("%.1f", throughput) + " MB/s");
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call failed on " + network, t);
+        }
+    }
+
+    /** Restores the previous transport and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(previous != null)
+            Transport.set(previous);
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+}
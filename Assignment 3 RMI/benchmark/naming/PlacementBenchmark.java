@@ -0,0 +1,259 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+import test.*;
+
+/** Measures how each placement policy spreads files and client I/O over the
+    storage servers.
+
+    <p>
+    Each policy is given a naming server with <code>SERVERS</code> storage
+    servers. The first server registers with a large number of existing files,
+    the others with none. A client then mixes file creations with reads. Most
+    reads go to recently created files, as is common for new data. The
+    storage servers are local objects that count the files they are asked to
+    create and the reads they serve.
+
+    <p>
+    For each policy, the benchmark reports the largest and smallest number of
+    new files placed on a server, and the ratio of the busiest server's reads
+    to the average. For consistent hashing, it also reports the share of files
+    that would move to a different server if one more server joined.
+ */
+public class PlacementBenchmark extends benchmark.Benchmark
+{
+    /** Benchmark notice. */
+    public static final String  notice =
+        "measuring placement of new files on storage servers";
+
+    /** Number of storage servers. */
+    private static final int    SERVERS = 8;
+    /** Number of files registered by the first storage server. */
+    private static final int    EXISTING = 20000;
+    /** Number of client operations. One in <code>CREATE_EVERY</code> creates
+        a file, the others read one. */
+    private static final int    OPERATIONS = 200000;
+    /** Frequency of file creations among the operations. */
+    private static final int    CREATE_EVERY = 5;
+    /** Number of most recently created files that receive most reads. */
+    private static final int    RECENT = 500;
+    /** Number of directories holding the new files. */
+    private static final int    DIRECTORIES = 100;
+
+    /** Root directory path. */
+    private final Path          root = new Path();
+
+    /** Runs the workload with each policy. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            for(String policy : new String[] {PlacementPolicy.ROUND_ROBIN,
+                                              PlacementPolicy.LEAST_USED,
+                                              PlacementPolicy.LEAST_LOADED,
+                                              PlacementPolicy.CONSISTENT_HASH})
+            {
+                measure(policy);
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Runs the workload with one policy, and reports the distribution of
+        files and reads.
+
+        @param policy Name of the placement policy.
+        @throws Throwable If an operation fails.
+     */
+    private void measure(String policy) throws Throwable
+    {
+        NamingServer        server = new NamingServer();
+        CountingServer[]    servers = new CountingServer[SERVERS];
+
+        server.setPlacementPolicy(policy);
+
+        Path[]              existing = new Path[EXISTING];
+        Path                old = new Path(root, "old");
+
+        for(int index = 0; index < EXISTING; ++index)
+            existing[index] = new Path(old, "file" + index);
+
+        for(int index = 0; index < SERVERS; ++index)
+        {
+            servers[index] = new CountingServer();
+            server.register(servers[index], servers[index],
+                            index == 0 ? existing : new Path[0]);
+        }
+
+        Path                data = new Path(root, "data");
+
+        server.createDirectory(data);
+
+        for(int index = 0; index < DIRECTORIES; ++index)
+            server.createDirectory(new Path(data, "d" + index));
+
+        // Mix creations and reads. Reads go mostly to recent files.
+        ArrayList<Path>     created = new ArrayList<Path>();
+        Random              random = new Random(1);
+
+        for(int operation = 0; operation < OPERATIONS; ++operation)
+        {
+            if(operation % CREATE_EVERY == 0)
+            {
+                Path        file =
+                    new Path(new Path(data, "d" + (operation % DIRECTORIES)),
+                             "file" + operation);
+
+                server.createFile(file);
+                created.add(file);
+                continue;
+            }
+
+            int             index;
+
+            if(random.nextInt(10) < 8)
+            {
+                int         recent = Math.min(RECENT, created.size());
+
+                index = created.size() - 1 - random.nextInt(recent);
+            }
+            else
+                index = random.nextInt(created.size());
+
+            server.getStorage(created.get(index)).read(created.get(index),
+                                                      0, 0);
+        }
+
+        // Report the distribution.
+        long                most = 0;
+        long                least = Long.MAX_VALUE;
+        long                busiest = 0;
+        long                reads = 0;
+
+        for(CountingServer storage : servers)
+        {
+            most = Math.max(most, storage.created);
+            least = Math.min(least, storage.created);
+            busiest = Math.max(busiest, storage.reads);
+            reads += storage.reads;
+        }
+
+        report(policy + ": " + created.size() + " new files, " + least +
+               " to " + most + " per server; busiest server served " +
+               String.format("%.2f", (double)busiest * SERVERS / reads) +
+               "x the average reads");
+
+        if(policy.equals(PlacementPolicy.CONSISTENT_HASH))
+            remapped(server, created);
+    }
+
+    /** Reports the share of files placed on a different server by consistent
+        hashing after one more server joins.
+
+        @param server Naming server whose storage servers are used.
+        @param files Paths of the files placed.
+     */
+    private void remapped(NamingServer server, ArrayList<Path> files)
+    {
+        PlacementPolicy     policy =
+            PlacementPolicy.forName(PlacementPolicy.CONSISTENT_HASH);
+        int[]               before = new int[files.size()];
+
+        for(int index = 0; index < before.length; ++index)
+            before[index] = policy.place(files.get(index), server.servers);
+
+        CountingServer      joining = new CountingServer();
+
+        server.servers.add(joining, joining);
+
+        int                 moved = 0;
+
+        for(int index = 0; index < before.length; ++index)
+        {
+            if(policy.place(files.get(index), server.servers) != before[index])
+                ++moved;
+        }
+
+        report(PlacementPolicy.CONSISTENT_HASH + ": " +
+               String.format("%.1f", moved * 100.0 / before.length) +
+               "% of files remapped when server " + (SERVERS + 1) +
+               " joins (ideal " +
+               String.format("%.1f", 100.0 / (SERVERS + 1)) + "%)");
+    }
+
+    /** Storage server that counts the files it creates and the reads it
+        serves, without storing anything. */
+    private static class CountingServer implements Storage, Command
+    {
+        /** Number of files created. */
+        long    created = 0;
+        /** Number of reads served. */
+        long    reads = 0;
+
+        @Override
+        public synchronized boolean create(Path file)
+        {
+            ++created;
+            return true;
+        }
+
+        @Override
+        public synchronized boolean[] createFiles(Path[] files)
+        {
+            created += files.length;
+            return new boolean[files.length];
+        }
+
+        @Override
+        public boolean delete(Path path)
+        {
+            return true;
+        }
+
+        @Override
+        public boolean copy(Path file, Storage server)
+        {
+            return true;
+        }
+
+        @Override
+        public long[] stat(Path file)
+        {
+            return new long[] {0, 0};
+        }
+
+        @Override
+        public boolean discard(Path file, long[] attributes)
+        {
+            return true;
+        }
+
+        @Override
+        public long size(Path file)
+        {
+            return 0;
+        }
+
+        @Override
+        public synchronized byte[] read(Path file, long offset, int length)
+        {
+            ++reads;
+            return new byte[0];
+        }
+
+        @Override
+        public void write(Path file, long offset, byte[] data)
+        {
+        }
+    }
+}
@@ -0,0 +1,207 @@
+package naming;
+
+import java.io.*;
+
+import common.*;
+import test.*;
+
+/** Measures the cost of the naming server write-ahead log, and the time taken
+    to recover a large directory tree.
+
+    <p>
+    The benchmark registers the files of {@link RegistrationBenchmark} with a
+    naming server that logs its changes, and measures:
+    <ul>
+    <li>Registration with every file logged.</li>
+    <li>Directory creation by many concurrent clients, and the number of
+        changes made durable by each forced write of the log.</li>
+    <li>Recovery of the tree from the log alone.</li>
+    <li>Writing a checkpoint, and recovery from the checkpoint.</li>
+    </ul>
+
+    <p>
+    The number of files is one million, and can be changed with the system
+    property <code>benchmark.files</code>.
+ */
+public class RecoveryBenchmark extends benchmark.Benchmark
+{
+    /** Benchmark notice. */
+    public static final String  notice =
+        "measuring naming server logging and recovery";
+
+    /** Number of files registered. */
+    private static final int    FILES =
+        Integer.getInteger("benchmark.files", 1000000);
+    /** Number of concurrent clients creating directories. */
+    private static final int    CLIENTS = 16;
+    /** Number of directories created by each client. */
+    private static final int    DIRECTORIES = 200;
+
+    /** Directory holding the checkpoint and the log. */
+    private TemporaryDirectory  directory;
+
+    /** Creates the log directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create log directory", t);
+        }
+    }
+
+    /** Performs the measurements. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            measure();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Performs the measurements. */
+    private void measure() throws Throwable
+    {
+        File            log = directory.root();
+        Path[]          files = RegistrationBenchmark.files(FILES);
+        NamingServer    server = new NamingServer();
+
+        // Keep the background checkpoint from running, so that the first
+        // recovery is from the log alone.
+        server.checkpointRecords = Long.MAX_VALUE;
+        server.recover(log);
+
+        // Register all files, and wait for the last record to be durable.
+        long            start = System.nanoTime();
+
+        server.createTree(files, null, null);
+        server.log.sync(server.log.appended());
+
+        long            elapsed = System.nanoTime() - start;
+
+        report(FILES + " files registered and logged in " +
+               elapsed / 1000000 + "ms (" + elapsed / FILES + "ns per file)");
+
+        // Create directories from many clients at once. Each creation waits
+        // for its record to be durable.
+        createDirectories(server);
+        server.stop();
+        server = null;
+
+        // Recover from the log alone.
+        start = System.nanoTime();
+        server = new NamingServer();
+        server.recover(log);
+        elapsed = System.nanoTime() - start;
+
+        if(!server.exist(files[FILES - 1]))
+            throw new TestFailed("file missing after recovery from log");
+
+        report("recovered from log in " + elapsed / 1000000 + "ms");
+
+        // Checkpoint, and recover from the checkpoint.
+        start = System.nanoTime();
+        server.checkpoint();
+        elapsed = System.nanoTime() - start;
+
+        report("checkpoint written in " + elapsed / 1000000 + "ms (" +
+               new File(log, Checkpoint.NAME).length() / 1024 + "KB)");
+
+        server.stop();
+        server = null;
+
+        start = System.nanoTime();
+        server = new NamingServer();
+        server.recover(log);
+        elapsed = System.nanoTime() - start;
+
+        if(!server.exist(files[FILES - 1]))
+            throw new TestFailed("file missing after recovery from checkpoint");
+
+        report("recovered from checkpoint in " + elapsed / 1000000 + "ms");
+
+        server.stop();
+    }
+
+    /** Creates directories from many threads, and reports the rate at which
+        they are created and the number of records per forced write.
+
+        @param server Naming server with a log.
+        @throws Throwable If a directory cannot be created.
+     */
+    private void createDirectories(final NamingServer server) throws Throwable
+    {
+        final Throwable[]   failure = new Throwable[1];
+        Thread[]            clients = new Thread[CLIENTS];
+        long                flushes = server.log.flushes();
+        long                start = System.nanoTime();
+
+        for(int index = 0; index < CLIENTS; ++index)
+        {
+            final Path      parent = new Path(new Path(), "client" + index);
+
+            clients[index] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        server.createDirectory(parent);
+
+                        for(int count = 0; count < DIRECTORIES; ++count)
+                        {
+                            server.createDirectory(new Path(parent,
+                                                            "d" + count));
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        synchronized(failure)
+                        {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            });
+
+            clients[index].start();
+        }
+
+        for(Thread client : clients)
+            client.join();
+
+        if(failure[0] != null)
+            throw failure[0];
+
+        long                elapsed = System.nanoTime() - start;
+        long                created = CLIENTS * (DIRECTORIES + 1);
+        long                forced = server.log.flushes() - flushes;
+
+        report(CLIENTS + " clients created " + created + " directories in " +
+               elapsed / 1000000 + "ms (" + created * 1000000000L / elapsed +
+               " per second, " + created / Math.max(forced, 1) +
+               " per forced write)");
+    }
+
+    /** Removes the log directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package naming;
+
+import java.util.*;
+
+import common.*;
+import test.*;
+
+/** Measures registration of a large number of files with the naming server,
+    and lookups in the resulting directory tree.
+
+    <p>
+    Half of the files are placed in a single directory, so that the cost of
+    operations on very large directories is visible. The other half are spread
+    over a tree of small directories. Files are merged into the tree directly,
+    without going through RMI, so that only the cost of the directory tree is
+    measured.
+
+    <p>
+    The measurements are made once with a naming server that serves reads
+    under locks, and once with one that serves them from lock-free snapshots.
+    The heap retained by the directory tree is reported per file in each case.
+
+    <p>
+    Registration is also measured as storage servers perform it, in batches
+    merged by several threads at once.
+
+    <p>
+    The number of files is one million, and can be changed with the system
+    property <code>benchmark.files</code>.
+ */
+public class RegistrationBenchmark extends benchmark.Benchmark
+{
+    /** Benchmark notice. */
+    public static final String  notice =
+        "measuring registration and lookup of many files in the naming server";
+
+    /** Number of files registered. */
+    private static final int    FILES =
+        Integer.getInteger("benchmark.files", 1000000);
+    /** Number of lookups performed. */
+    private static final int    LOOKUPS = 200000;
+    /** Number of files in the hot set, which fits in the path cache. */
+    private static final int    HOT = 1000;
+    /** Number of entries in each of the small directories. */
+    private static final int    FANOUT = 100;
+    /** Number of files in each batch of a batched registration. */
+    private static final int    BATCH = 10000;
+    /** Number of batches merged at once. */
+    private static final int    STREAMS = 4;
+
+    /** Registers the files and performs the lookups. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Path[]          files = files(FILES);
+        Path            large = files[0].parent();
+
+        measure(files, large, false);
+        measure(files, large, true);
+        measureBatches(files);
+    }
+
+    /** Generates the paths of the files to register.
+
+        <p>
+        Files with even indices are in the directory <code>/large</code>. The
+        others are spread over directories with <code>FANOUT</code> entries
+        each, under <code>/small</code>.
+
+        @param count Number of files.
+        @return The paths.
+     */
+    static Path[] files(int count)
+    {
+        Path            large = new Path(new Path(), "large");
+        Path            small = new Path(new Path(), "small");
+        Path[]          files = new Path[count];
+
+        for(int index = 0; index < count; ++index)
+        {
+            if(index % 2 == 0)
+                files[index] = new Path(large, "file" + index);
+            else
+            {
+                int     entry = index / 2;
+                Path    directory =
+                    new Path(new Path(small, "d" + (entry / FANOUT / FANOUT)),
+                             "d" + (entry / FANOUT % FANOUT));
+
+                files[index] = new Path(directory, "file" + entry);
+            }
+        }
+
+        return files;
+    }
+
+    /** Registers the files with a new naming server, and performs the
+        lookups.
+
+        @param files Files to register.
+        @param large Path of the large directory.
+        @param snapshots Whether the naming server serves reads from
+                         snapshots.
+        @throws TestFailed If registration or a lookup fails.
+     */
+    private void measure(Path[] files, Path large, boolean snapshots)
+        throws TestFailed
+    {
+        String          mode = snapshots ? "snapshots: " : "locks: ";
+        long            heap = usedHeap();
+        NamingServer    server = new NamingServer(false, snapshots);
+
+        long            start = System.nanoTime();
+        ArrayList<Path> duplicates = server.createTree(files, null, null);
+        long            elapsed = System.nanoTime() - start;
+
+        if(!duplicates.isEmpty())
+            throw new TestFailed("unexpected duplicates during registration");
+
+        report(mode + FILES + " files registered in " + elapsed / 1000000 +
+               "ms (" + elapsed / FILES + "ns per file)");
+
+        heap = usedHeap() - heap;
+
+        report(mode + "directory tree uses " + heap / (1024 * 1024) +
+               "MB of heap (" + heap / FILES + " bytes per file)");
+
+        // Look up files chosen at random among all files, which mostly miss
+        // the path cache, and then among a small hot set, which hit it.
+        lookup(server, files, FILES, mode + "random");
+        lookup(server, files, HOT, mode + "hot");
+
+        // List the large directory.
+        start = System.nanoTime();
+
+        try
+        {
+            int     entries = server.list(large).length;
+
+            elapsed = System.nanoTime() - start;
+
+            report(mode + "listed " + entries + " entries in " +
+                   elapsed / 1000000 + "ms");
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("listing failed", t);
+        }
+    }
+
+    /** Registers the files with a new naming server in batches, merged by
+        <code>STREAMS</code> threads at once, and reports the time taken.
+
+        @param files Files to register.
+        @throws TestFailed If registration fails.
+     */
+    private void measureBatches(final Path[] files) throws TestFailed
+    {
+        final NamingServer  server = new NamingServer();
+        final Throwable[]   failure = new Throwable[1];
+        Thread[]            streams = new Thread[STREAMS];
+        long                start = System.nanoTime();
+
+        for(int index = 0; index < STREAMS; ++index)
+        {
+            final int       first = index;
+
+            streams[index] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        for(int offset = first * BATCH; offset < files.length;
+                            offset += STREAMS * BATCH)
+                        {
+                            Path[]  batch = Arrays.copyOfRange(files, offset,
+                                Math.min(offset + BATCH, files.length));
+
+                            if(!server.createTree(batch, null, null).isEmpty())
+                            {
+                                throw new TestFailed("unexpected duplicates " +
+                                                     "during registration");
+                            }
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        synchronized(failure)
+                        {
+                            failure[0] = t;
+                        }
+                    }
+                }
+            });
+
+            streams[index].start();
+        }
+
+        try
+        {
+            for(Thread stream : streams)
+                stream.join();
+        }
+        catch(InterruptedException e)
+        {
+            throw new TestFailed("interrupted", e);
+        }
+
+        if(failure[0] != null)
+            throw new TestFailed("batched registration failed", failure[0]);
+
+        long                elapsed = System.nanoTime() - start;
+
+        report("batches: " + FILES + " files registered in batches of " +
+               BATCH + ", " + STREAMS + " at once, in " + elapsed / 1000000 +
+               "ms (" + elapsed / FILES + "ns per file)");
+    }
+
+    /** Looks up files chosen at random among the first files of the given
+        array, and reports the time taken.
+
+        @param server Naming server in which the files are registered.
+        @param files Registered files.
+        @param range Number of files, from the start of the array, among which
+                     files are chosen.
+        @param label Label for the report.
+        @throws TestFailed If a lookup fails.
+     */
+    private void lookup(NamingServer server, Path[] files, int range,
+                        String label) throws TestFailed
+    {
+        Random          random = new Random(0);
+        long            start = System.nanoTime();
+
+        try
+        {
+            for(int lookup = 0; lookup < LOOKUPS; ++lookup)
+            {
+                Path    file = files[random.nextInt(range)];
+
+                if(server.isDirectory(file))
+                    throw new TestFailed("file reported as directory");
+
+                server.getStorage(file);
+            }
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("lookup failed", t);
+        }
+
+        long            elapsed = System.nanoTime() - start;
+
+        report(label + " lookups: " + LOOKUPS +
+               " isDirectory + getStorage in " + elapsed / 1000000 + "ms (" +
+               elapsed / LOOKUPS + "ns per lookup)");
+    }
+
+    /** Returns the heap in use after a full garbage collection.
+
+        <p>
+        The collection is requested several times, since a single request may
+        not free every unreachable object.
+     */
+    private static long usedHeap()
+    {
+        Runtime         runtime = Runtime.getRuntime();
+
+        for(int attempt = 0; attempt < 3; ++attempt)
+            System.gc();
+
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
@@ -0,0 +1,24 @@
+/** Benchmarks.
+
+    <p>
+    Benchmarks measure the performance of filesystem components, and report
+    their measurements once the whole series has run. They are written as
+    tests derived from {@link benchmark.Benchmark}, and are run by the
+    <code>test.Series</code> harness, so a benchmark fails like a test if the
+    component under measurement misbehaves.
+
+    <p>
+    As with unit tests, a benchmark that needs access to package-private
+    classes resides in the package of the classes it measures, in a
+    subdirectory of <code>benchmark/</code>. For example, a benchmark of the
+    naming server directory tree is <code>benchmark/naming/...</code>, in the
+    package <code>naming</code>. The benchmark directory must then be on the
+    classpath: execute <code>java -cp .:benchmark benchmark.Benchmarks</code>
+    from the command line, or <code>java -cp ".;benchmark"
+    benchmark.Benchmarks</code> on a Windows system.
+
+    <p>
+    Many benchmarks emulate a wide area network with
+    {@link test.ShapedTransport}.
+ */
+package benchmark;
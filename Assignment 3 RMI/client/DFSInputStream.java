@@ -17,6 +17,13 @@ import storage.*;
     wrapped in a <code>BufferedInputStream</code> or other class providing
     buffered input.
 
+    <p>
+    The length of the file is first taken from the naming server, which learns
+    it from the storage server some time after each write. It is therefore
+    only relied on while reads stay within it: a read that reaches the end of
+    the file, <code>skip</code> and <code>available</code> ask the storage
+    server for the length first.
+
     <p>
     <code>DFSInputStream</code> does not support marks.
  */
@@ -32,7 +39,10 @@ public class DFSInputStream extends InputStream
     /** Current read offset in the file. */
     private long            offset = 0;
     /** Total file length. */
-    private final long      length;
+    private long            length;
+    /** Whether the length was given by the storage server, rather than as
+        last reported to the naming server. */
+    private boolean         exact;
 
     /** Indicates that the stream has been closed. */
     private boolean         closed = false;
@@ -53,28 +63,55 @@ public class DFSInputStream extends InputStream
     public DFSInputStream(Service naming_server, Path file)
         throws FileNotFoundException, IOException
     {
-        // Retrieve a stub for the storage server hosting the file.
+        // Retrieve a stub for the storage server hosting the file, and the
+        // length of the file if the naming server knows it.
+        Handle      handle;
+
         try
         {
-            storage_server = naming_server.getStorage(file);
+            handle = naming_server.open(file);
         }
         catch(RMIException e)
         {
             throw new IOException("could not contact naming server", e);
         }
 
-        // Retrieve the length of the file from the storage server.
+        storage_server = handle.storage();
+        path = file;
+        this.naming_server = naming_server;
+
+        // Otherwise, retrieve the length of the file from the storage server.
+        length = handle.size();
+        exact = false;
+
+        if(length == -1)
+            checkLength();
+    }
+
+    /** Asks the storage server for the length of the file, unless it has
+        been asked already.
+
+        @throws IOException If the storage server cannot be contacted, or if
+                            the file is missing on it.
+     */
+    private void checkLength() throws IOException
+    {
+        if(exact)
+            return;
+
         try
         {
-            length = storage_server.size(file);
+            length = storage_server.size(path);
+            exact = true;
+        }
+        catch(FileNotFoundException e)
+        {
+            throw new IOException("file missing on storage server", e);
         }
         catch(RMIException e)
         {
             throw new IOException("could not contact storage server", e);
         }
-
-        path = file;
-        this.naming_server = naming_server;
     }
 
     /** Creates a <code>DFSInputStream</code> for a file listed by the given
@@ -208,6 +245,11 @@ public class DFSInputStream extends InputStream
         if(read_length == 0)
             return 0;
 
+        // The length reported to the naming server may predate the last
+        // writes, and is checked before the end of file is relied on.
+        if(read_length > (length - offset))
+            checkLength();
+
         // If the stream offset is at or past the end of file, return -1
         // immediately.
         if(offset >= length)
@@ -293,6 +335,8 @@ public class DFSInputStream extends InputStream
         if(count < 0)
             return 0;
 
+        checkLength();
+
         if(count > (length - offset))
             count = length - offset;
 
@@ -320,6 +364,8 @@ public class DFSInputStream extends InputStream
                                   "already closed");
         }
 
+        checkLength();
+
         if(length - offset > Integer.MAX_VALUE)
             return Integer.MAX_VALUE;
 
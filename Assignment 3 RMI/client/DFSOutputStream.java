@@ -53,10 +53,11 @@ public class DFSOutputStream extends OutputStream
     public DFSOutputStream(Service naming_server, Path file)
         throws FileNotFoundException, IOException
     {
-        // Retrieve a stub for the storage server hosting the file.
+        // Retrieve a stub for the storage server hosting the original of the
+        // file. Replicas are not written.
         try
         {
-            storage_server = naming_server.getStorage(file);
+            storage_server = naming_server.getWriteStorage(file);
         }
         catch(RMIException e)
         {
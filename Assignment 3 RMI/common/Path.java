@@ -72,7 +72,7 @@ public class Path implements Iterable<String>, Serializable
 		if (!path.substring(0, 1).equals("/") || path.contains(":")) {
 			throw new IllegalArgumentException("Incorrect Argument");
 		}
-		String currPath = path.replaceAll("(.)\\1{1,}", "$1");	// Removing all empty components
+		String currPath = path.replaceAll("/{2,}", "/");	// Removing all empty components
 
 		if ((currPath.length() != 1) && (currPath.lastIndexOf("/") == currPath.length() - 1)) {
 			this.name = currPath.substring(0, currPath.length() - 1);
@@ -252,7 +252,7 @@ public class Path implements Iterable<String>, Serializable
      */
     public File toFile(File root)
     {
-    	return new File(root.getPath());
+    	return new File(root, this.name);	// The components of the path under root
     }
 
     /** Compares two paths for equality.
@@ -175,6 +175,17 @@ class TestStorageServer implements Storage, Command
         throw new UnsupportedOperationException("create method not implemented");
     }
 
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public boolean[] createFiles(Path[] files)
+    {
+        test.failure(new TestFailed("unexpected call to createFiles method " +
+                                    "in storage server"));
+
+        throw new UnsupportedOperationException("createFiles method not " +
+                                                "implemented");
+    }
+
     /** Throws <code>UnsupportedOperationException</code>. */
     @Override
     public boolean delete(Path file)
@@ -186,6 +197,37 @@ class TestStorageServer implements Storage, Command
                                                 "implemented");
     }
 
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public boolean copy(Path file, Storage server)
+    {
+        test.failure(new TestFailed("unexpected call to copy method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("copy method not implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public long[] stat(Path file)
+    {
+        test.failure(new TestFailed("unexpected call to stat method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("stat method not implemented");
+    }
+
+    /** Throws <code>UnsupportedOperationException</code>. */
+    @Override
+    public boolean discard(Path file, long[] attributes)
+    {
+        test.failure(new TestFailed("unexpected call to discard method in " +
+                                    "storage server"));
+
+        throw new UnsupportedOperationException("discard method not " +
+                                                "implemented");
+    }
+
     /** Client interface skeleton.
 
         <p>
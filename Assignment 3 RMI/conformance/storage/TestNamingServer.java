@@ -133,6 +133,38 @@ class TestNamingServer implements naming.Registration
             return new Path[0];
     }
 
+    /** Fails the test: the storage servers under test hold few enough files
+        to register them all in one call.
+
+        @throws UnsupportedOperationException Always.
+     */
+    @Override
+    public Path[] addFiles(Storage client_stub, Path[] files)
+    {
+        test.failure(new TestFailed("unexpected call to addFiles method in " +
+                                    "test naming server"));
+        throw new UnsupportedOperationException("addFiles method not " +
+                                                "implemented");
+    }
+
+    /** Accepts file attributes from the storage server, without checking
+        them. */
+    @Override
+    public void attributes(Storage client_stub, Path[] files, long[] sizes,
+                           long[] modified)
+    {
+    }
+
+    /** Accepts heartbeats from the storage server, without checking them.
+
+        @return <code>true</code>.
+     */
+    @Override
+    public boolean heartbeat(Storage client_stub, long served, long free)
+    {
+        return true;
+    }
+
     /** Retrieves a registration stub for the test server.
 
         @return The stub.
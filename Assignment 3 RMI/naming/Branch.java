@@ -0,0 +1,494 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * A branch represents a directory within the directory tree. It contains all its immediate directories or files,
+ * indexed by name in a hash table so that lookups, insertions and removals take constant time regardless of the
+ * number of entries in the directory.
+ *
+ * Files are inodes in the Inodes table shared by the whole tree, and names are ids in its name table, so that a
+ * directory holds no object per file. The hash table is an open addressing table of ints, probed linearly from the hash
+ * of the name: a slot holds a file's inode plus one, or minus one minus the index of a directory in the array of the
+ * branch's subdirectories, and 0 if it is free. An entry is found by comparing the id of its name, read from its inode
+ * or its branch, with the id of the name looked up. An empty directory allocates no table at all.
+ *
+ * A node's home slot is the top bits of its key in Paging.HASH_ORDER, so the table holds the nodes roughly in that
+ * order: a node is in its home slot or after it in the same run of occupied slots, and only runs that reach the end
+ * of the table wrap around to its start. A listing in hash order therefore resumes from any name by probing from the
+ * name's home slot, in time proportional to the page rather than to the directory.
+ *
+ * A branch may optionally also keep its names in a sorted index. Listings of a sorted branch are in lexicographic
+ * order, at the cost of O(log n) insertions and removals. Every branch of a tree sorted from its root is sorted; other
+ * branches build their sorted index the first time they are listed by name, and keep it from then on.
+ *
+ * A branch also counts the files in its subtree and the bytes they hold, as last reported by the storage servers.
+ * Adding or removing a node, and a change in the size of a file, update the counts of every directory above it, so
+ * the usage of any directory is known without walking its subtree. Directories above a change are only locked in
+ * shared mode, so the counts are updated atomically. A branch may have a quota on its counts, checked when a client
+ * creates a file in its subtree.
+ *
+ * The children of a branch are guarded by its lock, see PathLock. Removing a directory frees the inodes and names of
+ * everything under it.
+ */
+class Branch extends Node{
+	final Inodes inodes;	// Files and names of the tree
+	private final int id;	// Id of the name, -1 for a root
+	private int[] table;	// Slots of the hash table, null until the first node is added. The length is a power of two
+	private int size;	// Number of nodes in the table
+	private Branch[] directories;	// Subdirectories, the first directoryCount of the array
+	private int directoryCount;
+	private final boolean sortedTree;	// Whether every branch of the tree is sorted
+	private TreeSet<String> sorted;	// null if the branch is not sorted
+	final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+	boolean removed;	// Set when the branch is deleted from its parent, under the parent's exclusive lock
+	private volatile long files;	// Files in the subtree
+	private volatile long bytes;	// Bytes held by the files in the subtree
+	volatile long[] quota;	// Most files and bytes allowed in the subtree, -1 for no limit, null if none. Replaced as a whole
+
+	private static final AtomicLongFieldUpdater<Branch> FILES = AtomicLongFieldUpdater.newUpdater(Branch.class, "files");
+	private static final AtomicLongFieldUpdater<Branch> BYTES = AtomicLongFieldUpdater.newUpdater(Branch.class, "bytes");
+
+	private static final int INITIAL_CAPACITY = 4;
+
+	/**
+	 * Creates the root of a new tree, with tables of its own
+	 */
+	public Branch(String name) {
+		this(name, false);
+	}
+
+	public Branch(String name, boolean sorted) {
+		this.name = name;
+		this.inodes = new Inodes();
+		this.id = -1;
+		this.sortedTree = sorted;
+		this.sorted = sorted ? new TreeSet<String>() : null;
+	}
+
+	private Branch(Branch parent, String name, int id) {
+		this.name = name;
+		this.parent = parent;
+		this.inodes = parent.inodes;
+		this.id = id;
+		this.sortedTree = parent.sortedTree;
+		this.sorted = sortedTree ? new TreeSet<String>() : null;
+	}
+
+	/**
+	 * Returns node with "name" from branch
+	 * @param name
+	 * @return the node, or null if there is no such node
+	 */
+	public Node getDirectory(String name) {
+		if (table == null) {
+			return null;
+		}
+		int id = inodes.names.find(name);
+		if (id == -1) {	// No node anywhere has the name
+			return null;
+		}
+		int slot = table[locate(id, name.hashCode())];
+		if (slot == 0) {
+			return null;
+		}
+		return slot > 0 ? new Leaf(this, name, slot - 1) : directories[-slot - 1];
+	}
+
+	/**
+	 * Adds a file to the branch, replacing any node with the same name
+	 * @param name
+	 * @param server id of the storage server holding the file
+	 * @return the new file
+	 */
+	public Leaf addFile(String name, int server) {
+		int id = inodes.names.intern(name);	// Before the node replaced releases the name
+		remove(name);
+		int inode = inodes.allocate(id, server);
+		insert(id, name.hashCode(), inode + 1);
+		if (sorted != null) {
+			sorted.add(name);
+		}
+		account(1, 0);
+		return new Leaf(this, name, inode);
+	}
+
+	/**
+	 * Adds a new file to the branch, if the quotas of this branch and of every branch above it leave room for it
+	 * @param name a name not in the branch
+	 * @param server id of the storage server holding the file
+	 * @return the branch whose quota is full, or null if the file was added
+	 */
+	public Branch addWithinQuota(String name, int server) {
+		for (Branch branch = this; branch != null; branch = branch.parent) {
+			if (!branch.reserve()) {
+				for (Branch reserved = this; reserved != branch; reserved = reserved.parent) {	// Give back the room taken
+					FILES.decrementAndGet(reserved);
+				}
+				return branch;
+			}
+		}
+		int id = inodes.names.intern(name);
+		insert(id, name.hashCode(), inodes.allocate(id, server) + 1);
+		if (sorted != null) {
+			sorted.add(name);
+		}
+		return null;
+	}
+
+	/**
+	 * Counts one more file in this branch if its quota leaves room for it. The check and the count are atomic, so
+	 * concurrent creations never exceed the quota
+	 */
+	private boolean reserve() {
+		long[] quota = this.quota;
+		if (quota == null) {
+			FILES.incrementAndGet(this);
+			return true;
+		}
+		if (quota[1] >= 0 && bytes >= quota[1]) {	// No room left for data
+			return false;
+		}
+		while (true) {
+			long current = files;
+			if (quota[0] >= 0 && current >= quota[0]) {
+				return false;
+			}
+			if (FILES.compareAndSet(this, current, current + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Adds to the counts of this branch and of every branch above it
+	 */
+	void account(long files, long bytes) {
+		if (files == 0 && bytes == 0) {
+			return;
+		}
+		for (Branch branch = this; branch != null; branch = branch.parent) {
+			FILES.addAndGet(branch, files);
+			BYTES.addAndGet(branch, bytes);
+		}
+	}
+
+	boolean isRemoved() {
+		return removed;
+	}
+
+	/**
+	 * Returns the number of files in the subtree
+	 */
+	public long files() {
+		return files;
+	}
+
+	/**
+	 * Returns the number of bytes held by the files in the subtree, counting files of unknown size as empty
+	 */
+	public long bytes() {
+		return bytes;
+	}
+
+	/**
+	 * Creates an empty branch and adds it to this branch, replacing any node with the same name. The new branch is
+	 * sorted if the tree is
+	 * @param name
+	 * @return the new branch
+	 */
+	public Branch addBranch(String name) {
+		int id = inodes.names.intern(name);
+		remove(name);
+		Branch branch = new Branch(this, name.intern(), id);
+		if (directories == null) {
+			directories = new Branch[INITIAL_CAPACITY];
+		} else if (directoryCount == directories.length) {
+			directories = Arrays.copyOf(directories, directoryCount * 2);
+		}
+		directories[directoryCount] = branch;
+		insert(id, name.hashCode(), -++directoryCount);
+		if (sorted != null) {
+			sorted.add(name);
+		}
+		return branch;
+	}
+
+	/**
+	 * Removes the node with "name" from the branch. A file's inode is freed, and a directory is marked as removed
+	 * and emptied
+	 * @param name
+	 * @return the removed node, or null if there was no such node
+	 */
+	public Node remove(String name) {
+		if (table == null) {
+			return null;
+		}
+		int id = inodes.names.find(name);
+		if (id == -1) {
+			return null;
+		}
+		int i = locate(id, name.hashCode());
+		int slot = table[i];
+		if (slot == 0) {
+			return null;
+		}
+		unlink(i);
+		if (sorted != null) {
+			sorted.remove(name);
+		}
+		if (slot > 0) {
+			Leaf leaf = new Leaf(this, name, slot - 1);
+			long[] attributes = leaf.attributes();
+			account(-1, attributes == null ? 0 : -attributes[0]);
+			inodes.free(slot - 1);
+			return leaf;
+		}
+		Branch branch = directories[-slot - 1];
+		if (-slot != directoryCount) {	// The last directory takes the place of the removed one
+			Branch last = directories[directoryCount - 1];
+			directories[-slot - 1] = last;
+			table[locate(last.id, inodes.names.hash(last.id))] = slot;
+		}
+		directories[--directoryCount] = null;
+		account(-branch.files, -branch.bytes);
+		branch.removed = true;
+		branch.release();
+		return branch;
+	}
+
+	/**
+	 * Frees the inodes and names of everything under a removed branch, and its own name. Each branch is emptied
+	 * under its exclusive lock, from the top down, so that walks holding a branch of the subtree find it empty
+	 * rather than refer to freed inodes
+	 */
+	private void release() {
+		lock.writeLock().lock();
+		try {
+			if (table != null) {
+				for (int slot : table) {
+					if (slot > 0) {
+						inodes.free(slot - 1);
+					} else if (slot < 0) {
+						directories[-slot - 1].release();
+					}
+				}
+			}
+			table = null;
+			size = 0;
+			directories = null;
+			directoryCount = 0;
+			if (sorted != null) {
+				sorted.clear();
+			}
+		} finally {
+			lock.writeLock().unlock();
+		}
+		inodes.names.release(id);
+	}
+
+	/**
+	 * Returns the number of immediate files and directories in the branch
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Returns the immediate files and directories, in lexicographic order if the branch is sorted
+	 */
+	public Collection<Node> nodes() {
+		ArrayList<Node> nodes = new ArrayList<Node>(size);
+		if (sorted != null) {
+			for (String name : sorted) {
+				nodes.add(getDirectory(name));
+			}
+		} else if (table != null) {
+			for (int slot : table) {
+				if (slot > 0) {
+					nodes.add(new Leaf(this, inodes.names.get(inodes.name(slot - 1)), slot - 1));
+				} else if (slot < 0) {
+					nodes.add(directories[-slot - 1]);
+				}
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * Returns the names of the immediate files and directories, in lexicographic order if the branch is sorted
+	 */
+	public String[] names() {
+		if (sorted != null) {
+			return sorted.toArray(new String[size]);
+		}
+		String[] names = new String[size];
+		int i = 0;
+		if (table != null) {
+			for (int slot : table) {
+				if (slot != 0) {
+					names[i++] = name(slot);
+				}
+			}
+		}
+		return names;
+	}
+
+	/**
+	 * Returns whether the branch keeps its entries in a sorted index
+	 */
+	public boolean isSorted() {
+		return sorted != null;
+	}
+
+	/**
+	 * Builds the sorted index of the branch, if it has none. Called under the exclusive lock
+	 */
+	public void sort() {
+		if (sorted == null) {
+			sorted = new TreeSet<String>(Arrays.asList(names()));
+		}
+	}
+
+	/**
+	 * Adds the names of a sorted branch that follow a name in lexicographic order to a list, until it holds a given
+	 * number. Only the names added are visited
+	 * @param after the name, or null to start at the first name
+	 */
+	public void namesAfter(String after, int count, ArrayList<String> names) {
+		for (String name : after == null ? sorted : sorted.tailSet(after, false)) {
+			if (names.size() >= count) {
+				return;
+			}
+			names.add(name);
+		}
+	}
+
+	/**
+	 * Adds the names that follow a name in Paging.HASH_ORDER to a list, until it holds a given number.
+	 *
+	 * The table is probed from the home slot of the name. A node found in a slot before its home has wrapped around
+	 * from the end of the table, and follows every other node; the others are in order of their homes from one run
+	 * of occupied slots to the next. The probe therefore ends at the first free slot once enough names were found
+	 * outside wrapped runs, since every name further on follows them, and otherwise after a full turn
+	 * @param after the name, or null to start at the first name
+	 */
+	public void hashesAfter(String after, int count, ArrayList<String> names) {
+		if (table == null) {
+			return;
+		}
+		int start = after == null ? 0 : home(after.hashCode(), table.length);
+		ArrayList<String> found = new ArrayList<String>();	// In runs that do not wrap
+		ArrayList<String> wrapped = new ArrayList<String>();	// In runs that wrap, met before the end of the table
+		for (int probes = 0; probes < table.length; probes++) {
+			int i = (start + probes) & (table.length - 1);
+			int slot = table[i];
+			if (slot == 0) {
+				if (i < start || found.size() >= count) {	// Past the end, the rest is before after
+					break;
+				}
+				continue;
+			}
+			String name = name(slot);
+			if (after != null && Paging.HASH_ORDER.compare(name, after) <= 0) {
+				continue;
+			}
+			if (i >= start && home(inodes.names.hash(id(slot)), table.length) > i) {
+				wrapped.add(name);
+			} else {
+				found.add(name);
+			}
+		}
+		if (found.size() < count) {	// Every name was visited
+			found.addAll(wrapped);
+		}
+		Collections.sort(found, Paging.HASH_ORDER);
+		names.addAll(found.subList(0, Math.min(count, found.size())));
+	}
+
+	/**
+	 * Returns the name of the node in a slot
+	 */
+	private String name(int slot) {
+		return slot > 0 ? inodes.names.get(inodes.name(slot - 1)) : directories[-slot - 1].name;
+	}
+
+	/**
+	 * Returns the id of the name of the node in a slot
+	 */
+	private int id(int slot) {
+		return slot > 0 ? inodes.name(slot - 1) : directories[-slot - 1].id;
+	}
+
+	/**
+	 * Returns the index of the slot holding the node with a name, or of the free slot that ends its probe
+	 * @param id id of the name
+	 * @param hash hash of the name
+	 */
+	private int locate(int id, int hash) {
+		int mask = table.length - 1;
+		int i = home(hash, table.length);
+		while (table[i] != 0 && id(table[i]) != id) {	// The table is never full, the probe ends at a free slot
+			i = (i + 1) & mask;
+		}
+		return i;
+	}
+
+	/**
+	 * Puts a node in the table, in the slot of its name. The name must not be in the table
+	 */
+	private void insert(int id, int hash, int slot) {
+		if (table == null) {
+			table = new int[INITIAL_CAPACITY];
+		} else if ((size + 1) * 4 > table.length * 3) {	// Keep the load below 3/4
+			resize(table.length * 2);
+		}
+		table[locate(id, hash)] = slot;
+		size++;
+	}
+
+	/**
+	 * Frees a slot of the table, moving back the nodes whose probe passed it
+	 */
+	private void unlink(int i) {
+		int mask = table.length - 1;
+		table[i] = 0;
+		size--;
+		for (int j = (i + 1) & mask; table[j] != 0; j = (j + 1) & mask) {
+			int home = home(inodes.names.hash(id(table[j])), table.length);
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				table[i] = table[j];
+				table[j] = 0;
+				i = j;
+			}
+		}
+	}
+
+	private void resize(int capacity) {
+		int[] old = table;
+		table = new int[capacity];
+		int mask = capacity - 1;
+		for (int slot : old) {
+			if (slot != 0) {
+				int i = home(inodes.names.hash(id(slot)), capacity);
+				while (table[i] != 0) {
+					i = (i + 1) & mask;
+				}
+				table[i] = slot;
+			}
+		}
+	}
+
+	/**
+	 * Returns the home slot of a hash in a table of the given capacity: the top bits of its key in hash order
+	 */
+	private static int home(int hash, int capacity) {
+		return (int) (Paging.key(hash) >>> (Paging.KEY_BITS - Integer.numberOfTrailingZeros(capacity)));
+	}
+}
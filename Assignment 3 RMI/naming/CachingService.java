@@ -0,0 +1,236 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import common.*;
+import rmi.*;
+import storage.*;
+
+/**
+ * Client service that caches lookups under leases granted by a naming server.
+ *
+ * isDirectory, list, getStorage, open and getWriteStorage are answered from a lease on the path, which is cached
+ * until its term runs out, so that the streams a client opens on the same files repeatedly ask the naming server once
+ * per term.
+ * Each lease also reports the paths the naming server changed since the previous one, and the cached lookups of
+ * those paths, of anything under them and of their parent directories are dropped. The changes this client makes
+ * through the service drop them the same way, so it always sees its own changes. Changes made by other clients are
+ * seen at the latest when the leases expire.
+ *
+ * The sequence numbers of changes are those of a single naming server. To cache lookups in a federated filesystem,
+ * the stub of each naming server is wrapped before it is mounted.
+ */
+class CachingService implements Service {
+	static final int ENTRIES = 4096;	// Default for entries
+
+	private final Service service;
+	private final int entries;	// Lookups kept, least recently used dropped first
+	private final LinkedHashMap<Path, Entry> cache = new LinkedHashMap<Path, Entry>(16, 0.75f, true);
+	private long epoch = 0;	// Epoch of the naming server run the cached leases are from
+	private long since = 0;	// Sequence number of the last change reported
+	long hits = 0, misses = 0;
+
+	CachingService(Service service, int entries) {
+		this.service = service;
+		this.entries = entries;
+	}
+
+	public boolean isDirectory(Path path) throws RMIException, FileNotFoundException {
+		return lookup(path).directory;
+	}
+
+	public String[] list(Path directory) throws RMIException, FileNotFoundException {
+		Lease lease = lookup(directory);
+		if (!lease.directory) {
+			throw new FileNotFoundException("File is not a directory");
+		}
+		return lease.names.clone();
+	}
+
+	public Storage getStorage(Path file) throws RMIException, FileNotFoundException {
+		return file(file).handle.storage();
+	}
+
+	public boolean createFile(Path file) throws RMIException, FileNotFoundException {
+		try {
+			return service.createFile(file);
+		} finally {
+			invalidate(file);
+		}
+	}
+
+	public boolean createDirectory(Path directory) throws RMIException, FileNotFoundException {
+		try {
+			return service.createDirectory(directory);
+		} finally {
+			invalidate(directory);
+		}
+	}
+
+	public boolean delete(Path path) throws RMIException, FileNotFoundException {
+		try {
+			return service.delete(path);
+		} finally {
+			invalidate(path);
+		}
+	}
+
+	public Storage getWriteStorage(Path file) throws RMIException, FileNotFoundException {
+		return file(file).original;
+	}
+
+	public Usage usage(Path directory) throws RMIException, FileNotFoundException {
+		return service.usage(directory);
+	}
+
+	public Handle open(Path file) throws RMIException, FileNotFoundException {
+		return file(file).handle;
+	}
+
+	public Storage[] getReplicas(Path file) throws RMIException, FileNotFoundException {
+		return service.getReplicas(file);
+	}
+
+	public boolean[] isDirectories(Path[] paths) throws RMIException, FileNotFoundException {
+		return service.isDirectories(paths);
+	}
+
+	public boolean[] createFiles(Path[] files) throws RMIException {
+		try {
+			return service.createFiles(files);
+		} finally {
+			for (Path file : files) {
+				invalidate(file);
+			}
+		}
+	}
+
+	public boolean[] createDirectories(Path[] directories) throws RMIException {
+		try {
+			return service.createDirectories(directories);
+		} finally {
+			for (Path directory : directories) {
+				invalidate(directory);
+			}
+		}
+	}
+
+	public Storage[] getStorages(Path[] files) throws RMIException, FileNotFoundException {
+		return service.getStorages(files);
+	}
+
+	public Page listPage(Path directory, String token, int count, boolean ordered)
+			throws RMIException, FileNotFoundException {
+		return service.listPage(directory, token, count, ordered);
+	}
+
+	public Walk walk(Path root, String filter, int depth, String token, int count)
+			throws RMIException, FileNotFoundException {
+		return service.walk(root, filter, depth, token, count);
+	}
+
+	public Lease lease(Path path, long since) throws RMIException, FileNotFoundException {
+		return service.lease(path, since);
+	}
+
+	public long lock(Path path, boolean exclusive) throws RMIException, FileNotFoundException {
+		return service.lock(path, exclusive);
+	}
+
+	public void renewLock(Path path, long token) throws RMIException {
+		service.renewLock(path, token);
+	}
+
+	public void unlock(Path path, long token) throws RMIException {
+		service.unlock(path, token);
+	}
+
+	/**
+	 * Returns the cached lease on a path, or a new one from the naming server if there is none or it expired
+	 */
+	private Lease lookup(Path path) throws RMIException, FileNotFoundException {
+		if (path == null) {
+			throw new NullPointerException();
+		}
+		long since;
+		synchronized (this) {
+			Entry entry = cache.get(path);
+			if (entry != null && System.nanoTime() - entry.expiry < 0) {
+				hits++;
+				return entry.lease;
+			}
+			misses++;
+			since = this.since;
+		}
+		long asked = System.nanoTime();	// The lease runs from when it may have been granted at the earliest
+		Lease lease = service.lease(path, since);
+		if (lease.term <= 0) {	// Not to be cached
+			return lease;
+		}
+		synchronized (this) {
+			if (lease.epoch != epoch || lease.invalidated == null) {	// Another run, or too many changes
+				cache.clear();
+				epoch = lease.epoch;
+				this.since = lease.sequence;
+			} else {
+				for (Path changed : lease.invalidated) {
+					invalidate(changed);
+				}
+				this.since = Math.max(this.since, lease.sequence);
+			}
+			cache.put(path, new Entry(lease, asked + lease.term * 1000000L));
+			if (cache.size() > entries) {
+				Iterator<Path> eldest = cache.keySet().iterator();
+				eldest.next();
+				eldest.remove();
+			}
+		}
+		return lease;
+	}
+
+	/**
+	 * Returns the lease on a file
+	 * @throws FileNotFoundException if the path is a directory
+	 */
+	private Lease file(Path file) throws RMIException, FileNotFoundException {
+		Lease lease = lookup(file);
+		if (lease.directory) {
+			throw new FileNotFoundException("File not found");
+		}
+		return lease;
+	}
+
+	/**
+	 * Drops the cached lookups of a changed path, of anything under it, and of its parent directory's entries
+	 */
+	private synchronized void invalidate(Path changed) {
+		if (changed == null) {
+			return;
+		}
+		if (changed.isRoot()) {
+			cache.clear();
+			return;
+		}
+		String prefix = changed.toString() + "/";
+		for (Iterator<Map.Entry<Path, Entry>> i = cache.entrySet().iterator(); i.hasNext();) {
+			Path path = i.next().getKey();
+			if (path.equals(changed) || path.toString().startsWith(prefix)) {
+				i.remove();
+			}
+		}
+		cache.remove(changed.parent());
+	}
+
+	private static class Entry {
+		final Lease lease;
+		final long expiry;	// System.nanoTime() at which the lease runs out
+
+		Entry(Lease lease, long expiry) {
+			this.lease = lease;
+			this.expiry = expiry;
+		}
+	}
+}
@@ -0,0 +1,173 @@
+package naming;
+
+import java.io.*;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedInputStream;
+import java.util.zip.CheckedOutputStream;
+
+/**
+ * Binary checkpoint of the naming server directory tree.
+ *
+ * A checkpoint holds the storage server table followed by the tree in preorder. Each file or directory is stored as
+ * its depth and its name only, since its parent is the last directory written at the depth above, and files store
+ * the id of their storage server instead of its stubs. The checkpoint also records the first log segment to replay
+ * after loading it, and ends with a CRC32 of its contents.
+ *
+ * A checkpoint is written to a temporary file, forced to disk and renamed over the previous one, so the checkpoint
+ * file is always either the old or the new checkpoint in full.
+ */
+class Checkpoint {
+	static final String NAME = "checkpoint";
+
+	private static final int MAGIC = 0x44465343;	// "DFSC"
+	private static final int VERSION = 1;
+
+	private final File directory;
+	private final File temporary;
+	private final FileOutputStream file;
+	private final CheckedOutputStream checked;
+	private final DataOutputStream out;
+
+	/**
+	 * Starts writing a checkpoint
+	 * @param directory the log directory
+	 * @param first number of the first log segment to replay after loading the checkpoint
+	 * @throws IOException
+	 */
+	public Checkpoint(File directory, long first) throws IOException {
+		this.directory = directory;
+		this.temporary = new File(directory, NAME + ".tmp");
+		this.file = new FileOutputStream(temporary);
+		this.checked = new CheckedOutputStream(new BufferedOutputStream(file, 1 << 16), new CRC32());
+		this.out = new DataOutputStream(checked);
+		out.writeInt(MAGIC);
+		out.writeInt(VERSION);
+		out.writeLong(first);
+	}
+
+	/**
+	 * Writes a storage server. All servers must be written before the tree
+	 * @param server id of the server
+	 * @param stubs serialized storage and command stubs
+	 */
+	public void server(int server, byte[] stubs) throws IOException {
+		out.writeByte(WriteAheadLog.SERVER);
+		out.writeInt(server);
+		out.writeInt(stubs.length);
+		out.write(stubs);
+	}
+
+	/**
+	 * Writes a directory, to be followed by its contents
+	 * @param depth number of components in the path of its parent
+	 * @param name
+	 */
+	public void directory(int depth, String name) throws IOException {
+		out.writeByte(WriteAheadLog.DIRECTORY);
+		out.writeShort(depth);
+		out.writeUTF(name);
+	}
+
+	/**
+	 * Writes a file
+	 * @param depth number of components in the path of its parent
+	 * @param name
+	 * @param server id of its storage server, or -1
+	 */
+	public void file(int depth, String name, int server) throws IOException {
+		out.writeByte(WriteAheadLog.FILE);
+		out.writeShort(depth);
+		out.writeUTF(name);
+		out.writeInt(server);
+	}
+
+	/**
+	 * Completes the checkpoint and replaces the previous one with it
+	 * @throws IOException
+	 */
+	public void commit() throws IOException {
+		out.writeByte(WriteAheadLog.END);
+		out.flush();
+		new DataOutputStream(file).writeInt((int) checked.getChecksum().getValue());	// Not part of the checksum
+		file.getFD().sync();
+		file.close();
+		Files.move(temporary.toPath(), new File(directory, NAME).toPath(), StandardCopyOption.ATOMIC_MOVE,
+				StandardCopyOption.REPLACE_EXISTING);
+		try (FileChannel dir = FileChannel.open(directory.toPath(), StandardOpenOption.READ)) {	// Make the rename durable
+			dir.force(true);
+		} catch (IOException e) {}	// Not supported on every platform
+	}
+
+	/**
+	 * Abandons the checkpoint, leaving the previous one in place
+	 */
+	public void abort() {
+		try {
+			file.close();
+		} catch (IOException e) {}
+		temporary.delete();
+	}
+
+	/**
+	 * Loads the checkpoint in a log directory
+	 * @param directory
+	 * @param replay receives the servers, directories and files in the checkpoint
+	 * @return the number of the first log segment to replay, 0 if there is no checkpoint
+	 * @throws IOException if the checkpoint cannot be read or is corrupt
+	 */
+	public static long read(File directory, WriteAheadLog.Replay replay) throws IOException {
+		File source = new File(directory, NAME);
+		if (!source.exists()) {
+			return 0;
+		}
+		CheckedInputStream checked = new CheckedInputStream(new BufferedInputStream(new FileInputStream(source),
+				1 << 16), new CRC32());
+		DataInputStream in = new DataInputStream(checked);
+		try {
+			if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+				throw new IOException("Not a naming server checkpoint: " + source);
+			}
+			long first = in.readLong();
+			String[] path = new String[16];	// Components of the path of the current node
+			while (true) {
+				byte type = in.readByte();
+				if (type == WriteAheadLog.END) {
+					break;
+				}
+				if (type == WriteAheadLog.SERVER) {
+					int server = in.readInt();
+					byte[] stubs = new byte[in.readInt()];
+					in.readFully(stubs);
+					replay.server(server, stubs);
+					continue;
+				}
+				int depth = in.readShort();
+				if (depth >= path.length) {
+					path = Arrays.copyOf(path, path.length * 2);
+				}
+				path[depth] = in.readUTF();
+				if (type == WriteAheadLog.DIRECTORY) {
+					replay.directory(path, depth + 1);
+				} else if (type == WriteAheadLog.FILE) {
+					replay.file(path, depth + 1, in.readInt());
+				} else {
+					throw new IOException("Unknown checkpoint record type " + type);
+				}
+			}
+			int expected = (int) checked.getChecksum().getValue();
+			if (in.readInt() != expected) {
+				throw new IOException("Corrupt naming server checkpoint: " + source);
+			}
+			return first;
+		} catch (EOFException e) {
+			throw new IOException("Truncated naming server checkpoint: " + source);
+		} finally {
+			in.close();
+		}
+	}
+}
@@ -0,0 +1,336 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.TreeSet;
+
+import common.*;
+import rmi.*;
+import storage.*;
+
+/**
+ * Client service of a federated filesystem. Each call is sent to the naming server owning its paths in a MountTable,
+ * and batch calls are split into one call per owning naming server.
+ *
+ * The mount points and the directories above them always exist, and are listed in their parents along with the
+ * entries of the naming server owning the parent. When a file or directory is created in one of them and its owner
+ * does not have it yet, the owner creates it, and the directories above it, first.
+ *
+ * Leases on the mounted directories have no term, and the sequence numbers in other leases are those of the naming
+ * server that granted them, so lookups are cached below this service rather than above it.
+ */
+class FederatedService implements Service {
+	private final MountTable table;
+
+	FederatedService(MountTable table) {
+		this.table = table;
+	}
+
+	public boolean isDirectory(Path path) throws RMIException, FileNotFoundException {
+		if (table.isMounted(owned(path))) {
+			return true;
+		}
+		return table.route(path).isDirectory(path);
+	}
+
+	public String[] list(Path directory) throws RMIException, FileNotFoundException {
+		Service owner = table.route(owned(directory));
+		if (!table.isMounted(directory)) {
+			return owner.list(directory);
+		}
+		LinkedHashSet<String> names = new LinkedHashSet<String>();
+		try {
+			names.addAll(Arrays.asList(owner.list(directory)));
+		} catch (FileNotFoundException e) {	// Not created on its owner yet
+		}
+		names.addAll(table.mounted(directory));
+		return names.toArray(new String[names.size()]);
+	}
+
+	public boolean createFile(Path file) throws RMIException, FileNotFoundException {
+		if (table.isMounted(owned(file))) {	// Always a directory
+			return false;
+		}
+		Service owner = table.route(file);
+		try {
+			return owner.createFile(file);
+		} catch (FileNotFoundException e) {
+			if (!table.isMounted(file.parent())) {
+				throw e;
+			}
+			materialize(owner, file.parent());
+			return owner.createFile(file);
+		}
+	}
+
+	public boolean createDirectory(Path directory) throws RMIException, FileNotFoundException {
+		if (table.isMounted(owned(directory))) {
+			return false;
+		}
+		Service owner = table.route(directory);
+		try {
+			return owner.createDirectory(directory);
+		} catch (FileNotFoundException e) {
+			if (!table.isMounted(directory.parent())) {
+				throw e;
+			}
+			materialize(owner, directory.parent());
+			return owner.createDirectory(directory);
+		}
+	}
+
+	public boolean delete(Path path) throws RMIException, FileNotFoundException {
+		if (table.isMounted(owned(path))) {	// Would leave the naming servers mounted under it unreachable
+			return false;
+		}
+		return table.route(path).delete(path);
+	}
+
+	public Storage getStorage(Path file) throws RMIException, FileNotFoundException {
+		return table.route(owned(file)).getStorage(file);
+	}
+
+	public Storage getWriteStorage(Path file) throws RMIException, FileNotFoundException {
+		return table.route(owned(file)).getWriteStorage(file);
+	}
+
+	public Handle open(Path file) throws RMIException, FileNotFoundException {
+		return table.route(owned(file)).open(file);
+	}
+
+	/**
+	 * Usage is counted by each naming server over the paths it owns, so files under naming servers mounted below the
+	 * directory are not counted
+	 */
+	public Usage usage(Path directory) throws RMIException, FileNotFoundException {
+		try {
+			return table.route(owned(directory)).usage(directory);
+		} catch (FileNotFoundException e) {
+			if (!table.isMounted(directory)) {
+				throw e;
+			}
+			return new Usage(0, 0, -1, -1);	// Not created on its owner yet
+		}
+	}
+
+	public Storage[] getReplicas(Path file) throws RMIException, FileNotFoundException {
+		return table.route(owned(file)).getReplicas(file);
+	}
+
+	public boolean[] isDirectories(Path[] paths) throws RMIException, FileNotFoundException {
+		boolean[] directories = new boolean[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			directories[i] = table.isMounted(owned(paths[i]));
+		}
+		for (Map.Entry<Service, ArrayList<Integer>> owner : partition(paths).entrySet()) {
+			ArrayList<Integer> indices = owner.getValue();
+			boolean[] answers = owner.getKey().isDirectories(select(paths, indices));
+			for (int i = 0; i < answers.length; i++) {
+				directories[indices.get(i)] = answers[i];
+			}
+		}
+		return directories;
+	}
+
+	public boolean[] createFiles(Path[] files) throws RMIException {
+		boolean[] created = new boolean[files.length];
+		for (Map.Entry<Service, ArrayList<Integer>> owner : partition(files).entrySet()) {
+			ArrayList<Integer> indices = owner.getValue();
+			Path[] part = select(files, indices);
+			materializeParents(owner.getKey(), part);
+			boolean[] answers = owner.getKey().createFiles(part);
+			for (int i = 0; i < answers.length; i++) {
+				created[indices.get(i)] = answers[i];
+			}
+		}
+		return created;
+	}
+
+	public boolean[] createDirectories(Path[] directories) throws RMIException {
+		boolean[] created = new boolean[directories.length];
+		for (Map.Entry<Service, ArrayList<Integer>> owner : partition(directories).entrySet()) {
+			ArrayList<Integer> indices = owner.getValue();
+			Path[] part = select(directories, indices);
+			materializeParents(owner.getKey(), part);
+			boolean[] answers = owner.getKey().createDirectories(part);
+			for (int i = 0; i < answers.length; i++) {
+				created[indices.get(i)] = answers[i];
+			}
+		}
+		return created;
+	}
+
+	public Storage[] getStorages(Path[] files) throws RMIException, FileNotFoundException {
+		Storage[] stubs = new Storage[files.length];
+		for (Map.Entry<Service, ArrayList<Integer>> owner : partition(files).entrySet()) {
+			ArrayList<Integer> indices = owner.getValue();
+			Storage[] answers = owner.getKey().getStorages(select(files, indices));
+			for (int i = 0; i < answers.length; i++) {
+				stubs[indices.get(i)] = answers[i];
+			}
+		}
+		for (int i = 0; i < files.length; i++) {
+			if (stubs[i] == null) {	// A mounted directory
+				throw new FileNotFoundException("File not found: " + files[i]);
+			}
+		}
+		return stubs;
+	}
+
+	public Page listPage(Path directory, String token, int count, boolean ordered)
+			throws RMIException, FileNotFoundException {
+		Service owner = table.route(owned(directory));
+		if (!table.isMounted(directory)) {
+			return owner.listPage(directory, token, count, ordered);
+		}
+		if (token != null && Paging.order(token) != Paging.NAMES) {	// Mounted directories are listed by name
+			throw new IllegalArgumentException("Token of an unordered listing");
+		}
+		if (count < 1) {
+			throw new IllegalArgumentException("Page size must be positive");
+		}
+		String after = Paging.after(token);
+		TreeSet<String> names = new TreeSet<String>();
+		String last = null;	// Last name on the owner's page, if it has more
+		try {
+			Page page = owner.listPage(directory, token, count, true);
+			names.addAll(Arrays.asList(page.names()));
+			last = page.next() == null ? null : Paging.after(page.next());
+		} catch (FileNotFoundException e) {	// Not created on its owner yet
+		}
+		for (String name : table.mounted(directory)) {
+			if (after == null || name.compareTo(after) > 0) {
+				names.add(name);
+			}
+		}
+		if (last != null) {	// Mounted names after the owner's page are listed with its next pages
+			names = new TreeSet<String>(names.headSet(last, true));
+		}
+		if (names.size() > count) {
+			return Paging.page(new ArrayList<String>(names), count, Paging.NAMES);
+		}
+		return new Page(names.toArray(new String[names.size()]), last == null ? null : Paging.NAMES + last);
+	}
+
+	public Walk walk(Path root, String filter, int depth, String token, int count)
+			throws RMIException, FileNotFoundException {
+		if (table.mounted(owned(root)).isEmpty()) {	// Nothing mounted below, so a single naming server walks it
+			try {
+				return table.route(root).walk(root, filter, depth, token, count);
+			} catch (FileNotFoundException e) {	// A mount point may not be created on its owner yet
+				if (!table.isMounted(root)) {
+					throw e;
+				}
+				return new Walker.Services(this, filter, depth, count).walk(null, root, token);
+			}
+		}
+		if (!isDirectory(root)) {
+			throw new FileNotFoundException("File not found");
+		}
+		return new Walker.Services(this, filter, depth, count).walk(null, root, token);	// Across naming servers
+	}
+
+	public Lease lease(Path path, long since) throws RMIException, FileNotFoundException {
+		if (table.isMounted(owned(path))) {	// Listed from several naming servers, so not cached
+			return new Lease(0, since, 0, true, list(path), null, null, new Path[0]);
+		}
+		return table.route(path).lease(path, since);
+	}
+
+	/**
+	 * Paths are locked on the naming server owning them, so the directories above a mount point are not locked with
+	 * the paths under it
+	 */
+	public long lock(Path path, boolean exclusive) throws RMIException, FileNotFoundException {
+		Service owner = table.route(owned(path));
+		try {
+			return owner.lock(path, exclusive);
+		} catch (FileNotFoundException e) {
+			if (!table.isMounted(path)) {
+				throw e;
+			}
+			materialize(owner, path);	// Not created on its owner yet
+			return owner.lock(path, exclusive);
+		}
+	}
+
+	public void renewLock(Path path, long token) throws RMIException {
+		table.route(owned(path)).renewLock(path, token);
+	}
+
+	public void unlock(Path path, long token) throws RMIException {
+		table.route(owned(path)).unlock(path, token);
+	}
+
+	/**
+	 * Checks that a path is not null
+	 */
+	private static Path owned(Path path) {
+		if (path == null) {
+			throw new NullPointerException();
+		}
+		return path;
+	}
+
+	/**
+	 * Groups the paths of a batch by owning naming server, leaving out the mounted directories
+	 * @return the naming servers, in the order of their first path, to the indices of their paths in order
+	 */
+	private Map<Service, ArrayList<Integer>> partition(Path[] paths) {
+		LinkedHashMap<Service, ArrayList<Integer>> owners = new LinkedHashMap<Service, ArrayList<Integer>>();
+		for (int i = 0; i < paths.length; i++) {
+			if (table.isMounted(owned(paths[i]))) {
+				continue;
+			}
+			Service owner = table.route(paths[i]);
+			if (!owners.containsKey(owner)) {
+				owners.put(owner, new ArrayList<Integer>());
+			}
+			owners.get(owner).add(i);
+		}
+		return owners;
+	}
+
+	private static Path[] select(Path[] paths, ArrayList<Integer> indices) {
+		Path[] selected = new Path[indices.size()];
+		for (int i = 0; i < selected.length; i++) {
+			selected[i] = paths[indices.get(i)];
+		}
+		return selected;
+	}
+
+	/**
+	 * Creates a mounted directory, and the directories above it, on the naming server that owns it
+	 */
+	private static void materialize(Service owner, Path directory) throws RMIException, FileNotFoundException {
+		ArrayList<Path> ancestors = new ArrayList<Path>();
+		for (Path path = directory; !path.isRoot(); path = path.parent()) {
+			ancestors.add(path);
+		}
+		for (int i = ancestors.size() - 1; i >= 0; i--) {	// From the root down
+			owner.createDirectory(ancestors.get(i));
+		}
+	}
+
+	/**
+	 * Creates the mounted directories holding paths of a batch on their owner, once each
+	 */
+	private void materializeParents(Service owner, Path[] paths) throws RMIException {
+		LinkedHashSet<Path> parents = new LinkedHashSet<Path>();
+		for (Path path : paths) {
+			if (table.isMounted(path.parent()) && !path.parent().isRoot()) {
+				parents.add(path.parent());
+			}
+		}
+		for (Path parent : parents) {
+			try {
+				materialize(owner, parent);
+			} catch (FileNotFoundException e) {	// A file is in the way, the paths in it are reported as not created
+			}
+		}
+	}
+}
@@ -0,0 +1,73 @@
+package naming;
+
+import java.io.*;
+
+import storage.*;
+
+/** Result of opening a file on the naming server.
+
+    <p>
+    Handles are returned by <code>Service.open</code>. A handle holds the
+    storage server a client reads the file from, and the size and modification
+    time of the file as last reported by its storage server, so that a client
+    need not ask the storage server for them before reading.
+ */
+public class Handle implements Serializable
+{
+    /** Storage server the client is directed to. */
+    private final Storage       storage;
+    /** Size of the file in bytes, or <code>-1</code> if unknown. */
+    private final long          size;
+    /** Modification time of the file, or <code>-1</code> if unknown. */
+    private final long          modified;
+
+    /** Creates a handle.
+
+        @param storage Storage server the client is directed to.
+        @param size Size of the file in bytes, or <code>-1</code> if unknown.
+        @param modified Modification time of the file, or <code>-1</code> if
+                        unknown.
+     */
+    Handle(Storage storage, long size, long modified)
+    {
+        this.storage = storage;
+        this.size = size;
+        this.modified = modified;
+    }
+
+    /** Returns the storage server the client is directed to.
+
+        @return A stub for the storage server, as returned by
+                <code>Service.getStorage</code>.
+     */
+    public Storage storage()
+    {
+        return storage;
+    }
+
+    /** Returns the size of the file.
+
+        <p>
+        Storage servers report writes some time after they are made, so the
+        size may predate the last writes. Clients that rely on the end of the
+        file ask the storage server.
+
+        @return The size in bytes, or <code>-1</code> if the storage server has
+                not reported it since the naming server started.
+     */
+    public long size()
+    {
+        return size;
+    }
+
+    /** Returns the modification time of the file.
+
+        @return The time, in milliseconds since the epoch, or <code>-1</code>
+                if the storage server has not reported it since the naming
+                server started.
+     */
+    public long modified()
+    {
+        return modified;
+    }
+}
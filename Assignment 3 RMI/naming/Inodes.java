@@ -0,0 +1,167 @@
+package naming;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Table of the files of a directory tree. A file is an inode: a number indexing flat arrays of primitive fields, so
+ * that it costs a few ints instead of an object of its own, and its directory refers to it by that number.
+ *
+ * An inode holds the id of its name in the tree's name table, the id of the storage server holding the original file,
+ * and a generation, advanced whenever the inode is freed, so that a Leaf kept while its file is deleted and the inode
+ * handed to another file knows it was removed. Replicas and attributes are rare or added later, so they are kept in
+ * arrays of their own, allocated for a page of inodes once one of them needs them.
+ *
+ * The arrays are split in pages that never move once allocated, so that fields are read and written without a lock
+ * on the table while other inodes are allocated. Only allocating and freeing inodes synchronize on the table. Free
+ * inodes are chained through their server field, and handed out again before the table grows.
+ */
+class Inodes {
+	private static final int PAGE_BITS = 12;
+	private static final int PAGE = 1 << PAGE_BITS;	// Inodes in a page
+	private static final int NAME = 0, SERVER = 1, GENERATION = 2, FIELDS = 3;	// Fields of an inode in its page
+
+	final Names names = new Names();	// Names of the files and directories of the tree
+	private volatile Page[] pages = new Page[0];
+	private int count;	// Inodes handed out so far
+	private int free = -1;	// First free inode below count, -1 if none
+	private int used;	// Inodes in use
+
+	/**
+	 * Allocates an inode for a file
+	 * @param name id of its name, whose reference passes to the inode
+	 * @param server id of the storage server holding the original file
+	 * @return the inode
+	 */
+	public synchronized int allocate(int name, int server) {
+		int inode = free;
+		if (inode != -1) {
+			free = fields(inode).get(index(inode, SERVER));
+		} else {
+			inode = count++;
+			if (inode >> PAGE_BITS == pages.length) {
+				Page[] grown = Arrays.copyOf(pages, pages.length + 1);
+				grown[pages.length] = new Page();
+				pages = grown;
+			}
+		}
+		AtomicIntegerArray fields = fields(inode);
+		fields.set(index(inode, NAME), name);
+		fields.set(index(inode, SERVER), server);
+		used++;
+		return inode;
+	}
+
+	/**
+	 * Frees an inode, releasing its name. Leaves of the file are removed from then on
+	 * @param inode
+	 */
+	public synchronized void free(int inode) {
+		AtomicIntegerArray fields = fields(inode);
+		names.release(fields.get(index(inode, NAME)));
+		fields.incrementAndGet(index(inode, GENERATION));
+		fields.set(index(inode, NAME), -1);
+		fields.set(index(inode, SERVER), free);
+		Page page = page(inode);
+		if (page.replicas != null) {
+			page.replicas.set(inode & (PAGE - 1), null);
+		}
+		if (page.attributes != null) {
+			page.attributes.set(inode & (PAGE - 1), null);
+		}
+		free = inode;
+		used--;
+	}
+
+	/**
+	 * Returns the number of inodes in use
+	 */
+	public synchronized int size() {
+		return used;
+	}
+
+	public int name(int inode) {
+		return fields(inode).get(index(inode, NAME));
+	}
+
+	public int server(int inode) {
+		return fields(inode).get(index(inode, SERVER));
+	}
+
+	public void setServer(int inode, int server) {
+		fields(inode).set(index(inode, SERVER), server);
+	}
+
+	public int generation(int inode) {
+		return fields(inode).get(index(inode, GENERATION));
+	}
+
+	/**
+	 * Returns the ids of the servers holding replicas of a file, or null if there are none
+	 */
+	public int[] replicas(int inode) {
+		AtomicReferenceArray<int[]> replicas = page(inode).replicas;
+		return replicas == null ? null : replicas.get(inode & (PAGE - 1));
+	}
+
+	public void setReplicas(int inode, int[] replicas) {
+		Page page = page(inode);
+		if (page.replicas == null) {
+			if (replicas == null) {
+				return;
+			}
+			synchronized (this) {
+				if (page.replicas == null) {
+					page.replicas = new AtomicReferenceArray<int[]>(PAGE);
+				}
+			}
+		}
+		page.replicas.set(inode & (PAGE - 1), replicas);
+	}
+
+	/**
+	 * Returns the size and modification time of a file, or null if unknown
+	 */
+	public long[] attributes(int inode) {
+		AtomicReferenceArray<long[]> attributes = page(inode).attributes;
+		return attributes == null ? null : attributes.get(inode & (PAGE - 1));
+	}
+
+	/**
+	 * Replaces the attributes of a file
+	 * @return the previous attributes, or null if they were unknown
+	 */
+	public long[] setAttributes(int inode, long[] attributes) {
+		Page page = page(inode);
+		if (page.attributes == null) {
+			synchronized (this) {
+				if (page.attributes == null) {
+					page.attributes = new AtomicReferenceArray<long[]>(PAGE);
+				}
+			}
+		}
+		return page.attributes.getAndSet(inode & (PAGE - 1), attributes);
+	}
+
+	private Page page(int inode) {
+		return pages[inode >> PAGE_BITS];
+	}
+
+	private AtomicIntegerArray fields(int inode) {
+		return page(inode).fields;
+	}
+
+	private static int index(int inode, int field) {
+		return (inode & (PAGE - 1)) * FIELDS + field;
+	}
+
+	/**
+	 * Fields of PAGE consecutive inodes
+	 */
+	private static final class Page {
+		final AtomicIntegerArray fields = new AtomicIntegerArray(PAGE * FIELDS);
+		volatile AtomicReferenceArray<int[]> replicas;	// null until an inode of the page has replicas
+		volatile AtomicReferenceArray<long[]> attributes;	// null until an inode of the page has attributes
+	}
+}
@@ -0,0 +1,59 @@
+package naming;
+
+import java.util.Random;
+
+import common.*;
+
+/**
+ * Recent changes to the directory tree, for clients holding leases on lookups.
+ *
+ * Each change to a path is numbered in sequence, and the last KEPT are kept. A client passes the sequence number of
+ * the last change it knows of with each lease request, and receives the paths changed since, so that it drops its
+ * cached lookups of them before their leases expire. A client too far behind is told that everything may have
+ * changed.
+ *
+ * The sequence numbers are those of one naming server run, which is told apart by its epoch.
+ */
+class Invalidations {
+	static final int KEPT = 4096;	// Changes kept
+
+	final long epoch = new Random().nextLong() | 1;	// Never 0
+	private final Path[] paths = new Path[KEPT];	// Path of change s at s % KEPT
+	private long sequence = 0;	// Number of the last change
+	private long floor = 0;	// Changes up to this one are unknown
+
+	/**
+	 * Records a change to a path: the path, or anything under it, was created, removed or moved to another server
+	 */
+	synchronized void record(Path path) {
+		sequence++;
+		paths[(int) (sequence % KEPT)] = path;
+	}
+
+	/**
+	 * Forgets the changes so far, so that clients drop all their cached lookups
+	 */
+	synchronized void clear() {
+		sequence += KEPT;
+		floor = sequence;
+	}
+
+	synchronized long sequence() {
+		return sequence;
+	}
+
+	/**
+	 * Returns the paths changed after one change and up to another
+	 * @return the paths, or null if some of them are no longer kept, or if after is not a change of this run
+	 */
+	synchronized Path[] since(long after, long until) {
+		if (after < floor || after < sequence - KEPT || after > until) {
+			return null;
+		}
+		Path[] changed = new Path[(int) (until - after)];
+		for (int i = 0; i < changed.length; i++) {
+			changed[i] = paths[(int) ((after + 1 + i) % KEPT)];
+		}
+		return changed;
+	}
+}
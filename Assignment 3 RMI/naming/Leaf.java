@@ -0,0 +1,83 @@
+package naming;
+
+/**
+ * Leaf represents a file in the directory tree. The file itself is an inode in the tree's Inodes table; a Leaf is a
+ * small handle on it, made when the file is looked up, and two leaves are equal when they refer to the same file.
+ * Storage servers are referred to by their id in the naming server's ServerTable.
+ *
+ * A Leaf stays valid while it is kept: once the file is deleted, its inode's generation changes, and the Leaf is
+ * removed even if the inode is handed to another file.
+ */
+final class Leaf extends Node {
+	final int inode;
+	final int generation;	// Generation of the inode when the file was looked up
+
+	Leaf(Branch parent, String name, int inode) {
+		this.parent = parent;
+		this.name = name;
+		this.inode = inode;
+		this.generation = parent.inodes.generation(inode);
+	}
+
+	/**
+	 * Returns the id of the storage server where the original file is held, -1 if none
+	 */
+	int server() {
+		return parent.inodes.server(inode);
+	}
+
+	/**
+	 * Changes the server of the original, when a replica takes over from a dead server or the file is moved. Called
+	 * under the exclusive lock on the parent
+	 */
+	void setServer(int server) {
+		parent.inodes.setServer(inode, server);
+	}
+
+	/**
+	 * Returns the ids of the storage servers holding replicas of the file, null if there are none. The array is
+	 * replaced as a whole, and never changed
+	 */
+	int[] replicas() {
+		return parent.inodes.replicas(inode);
+	}
+
+	/**
+	 * Replaces the replicas. Called under the exclusive lock on the parent
+	 */
+	void setReplicas(int[] replicas) {
+		parent.inodes.setReplicas(inode, replicas);
+	}
+
+	/**
+	 * Returns the size and modification time last reported by the original's storage server, null if unknown. The
+	 * array is replaced as a whole, and never changed
+	 */
+	long[] attributes() {
+		return parent.inodes.attributes(inode);
+	}
+
+	/**
+	 * Replaces the attributes, and counts the change in size in the directories above. Called with the parent
+	 * locked, so that the file is not removed meanwhile
+	 */
+	void setAttributes(long[] attributes) {
+		long[] previous = parent.inodes.setAttributes(inode, attributes);	// Reports on the same file may be applied concurrently
+		parent.account(0, attributes[0] - (previous == null ? 0 : previous[0]));
+	}
+
+	boolean isRemoved() {
+		return parent.inodes.generation(inode) != generation;
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof Leaf && ((Leaf) other).inode == inode && ((Leaf) other).generation == generation
+				&& ((Leaf) other).parent.inodes == parent.inodes;
+	}
+
+	@Override
+	public int hashCode() {
+		return inode * 31 + generation;
+	}
+}
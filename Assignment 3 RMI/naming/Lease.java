@@ -0,0 +1,68 @@
+package naming;
+
+import java.io.*;
+
+import common.*;
+import storage.*;
+
+/** Time-bounded lease on the lookup of a path, granted by a naming server.
+
+    <p>
+    A lease holds what <code>isDirectory</code>, and <code>list</code> or
+    <code>open</code> and <code>getWriteStorage</code>, return for a path, and
+    the time for which a client may keep serving them from a cache. The size
+    and modification time in the handle of a file are not renewed as the file
+    is written, and may be as old as the lease. It also carries the paths the naming
+    server has changed since the client's previous lease, so that the client
+    drops its cached lookups of them early. Its contents are only read by the
+    client cache returned by <code>NamingStubs.cached</code>.
+ */
+public class Lease implements Serializable
+{
+    /** Epoch of the naming server run that granted the lease. */
+    final long          epoch;
+    /** Sequence number of the last change to the tree known when the lease
+        was granted. */
+    final long          sequence;
+    /** Time for which the lookup may be cached, in milliseconds. */
+    final long          term;
+    /** Whether the path is a directory. */
+    final boolean       directory;
+    /** Entries of the directory, or <code>null</code> for a file. */
+    final String[]      names;
+    /** Handle of the file, whose storage server also answers
+        <code>getStorage</code>, or <code>null</code> for a directory. */
+    final Handle        handle;
+    /** Storage server hosting the original of the file, or <code>null</code>
+        for a directory. */
+    final Storage       original;
+    /** Paths changed after the client's previous lease, or
+        <code>null</code> if any path may have changed. */
+    final Path[]        invalidated;
+
+    /** Creates a lease.
+
+        @param epoch Epoch of the naming server run.
+        @param sequence Sequence number of the last change known.
+        @param term Time for which the lookup may be cached.
+        @param directory Whether the path is a directory.
+        @param names Entries of the directory, or <code>null</code>.
+        @param handle Handle of the file, or <code>null</code>.
+        @param original Storage server hosting the original of the file, or
+                        <code>null</code>.
+        @param invalidated Paths changed since the client's previous lease.
+     */
+    Lease(long epoch, long sequence, long term, boolean directory,
+          String[] names, Handle handle, Storage original,
+          Path[] invalidated)
+    {
+        this.epoch = epoch;
+        this.sequence = sequence;
+        this.term = term;
+        this.directory = directory;
+        this.names = names;
+        this.handle = handle;
+        this.original = original;
+        this.invalidated = invalidated;
+    }
+}
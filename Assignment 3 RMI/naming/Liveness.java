@@ -0,0 +1,144 @@
+package naming;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+import common.*;
+import storage.*;
+
+/**
+ * Tracks which storage servers are alive from their heartbeats.
+ *
+ * A server that has sent a heartbeat and sends none for misses intervals is marked dead in the ServerTable, so that
+ * clients are no longer directed to it and no files are placed on it. The files it held are then repaired by the
+ * Replicator: those with a copy on a live server lose the one on the dead server, and gain a replica elsewhere in its
+ * place. Files held only by the dead server keep referring to it.
+ *
+ * The copies left on a dead server that are no longer referenced, and the files deleted while it is dead, are queued
+ * as stale. When the server sends a heartbeat again, the stale copies are deleted on it before it is marked alive, so
+ * that it never serves them. Marking a server dead and repairing its files, and bringing it back, are serialized, so
+ * that no copy is queued once the server is back.
+ */
+class Liveness implements Runnable {
+	long interval = NamingStubs.HEARTBEAT_INTERVAL;	// Interval between checks and expected heartbeats, in milliseconds
+	int misses = 3;	// Heartbeats missed in a row after which a server is dead
+
+	private final NamingServer server;
+	private final ConcurrentHashMap<Integer, Queue<Path>> stale = new ConcurrentHashMap<Integer, Queue<Path>>();	// Server id to copies to delete when it is back
+	private final Object repairing = new Object();	// Held while a server is marked dead or alive
+	private volatile boolean running = false;
+	private Thread thread = null;
+
+	Liveness(NamingServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Starts checking for missed heartbeats
+	 */
+	synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "naming liveness");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops checking. Servers already marked dead stay so until their next heartbeat
+	 */
+	synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			check();
+		}
+	}
+
+	/**
+	 * Marks dead the servers whose last heartbeat is too old, and repairs the files they held
+	 */
+	void check() {
+		ServerTable servers = server.servers;
+		long timeout = misses * interval * 1000000L;
+		for (int id = 0; id < servers.size(); id++) {
+			long last = servers.lastHeartbeat(id);
+			if (last != 0 && !servers.dead(id) && System.nanoTime() - last > timeout) {
+				synchronized (repairing) {
+					if (servers.lastHeartbeat(id) != last) {	// Heard from meanwhile
+						continue;
+					}
+					servers.setDead(id, true);
+					server.replicator.repair(id, stale(id));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Records a heartbeat from a server, bringing it back if it was dead
+	 */
+	void heartbeat(int id, long served, long free) {
+		ServerTable servers = server.servers;
+		servers.heartbeat(id, served, free);
+		if (servers.dead(id)) {
+			revive(id);
+		}
+	}
+
+	/**
+	 * Queues a copy to delete on a dead server when it is back
+	 */
+	void stale(int id, Path path) {
+		stale(id).add(path);
+	}
+
+	/**
+	 * Deletes the stale copies on a server, then marks it alive
+	 */
+	private void revive(int id) {
+		ServerTable servers = server.servers;
+		synchronized (repairing) {
+			if (!servers.dead(id)) {	// Revived by an earlier heartbeat
+				return;
+			}
+			Command command = servers.command(id);
+			Queue<Path> paths = stale(id);
+			for (Path path = paths.poll(); path != null; path = paths.poll()) {
+				try {
+					command.delete(path);
+				} catch (Exception e) {	// Down again, the remaining copies are deleted on its next heartbeat
+					paths.add(path);
+					return;
+				}
+			}
+			servers.setDead(id, false);
+		}
+	}
+
+	private Queue<Path> stale(int id) {
+		Queue<Path> paths = stale.get(id);
+		if (paths == null) {
+			paths = new ConcurrentLinkedQueue<Path>();
+			Queue<Path> previous = stale.putIfAbsent(id, paths);
+			if (previous != null) {
+				paths = previous;
+			}
+		}
+		return paths;
+	}
+}
@@ -0,0 +1,120 @@
+package naming;
+
+/** Statistics on the locks taken by clients with <code>Service.lock</code>.
+
+    <p>
+    Statistics are returned by <code>NamingServer.lockStatistics</code>. Each
+    call to <code>lock</code> counts once, however many directories it locks.
+    Times are in nanoseconds.
+ */
+public class LockStatistics
+{
+    /** Lock calls granted. */
+    private final long          acquired;
+    /** Lock calls granted and neither unlocked nor expired. */
+    private final long          held;
+    /** Lock calls waiting to be granted. */
+    private final long          waiting;
+    /** Lock calls released when their lease ran out. */
+    private final long          expired;
+    /** Time granted lock calls waited. */
+    private final long          waitTime;
+    /** Longest time a granted lock call waited. */
+    private final long          maxWaitTime;
+    /** Time locks were held, summed over the lock calls holding them. */
+    private final long          holdTime;
+
+    /** Creates statistics.
+
+        @param acquired Lock calls granted.
+        @param held Lock calls granted and neither unlocked nor expired.
+        @param waiting Lock calls waiting to be granted.
+        @param expired Lock calls released when their lease ran out.
+        @param waitTime Time granted lock calls waited.
+        @param maxWaitTime Longest time a granted lock call waited.
+        @param holdTime Time locks were held, summed over the lock calls
+                        holding them.
+     */
+    LockStatistics(long acquired, long held, long waiting, long expired,
+                   long waitTime, long maxWaitTime, long holdTime)
+    {
+        this.acquired = acquired;
+        this.held = held;
+        this.waiting = waiting;
+        this.expired = expired;
+        this.waitTime = waitTime;
+        this.maxWaitTime = maxWaitTime;
+        this.holdTime = holdTime;
+    }
+
+    /** Returns the number of lock calls granted so far.
+
+        @return The number of lock calls granted.
+     */
+    public long acquired()
+    {
+        return acquired;
+    }
+
+    /** Returns the number of lock calls whose locks are held.
+
+        @return The number of lock calls granted and neither unlocked nor
+                expired.
+     */
+    public long held()
+    {
+        return held;
+    }
+
+    /** Returns the number of lock calls waiting for their locks.
+
+        @return The number of lock calls not yet granted.
+     */
+    public long waiting()
+    {
+        return waiting;
+    }
+
+    /** Returns the number of lock calls whose locks were released because
+        their lease ran out.
+
+        @return The number of lock calls neither unlocked nor renewed in time.
+     */
+    public long expired()
+    {
+        return expired;
+    }
+
+    /** Returns the time lock calls waited for their locks.
+
+        @return The time granted lock calls waited, in nanoseconds.
+     */
+    public long waitTime()
+    {
+        return waitTime;
+    }
+
+    /** Returns the longest time a lock call waited for its locks.
+
+        @return The longest time a granted lock call waited, in nanoseconds.
+     */
+    public long maxWaitTime()
+    {
+        return maxWaitTime;
+    }
+
+    /** Returns the time locks were held.
+
+        <p>
+        Locks still held are counted up to the time the statistics were taken.
+        Divided by <code>acquired() - held()</code>, once no lock is held, it
+        gives the mean time a lock was held.
+
+        @return The time locks were held, summed over the lock calls holding
+                them, in nanoseconds.
+     */
+    public long holdTime()
+    {
+        return holdTime;
+    }
+}
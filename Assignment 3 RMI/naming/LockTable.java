@@ -0,0 +1,340 @@
+package naming;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.*;
+
+/**
+ * Locks taken by clients on paths, with Service.lock and Service.unlock.
+ *
+ * Client locks are held across calls, by no particular thread, so they are kept apart from the locks of the Branch
+ * tree, which guard the naming server's own calls. They are advisory: the naming server's calls do not take them.
+ *
+ * Locking a path locks every directory above it in shared mode, from the root down, and the path itself in the mode
+ * asked for, so a client holding a path exclusively excludes clients working anywhere under it, while clients working
+ * in disjoint subtrees proceed in parallel. Each path has a FIFO queue of requests: a request is granted once it is at
+ * the head of the queue and compatible with the holders, so a waiting exclusive request is never overtaken by shared
+ * requests made after it, and a steady stream of readers cannot starve a writer. Taking the locks from the root down
+ * keeps clients from deadlocking among themselves.
+ *
+ * Each granted lock call is a hold, named by a random token that only its client knows, and leased for a term: the
+ * hold is released by unlock with its token, or once its lease runs out without being renewed, so that a client that
+ * dies holding locks does not keep them forever. Expired holds are released by the next call to the table; a request
+ * waiting for locks wakes up when the earliest lease runs out, so that it is not kept waiting by a client that is gone.
+ *
+ * Paths are only tracked while they are locked or waited for. All changes are made under a single monitor, with one
+ * condition per request, so that a release wakes up only the requests it grants.
+ *
+ * The table also keeps statistics on the lock calls: how many were granted, held, waiting and expired, and how long
+ * they waited and held their locks. The hold time is the sum over time of the number of calls holding locks.
+ */
+class LockTable {
+	private final ReentrantLock monitor = new ReentrantLock();
+	private final HashMap<Path, Entry> entries = new HashMap<Path, Entry>();	// Paths locked or waited for
+	private final HashMap<Long, Hold> holds = new HashMap<Long, Hold>();	// Granted lock calls by token
+	private final PriorityQueue<Expiry> expiries = new PriorityQueue<Expiry>();	// Leases of the holds, earliest first
+	private final Random random = new Random();
+	private long acquired = 0;	// Lock calls granted
+	private long held = 0;	// Lock calls granted and not yet unlocked
+	private long waiting = 0;	// Lock calls waiting to be granted
+	private long waitTime = 0;	// Time lock calls waited, in nanoseconds
+	private long maxWaitTime = 0;
+	private long expired = 0;	// Lock calls released when their lease ran out
+	private long holdTime = 0;	// Time locks were held until changed, summed over the calls holding them
+	private long changed = System.nanoTime();	// Time held last changed
+
+	/**
+	 * Locks the directories above a path in shared mode and the path in the given mode, waiting for the locks in turn
+	 * @param term lease of the locks once granted, in milliseconds
+	 * @return the token of the locks
+	 * @throws InterruptedException if the thread is interrupted while waiting, in which case no lock is kept
+	 */
+	long lock(Path path, boolean exclusive, long term) throws InterruptedException {
+		Path[] chain = chain(path);
+		long start = System.nanoTime();
+		monitor.lock();
+		try {
+			expire();
+			waiting++;
+			int taken = 0;
+			try {
+				for (; taken < chain.length; taken++) {
+					acquire(chain[taken], exclusive && taken == chain.length - 1);
+				}
+			} finally {
+				waiting--;
+				if (taken < chain.length) {	// Interrupted, the directories above are given back
+					for (int i = taken - 1; i >= 0; i--) {
+						release(chain[i], false);
+					}
+				}
+			}
+			long now = System.nanoTime();
+			long waited = now - start;
+			waitTime += waited;
+			maxWaitTime = Math.max(maxWaitTime, waited);
+			acquired++;
+			count(1);
+			long token;
+			do {
+				token = random.nextLong();
+			} while (holds.containsKey(token));
+			Hold hold = new Hold(token, chain, exclusive, now + term * 1000000L);
+			holds.put(token, hold);
+			expiries.add(new Expiry(hold));
+			return token;
+		} finally {
+			monitor.unlock();
+		}
+	}
+
+	/**
+	 * Unlocks a path locked by lock, and the directories above it
+	 * @param token the token lock returned
+	 * @throws IllegalArgumentException if the path is not locked under the token, or its lease ran out
+	 */
+	void unlock(Path path, long token) {
+		monitor.lock();
+		try {
+			expire();
+			Hold hold = held(path, token);
+			holds.remove(token);
+			release(hold);
+		} finally {
+			monitor.unlock();
+		}
+	}
+
+	/**
+	 * Extends the lease of the locks taken by a lock call to a full term from now
+	 * @param token the token lock returned
+	 * @param term lease of the locks, in milliseconds
+	 * @throws IllegalArgumentException if the path is not locked under the token, or its lease ran out
+	 */
+	void renew(Path path, long token, long term) {
+		monitor.lock();
+		try {
+			expire();
+			Hold hold = held(path, token);
+			hold.expires = System.nanoTime() + term * 1000000L;
+			expiries.add(new Expiry(hold));	// The earlier lease is skipped once it runs out
+		} finally {
+			monitor.unlock();
+		}
+	}
+
+	/**
+	 * Returns the statistics of the lock calls so far
+	 */
+	LockStatistics statistics() {
+		monitor.lock();
+		try {
+			expire();
+			long now = System.nanoTime();
+			return new LockStatistics(acquired, held, waiting, expired, waitTime, maxWaitTime,
+					holdTime + held * (now - changed));
+		} finally {
+			monitor.unlock();
+		}
+	}
+
+	/**
+	 * Queues a request for the lock on a path and waits until it is granted. Called with the monitor held
+	 */
+	private void acquire(Path path, boolean exclusive) throws InterruptedException {
+		Entry entry = entries.get(path);
+		if (entry == null) {
+			entry = new Entry();
+			entries.put(path, entry);
+		}
+		Request request = new Request(exclusive, monitor.newCondition());
+		entry.queue.add(request);
+		grant(entry);
+		while (!request.granted) {
+			try {
+				Expiry next = expiries.peek();
+				if (next == null) {
+					request.condition.await();
+				} else {	// The holder may be gone, and its locks are given back once its lease runs out
+					request.condition.awaitNanos(next.expires - System.nanoTime());
+					expire();
+				}
+			} catch (InterruptedException e) {
+				if (request.granted) {
+					release(path, exclusive);
+				} else {	// Requests queued behind it may be granted now
+					entry.queue.remove(request);
+					grant(entry);
+					forget(path, entry);
+				}
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Gives back the lock on a path, and grants the requests that can be. Called with the monitor held
+	 */
+	private void release(Path path, boolean exclusive) {
+		Entry entry = entries.get(path);
+		if (exclusive) {
+			entry.writer = false;
+		} else {
+			entry.readers--;
+		}
+		grant(entry);
+		forget(path, entry);
+	}
+
+	/**
+	 * Gives back the locks of a hold, from the path up. Called with the monitor held
+	 */
+	private void release(Hold hold) {
+		for (int i = hold.chain.length - 1; i >= 0; i--) {
+			release(hold.chain[i], hold.exclusive && i == hold.chain.length - 1);
+		}
+		hold.released = true;
+		count(-1);
+	}
+
+	/**
+	 * Releases the holds whose lease ran out. Called with the monitor held
+	 */
+	private void expire() {
+		long now = System.nanoTime();
+		while (!expiries.isEmpty() && expiries.peek().expires - now <= 0) {
+			Expiry expiry = expiries.poll();
+			Hold hold = expiry.hold;
+			if (!hold.released && hold.expires == expiry.expires) {	// Neither unlocked nor renewed since
+				holds.remove(hold.token);
+				release(hold);
+				expired++;
+			}
+		}
+	}
+
+	/**
+	 * Returns the hold of a token, checking that it locks a path. Called with the monitor held
+	 * @throws IllegalArgumentException if it does not
+	 */
+	private Hold held(Path path, long token) {
+		Hold hold = holds.get(token);
+		if (hold == null || !hold.chain[hold.chain.length - 1].equals(path)) {
+			throw new IllegalArgumentException("Path not locked under the token");
+		}
+		return hold;
+	}
+
+	/**
+	 * Grants the requests at the head of a queue, in order, until one conflicts with the holders
+	 */
+	private static void grant(Entry entry) {
+		while (!entry.queue.isEmpty()) {
+			Request head = entry.queue.peek();
+			if (entry.writer || (head.exclusive && entry.readers > 0)) {
+				return;
+			}
+			entry.queue.poll();
+			if (head.exclusive) {
+				entry.writer = true;
+			} else {
+				entry.readers++;
+			}
+			head.granted = true;
+			head.condition.signal();
+		}
+	}
+
+	/**
+	 * Stops tracking a path once it is neither locked nor waited for
+	 */
+	private void forget(Path path, Entry entry) {
+		if (!entry.writer && entry.readers == 0 && entry.queue.isEmpty()) {
+			entries.remove(path);
+		}
+	}
+
+	/**
+	 * Adds to the number of calls holding locks, counting the hold time up to now
+	 */
+	private void count(long delta) {
+		long now = System.nanoTime();
+		holdTime += held * (now - changed);
+		changed = now;
+		held += delta;
+	}
+
+	/**
+	 * Returns the root, the directories below it down to a path, and the path
+	 */
+	private static Path[] chain(Path path) {
+		String[] components = Snapshot.components(path);
+		Path[] chain = new Path[components.length + 1];
+		chain[0] = new Path();
+		for (int i = 0; i < components.length; i++) {
+			chain[i + 1] = new Path(chain[i], components[i]);
+		}
+		return chain;
+	}
+
+	/**
+	 * Holders and waiting requests of the lock on a path
+	 */
+	private static class Entry {
+		int readers = 0;	// Shared holders
+		boolean writer = false;	// Whether an exclusive holder holds it
+		final ArrayDeque<Request> queue = new ArrayDeque<Request>();
+	}
+
+	private static class Request {
+		final boolean exclusive;
+		final Condition condition;
+		boolean granted = false;
+
+		Request(boolean exclusive, Condition condition) {
+			this.exclusive = exclusive;
+			this.condition = condition;
+		}
+	}
+
+	/**
+	 * Locks granted to a lock call
+	 */
+	private static class Hold {
+		final long token;
+		final Path[] chain;	// The root down to the path locked
+		final boolean exclusive;
+		long expires;	// End of the lease, as given by System.nanoTime
+		boolean released = false;
+
+		Hold(long token, Path[] chain, boolean exclusive, long expires) {
+			this.token = token;
+			this.chain = chain;
+			this.exclusive = exclusive;
+			this.expires = expires;
+		}
+	}
+
+	/**
+	 * End of a lease of a hold. A renewal queues another one, and the earlier one is skipped once it runs out
+	 */
+	private static class Expiry implements Comparable<Expiry> {
+		final Hold hold;
+		final long expires;
+
+		Expiry(Hold hold) {
+			this.hold = hold;
+			this.expires = hold.expires;
+		}
+
+		@Override
+		public int compareTo(Expiry other) {
+			return Long.signum(expires - other.expires);
+		}
+	}
+}
@@ -0,0 +1,199 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+
+/** Mount table of a federated filesystem.
+
+    <p>
+    A federated filesystem splits its directory tree among several naming
+    servers. Each naming server is mounted at a path prefix, and owns every path
+    under that prefix that is not under a longer mounted prefix. A naming server
+    must be mounted at the root directory. Each naming server keeps the paths it
+    owns under their full names, and has its own storage servers.
+
+    <p>
+    The mount points, and the directories above them, always exist as
+    directories in the federated filesystem, and cannot be deleted. They are
+    created on the naming servers that own them as they are needed.
+
+    <p>
+    Mount tables are read by clients, and passed to
+    <code>NamingStubs.service(MountTable)</code> to obtain a
+    <code>Service</code> that routes each call to the naming server owning its
+    paths. A table can be shared by several threads.
+ */
+public class MountTable
+{
+    /** Separates the fields of a line in a mount table file. */
+    private static final String     SEPARATOR = "\\s+";
+
+    /** Naming servers by mount point. */
+    private volatile Map<Path, Service>         mounts =
+        new HashMap<Path, Service>();
+    /** Names of the mount points, and of directories above them, by parent
+        directory. */
+    private volatile Map<Path, Set<String>>     children =
+        new HashMap<Path, Set<String>>();
+
+    /** Mounts a naming server at a path prefix.
+
+        <p>
+        A naming server already mounted at the prefix is replaced.
+
+        @param prefix The path at which the naming server is mounted.
+        @param service A stub for the naming server client service interface.
+        @throws NullPointerException If either argument is <code>null</code>.
+     */
+    public synchronized void mount(Path prefix, Service service)
+    {
+        if(prefix == null || service == null)
+            throw new NullPointerException();
+
+        Map<Path, Service>      mounts = new HashMap<Path, Service>(this.mounts);
+        Map<Path, Set<String>>  children =
+            new HashMap<Path, Set<String>>(this.children);
+
+        mounts.put(prefix, service);
+
+        for(Path path = prefix; !path.isRoot(); path = path.parent())
+        {
+            Set<String>     names = children.get(path.parent());
+
+            names = names == null ? new TreeSet<String>()
+                                  : new TreeSet<String>(names);
+            names.add(path.last());
+            children.put(path.parent(), names);
+        }
+
+        // Both maps are replaced as a whole, so readers never lock.
+        this.children = children;
+        this.mounts = mounts;
+    }
+
+    /** Returns the naming server owning a path.
+
+        @param path The path.
+        @return A stub for the naming server mounted at the longest prefix of
+                the path.
+        @throws IllegalStateException If no naming server is mounted at the
+                                      root directory.
+     */
+    public Service route(Path path)
+    {
+        Map<Path, Service>  mounts = this.mounts;
+
+        for(Path prefix = path; ; prefix = prefix.parent())
+        {
+            Service         service = mounts.get(prefix);
+
+            if(service != null)
+                return service;
+
+            if(prefix.isRoot())
+            {
+                throw new IllegalStateException("no naming server mounted " +
+                                                "at the root directory");
+            }
+        }
+    }
+
+    /** Returns the mount points.
+
+        @return The path prefixes at which naming servers are mounted, in no
+                particular order.
+     */
+    public Path[] prefixes()
+    {
+        return mounts.keySet().toArray(new Path[0]);
+    }
+
+    /** Determines whether a path is a mount point or a directory above one.
+
+        <p>
+        Such paths always exist as directories.
+     */
+    boolean isMounted(Path path)
+    {
+        return path.isRoot() || mounts.containsKey(path) ||
+               children.containsKey(path);
+    }
+
+    /** Returns the names of the mount points, and of the directories above
+        them, in a directory.
+
+        @return The names, or an empty set if there are none.
+     */
+    Set<String> mounted(Path directory)
+    {
+        Set<String>     names = children.get(directory);
+
+        return names == null ? Collections.<String>emptySet() : names;
+    }
+
+    /** Reads a mount table.
+
+        <p>
+        Each line holds a path prefix and the address of the naming server
+        mounted there, as <code>hostname</code> or
+        <code>hostname:port</code>, separated by whitespace. The port is the
+        naming server client service port, <code>NamingStubs.SERVICE_PORT</code>
+        by default. Blank lines and lines starting with <code>#</code> are
+        ignored. For example:
+        <pre>
+        /           naming0.example.com
+        /home       naming1.example.com
+        /home/data  naming1.example.com:6100
+        </pre>
+
+        @param reader The reader from which the table is read.
+        @return The mount table.
+        @throws IOException If the table cannot be read.
+        @throws IllegalArgumentException If a line is malformed.
+     */
+    public static MountTable read(Reader reader) throws IOException
+    {
+        BufferedReader      lines = new BufferedReader(reader);
+        MountTable          table = new MountTable();
+        String              line;
+
+        while((line = lines.readLine()) != null)
+        {
+            line = line.trim();
+
+            if(line.isEmpty() || line.startsWith("#"))
+                continue;
+
+            String[]        fields = line.split(SEPARATOR);
+
+            if(fields.length != 2)
+                throw new IllegalArgumentException("malformed mount: " + line);
+
+            String          hostname = fields[1];
+            int             port = NamingStubs.SERVICE_PORT;
+            int             colon = hostname.lastIndexOf(':');
+
+            if(colon != -1)
+            {
+                try
+                {
+                    port = Integer.parseInt(hostname.substring(colon + 1));
+                }
+                catch(NumberFormatException e)
+                {
+                    throw new IllegalArgumentException("malformed port: " +
+                                                       line);
+                }
+
+                hostname = hostname.substring(0, colon);
+            }
+
+            table.mount(new Path(fields[0]),
+                        NamingStubs.service(hostname, port));
+        }
+
+        return table;
+    }
+}
@@ -0,0 +1,349 @@
+package naming;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Table of interned name components. Each distinct name is stored once, and is referred to by an integer id that
+ * stays the same for as long as the name is used, so that a file costs one int for its name however many directories
+ * hold a file of the same name.
+ *
+ * The names are kept in a single byte pool, each behind a header with its length: names made of ASCII characters take
+ * one byte per character, other names are encoded in UTF-8. An open addressing index maps the hash of a name to its
+ * id. Ids count their references, and a name is dropped once its last reference is released. The space it took in
+ * the pool is reclaimed by compacting the pool once at least half of it is unused; ids do not change when it is.
+ *
+ * Lookups take no lock: they read the table optimistically, and are repeated under the read lock if a change was
+ * made meanwhile. Changes take the write lock.
+ */
+class Names {
+	private static final int INITIAL_CAPACITY = 16;
+	private static final int MIN_COMPACTED = 4096;	// Pools with less garbage than this are not compacted
+
+	private final StampedLock lock = new StampedLock();
+	private byte[] pool = new byte[256];	// Headers and bytes of the names
+	private int top;	// Bytes of the pool in use, live or not
+	private int garbage;	// Bytes of the pool taken by dropped names
+	private int[] offsets = new int[INITIAL_CAPACITY];	// Per id, offset of its header in the pool, or the next free id
+	private int[] counts = new int[INITIAL_CAPACITY];	// Per id, references to the name, 0 if the id is free
+	private int[] hashes = new int[INITIAL_CAPACITY];	// Per id, String.hashCode of the name
+	private int ids;	// Ids handed out so far
+	private int free = -1;	// First free id below ids, -1 if none
+	private int[] index = new int[INITIAL_CAPACITY * 2];	// Slots of the hash index, id + 1, 0 if free
+	private int size;	// Names in the table
+
+	/**
+	 * Returns the id of a name, without adding a reference
+	 * @return the id, or -1 if the name is not in the table
+	 */
+	public int find(String name) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				int id = probe(name, name.hashCode());
+				if (lock.validate(stamp)) {
+					return id;
+				}
+			} catch (RuntimeException e) {	// Read during a change, retried under the lock
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return probe(name, name.hashCode());
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Adds a reference to a name, adding the name to the table if needed
+	 * @return the id of the name
+	 */
+	public int intern(String name) {
+		int hash = name.hashCode();
+		long stamp = lock.writeLock();
+		try {
+			int id = probe(name, hash);
+			if (id == -1) {
+				id = add(name, hash);
+			}
+			counts[id]++;
+			return id;
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Releases a reference to a name, and drops the name if it was the last one
+	 * @param id
+	 */
+	public void release(int id) {
+		long stamp = lock.writeLock();
+		try {
+			if (--counts[id] > 0) {
+				return;
+			}
+			unindex(id);
+			garbage += length(offsets[id]);
+			offsets[id] = free;
+			free = id;
+			size--;
+			if (garbage >= MIN_COMPACTED && garbage * 2 >= top) {
+				compact();
+			}
+		} finally {
+			lock.unlockWrite(stamp);
+		}
+	}
+
+	/**
+	 * Returns the name with an id
+	 */
+	public String get(int id) {
+		long stamp = lock.tryOptimisticRead();
+		if (stamp != 0) {
+			try {
+				String name = decode(pool, offsets[id]);
+				if (lock.validate(stamp)) {
+					return name;
+				}
+			} catch (RuntimeException e) {	// Read during a change, retried under the lock
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return decode(pool, offsets[id]);
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns the hash of the name with an id, as String.hashCode
+	 */
+	public int hash(int id) {
+		long stamp = lock.tryOptimisticRead();
+		int[] hashes = this.hashes;
+		if (stamp != 0 && id < hashes.length) {
+			int hash = hashes[id];
+			if (lock.validate(stamp)) {
+				return hash;
+			}
+		}
+		stamp = lock.readLock();
+		try {
+			return this.hashes[id];
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Returns the number of names in the table
+	 */
+	public int size() {
+		long stamp = lock.readLock();
+		try {
+			return size;
+		} finally {
+			lock.unlockRead(stamp);
+		}
+	}
+
+	/**
+	 * Finds the id of a name in the index. The fields are read once, and the probe ends after a full turn, so that
+	 * an optimistic read ends even if the table changes meanwhile
+	 */
+	private int probe(String name, int hash) {
+		int[] index = this.index;
+		int[] hashes = this.hashes;
+		int[] offsets = this.offsets;
+		byte[] pool = this.pool;
+		int mask = index.length - 1;
+		for (int i = slot(hash, mask), probes = 0; probes <= mask; i = (i + 1) & mask, probes++) {
+			int id = index[i] - 1;
+			if (id == -1) {
+				return -1;
+			}
+			if (hashes[id] == hash && matches(pool, offsets[id], name)) {
+				return id;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Appends a name to the pool and the index, with no references yet
+	 */
+	private int add(String name, int hash) {
+		boolean ascii = true;
+		for (int i = 0; i < name.length() && ascii; i++) {
+			ascii = name.charAt(i) < 0x80;
+		}
+		byte[] bytes = ascii ? null : name.getBytes(StandardCharsets.UTF_8);
+		int length = ascii ? name.length() : bytes.length;
+		int header = length << 1 | (ascii ? 0 : 1);
+		ensurePool(5 + length);
+		int offset = top;
+		do {	// See header
+			pool[top++] = (byte) (header & 0x7f | (header >>> 7 != 0 ? 0x80 : 0));
+			header >>>= 7;
+		} while (header != 0);
+		for (int i = 0; i < length; i++) {
+			pool[top++] = ascii ? (byte) name.charAt(i) : bytes[i];
+		}
+		int id = free;
+		if (id != -1) {
+			free = offsets[id];
+		} else {
+			if (ids == offsets.length) {
+				offsets = Arrays.copyOf(offsets, ids * 2);
+				counts = Arrays.copyOf(counts, ids * 2);
+				hashes = Arrays.copyOf(hashes, ids * 2);
+			}
+			id = ids++;
+		}
+		offsets[id] = offset;
+		hashes[id] = hash;
+		if ((size + 1) * 4 > index.length * 3) {	// Keep the load below 3/4
+			reindex(index.length * 2);
+		}
+		insert(index, id);
+		size++;
+		return id;
+	}
+
+	private void insert(int[] index, int id) {
+		int mask = index.length - 1;
+		int i = slot(hashes[id], mask);
+		while (index[i] != 0) {
+			i = (i + 1) & mask;
+		}
+		index[i] = id + 1;
+	}
+
+	/**
+	 * Removes an id from the index, moving back the ids whose probe passed its slot
+	 */
+	private void unindex(int id) {
+		int mask = index.length - 1;
+		int i = slot(hashes[id], mask);
+		while (index[i] != id + 1) {
+			i = (i + 1) & mask;
+		}
+		index[i] = 0;
+		for (int j = (i + 1) & mask; index[j] != 0; j = (j + 1) & mask) {
+			int home = slot(hashes[index[j] - 1], mask);
+			if (i <= j ? (home <= i || home > j) : (home <= i && home > j)) {
+				index[i] = index[j];
+				index[j] = 0;
+				i = j;
+			}
+		}
+	}
+
+	/**
+	 * Replaces the index by one of the given capacity. The new index is filled before it is published, so that
+	 * optimistic readers never see it partly filled
+	 */
+	private void reindex(int capacity) {
+		int[] resized = new int[capacity];
+		for (int slot : index) {
+			if (slot != 0) {
+				insert(resized, slot - 1);
+			}
+		}
+		index = resized;
+	}
+
+	private void ensurePool(int needed) {
+		if (top + needed > pool.length) {
+			pool = Arrays.copyOf(pool, Math.max(pool.length * 2, top + needed));
+		}
+	}
+
+	/**
+	 * Copies the live names to a new pool, dropping the space of the names dropped
+	 */
+	private void compact() {
+		byte[] compacted = new byte[Math.max(256, (top - garbage) * 3 / 2)];
+		int[] moved = offsets.clone();
+		int end = 0;
+		for (int id = 0; id < ids; id++) {
+			if (counts[id] > 0) {
+				int length = length(offsets[id]);
+				System.arraycopy(pool, offsets[id], compacted, end, length);
+				moved[id] = end;
+				end += length;
+			}
+		}
+		pool = compacted;
+		offsets = moved;
+		top = end;
+		garbage = 0;
+	}
+
+	/**
+	 * Returns the number of bytes the header and the name at an offset take in the pool
+	 */
+	private int length(int offset) {
+		int header = header(pool, offset);
+		return skip(header) + (header >>> 1);
+	}
+
+	private static boolean matches(byte[] pool, int offset, String name) {
+		int header = header(pool, offset);
+		int length = header >>> 1;
+		offset += skip(header);
+		if ((header & 1) != 0) {	// Encoded in UTF-8
+			return new String(pool, offset, length, StandardCharsets.UTF_8).equals(name);
+		}
+		if (length != name.length()) {
+			return false;
+		}
+		for (int i = 0; i < length; i++) {
+			if (pool[offset + i] != name.charAt(i)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static String decode(byte[] pool, int offset) {
+		int header = header(pool, offset);
+		return new String(pool, offset + skip(header), header >>> 1,
+				(header & 1) != 0 ? StandardCharsets.UTF_8 : StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Reads the header at an offset: the length of the name in bytes, shifted left by one, with the lowest bit set if
+	 * the name is encoded in UTF-8. Headers are written seven bits at a time, the lowest first
+	 */
+	private static int header(byte[] pool, int offset) {
+		int header = 0;
+		for (int shift = 0;; shift += 7) {
+			byte b = pool[offset++];
+			header |= (b & 0x7f) << shift;
+			if (b >= 0) {	// No further byte
+				return header;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of bytes a header takes
+	 */
+	private static int skip(int header) {
+		int bytes = 1;
+		for (int rest = header >>> 7; rest != 0; rest >>>= 7) {
+			bytes++;
+		}
+		return bytes;
+	}
+
+	private static int slot(int hash, int mask) {
+		return (hash ^ (hash >>> 16)) & mask;	// Spread the high bits, the mask keeps only the low ones
+	}
+}
@@ -3,7 +3,20 @@ package naming;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import rmi.*;
 import common.*;
@@ -32,13 +45,45 @@ import storage.*;
     registration interfaces are available at well-known ports defined in
     <code>NamingStubs</code>.
  */
-public class NamingServer implements Service, Registration
+public class NamingServer implements Service, Registration, Shipping
 {
 	Skeleton<Service> service_skeleton = null;
 	Skeleton<Registration> registration_skeleton = null;
+	Skeleton<Shipping> shipping_skeleton = null;
 	Branch tree;
-	ArrayList<Command> commandStubs = null;
-	ArrayList<Storage> storageStubs = null;
+	ServerTable servers = new ServerTable();	// Registered storage servers. Files refer to them by id
+	volatile PlacementPolicy placement = new PlacementPolicy.RoundRobin();	// Chooses the server of new files
+	Replicator replicator = new Replicator(this);	// Replicates files that are read often, while the server runs
+	volatile ReplicaSelector selector = new ReplicaSelector.RoundRobin();	// Chooses the copy of a file clients read
+	Liveness liveness = new Liveness(this);	// Marks servers that stop sending heartbeats dead, while the server runs
+	private final LockTable clientLocks = new LockTable();	// Locks taken by clients with lock, apart from the tree's own
+	Rebalancer rebalancer = new Rebalancer(this);	// Moves files off servers hosting more than their share, while the server runs
+	volatile Standby standby = null;	// Follows the primary naming server, null unless this server is a standby
+	private boolean started = false;
+	private final ExecutorService commands = Executors.newCachedThreadPool(new ThreadFactory() {	// Sends commands to several storage servers at once
+		public Thread newThread(Runnable task) {
+			Thread thread = new Thread(task, "naming command");
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	PathCache cache = new PathCache(CACHE_SIZE);	// Full path to node, for paths that resolve
+	Snapshot snapshot = null;	// Lock-free copy of the tree for reads, null unless enabled
+	boolean sorted;	// Directories are listed in lexicographic order
+	WriteAheadLog log = null;	// Log of changes to the tree, null unless recover was called
+	File logDirectory = null;
+	HashSet<Storage> recovered = new HashSet<Storage>();	// Servers loaded by recover that have not registered since
+	private final Object checkpointing = new Object();	// Serializes checkpoints
+	long checkpointRecords = CHECKPOINT_RECORDS;	// Log records after which a checkpoint is written
+	Invalidations invalidations = new Invalidations();	// Recent changes, reported to clients holding leases
+	long leaseTerm = LEASE_TERM;	// Time for which clients may cache a lookup, in milliseconds
+	long lockTerm = LOCK_TERM;	// Time for which client locks are held unless renewed, in milliseconds
+	
+	static final int CACHE_SIZE = 4096;	// Maximum number of paths kept in the cache
+	static final int UNLOCKED = 0, SHARED = 1, EXCLUSIVE = 2;	// Modes in which lockPath locks the node it finds
+	static final long CHECKPOINT_RECORDS = 1000000;	// Default for checkpointRecords
+	static final long LEASE_TERM = 2000;	// Default for leaseTerm
+	static final long LOCK_TERM = 30000;	// Default for lockTerm
 	
     /** Creates the naming server object.
 
@@ -47,13 +92,76 @@ public class NamingServer implements Service, Registration
      */
     public NamingServer()
     {
-    	InetSocketAddress service_address = new InetSocketAddress(NamingStubs.SERVICE_PORT);
+    	this(false);
+    }
+
+    /** Creates the naming server object, optionally keeping directory entries
+        sorted.
+
+        <p>
+        The naming server is not started.
+
+        @param sorted If <code>true</code>, each directory keeps its entries in
+                      a sorted index in addition to its hash index, and
+                      directories are listed in lexicographic order. Insertions
+                      and removals then take logarithmic rather than constant
+                      time.
+     */
+    public NamingServer(boolean sorted)
+    {
+    	this(sorted, false);
+    }
+
+    /** Creates the naming server object, optionally keeping directory entries
+        sorted and serving reads from snapshots.
+
+        <p>
+        The naming server is not started.
+
+        @param sorted If <code>true</code>, directories are listed in
+                      lexicographic order, as for
+                      <code>NamingServer(boolean)</code>.
+        @param snapshots If <code>true</code>, the naming server keeps an
+                         immutable copy of the directory tree, replaced as a
+                         whole on every change. <code>isDirectory</code>,
+                         <code>list</code> and <code>getStorage</code> then
+                         read the current copy without taking any locks, so
+                         they never wait for writers. Each change costs an
+                         additional copy of the directories on its path.
+     */
+    public NamingServer(boolean sorted, boolean snapshots)
+    {
+    	this(sorted, snapshots, NamingStubs.SERVICE_PORT, NamingStubs.REGISTRATION_PORT);
+    }
+
+    /** Creates the naming server object, listening on the given ports.
+
+        <p>
+        Several naming servers on the same host, each owning part of a
+        federated filesystem as described in <code>MountTable</code>, must
+        listen on different ports. The naming server is not started.
+
+        @param sorted As for <code>NamingServer(boolean, boolean)</code>.
+        @param snapshots As for <code>NamingServer(boolean, boolean)</code>.
+        @param service_port Port of the client service interface.
+        @param registration_port Port of the registration interface. The log
+                                 shipping interface, if the naming server
+                                 logs its changes, listens on the next port.
+     */
+    public NamingServer(boolean sorted, boolean snapshots, int service_port,
+                        int registration_port)
+    {
+    	InetSocketAddress service_address = new InetSocketAddress(service_port);
 		this.service_skeleton = new Skeleton(Service.class, this, service_address);
-		InetSocketAddress registration_address = new InetSocketAddress(NamingStubs.REGISTRATION_PORT);
+		InetSocketAddress registration_address = new InetSocketAddress(registration_port);
 		this.registration_skeleton = new Skeleton(Registration.class, this, registration_address);
-		this.tree = new Branch("/");	// Create root node
-		storageStubs = new ArrayList<Storage>();
-		commandStubs = new ArrayList<Command>();
+		InetSocketAddress shipping_address = new InetSocketAddress(registration_port + 1);
+		this.shipping_skeleton = new Skeleton(Shipping.class, this, shipping_address);
+		this.tree = new Branch("/", sorted);	// Create root node
+		this.sorted = sorted;
+		if (snapshots) {
+			this.snapshot = new Snapshot();
+		}
     }
 
     /** Starts the naming server.
@@ -72,9 +180,20 @@ public class NamingServer implements Service, Registration
     	try {
 			this.service_skeleton.start();
 			this.registration_skeleton.start();
+			if (log != null) {	// Standbys can follow it
+				this.shipping_skeleton.start();
+			}
 		} catch (Exception e) {
 			throw new RMIException("Naming Server could not be started");
 		}
+		started = true;
+		if (standby != null) {
+			standby.start();
+		} else {
+			replicator.start();
+			liveness.start();
+			rebalancer.start();
+		}
     }
 
     /** Stops the naming server.
@@ -91,6 +210,20 @@ public class NamingServer implements Service, Registration
     	if (service_skeleton != null && registration_skeleton != null) {
 			this.service_skeleton.stop();
 			this.registration_skeleton.stop();
+			if (log != null) {
+				this.shipping_skeleton.stop();
+			}
+		}
+		Standby standby = this.standby;
+		if (standby != null) {
+			standby.stop();
+		}
+		replicator.stop();
+		liveness.stop();
+		rebalancer.stop();
+		commands.shutdown();
+		if (log != null) {	// Writes the remaining records, and stops the checkpoint thread
+			log.close();
 		}
 
 		stopped(null);
@@ -109,83 +242,333 @@ public class NamingServer implements Service, Registration
     {
     }
 
+    /** Makes the directory tree durable in the given directory, restoring
+        the tree saved there.
+
+        <p>
+        The last checkpoint in the directory is loaded, and the changes logged
+        since are replayed. From then on, every change to the tree is appended
+        to a write-ahead log in the directory before it is reported to the
+        caller, and a checkpoint is written in the background every
+        <code>CHECKPOINT_RECORDS</code> changes. If the directory is empty, the
+        tree starts out empty.
+
+        <p>
+        Storage servers restored from the directory may register again. Files
+        they register that the naming server already maps to them are then not
+        reported as duplicates.
+
+        <p>
+        This method must be called once, before <code>start</code>.
+
+        @param directory The directory holding the checkpoint and the log. It
+                         is created if it does not exist.
+        @throws IOException If the checkpoint or the log cannot be read, or
+                            the log cannot be opened for writing.
+     */
+    public synchronized void recover(File directory) throws IOException
+    {
+    	if (log != null || standby != null) {
+			throw new IllegalStateException("Naming server already recovered, or a standby");
+		}
+		Recovery recovery = new Recovery();
+		long first = Checkpoint.read(directory, recovery);
+		WriteAheadLog.replay(directory, first, recovery);
+		cache.clear();
+		this.logDirectory = directory;
+		this.log = new WriteAheadLog(directory);
+
+		Thread checkpointer = new Thread(new Runnable() {	// Writes a checkpoint every checkpointRecords changes
+			public void run() {
+				try {
+					while (log.awaitRecords(checkpointRecords)) {
+						try {
+							checkpoint();
+						} catch (IOException e) {}	// The log is intact, try again later
+					}
+				} catch (InterruptedException e) {}
+			}
+		}, "naming checkpointer");
+		checkpointer.setDaemon(true);
+		checkpointer.start();
+    }
+
+    /** Writes a checkpoint of the directory tree, and deletes the parts of the
+        log that it replaces.
+
+        <p>
+        The tree is not locked as a whole while the checkpoint is written.
+        Changes made meanwhile may or may not appear in the checkpoint, and
+        are replayed from the log after it when the tree is recovered.
+
+        @throws IOException If the checkpoint cannot be written. The previous
+                            checkpoint and the log are then left in place.
+        @throws IllegalStateException If <code>recover</code> has not been
+                                      called.
+     */
+    public void checkpoint() throws IOException
+    {
+    	if (log == null) {
+			throw new IllegalStateException("Naming server is not logging");
+		}
+		synchronized (checkpointing) {
+			long first = log.rotate();	// Changes from now on are in the log after the checkpoint
+			Checkpoint checkpoint = new Checkpoint(logDirectory, first);
+			try {
+				int count = servers.size();
+				for (int i = 0; i < count; i++) {	// Servers registered after this are in the log after the checkpoint
+					checkpoint.server(i, serialize(servers.storage(i), servers.command(i)));
+				}
+				writeTree(this.tree, 0, checkpoint);
+				checkpoint.commit();
+			} catch (IOException e) {
+				checkpoint.abort();
+				throw e;
+			}
+			log.truncate(first);
+		}
+    }
+
+    /** Makes the naming server a read-only standby of another naming server.
+
+        <p>
+        Once started, the naming server receives the directory tree of the
+        primary naming server, then the changes to it as they become durable
+        there, and applies them to its own tree. It serves the methods of
+        <code>Service</code> that do not change the tree from snapshots, as if
+        created with snapshots enabled, and throws
+        <code>IllegalStateException</code> from the others and from the
+        registration methods. If it has not heard from the primary for
+        <code>Standby.STALENESS</code> milliseconds, it throws
+        <code>IllegalStateException</code> from all of them, so that no client
+        reads an older tree.
+
+        <p>
+        This method must be called once, before <code>start</code>, and not
+        together with <code>recover</code>. The primary must log its changes.
+
+        @param primary A stub for the log shipping interface of the primary
+                       naming server.
+        @throws IllegalStateException If the naming server logs its changes or
+                                      already follows another one.
+     */
+    public synchronized void follow(Shipping primary)
+    {
+    	if (primary == null) {
+			throw new NullPointerException();
+		}
+		if (log != null || standby != null) {
+			throw new IllegalStateException("Naming server already recovered, or a standby");
+		}
+		if (snapshot == null) {	// Reads never look at the tree the standby changes
+			snapshot = new Snapshot();
+		}
+		standby = new Standby(this, primary);
+    }
+
+    /** Turns a standby naming server into a primary, for failover.
+
+        <p>
+        The naming server stops following its primary, keeps the directory
+        tree it has, and accepts all calls from then on. It does not log its
+        changes. Storage servers must register with it again before it receives
+        their heartbeats.
+
+        @throws IllegalStateException If the naming server is not a standby.
+     */
+    public synchronized void promote()
+    {
+    	Standby standby = this.standby;
+		if (standby == null) {
+			throw new IllegalStateException("Naming server is not a standby");
+		}
+		standby.stop();
+		this.standby = null;
+		if (started) {
+			replicator.start();
+			liveness.start();
+			rebalancer.start();
+		}
+    }
+
+    /** Sets the policy that chooses the storage server of each file created
+        with <code>createFile</code>.
+
+        <p>
+        The policies are:
+        <ul>
+        <li><code>round-robin</code>, the default: each storage server in
+            turn.</li>
+        <li><code>least-used</code>: the storage server hosting the fewest
+            files.</li>
+        <li><code>least-loaded</code>: the storage server to which the naming
+            server has directed the fewest client requests over the last
+            second.</li>
+        <li><code>consistent-hash</code>: the storage server owning the hash of
+            the file's path. A path is placed on the same server for as long as
+            the set of servers does not change, and a server joining or leaving
+            only changes the placement of a share of the paths.</li>
+        </ul>
+
+        <p>
+        This method should be called before <code>start</code>.
+
+        @param policy The name of the policy.
+        @throws IllegalArgumentException If there is no policy with the given
+                                         name.
+     */
+    public void setPlacementPolicy(String policy)
+    {
+    	this.placement = PlacementPolicy.forName(policy);
+    }
+
+    /** Sets how <code>getStorage</code> chooses among the copies of a
+        replicated file.
+
+        <p>
+        The selections are:
+        <ul>
+        <li><code>round-robin</code>, the default: each copy in turn.</li>
+        <li><code>primary</code>: always the original copy.</li>
+        <li><code>least-loaded</code>: the copy on the storage server to which
+            the naming server has directed the fewest client requests
+            recently.</li>
+        <li><code>nearest</code>: the copy on the storage server whose address
+            is closest to the client's, sharing the longest prefix with it.
+            Ties go to the least loaded server.</li>
+        </ul>
+
+        <p>
+        Only copies on storage servers that are alive are chosen.
+
+        @param selection The name of the selection.
+        @throws IllegalArgumentException If there is no selection with the
+                                         given name.
+     */
+    public void setReplicaSelection(String selection)
+    {
+    	this.selector = ReplicaSelector.forName(selection);
+    }
+
+    /** Sets the quota of a directory.
+
+        <p>
+        Clients cannot create a file in the directory, or anywhere below it,
+        once the files under it number <code>files</code>, or hold
+        <code>bytes</code> bytes or more. The usage counted is the one returned
+        by <code>usage</code>. Files registered by storage servers are not
+        refused, and writes are not limited, so usage can exceed a quota.
+        Quotas are not logged: they are set again after a restart.
+
+        @param directory The directory.
+        @param files The most files allowed under the directory, or
+                     <code>-1</code> for no limit.
+        @param bytes The most bytes allowed under the directory, or
+                     <code>-1</code> for no limit.
+        @throws FileNotFoundException If the path does not refer to a
+                                      directory.
+     */
+    public void setQuota(Path directory, long files, long bytes)
+        throws FileNotFoundException
+    {
+    	writable();
+		if (directory == null) {
+			throw new NullPointerException();
+		}
+		Node node = resolve(directory);
+		if (node instanceof Leaf) {
+			throw new FileNotFoundException("File is not a directory");
+		}
+		((Branch) node).quota = files < 0 && bytes < 0 ? null : new long[] {files, bytes};
+    }
+
+    /** Enables moving files between storage servers to even out the number
+        of files each hosts.
+
+        <p>
+        While the naming server runs, it periodically compares the files hosted
+        by the storage servers that are alive. Files are moved from servers
+        hosting more than their share, or reporting too little free space, to
+        servers hosting less, with storage-to-storage copies. Clients are
+        directed to the new copy once it is complete, and the old copy is then
+        deleted. Files reported written while they are copied are not moved.
+
+        <p>
+        This method should be called before <code>start</code>.
+
+        @param bandwidth The most bytes per second copied by moves, or
+                         <code>0</code> to move no files, the default.
+        @throws IllegalArgumentException If <code>bandwidth</code> is
+                                         negative.
+     */
+    public void setRebalancing(long bandwidth)
+    {
+    	if (bandwidth < 0) {
+			throw new IllegalArgumentException("Negative bandwidth");
+		}
+		rebalancer.bandwidth = bandwidth;
+    }
+
+    /** Returns statistics on the locks taken by clients with
+        <code>lock</code>.
+
+        @return The statistics since the naming server was created.
+     */
+    public LockStatistics lockStatistics()
+    {
+    	return clientLocks.statistics();
+    }
+
     // The following methods are documented in Service.java.
     @Override
     public boolean isDirectory(Path path) throws FileNotFoundException
     {
-    	if (path == null) {
+    	readable();
+		if (path == null) {
 			throw new NullPointerException();
 		}
-		if (path.isRoot()) {
-			return true;
-		}
-		/**
-		 * Go through the path and check if each components (node) exists, if not throw exception
-		 * Checks if the given path is a file. If not, it is a directory.
-		 */
-		Node dir = this.tree;
-
-		Iterator<String> itr = path.iterator();
-		while (itr.hasNext()) {
-			String component = itr.next();
-			if (getBranch(dir, component) instanceof Leaf) {	// if component is a file, return false
-				return false;
-			}
-			if (getBranch(dir, component) == null) {
+		if (snapshot != null) {
+			Object node = snapshot.lookup(path);
+			if (node == null) {
 				throw new FileNotFoundException("File not found");
-			} else
-				dir = getBranch(dir, component);
+			}
+			return node instanceof Snapshot.Dir;
+		}
+		PathLock locks = new PathLock();
+		try {
+			return lockPath(path, locks, UNLOCKED) instanceof Branch;	// Single walk, if the node is a branch it is a directory
+		} finally {
+			locks.release();
 		}
-		if (dir instanceof Leaf) {
-			return false;
-		} else
-			return true;
     }
 
     @Override
     public String[] list(Path directory) throws FileNotFoundException
     {
-    	if (directory == null) {
+    	readable();
+		if (directory == null) {
 			throw new NullPointerException();
 		}
-		Branch currDir = this.tree;
-		if (directory.name.equals("/")) {
-			currDir = this.tree;
-			ArrayList<String> contentList = new ArrayList<>();
-
-			for (int i = 0; i < currDir.nodeList.size(); i++) {
-				contentList.add(currDir.nodeList.get(i).name);
-			}
-			String[] contentArr = new String[contentList.size()];
-			for (int i = 0; i < contentList.size(); i++) {
-				contentArr[i] = contentList.get(i);
-			}
-			return contentArr;
-		} else {	// if path is not root
-			Node directoryNode = this.tree;
-			Iterator<String> itr = directory.iterator();
-			
-			while (itr.hasNext()) {	// Finds the node representing the directory
-				String component = itr.next();
-				if (getBranch(directoryNode, component) == null) {
-					throw new FileNotFoundException("File not found");
-				}
-				if (getBranch(directoryNode, component) instanceof Leaf) {
-					throw new FileNotFoundException("File is already present");
-				}
-				else
-					directoryNode = getBranch(directoryNode, component);
+		if (snapshot != null) {
+			Object node = snapshot.lookup(directory);
+			if (!(node instanceof Snapshot.Dir)) {
+				throw new FileNotFoundException("File not found");
 			}
-			
-			ArrayList<String> contentList = new ArrayList<>();
-			for (int i = 0; i < ((Branch) directoryNode).nodeList.size(); i++) {
-				contentList.add(((Branch) directoryNode).nodeList.get(i).name);
+			String[] names = ((Snapshot.Dir) node).names();
+			if (sorted) {
+				Arrays.sort(names);
 			}
-			String[] contentArr = new String[contentList.size()];
-			for (int i = 0; i < contentList.size(); i++) {
-				contentArr[i] = contentList.get(i);
+			return names;
+		}
+		PathLock locks = new PathLock();
+		try {
+			Node directoryNode = lockPath(directory, locks, SHARED);	// Finds the node representing the directory
+			if (directoryNode instanceof Leaf) {
+				throw new FileNotFoundException("File is already present");
 			}
-			return contentArr;
+			return ((Branch) directoryNode).names();
+		} finally {
+			locks.release();
 		}
     }
 
@@ -193,168 +576,124 @@ public class NamingServer implements Service, Registration
     public boolean createFile(Path file)
         throws RMIException, FileNotFoundException
     {
-    	if (file == null) {
+    	writable();
+		if (file == null) {
 			throw new NullPointerException();
 		}
 		if (file.isRoot()) {	// Can not create root
 			return false;
 		}
-		if (!isDirectory(file.parent())) {	// Cannot create a file inside a file
-			throw new FileNotFoundException();
-		}
-
-		/*
-		 * If parent is root, and if file doesn't exist add to new leaf (file) to
-		 * nodeList of root with storage stub and tell storage server to create file on
-		 * its end using command stub
-		 */
-		if (file.parent().isRoot()) {
-			if (getBranch(this.tree, file.last()) == null) {	// if file is not present
-				this.tree.nodeList.add(new Leaf(file.last(), commandStubs.get(0), storageStubs.get(0)));
-				commandStubs.get(0).create(file);
-				return true;
-			} else
-				return false;	// file is already present
-		} else {
-			Node currentDir = this.tree;
-			Iterator<String> itr = file.parent().iterator();	// Create iterator on the parent path
-			
-			while (itr.hasNext()) {	// Check if all components/nodes exist
-				String component = itr.next();
-				if (getBranch((Branch) currentDir, component) == null) {
-					throw new FileNotFoundException("Not found");
-				}
-				currentDir = getBranch(currentDir, component);
-			}
-			if (currentDir instanceof Leaf) {	// If the current node is a leaf, the return false
-				return false;
+		long sequence = 0;	// Log record of the change
+		PathLock locks = new PathLock();
+		try {
+			Node parent = lockPath(file.parent(), locks, EXCLUSIVE);
+			if (parent instanceof Leaf) {	// Cannot create a file inside a file
+				throw new FileNotFoundException();
 			}
 
 			/*
-			 * If file doesn't exist in current node, add to new leaf (file) to nodeList of
-			 * node with storage stub and tell storage server to create file using command stub
+			 * If file doesn't exist in the parent, add a new leaf (file) to the children of the parent with storage
+			 * stub and tell storage server to create file on its end using command stub
 			 */
-			if (getBranch((Branch) currentDir, file.last()) == null) {
-				((Branch) currentDir).nodeList
-						.add(new Leaf(file.last(), commandStubs.get(0), storageStubs.get(0)));
-				commandStubs.get(0).create(file);
-				return true;
+			if (((Branch) parent).getDirectory(file.last()) == null) {
+				int server = placement.place(file, servers);	// Once the file is known to be new
+				if (server == -1) {
+					throw new IllegalStateException("No storage servers connected");
+				}
+				Command command = servers.command(server);
+				Branch full = ((Branch) parent).addWithinQuota(file.last(), server);
+				if (full != null) {
+					Path limited = file.parent();
+					for (Branch branch = (Branch) parent; branch != full; branch = branch.parent) {
+						limited = limited.parent();
+					}
+					throw new IllegalStateException("Quota of " + limited + " exceeded");
+				}
+				publish(file.parent(), ((Branch) parent).getDirectory(file.last()));
+				if (log != null) {
+					sequence = log.file(Snapshot.components(file), server);
+				}
+				servers.hosted(server, 1);
+				servers.requested(server);
+				command.create(file);
+			} else {
+				return false;	// file is already present
 			}
-			return false;
+		} finally {
+			locks.release();
 		}
+		durable(sequence);
+		return true;
     }
 
     @Override
     public boolean createDirectory(Path directory) throws FileNotFoundException
     {
-    	if (directory == null) {
+    	writable();
+		if (directory == null) {
 			throw new NullPointerException();
 		}
 		if (directory.isRoot()) {
 			return false;
 		}
-		if (!isDirectory(directory.parent())) {	// Check if parent of directory is a directory
-			throw new FileNotFoundException();
-		}
-		/**
-		 * If parent is directory, check if directory exists in the nodeList of root.
-		 * If not create new branch and add to nodeList
-		 */
-		if (directory.parent().isRoot()) {
-			if (getBranch((Branch) this.tree, directory.last()) == null) {
-				((Branch) this.tree).nodeList.add(new Branch(directory.last()));
-				return true;
+		long sequence = 0;	// Log record of the change
+		PathLock locks = new PathLock();
+		try {
+			Node parent = lockPath(directory.parent(), locks, EXCLUSIVE);
+			if (parent instanceof Leaf) {	// Check if parent of directory is a directory
+				throw new FileNotFoundException();
 			}
-			else {
+			if (((Branch) parent).getDirectory(directory.last()) == null) {	// If directory does not exists in parent, create new branch and add it to parent and return true
+				publish(directory.parent(), ((Branch) parent).addBranch(directory.last()));
+				if (log != null) {
+					sequence = log.directory(Snapshot.components(directory));
+				}
+			} else
 				return false;
-			}
-		}
-		Node currDir = this.tree;	// Start at root go to parent directory
-		Iterator<String> itr = directory.parent().iterator();
-
-		while (itr.hasNext()) {
-			String component = itr.next();
-			if (getBranch((Branch) currDir, component) == null) {
-				throw new FileNotFoundException("Not found");
-			}
-			currDir = getBranch(currDir, component);
+		} finally {
+			locks.release();
 		}
-		if (currDir instanceof Leaf) {	// if current node is leaf, return false
-			return false;
-		}
-		if (getBranch(currDir, directory.last()) == null) {	// If directory does not exists in current node, create new branch and add to nodeList of current node and return true
-			((Branch) currDir).nodeList.add(new Branch(directory.last()));
-			return true;
-		} else
-			return false;
+		durable(sequence);
+		return true;
     }
 
-    /**
-	 * Finds the index of node from a list of nodes using the name of the node
-	 * @param list of nodes
-	 * @param name	of the node
-	 * @return	index of the node
-	 */
-	public int nodeIndex(ArrayList<Node> list, String name) {
-		if (list == null) {
-			throw new NullPointerException();
-		}
-		for (int i = 0; i < list.size(); i++) {
-			if (list.get(i).name.equals(name)) {
-				return i;
-			}
-		}
-		return -1;
-	}
-	
-	/**
-	 * Finds the node present in the list of node
-	 * @param list of nodes
-	 * @param name of the node
-	 * @return Node
-	 */
-	public Node getNode(ArrayList<Node> list, String name) {
-		if (list == null) {
-			throw new NullPointerException();
-		}
-		for (int i = 0; i < list.size(); i++) {
-			if (list.get(i).name.equals(name)) {
-				return list.get(i);
-			}
-		}
-		return null;
-	}
-
     @Override
     public boolean delete(Path path) throws FileNotFoundException
     {
-    	if (path == null) {
+    	writable();
+		if (path == null) {
 			throw new NullPointerException("File cannot be null");
 		}
-		if (!exist(path)) {	// Check if path exists
-			throw new FileNotFoundException("File does not exist");
-		}
 		if (path.isRoot()) {
 			return false;
 		}
-		if (path.parent().isRoot()) {	// If parent is root, call deleteUtil with root and file/dir node to be deleted and name of node to be deleted
-			Node prev = tree;
-			Node curr = getNode(((Branch) prev).nodeList, path.last());
-			return deleteUtil(path, prev, curr, curr.name);
-		}
-		else {	// Else go to the node to be deleted and call the deleteUtil with parent of node, the node itself and the name of the node to be deleted
-			Node prev = this.tree;
-			Iterator<String> itr = path.parent().iterator();
-			while (itr.hasNext()) {
-				prev = getBranch(prev, itr.next());
+		long sequence = 0;	// Log record of the change
+		PathLock locks = new PathLock();
+		try {
+			Node prev = lockPath(path.parent(), locks, EXCLUSIVE);	// The parent is modified
+			if (prev instanceof Leaf || ((Branch) prev).getDirectory(path.last()) == null) {
+				throw new FileNotFoundException("File does not exist");
+			}
+			Node curr = ((Branch) prev).getDirectory(path.last());
+			if (curr instanceof Branch) {	// Wait for operations inside the directory to finish, and keep new ones out
+				locks.exclusive((Branch) curr);
 			}
-			Node curr = getBranch(prev, path.last());
-			return deleteUtil(path, prev, curr, curr.name);
+			if (!deleteUtil(path, prev, curr, curr.name)) {	// Call deleteUtil with parent of node, the node itself and the name of the node to be deleted
+				return false;
+			}
+			if (log != null) {
+				sequence = log.delete(Snapshot.components(path));
+			}
+		} finally {
+			locks.release();
 		}
+		durable(sequence);
+		return true;
     }
     
     /**
-	 * Deletes the file/dir from the directory tree and informs the respective storage server to delete the fil/dir from its server
+	 * Deletes the file/dir from the directory tree and informs the respective storage server to delete the fil/dir from its server.
+	 * The caller must hold exclusive locks on prev and, if it is a directory, on curr
 	 * @param path	
 	 * @param prev
 	 * @param curr
@@ -362,122 +701,912 @@ public class NamingServer implements Service, Registration
 	 * @return
 	 * @throws FileNotFoundException
 	 */
-	public synchronized boolean deleteUtil(Path path, Node prev, Node curr, String name)
+	public boolean deleteUtil(Path path, Node prev, Node curr, String name)
 			throws FileNotFoundException {
-		if (!exist(path)) {
-			throw new FileNotFoundException("File does not exist");
-		}
 		if (path.isRoot()) {
 			return false;
 		}
-		if (!isDirectory(path)) {	// If the given path is of a file
-			int index_remove = nodeIndex(((Branch) prev).nodeList, name);	// Gets the index of its position in its parents node list
-			Node node = getNode(((Branch) prev).nodeList, name);	// Gets the actual node
-			try {
-				((Leaf) node).command.delete(path);	// Deletes the file from the storage server
-			} catch (RMIException e) {}
+		BitSet holders = new BitSet();
+		unhost(curr, holders);
+		deleteOn(holders, path);	// One command per server holding a copy of anything under the path
+		if (curr instanceof Leaf) {	// If the given path is of a file
+			((Branch) prev).remove(name);	// Removes the directory tree by removing the node from the parent node list
+			if (snapshot != null) {
+				snapshot.remove(Snapshot.components(path));
+			}
+			cache.remove(path);	// Only the file's own path can be cached
+			invalidations.record(path);
+			return true;
+		}
+		// The given path is of a directory
+		((Branch) prev).remove(name);	// Remove the directory from its parent, marking everything under it as removed
+		if (snapshot != null) {
+			snapshot.remove(Snapshot.components(path));
+		}
+		cache.clear();	// Any number of cached paths may lie under the directory
+		invalidations.record(path);
+		return true;
+	}
 
-			if (((Leaf) node).commandList.size() != 0) {	// Deletes the file replicas from the storage server
-				for (int i = 0; i < ((Leaf) node).commandList.size(); i++) {
-					try {
-						((Leaf) node).commandList.get(i).delete(path);
-					} catch (RMIException e) {}
+	/**
+	 * Removes the files under a node that is being deleted from the usage counts of their servers. The caller holds
+	 * the exclusive lock on the node if it is a directory, so nothing under it can be locked by anyone else
+	 * @param holders if not null, receives the ids of the servers holding a copy of the files
+	 */
+	private void unhost(Node node, BitSet holders) {
+		if (node instanceof Leaf) {
+			Leaf leaf = (Leaf) node;
+			int server = leaf.server();
+			servers.hosted(server, -1);
+			if (holders != null && server != -1) {
+				holders.set(server);
+			}
+			int[] replicas = leaf.replicas();
+			if (replicas != null) {
+				for (int replica : replicas) {
+					servers.hosted(replica, -1);
+					if (holders != null) {
+						holders.set(replica);
+					}
 				}
 			}
-			((Branch) prev).nodeList.remove(index_remove);	// Removes the directory tree by removing the node from the parent node list
-			return true;
+		} else {
+			for (Node child : ((Branch) node).nodes()) {
+				unhost(child, holders);
+			}
+		}
+	}
+
+	/**
+	 * Asks each of the given servers to delete a path. The commands are sent in parallel, the last one from the
+	 * calling thread, and the method returns once every server has answered. Dead servers, and servers that send
+	 * heartbeats but cannot be reached, delete the path when they come back from being dead. The caller holds the
+	 * exclusive lock on the parent of the path, so that no file is created there meanwhile
+	 * @param ids ids of the servers
+	 * @param path path of the file or directory
+	 */
+	private void deleteOn(BitSet ids, final Path path) {
+		ArrayList<Integer> sent = new ArrayList<Integer>();
+		for (int id = ids.nextSetBit(0); id >= 0; id = ids.nextSetBit(id + 1)) {
+			if (servers.dead(id)) {
+				liveness.stale(id, path);
+			} else if (servers.command(id) != null) {	// Files restored without a server have none
+				sent.add(id);
+			}
+		}
+		Callable<?>[] tasks = new Callable<?>[sent.size()];
+		for (int i = 0; i < sent.size(); i++) {
+			final Command command = servers.command(sent.get(i));
+			tasks[i] = new Callable<Boolean>() {
+				public Boolean call() throws RMIException {
+					return command.delete(path);
+				}
+			};
 		}
-		if (isDirectory(path)) {	// If the given path is of a directory
-			for (int i = 0; i < ((Branch) curr).nodeList.size(); i++) {	// Finds the storage server where this directory is located and delegates it to delete the directory
-				Node node = getNode(((Branch) curr).nodeList, ((Branch) curr).nodeList.get(i).name);	// Get child node from current node list
-				if (node instanceof Leaf) {
+		Exception[] failures = runAll(tasks);
+		for (int i = 0; i < sent.size(); i++) {
+			if (failures[i] != null && servers.lastHeartbeat(sent.get(i)) != 0) {
+				liveness.stale(sent.get(i), path);
+			}
+		}
+	}
+
+	/**
+	 * Runs commands to storage servers in parallel, the last one from the calling thread, and returns once they
+	 * have all completed
+	 * @return for each task, the exception it threw, or null if it completed
+	 */
+	private Exception[] runAll(final Callable<?>[] tasks) {
+		final Exception[] failures = new Exception[tasks.length];
+		Future<?>[] answers = new Future<?>[tasks.length];
+		for (int i = 0; i < tasks.length; i++) {
+			final int index = i;
+			Runnable task = TraceContext.wrap(new Runnable() {
+				public void run() {
 					try {
-						((Leaf) node).command.delete(path);
-					} catch (RMIException e) {}
-					if (((Leaf) node).commandList.size() != 0) {	// Delete all replicas on the storage servers
-						for (int j = 0; j < ((Leaf) node).commandList.size(); j++) {
-							try {
-								((Leaf) node).commandList.get(j).delete(path);
-							} catch (RMIException e) {}
-						}
+						tasks[index].call();
+					} catch (Exception e) {
+						failures[index] = e;
 					}
 				}
+			});
+			if (i == tasks.length - 1) {
+				task.run();
+			} else {
+				answers[i] = commands.submit(task);
 			}
-			int delIndex = nodeIndex(((Branch) prev).nodeList, name);	// Remove the directory by getting the index of its position in its parent node list and removing the node at that index
-			((Branch) prev).nodeList.remove(delIndex);
-			return true;
 		}
-		return false;
+		for (int i = 0; i < tasks.length - 1; i++) {
+			try {
+				answers[i].get();	// Also makes failures[i] visible
+			} catch (InterruptedException e) {	// Stopped, the command may still complete
+				Thread.currentThread().interrupt();
+				failures[i] = e;
+			} catch (ExecutionException e) {
+				failures[i] = e;
+			}
+		}
+		return failures;
 	}
 
     @Override
     public Storage getStorage(Path file) throws FileNotFoundException
     {
-    	if (file == null) {
+    	readable();
+		return direct(findFile(file), file);
+    }
+
+    @Override
+    public Storage getWriteStorage(Path file) throws FileNotFoundException
+    {
+    	readable();
+		Leaf leaf = findFile(file);
+		int server = leaf.server();	// Read once, a replica may take over from a dead server
+		servers.requested(server);
+		return servers.storage(server);
+    }
+
+    @Override
+    public Usage usage(Path directory) throws FileNotFoundException
+    {
+    	readable();
+		if (directory == null) {
 			throw new NullPointerException();
 		}
-		if (isDirectory(file)) {	// Cannot fetch storage stub for directory
-			throw new FileNotFoundException("Cannot send directories");
-		}
-		Iterator<String> itr = file.iterator();	// Iterate through the path until reaches a leaf/file)
-		Node root = this.tree;
-		Node currDir = getBranch(root, itr.next());	// current node
-		if (currDir == null) {
-			throw new FileNotFoundException();
+		Node node = resolve(directory);	// The counts are read atomically, without locks
+		if (node instanceof Leaf) {
+			throw new FileNotFoundException("File is not a directory");
 		}
-		while (itr.hasNext()) {	// Checking if all nodes (directories) exist
-			currDir = getBranch(currDir, itr.next());
-			if (currDir == null) {
-				throw new FileNotFoundException();
-			}
-		}
-		return ((Leaf) currDir).storage;
+		Branch branch = (Branch) node;
+		long[] quota = branch.quota;
+		return new Usage(branch.files(), branch.bytes(), quota == null ? -1 : quota[0], quota == null ? -1 : quota[1]);
     }
-    
+
+    @Override
+    public Handle open(Path file) throws FileNotFoundException
+    {
+    	readable();
+		return handle(findFile(file), file);
+    }
+
     /**
-	 * @param root The branch where to find the file
-	 * @param name The file to be found
-	 * @return	node if the node is present in the branch
+	 * Directs a client to a copy of a file, and returns it with the file's attributes
 	 */
-	public static Node getBranch(Node root, String name) {	// For example, tree -> Branch.name = "/", "data"
-		Branch temp = (Branch) root;
-		ArrayList<Node> list = temp.nodeList;
-		// Go through list of all nodes of root, if found then return node
-		for (int i = 0; i < list.size(); i++) {
-			if (list.get(i).name.equals(name)) {
-				return (Node) list.get(i);
-			}
+	private Handle handle(Leaf leaf, Path file) {
+		long[] attributes = leaf.attributes();	// Read once, it is replaced as a whole
+		Storage storage = direct(leaf, file);
+		if (attributes == null) {
+			return new Handle(storage, -1, -1);
 		}
-		return null;
+		return new Handle(storage, attributes[0], attributes[1]);
 	}
 
-    // The method register is documented in Registration.java.
     @Override
-    public Path[] register(Storage client_stub, Command command_stub,
+    public Storage[] getReplicas(Path file) throws FileNotFoundException
+    {
+    	readable();
+		Leaf leaf = findFile(file);
+		int[] copies = copies(leaf);
+		int first = choose(copies);
+		servers.requested(copies[first]);	// Clients are expected to read from the first
+		replicator.record(leaf, file);
+		Storage[] stubs = new Storage[copies.length];
+		stubs[0] = servers.storage(copies[first]);
+		for (int i = 0, j = 1; i < copies.length; i++) {	// The others in their order in copies
+			if (i != first) {
+				stubs[j++] = servers.storage(copies[i]);
+			}
+		}
+		return stubs;
+    }
+
+    @Override
+    public boolean[] isDirectories(Path[] paths) throws FileNotFoundException
+    {
+    	readable();
+		Object[] nodes = lookup(paths);
+		boolean[] directories = new boolean[paths.length];
+		for (int i = 0; i < paths.length; i++) {
+			directories[i] = nodes[i] instanceof Branch || nodes[i] instanceof Snapshot.Dir;
+		}
+		return directories;
+    }
+
+    @Override
+    public boolean[] createFiles(Path[] files) throws RMIException
+    {
+    	writable();
+		boolean[] created = new boolean[files.length];
+		int[] order = byParent(files);
+		long sequence = 0;	// Log record of the last change
+		try {
+			for (int start = 0, end; start < order.length; start = end) {
+				Path parent = files[order[start]].parent();
+				end = groupEnd(files, order, start);
+				HashMap<Integer, ArrayList<Path>> placed = new HashMap<Integer, ArrayList<Path>>();	// Server id to its new files in the directory
+				boolean unplaced = false;	// Whether a file found no server, which ends the call
+				PathLock locks = new PathLock();
+				try {
+					Node directory;
+					try {
+						directory = lockPath(parent, locks, EXCLUSIVE);
+					} catch (FileNotFoundException e) {	// None of the group is created
+						continue;
+					}
+					if (directory instanceof Leaf) {
+						continue;
+					}
+					for (int i = start; i < end; i++) {
+						Path file = files[order[i]];
+						if (((Branch) directory).getDirectory(file.last()) != null) {	// Present, or earlier in the batch
+							continue;
+						}
+						int server = placement.place(file, servers);
+						if (server == -1) {	// The rest are not created, and the files placed so far are
+							unplaced = true;
+							break;
+						}
+						if (((Branch) directory).addWithinQuota(file.last(), server) != null) {	// Reported as not created
+							continue;
+						}
+						publish(parent, ((Branch) directory).getDirectory(file.last()));
+						if (log != null) {
+							sequence = log.file(Snapshot.components(file), server);
+						}
+						servers.hosted(server, 1);
+						servers.requested(server);
+						if (!placed.containsKey(server)) {
+							placed.put(server, new ArrayList<Path>());
+						}
+						placed.get(server).add(file);
+						created[order[i]] = true;
+					}
+					createOn(placed);	// Under the lock, so that the files are not deleted meanwhile
+					if (unplaced) {
+						throw new IllegalStateException("No storage servers connected");
+					}
+				} finally {
+					locks.release();
+				}
+			}
+		} finally {
+			durable(sequence);
+		}
+		return created;
+    }
+
+    @Override
+    public boolean[] createDirectories(Path[] directories)
+    {
+    	writable();
+		boolean[] created = new boolean[directories.length];
+		int[] order = byParent(directories);	// Parents come before their children
+		long sequence = 0;	// Log record of the last change
+		for (int start = 0, end; start < order.length; start = end) {
+			Path parent = directories[order[start]].parent();
+			end = groupEnd(directories, order, start);
+			PathLock locks = new PathLock();
+			try {
+				Node directory = lockPath(parent, locks, EXCLUSIVE);
+				if (directory instanceof Leaf) {
+					continue;
+				}
+				for (int i = start; i < end; i++) {
+					Path path = directories[order[i]];
+					if (((Branch) directory).getDirectory(path.last()) == null) {
+						publish(parent, ((Branch) directory).addBranch(path.last()));
+						if (log != null) {
+							sequence = log.directory(Snapshot.components(path));
+						}
+						created[order[i]] = true;
+					}
+				}
+			} catch (FileNotFoundException e) {	// None of the group is created
+			} finally {
+				locks.release();
+			}
+		}
+		durable(sequence);
+		return created;
+    }
+
+    @Override
+    public Storage[] getStorages(Path[] files) throws FileNotFoundException
+    {
+    	readable();
+		Object[] nodes = lookup(files);
+		Storage[] stubs = new Storage[files.length];
+		for (int i = 0; i < files.length; i++) {
+			if (!(nodes[i] instanceof Leaf) || ((Leaf) nodes[i]).isRemoved()) {
+				throw new FileNotFoundException("File not found: " + files[i]);
+			}
+			stubs[i] = direct((Leaf) nodes[i], files[i]);
+		}
+		return stubs;
+    }
+
+    @Override
+    public long lock(Path path, boolean exclusive) throws FileNotFoundException
+    {
+    	writable();	// Locks are kept by the primary alone
+		if (path == null) {
+			throw new NullPointerException();
+		}
+		resolve(path);
+		try {
+			return clientLocks.lock(path, exclusive, lockTerm);
+		} catch (InterruptedException e) {	// The naming server is stopping
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for the lock");
+		}
+    }
+
+    @Override
+    public void renewLock(Path path, long token)
+    {
+    	writable();
+		if (path == null) {
+			throw new NullPointerException();
+		}
+		clientLocks.renew(path, token, lockTerm);
+    }
+
+    @Override
+    public void unlock(Path path, long token)
+    {
+    	writable();
+		if (path == null) {
+			throw new NullPointerException();
+		}
+		clientLocks.unlock(path, token);
+    }
+
+    @Override
+    public Lease lease(Path path, long since) throws FileNotFoundException
+    {
+    	readable();
+		long sequence = invalidations.sequence();	// Changes after this are reported by the next lease
+		Path[] invalidated = invalidations.since(since, sequence);
+		if (isDirectory(path)) {
+			return new Lease(invalidations.epoch, sequence, leaseTerm, true, list(path), null, null, invalidated);
+		}
+		Leaf leaf = findFile(path);
+		return new Lease(invalidations.epoch, sequence, leaseTerm, false, null, handle(leaf, path),
+				servers.storage(leaf.server()), invalidated);
+    }
+
+    @Override
+    public Page listPage(Path directory, String token, int count, boolean ordered) throws FileNotFoundException
+    {
+    	readable();
+		if (directory == null) {
+			throw new NullPointerException();
+		}
+		if (count < 1) {
+			throw new IllegalArgumentException("Page size must be positive");
+		}
+		count = Math.min(count, Paging.MAX_COUNT);
+		char order;
+		if (token != null) {	// Continue in the order of the listing
+			order = Paging.order(token);
+			if (ordered && order != Paging.NAMES) {
+				throw new IllegalArgumentException("Token of an unordered listing");
+			}
+		} else {	// Otherwise in the order of an index, if there is one
+			order = ordered || (snapshot == null && sorted) ? Paging.NAMES : Paging.HASHES;
+		}
+		String after = Paging.after(token);
+		if (snapshot != null && (order == Paging.HASHES || !sorted && standby != null)) {	// From the snapshot, without locks
+			Object node = snapshot.lookup(directory);
+			if (!(node instanceof Snapshot.Dir)) {
+				throw new FileNotFoundException("File not found");
+			}
+			Snapshot.Children children = ((Snapshot.Dir) node).children;
+			if (order == Paging.HASHES) {	// The trie iterates from the name
+				ArrayList<String> names = new ArrayList<String>();
+				children.namesAfter(after, count + 1, names);
+				return Paging.page(names, count, order);
+			}
+			Paging.Selection selection = new Paging.Selection(Paging.NAME_ORDER, after, count);
+			children.select(selection);
+			return selection.page(order);
+		}
+		PathLock locks = new PathLock();
+		try {
+			Node node = lockPath(directory, locks, SHARED);
+			if (node instanceof Leaf) {
+				throw new FileNotFoundException("File not found");
+			}
+			Branch branch = (Branch) node;
+			if (order == Paging.NAMES && !branch.isSorted()) {	// Index the names once, then list from the index
+				locks.upgrade(branch);
+				branch.sort();
+			}
+			ArrayList<String> names = new ArrayList<String>();
+			if (order == Paging.NAMES) {	// The sorted index iterates from the name
+				branch.namesAfter(after, count + 1, names);
+			} else {	// The table is probed from the home slot of the name
+				branch.hashesAfter(after, count + 1, names);
+			}
+			return Paging.page(names, count, order);
+		} finally {
+			locks.release();
+		}
+    }
+
+    @Override
+    public Walk walk(Path root, String filter, int depth, String token, int count)
+        throws RMIException, FileNotFoundException
+    {
+    	readable();
+		if (root == null) {
+			throw new NullPointerException();
+		}
+		if (snapshot != null) {	// A consistent version of the tree, without locks
+			Object node = snapshot.lookup(root);
+			if (!(node instanceof Snapshot.Dir)) {
+				throw new FileNotFoundException("File not found");
+			}
+			return new Walker.Snapshots(filter, depth, count).walk(node, root, token);
+		}
+		Walker walker = new Walker.Branches(filter, depth, count);
+		Node node = resolve(root);
+		if (node instanceof Leaf) {
+			throw new FileNotFoundException("File not found");
+		}
+		return walker.walk(node, root, token);
+    }
+
+	/**
+	 * Looks up several paths, from the snapshot if enabled. Otherwise the paths are grouped by parent directory, and
+	 * each parent is locked and searched once for its whole group
+	 * @return for each path, its Leaf, or its Branch or Snapshot.Dir if it is a directory
+	 * @throws FileNotFoundException if any path does not exist
+	 */
+	private Object[] lookup(Path[] paths) throws FileNotFoundException {
+		Object[] nodes = new Object[paths.length];
+		int[] order = byParent(paths);
+		if (snapshot != null) {
+			for (int i = 0; i < paths.length; i++) {
+				nodes[i] = snapshot.lookup(paths[i]);
+				if (nodes[i] == null) {
+					throw new FileNotFoundException("File not found: " + paths[i]);
+				}
+			}
+			return nodes;
+		}
+		for (int i = 0; i < paths.length; i++) {
+			if (paths[i].isRoot()) {
+				nodes[i] = tree;
+			}
+		}
+		for (int start = 0, end; start < order.length; start = end) {
+			end = groupEnd(paths, order, start);
+			PathLock locks = new PathLock();
+			try {
+				Node directory = lockPath(paths[order[start]].parent(), locks, SHARED);
+				for (int i = start; i < end; i++) {
+					Path path = paths[order[i]];
+					Node node = directory instanceof Branch ? ((Branch) directory).getDirectory(path.last()) : null;
+					if (node == null) {
+						throw new FileNotFoundException("File not found: " + path);
+					}
+					nodes[order[i]] = node;
+				}
+			} finally {
+				locks.release();
+			}
+		}
+		return nodes;
+	}
+
+	/**
+	 * Orders the paths of a batch other than the root by parent directory, then by name. The paths in a directory
+	 * are then next to each other, and come after those in any of its ancestors
+	 * @return the indices of the paths, in order
+	 */
+	private static int[] byParent(final Path[] paths) {
+		ArrayList<Integer> indices = new ArrayList<Integer>(paths.length);
+		for (int i = 0; i < paths.length; i++) {
+			if (paths[i] == null) {
+				throw new NullPointerException();
+			}
+			if (!paths[i].isRoot()) {
+				indices.add(i);
+			}
+		}
+		final String[] parents = new String[paths.length];
+		for (int i : indices) {
+			parents[i] = paths[i].parent().toString();
+		}
+		Collections.sort(indices, new Comparator<Integer>() {
+			public int compare(Integer a, Integer b) {
+				int order = compareParents(parents[a], parents[b]);
+				return order != 0 ? order : paths[a].last().compareTo(paths[b].last());
+			}
+		});
+		int[] order = new int[indices.size()];
+		for (int i = 0; i < order.length; i++) {
+			order[i] = indices.get(i);
+		}
+		return order;
+	}
+
+	/**
+	 * Compares directory paths so that a directory comes before its descendants: by depth, then by name
+	 */
+	private static int compareParents(String a, String b) {
+		int depth = depth(a) - depth(b);
+		return depth != 0 ? depth : a.compareTo(b);
+	}
+
+	private static int depth(String path) {
+		int depth = 0;
+		for (int i = 1; i < path.length(); i++) {	// The root is "/" and has depth 0
+			if (path.charAt(i - 1) == '/') {
+				depth++;
+			}
+		}
+		return depth;
+	}
+
+	/**
+	 * Returns the end of the group of ordered paths sharing the parent of the path at start
+	 */
+	private static int groupEnd(Path[] paths, int[] order, int start) {
+		Path parent = paths[order[start]].parent();
+		int end = start + 1;
+		while (end < order.length && paths[order[end]].parent().equals(parent)) {
+			end++;
+		}
+		return end;
+	}
+
+	/**
+	 * Commands each storage server to create the files placed on it, one call per server, in parallel
+	 * @param placed server ids to their files
+	 * @throws RMIException the first failure, once every server has answered
+	 */
+	private void createOn(HashMap<Integer, ArrayList<Path>> placed) throws RMIException {
+		Callable<?>[] tasks = new Callable<?>[placed.size()];
+		int i = 0;
+		for (Map.Entry<Integer, ArrayList<Path>> entry : placed.entrySet()) {
+			final Command command = servers.command(entry.getKey());
+			final Path[] files = entry.getValue().toArray(new Path[0]);
+			tasks[i++] = new Callable<boolean[]>() {
+				public boolean[] call() throws RMIException {
+					return command.createFiles(files);
+				}
+			};
+		}
+		for (Exception failure : runAll(tasks)) {
+			if (failure instanceof RMIException) {
+				throw (RMIException) failure;
+			} else if (failure != null) {
+				throw new RMIException("Storage server not commanded", failure);
+			}
+		}
+	}
+
+	/**
+	 * Finds the Leaf of a file, from the snapshot if enabled
+	 * @throws FileNotFoundException if the path does not exist or is a directory
+	 */
+	private Leaf findFile(Path file) throws FileNotFoundException {
+		if (file == null) {
+			throw new NullPointerException();
+		}
+		Object node;
+		if (snapshot != null) {
+			node = snapshot.lookup(file);
+		} else {
+			node = resolve(file);	// The fields used afterwards are final or replaced as a whole
+		}
+		if (!(node instanceof Leaf) || ((Leaf) node).isRemoved()) {	// Missing, a directory, or deleted since the snapshot
+			throw new FileNotFoundException("File not found");
+		}
+		return (Leaf) node;
+	}
+
+	/**
+	 * Chooses the copy of a file a client reads, and counts the request
+	 * @return the stub of the chosen copy's server
+	 */
+	private Storage direct(Leaf leaf, Path file) {
+		int[] copies = copies(leaf);
+		int chosen = copies[choose(copies)];
+		servers.requested(chosen);
+		replicator.record(leaf, file);
+		return servers.storage(chosen);
+	}
+
+	/**
+	 * Returns the ids of the live servers holding a copy of a file, the original first. If none is alive, returns
+	 * the original's server alone, and the client finds it unreachable
+	 */
+	private int[] copies(Leaf leaf) {
+		int server = leaf.server();
+		int[] replicas = leaf.replicas();
+		if (replicas == null) {
+			return new int[] {server};
+		}
+		int[] copies = new int[replicas.length + 1];
+		int count = 0;
+		if (servers.alive(server)) {
+			copies[count++] = server;
+		}
+		for (int replica : replicas) {
+			if (servers.alive(replica)) {
+				copies[count++] = replica;
+			}
+		}
+		if (count == 0) {
+			return new int[] {server};
+		}
+		return count == copies.length ? copies : Arrays.copyOf(copies, count);
+	}
+
+	/**
+	 * Returns the index of the copy the calling client is directed to
+	 */
+	private int choose(int[] copies) {
+		if (copies.length == 1) {
+			return 0;
+		}
+		InetSocketAddress client = Skeleton.caller();
+		return selector.select(copies, servers, client == null ? null : client.getAddress());
+	}
+
+	/**
+	 * Adds a new file or directory to the snapshot, if enabled. Called with the exclusive lock on the parent held
+	 * @param parent path of the directory the node was added to
+	 * @param node the new Leaf or Branch
+	 */
+	private void publish(Path parent, Node node) {
+		if (snapshot != null) {
+			String[] components = Snapshot.components(parent);
+			snapshot.put(components, components.length, node.name, node instanceof Leaf ? node : Snapshot.Dir.EMPTY);
+		}
+		invalidations.record(new Path(parent, node.name));	// Once visible, so that no lease outlives the old state
+	}
+
+	/**
+	 * Finds the node for a path without keeping any locks. The node may be removed as soon as this method returns
+	 * @param path
+	 * @return the node the path refers to
+	 * @throws FileNotFoundException if a component does not exist, or if a file is used as a directory
+	 */
+	Node resolve(Path path) throws FileNotFoundException {
+		PathLock locks = new PathLock();
+		try {
+			return lockPath(path, locks, UNLOCKED);
+		} finally {
+			locks.release();
+		}
+	}
+
+	/**
+	 * Finds the node for a path in a single walk of the directory tree, locking the directories on the way. The
+	 * ancestors of the node are locked in shared mode from the root down, and the node itself, if it is a directory,
+	 * in the given mode. The locks are added to locks, and are held when the method throws.
+	 *
+	 * Paths that resolve are cached. For a cached path, the ancestors are found through the parent pointers instead
+	 * of by name, locked in the same order, and then checked: if any of them was removed in the meantime, the locks
+	 * are released and the path is walked from the root
+	 * @param path
+	 * @param locks
+	 * @param mode UNLOCKED, SHARED or EXCLUSIVE
+	 * @return the node the path refers to
+	 * @throws FileNotFoundException if a component does not exist, or if a file is used as a directory
+	 */
+	Node lockPath(Path path, PathLock locks, int mode) throws FileNotFoundException {
+		Node node = path.isRoot() ? this.tree : cache.get(path);
+		if (node != null) {
+			if (lockChain(node, locks, mode)) {
+				return node;
+			}
+			locks.release();	// Removed since it was cached
+		}
+		long generation = cache.generation();	// Read before walking, see PathCache
+		node = this.tree;
+		for (String component : path) {
+			if (!(node instanceof Branch)) {	// A file cannot have children
+				throw new FileNotFoundException("File not found");
+			}
+			locks.shared((Branch) node);
+			node = ((Branch) node).getDirectory(component);
+			if (node == null) {
+				throw new FileNotFoundException("File not found");
+			}
+		}
+		lockTarget(node, locks, mode);
+		cache.put(path, node, generation);
+		return node;
+	}
+
+	/**
+	 * Locks the ancestors of a node from the root down, and then the node itself
+	 * @return false if the node or one of its ancestors has been removed from the tree
+	 */
+	private static boolean lockChain(Node node, PathLock locks, int mode) {
+		boolean attached = node.parent == null || lockAncestors(node.parent, locks);
+		lockTarget(node, locks, mode);
+		return attached && !node.isRemoved();
+	}
+
+	/**
+	 * Locks a branch in shared mode after its ancestors
+	 * @return false if the branch or one of its ancestors has been removed from the tree
+	 */
+	private static boolean lockAncestors(Branch branch, PathLock locks) {
+		boolean attached = branch.parent == null || lockAncestors(branch.parent, locks);
+		locks.shared(branch);
+		return attached && !branch.removed;
+	}
+
+	private static void lockTarget(Node node, PathLock locks, int mode) {
+		if (node instanceof Branch && mode == SHARED) {
+			locks.shared((Branch) node);
+		} else if (node instanceof Branch && mode == EXCLUSIVE) {
+			locks.exclusive((Branch) node);
+		}
+	}
+    
+    /**
+	 * @param root The branch where to find the file
+	 * @param name The file to be found
+	 * @return	node if the node is present in the branch
+	 */
+	public static Node getBranch(Node root, String name) {	// For example, tree -> Branch.name = "/", "data"
+		return ((Branch) root).getDirectory(name);	// Hash lookup in the children of root
+	}
+
+    // The method register is documented in Registration.java.
+    @Override
+    public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files)
     {
-    	if (client_stub == null || command_stub == null || files == null) {
+    	writable();
+		if (client_stub == null || command_stub == null || files == null) {
 			throw new NullPointerException("Null argument found");
 		}
-		for (int i = 0; i < this.storageStubs.size(); i++) {	// Check if the storage server has already been registered by checking storage stubs in storage stub list
-			if (storageStubs.get(i).equals(client_stub)) {
-				throw new IllegalStateException("Storage Server already start");
+		synchronized (servers) {
+			int id = servers.find(client_stub);	// Check if the storage server has already been registered
+			if (id == -1) {
+				id = servers.add(client_stub, command_stub);
+			} else {
+				if (!recovered.remove(client_stub)) {	// Only servers restored from the log may register again
+					throw new IllegalStateException("Storage Server already start");
+				}
+				servers.set(id, client_stub, command_stub);
+			}
+			if (log != null) {
+				log.server(id, serialize(client_stub, command_stub));
 			}
 		}
-		this.storageStubs.add(client_stub);
-		this.commandStubs.add(command_stub);
-		ArrayList<Path> duplicates = new ArrayList<>();
+		return merge(files, client_stub, command_stub);
+    }
 
-		duplicates = createTree(files, client_stub, command_stub);	// Returns a list of duplicates found
-		Path[] duplicatesArr = new Path[duplicates.size()];
-		for (int i = 0; i < duplicates.size(); i++) {
-			duplicatesArr[i] = duplicates.get(i);
+    // The method addFiles is documented in Registration.java.
+    @Override
+    public Path[] addFiles(Storage client_stub, Path[] files)
+    {
+    	writable();
+		if (client_stub == null || files == null) {
+			throw new NullPointerException("Null argument found");
 		}
-		return duplicatesArr;
+		int id = servers.find(client_stub);
+		if (id == -1) {
+			throw new IllegalStateException("Storage server not registered");
+		}
+		return merge(files, client_stub, servers.command(id));
+    }
+
+	/**
+	 * Merges files registered by a storage server into the tree, and returns the duplicates once the files are
+	 * durable
+	 */
+	private Path[] merge(Path[] files, Storage client_stub, Command command_stub) {
+		ArrayList<Path> duplicates = createTree(files, client_stub, command_stub);	// Returns a list of duplicates found
+		if (log != null) {
+			durable(log.appended());	// Report the files as registered once they are all durable
+		}
+		return duplicates.toArray(new Path[duplicates.size()]);
+	}
+
+    // The method attributes is documented in Registration.java.
+    @Override
+    public void attributes(Storage client_stub, Path[] files, long[] sizes, long[] modified)
+    {
+    	writable();
+		if (client_stub == null || files == null || sizes == null || modified == null) {
+			throw new NullPointerException("Null argument found");
+		}
+		if (sizes.length != files.length || modified.length != files.length) {
+			throw new IllegalArgumentException("Attributes do not match files");
+		}
+		int server = servers.find(client_stub);
+		if (server == -1) {
+			throw new IllegalStateException("Storage server not registered");
+		}
+		for (int i = 0; i < files.length; i++) {
+			Leaf written = null;	// Replicated file whose original was written
+			PathLock locks = new PathLock();
+			try {
+				Node node = lockPath(files[i], locks, UNLOCKED);	// The parent stays locked while the size is counted
+				if (node instanceof Leaf && ((Leaf) node).server() == server) {	// Replicas copy the original's attributes
+					Leaf leaf = (Leaf) node;
+					long[] previous = leaf.attributes();
+					leaf.setAttributes(new long[] {sizes[i], modified[i]});
+					if (leaf.replicas() != null
+							&& (previous == null || previous[0] != sizes[i] || previous[1] != modified[i])) {
+						written = leaf;
+					}
+				}
+			} catch (FileNotFoundException e) {	// Deleted since the storage server changed it
+			} finally {
+				locks.release();
+			}
+			if (written != null) {	// Under the exclusive lock, taken once the shared one is released
+				replicator.written(written, files[i]);
+			}
+		}
+    }
+
+    // The method heartbeat is documented in Registration.java.
+    @Override
+    public boolean heartbeat(Storage client_stub, long served, long free)
+    {
+    	if (client_stub == null) {
+			throw new NullPointerException("Null argument found");
+		}
+		int id = servers.find(client_stub);
+		if (id == -1) {	// Not registered, or forgotten by a restart without the log
+			return false;
+		}
+		liveness.heartbeat(id, served, free);
+		return true;
+    }
+
+    // The following method is documented in Shipping.java.
+    @Override
+    public Shipment ship(long epoch, long after, long wait)
+    {
+    	WriteAheadLog log = this.log;
+		if (log == null) {
+			throw new IllegalStateException("Naming server is not logging");
+		}
+		if (epoch == log.epoch()) {
+			try {
+				byte[][] records = log.shipped(after, WriteAheadLog.SHIPPED_RECORDS, wait);
+				if (records != null) {
+					return new Shipment(epoch, after + records.length, false, records);
+				}
+			} catch (InterruptedException e) {	// Stopping, the standby asks again
+				Thread.currentThread().interrupt();
+				return new Shipment(epoch, after, false, new byte[0][]);
+			}
+		}
+		long first = log.appended();	// Changes from now on are shipped after the tree, see checkpoint
+		ArrayList<byte[]> records = new ArrayList<byte[]>();
+		int count = servers.size();
+		for (int i = 0; i < count; i++) {
+			records.add(WriteAheadLog.serverRecord(i, serialize(servers.storage(i), servers.command(i))));
+		}
+		imageTree(this.tree, new ArrayList<String>(), records);
+		return new Shipment(log.epoch(), first, true, records.toArray(new byte[records.size()][]));
     }
     
     /**
-	 * Returns an array of duplicate files from naming server already been registered
+	 * Returns an array of duplicate files from naming server already been registered. Files whose path passes
+	 * through an existing file are reported as duplicates too.
+	 *
+	 * Each file is added under the locks of its own path: shared on the directories that already hold the next
+	 * component, exclusive on those that are modified. Registrations therefore run concurrently with each other and
+	 * with client operations.
+	 *
+	 * Files that are already mapped to the registering server are not duplicates. This happens when a server
+	 * restored by recover registers again
 	 * @param files	
 	 * @param stub_storage
 	 * @param stub_command
@@ -485,109 +1614,292 @@ public class NamingServer implements Service, Registration
 	 */
 	public ArrayList<Path> createTree(Path[] files, Storage storageStub, Command commandStub) {
 		ArrayList<Path> duplicates = new ArrayList<>();
+		int server = servers.find(storageStub);
 		for (int i = 0; i < files.length; i++) {	// Iterate through all the files
 			Branch currNode = this.tree;	// assigning root
 			Iterator<String> itr = files[i].iterator();
-			
-			while (itr.hasNext()) {
-				String nextComp = itr.next();
-				if (itr.hasNext()) {	// If has next, then it is a directory 
-					if (currNode.getDirectory(nextComp) != null) {	// If directory already exists, then point to current directory
-						currNode = (Branch) currNode.getDirectory(nextComp);
+			String[] components = snapshot == null && log == null ? null : Snapshot.components(files[i]);
+			int depth = 0;	// Number of components walked
+			int created = -1;	// Depth of the first node created for the file
+			PathLock locks = new PathLock();
+			locks.shared(currNode);
+			try {
+				while (itr.hasNext()) {
+					String nextComp = itr.next();
+					Node next = currNode.getDirectory(nextComp);
+					if (next == null) {	// currNode is modified. It cannot be removed meanwhile, its parent is still locked
+						locks.upgrade(currNode);
+						next = currNode.getDirectory(nextComp);	// Recheck, the lock was released during the upgrade
 					}
-					else {	// If directory does not exist then create a new branch (directory) add branch to nodeList of current directory
-						Branch newBranch = new Branch(nextComp);
-						currNode.nodeList.add(newBranch);
-						currNode = newBranch;
+					if (itr.hasNext()) {	// If has next, then it is a directory 
+						if (next == null) {	// If directory does not exist then create a new branch (directory) add branch to current directory
+							next = currNode.addBranch(nextComp);
+							created = created == -1 ? depth : created;
+							if (snapshot != null) {
+								snapshot.put(components, depth, nextComp, Snapshot.Dir.EMPTY);
+							}
+						}
+						if (next instanceof Leaf) {	// A file is in the way
+							duplicates.add(files[i]);
+							break;
+						}
+						currNode = (Branch) next;	// Point to the directory
+						locks.shared(currNode);
+						depth++;
 					}
-
-				}
-				if (!itr.hasNext()) {	// If does not have next, then its a file
-					if (currNode.getDirectory(nextComp) != null) {	// Duplicate file
-						duplicates.add(files[i]);
+					else if (next != null) {	// Duplicate file
+						if (!(next instanceof Leaf && server != -1 && ((Leaf) next).server() == server)) {
+							duplicates.add(files[i]);
+						}
 					} else {	// Else create a new leaf (file)
-						Leaf newleaf = new Leaf(nextComp, commandStub, storageStub);
-						currNode.nodeList.add(newleaf);
+						Leaf newleaf = currNode.addFile(nextComp, server);
+						created = created == -1 ? depth : created;
+						servers.hosted(server, 1);
+						if (snapshot != null) {
+							snapshot.put(components, depth, nextComp, newleaf);
+						}
+						if (log != null) {
+							log.file(components, server);
+						}
 					}
 				}
+				if (created != -1) {
+					invalidations.record(ancestor(files[i], created + 1));
+				}
+			} finally {
+				locks.release();
 			}
 		}
 		return duplicates;
 	}
 
+	/**
+	 * Returns the ancestor of a path with the given number of components, or the path itself if it has fewer
+	 */
+	private static Path ancestor(Path path, int length) {
+		ArrayList<Path> ancestors = new ArrayList<Path>();
+		for (Path ancestor = path; !ancestor.isRoot(); ancestor = ancestor.parent()) {
+			ancestors.add(ancestor);
+		}
+		return ancestors.size() < length ? path : ancestors.get(ancestors.size() - length);
+	}
+
 	/**
 	 * Checks if the file/dir given by path exists in the directory tree or not
 	 * @param path
 	 * @return true if exists, else false
 	 */
-	public synchronized boolean exist(Path path) {
-		if (path.isRoot()) {
+	public boolean exist(Path path) {
+		try {
+			resolve(path);
 			return true;
+		} catch (FileNotFoundException e) {
+			return false;
 		}
-		Node currDir = this.tree;	// Assigning root
-		Iterator<String> itr = path.iterator();
-		while (itr.hasNext()) {
-			String component = itr.next();
-			if (getBranch((Branch) currDir, component) == null) {
-				return false;
+	}
+
+	/**
+	 * Waits until a logged change is on disk. Changes are only reported to the caller once they are durable
+	 * @param sequence sequence number of the log record, 0 if the change was not logged
+	 */
+	void durable(long sequence) {
+		if (log != null && sequence != 0) {
+			try {
+				log.sync(sequence);
+			} catch (IOException e) {
+				throw new IllegalStateException("Unable to write naming server log", e);
 			}
-			currDir = getBranch(currDir, component);
 		}
-		return true;
 	}
-}
 
+	/**
+	 * Adds log records for the contents of a directory, in preorder, taking the same locks as writeTree
+	 * @param path components of the directory's path
+	 */
+	private void imageTree(Branch branch, ArrayList<String> path, ArrayList<byte[]> records) {
+		Node[] children;
+		branch.lock.readLock().lock();
+		try {
+			children = branch.nodes().toArray(new Node[branch.size()]);
+		} finally {
+			branch.lock.readLock().unlock();
+		}
+		for (Node child : children) {
+			path.add(child.name);
+			String[] components = path.toArray(new String[path.size()]);
+			if (child instanceof Branch) {
+				records.add(WriteAheadLog.pathRecord(WriteAheadLog.DIRECTORY, components, 0));
+				imageTree((Branch) child, path, records);
+			} else {
+				records.add(WriteAheadLog.pathRecord(WriteAheadLog.FILE, components, ((Leaf) child).server()));
+			}
+			path.remove(path.size() - 1);
+		}
+	}
 
-/** 
- * A branch represents a directory within the directory tree. It contains a list of nodes that has all its immediate directories or files
- */
-class Branch extends Node{	
-	ArrayList<Node> nodeList;
-	
-	public Branch(String name) {
-		this.name = name;
-		this.nodeList = new ArrayList<Node>();
+	/**
+	 * Applies changes shipped by the primary to a standby's tree. Only the standby thread changes the tree, and
+	 * clients read the snapshot
+	 * @param image whether the records are the whole tree, which then replaces the current one
+	 * @throws IOException if a record is malformed
+	 */
+	void apply(byte[][] records, boolean image) throws IOException {
+		if (image) {
+			invalidations.clear();
+			servers = new ServerTable();
+			tree = new Branch("/", sorted);
+			snapshot.clear();
+			cache.clear();
+		}
+		Recovery recovery = new Recovery();
+		for (byte[] record : records) {
+			WriteAheadLog.apply(record, recovery);
+		}
 	}
-	
+
 	/**
-	 * Returns node with "name" from branch nodeList
-	 * @param name
-	 * @return
+	 * Throws if this is a standby, which does not change its tree on behalf of clients or storage servers
 	 */
-	public Node getDirectory(String name) {
-		for (int i = 0; i < nodeList.size(); i++) {
-			if (nodeList.get(i).name.equals(name)) {
-				return nodeList.get(i);
-			}
+	private void writable() {
+		if (standby != null) {
+			throw new IllegalStateException("Naming server is a read-only standby");
 		}
-		return null;
 	}
-}
 
-/**
- * Leaf represents a file in the directory tree
- */
-class Leaf extends Node {
+	/**
+	 * Throws if this is a standby whose tree is being replaced, or may be older than its staleness bound
+	 */
+	private void readable() {
+		Standby standby = this.standby;
+		if (standby != null && !standby.current()) {
+			throw new IllegalStateException("Standby naming server is behind its primary");
+		}
+	}
 
-	Command command;	// for accessing the storage server where original file is held
-	Storage storage;
-	ArrayList<Storage> storageList;	// List of command and storage stubs for accessing the storage servers where the replicas of file are held
-	ArrayList<Command> commandList;
+	/**
+	 * Writes the contents of a directory to a checkpoint. The children are copied under a shared lock, which is
+	 * released before they are written, so that the checkpoint never holds more than one lock
+	 */
+	private void writeTree(Branch branch, int depth, Checkpoint checkpoint) throws IOException {
+		Node[] children;
+		branch.lock.readLock().lock();
+		try {
+			children = branch.nodes().toArray(new Node[branch.size()]);
+		} finally {
+			branch.lock.readLock().unlock();
+		}
+		for (Node node : children) {
+			if (node instanceof Leaf) {
+				checkpoint.file(depth, node.name, ((Leaf) node).server());
+			} else {
+				checkpoint.directory(depth, node.name);
+				writeTree((Branch) node, depth + 1, checkpoint);
+			}
+		}
+	}
 
-	public Leaf(String name, Command commandStub, Storage storageStub) {
-		this.name = name;
-		this.command = commandStub;
-		this.storage = storageStub;
-		this.storageList = new ArrayList<Storage>();
-		this.commandList = new ArrayList<Command>();
+	private static byte[] serialize(Storage storage, Command command) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		try {
+			ObjectOutputStream out = new ObjectOutputStream(bytes);
+			out.writeObject(storage);
+			out.writeObject(command);
+			out.close();
+		} catch (IOException e) {
+			throw new IllegalArgumentException("Storage server stubs are not serializable", e);
+		}
+		return bytes.toByteArray();
 	}
-}
 
+	/**
+	 * Rebuilds the tree from a checkpoint and the log. Runs before the server is started, so it takes no locks.
+	 * Records are applied whatever the current state of the tree: a file or directory replaces anything at its path,
+	 * and the directories above it are created
+	 */
+	private class Recovery implements WriteAheadLog.Replay {
+		public void server(int server, byte[] stubs) throws IOException {
+			ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(stubs));
+			Storage storage;
+			Command command;
+			try {
+				storage = (Storage) in.readObject();
+				command = (Command) in.readObject();
+			} catch (ClassNotFoundException e) {
+				throw new IOException("Unable to restore storage server stubs", e);
+			}
+			servers.set(server, storage, command);
+			recovered.add(storage);
+		}
 
-/**
- * Node contains all the immediate files or directories for a branch
- *
- */
-class Node{	
-	String name;
+		public void directory(String[] path, int length) {
+			branch(path, length);
+		}
+
+		public void file(String[] path, int length, int server) {
+			Branch parent = branch(path, length - 1);
+			String name = path[length - 1];
+			if (parent.getDirectory(name) != null) {
+				remove(parent, path, length);
+			}
+			Leaf leaf = parent.addFile(name, server);
+			servers.hosted(server, 1);
+			if (snapshot != null) {
+				snapshot.put(path, length - 1, name, leaf);
+			}
+			invalidations.record(toPath(path, length));
+		}
+
+		public void delete(String[] path, int length) {
+			Node node = tree;
+			for (int i = 0; i < length - 1 && node instanceof Branch; i++) {
+				node = ((Branch) node).getDirectory(path[i]);
+			}
+			if (node instanceof Branch && ((Branch) node).getDirectory(path[length - 1]) != null) {
+				remove((Branch) node, path, length);
+			}
+		}
+
+		/**
+		 * Returns the directory with the given path, creating it and replacing files in the way if necessary
+		 */
+		private Branch branch(String[] path, int length) {
+			Branch branch = tree;
+			for (int i = 0; i < length; i++) {
+				Node next = branch.getDirectory(path[i]);
+				if (next instanceof Leaf) {
+					remove(branch, path, i + 1);
+					next = null;
+				}
+				if (next == null) {
+					next = branch.addBranch(path[i]);
+					if (snapshot != null) {
+						snapshot.put(path, i, path[i], Snapshot.Dir.EMPTY);
+					}
+					invalidations.record(toPath(path, i + 1));
+				}
+				branch = (Branch) next;
+			}
+			return branch;
+		}
+
+		/**
+		 * Returns the path made of the first length components
+		 */
+		private Path toPath(String[] path, int length) {
+			Path result = new Path();
+			for (int i = 0; i < length; i++) {
+				result = new Path(result, path[i]);
+			}
+			return result;
+		}
+
+		private void remove(Branch parent, String[] path, int length) {
+			unhost(parent.getDirectory(path[length - 1]), null);	// While the files are still in the tree
+			parent.remove(path[length - 1]);
+			if (snapshot != null) {
+				snapshot.remove(Arrays.copyOf(path, length));
+			}
+			invalidations.record(toPath(path, length));
+		}
+	}
 }
@@ -4,14 +4,19 @@ import java.net.*;
 
 import rmi.*;
 
-/** Default port numbers for the naming server and convenience methods for
-    making naming server stubs. */
+/** Default port numbers for the naming server, the storage server heartbeat
+    interval, and convenience methods for making naming server stubs. */
 public abstract class NamingStubs
 {
     /** Default naming server client service port. */
     public static final int     SERVICE_PORT = 6000;
     /** Default naming server registration port. */
     public static final int     REGISTRATION_PORT = 6001;
+    /** Default naming server log shipping port. */
+    public static final int     SHIPPING_PORT = 6002;
+    /** Interval between the heartbeats of storage servers, in
+        milliseconds. */
+    public static final long    HEARTBEAT_INTERVAL = 1000;
 
     /** Returns a stub for a naming server client service interface.
 
@@ -36,6 +41,38 @@ public abstract class NamingStubs
         return service(hostname, SERVICE_PORT);
     }
 
+    /** Returns a client service interface for a federated filesystem.
+
+        <p>
+        Each call is routed to the naming server owning its paths in the mount
+        table, as described in <code>MountTable</code>. Calls on several paths
+        are split into one call per naming server.
+
+        @param mounts Mount table of the filesystem.
+     */
+    public static Service service(MountTable mounts)
+    {
+        return new FederatedService(mounts);
+    }
+
+    /** Returns a client service interface that caches lookups.
+
+        <p>
+        <code>isDirectory</code>, <code>list</code> and <code>getStorage</code>
+        are answered from leases granted by the naming server, as described in
+        <code>Lease</code>, and repeated lookups of the same path are served
+        locally until the lease expires or the naming server reports a change
+        to the path. Changes made through the returned service are seen by it
+        at once. To cache lookups in a federated filesystem, each naming
+        server's stub is wrapped before it is mounted.
+
+        @param service The naming server client service interface.
+     */
+    public static Service cached(Service service)
+    {
+        return new CachingService(service, CachingService.ENTRIES);
+    }
+
     /** Returns a stub for a naming server registration interface.
 
         @param hostname Naming server hostname.
@@ -58,4 +95,27 @@ public abstract class NamingStubs
     {
         return registration(hostname, REGISTRATION_PORT);
     }
+
+    /** Returns a stub for a naming server log shipping interface.
+
+        @param hostname Naming server hostname.
+        @param port Log shipping interface port.
+     */
+    public static Shipping shipping(String hostname, int port)
+    {
+        InetSocketAddress   address = new InetSocketAddress(hostname, port);
+        return Stub.create(Shipping.class, address);
+    }
+
+    /** Returns a stub for a naming server log shipping interface.
+
+        <p>
+        The default port is used.
+
+        @param hostname Naming server hostname.
+     */
+    public static Shipping shipping(String hostname)
+    {
+        return shipping(hostname, SHIPPING_PORT);
+    }
 }
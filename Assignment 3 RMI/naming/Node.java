@@ -0,0 +1,15 @@
+package naming;
+
+/**
+ * Node contains all the immediate files or directories for a branch
+ *
+ */
+abstract class Node{	
+	String name;
+	Branch parent;	// Directory containing this node, null for the root. Set when the node is added to a branch
+
+	/**
+	 * Returns whether the node has been deleted from its parent. Checked under the parent's lock
+	 */
+	abstract boolean isRemoved();
+}
@@ -0,0 +1,50 @@
+package naming;
+
+import java.io.*;
+
+/** Page of a directory listing.
+
+    <p>
+    Pages are returned by <code>Service.listPage</code>. A page holds some of
+    the entries of a directory, and a continuation token from which the next
+    page is requested.
+ */
+public class Page implements Serializable
+{
+    /** Entries on the page. */
+    private final String[]      names;
+    /** Token from which the next page is requested, or <code>null</code> if
+        this is the last page. */
+    private final String        token;
+
+    /** Creates a page.
+
+        @param names Entries on the page.
+        @param token Token from which the next page is requested, or
+                     <code>null</code> if this is the last page.
+     */
+    Page(String[] names, String token)
+    {
+        this.names = names;
+        this.token = token;
+    }
+
+    /** Returns the entries on the page.
+
+        @return The entries, in the order of the listing.
+     */
+    public String[] names()
+    {
+        return names.clone();
+    }
+
+    /** Returns the continuation token of the listing.
+
+        @return The token from which the next page is requested, or
+                <code>null</code> if this is the last page.
+     */
+    public String next()
+    {
+        return token;
+    }
+}
@@ -0,0 +1,139 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.PriorityQueue;
+
+/**
+ * Orders and continuation tokens of paged directory listings.
+ *
+ * A page holds the entries that follow the last entry of the previous page in one of two orders: by name, or by
+ * hash, the order in which the tries of the snapshot hold their entries. The token of a page is the order followed by
+ * the last name on the page, so that a listing resumes after that name wherever it is now, and the entries present
+ * throughout a listing are listed exactly once however the directory changes meanwhile.
+ *
+ * An index that iterates from a name returns a page directly. The hash tables of branches and the tries of snapshots
+ * iterate in hash order, and sorted indexes in name order; a branch that is not sorted builds its sorted index on its
+ * first listing by name. A snapshot has no sorted index, so a listing of a snapshot by name uses a Selection, which
+ * scans the whole directory but only keeps the page it is building.
+ */
+class Paging {
+	static final int MAX_COUNT = 4096;	// Most entries returned in a page
+	static final char NAMES = 'n', HASHES = 'h';	// Orders, the first character of a token
+	static final int KEY_BITS = 35;	// Seven chunks of five bits, the last one partly used
+
+	/**
+	 * Lexicographic order
+	 */
+	static final Comparator<String> NAME_ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			return a.compareTo(b);
+		}
+	};
+
+	/**
+	 * Order of the entries of a trie: by chunks of the hash, the lowest bits first, then by name
+	 */
+	static final Comparator<String> HASH_ORDER = new Comparator<String>() {
+		public int compare(String a, String b) {
+			int order = compareHashes(a.hashCode(), b.hashCode());
+			return order != 0 ? order : a.compareTo(b);
+		}
+	};
+
+	/**
+	 * Orders two hashes as the tries of the snapshot do
+	 */
+	static int compareHashes(int a, int b) {
+		return Long.compare(key(a), key(b));
+	}
+
+	/**
+	 * Returns the chunks of a hash, as the tries use them, with the first one in the highest bits. Keys are KEY_BITS
+	 * long, and ordered as the hashes are
+	 */
+	static long key(int hash) {
+		long key = 0;
+		for (int shift = 0; shift < 32; shift += 5) {
+			key = (key << 5) | ((hash >>> shift) & 31);
+		}
+		return key;
+	}
+
+	/**
+	 * Returns the order of a token
+	 * @throws IllegalArgumentException if the token is malformed
+	 */
+	static char order(String token) {
+		if (token.isEmpty() || (token.charAt(0) != NAMES && token.charAt(0) != HASHES)) {
+			throw new IllegalArgumentException("Malformed continuation token");
+		}
+		return token.charAt(0);
+	}
+
+	static Comparator<String> comparator(char order) {
+		return order == NAMES ? NAME_ORDER : HASH_ORDER;
+	}
+
+	/**
+	 * Returns the name after which a listing resumes, or null if the token is null
+	 */
+	static String after(String token) {
+		return token == null ? null : token.substring(1);
+	}
+
+	/**
+	 * Returns the page of the first count names of a list, which holds one more if there are more pages
+	 */
+	static Page page(ArrayList<String> names, int count, char order) {
+		if (names.size() <= count) {
+			return new Page(names.toArray(new String[names.size()]), null);
+		}
+		String[] page = names.subList(0, count).toArray(new String[count]);
+		return new Page(page, order + page[count - 1]);
+	}
+
+	/**
+	 * The first names of a page that follow a name, from names offered in any order
+	 */
+	static class Selection {
+		private final Comparator<String> comparator;
+		private final String after;	// null to start at the first name
+		private final int count;
+		private final PriorityQueue<String> kept;	// The smallest names offered, the largest at the head
+		private boolean more = false;	// Names were dropped from the page
+
+		Selection(Comparator<String> comparator, String after, int count) {
+			this.comparator = comparator;
+			this.after = after;
+			this.count = count;
+			kept = new PriorityQueue<String>(count, new Comparator<String>() {
+				public int compare(String a, String b) {
+					return Selection.this.comparator.compare(b, a);
+				}
+			});
+		}
+
+		void offer(String name) {
+			if (after != null && comparator.compare(name, after) <= 0) {	// On an earlier page
+				return;
+			}
+			if (kept.size() < count) {
+				kept.add(name);
+			} else if (comparator.compare(name, kept.peek()) < 0) {
+				kept.poll();
+				kept.add(name);
+				more = true;
+			} else {
+				more = true;
+			}
+		}
+
+		Page page(char order) {
+			String[] names = kept.toArray(new String[kept.size()]);
+			Arrays.sort(names, comparator);
+			return new Page(names, more ? order + names[names.length - 1] : null);
+		}
+	}
+}
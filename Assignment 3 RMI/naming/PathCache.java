@@ -0,0 +1,149 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import common.*;
+
+/**
+ * Bounded cache from full paths to the nodes they resolve to, with approximate least recently used eviction.
+ *
+ * Lookups take no lock: entries are kept in a concurrent map, and each lookup stamps the entry it finds with the time
+ * it was used. Once the cache holds more than its capacity, the thread that added the last entry evicts the least
+ * recently used entries by their stamps, down to EVICTED_SHARE below the capacity, so that the scan is made once per
+ * that many additions. Threads adding entries meanwhile do not wait for it, so the cache may briefly hold a few more
+ * entries than its capacity.
+ *
+ * Only paths that exist are cached. Creating files and directories therefore never makes an entry stale, and the
+ * naming server only invalidates entries when it removes nodes from the tree.
+ *
+ * A lookup may walk the tree while a node on its path is being removed. To keep it from caching the removed node,
+ * every invalidation advances a generation number, and a node is only cached if no invalidation happened since
+ * the walk that found it started. An invalidation advances the generation before removing entries, and an addition
+ * checks the generation again once its entry is in the map, so that one of the two removes it.
+ */
+class PathCache {
+	static final int EVICTED_SHARE = 8;	// Evictions leave this share of the capacity free, one entry in so many
+
+	private final int capacity;
+	private final ConcurrentHashMap<Path, Entry> entries = new ConcurrentHashMap<Path, Entry>();
+	private final AtomicLong generation = new AtomicLong();	// Number of invalidations so far
+	private final ReentrantLock evicting = new ReentrantLock();	// Held by the thread evicting entries
+
+	public PathCache(int capacity) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Cache capacity must be positive");
+		}
+		this.capacity = capacity;
+	}
+
+	/**
+	 * Returns the cached node for a path
+	 * @param path
+	 * @return the node, or null if the path is not cached
+	 */
+	public Node get(Path path) {
+		Entry entry = entries.get(path);
+		if (entry == null) {
+			return null;
+		}
+		entry.used = System.nanoTime();
+		return entry.node;
+	}
+
+	/**
+	 * Returns the current generation, to be passed to put once the path has been resolved
+	 */
+	public long generation() {
+		return generation.get();
+	}
+
+	/**
+	 * Caches the node a path resolves to, unless entries were invalidated since the given generation
+	 * @param path
+	 * @param node
+	 * @param generation generation read before the walk that found the node started
+	 */
+	public void put(Path path, Node node, long generation) {
+		if (generation != this.generation.get()) {
+			return;
+		}
+		Entry entry = new Entry(node);
+		entries.put(path, entry);
+		if (generation != this.generation.get()) {	// Invalidated meanwhile, perhaps before the entry was added
+			entries.remove(path, entry);
+			return;
+		}
+		if (entries.size() > capacity && evicting.tryLock()) {
+			try {
+				evict();
+			} finally {
+				evicting.unlock();
+			}
+		}
+	}
+
+	/**
+	 * Invalidates the entry for a single path. Used when a file is removed
+	 * @param path
+	 */
+	public void remove(Path path) {
+		generation.incrementAndGet();
+		entries.remove(path);
+	}
+
+	/**
+	 * Invalidates all entries. Used when a directory is removed, since any number of cached paths may lie under it
+	 */
+	public void clear() {
+		generation.incrementAndGet();
+		entries.clear();
+	}
+
+	/**
+	 * Returns the number of cached paths
+	 */
+	public int size() {
+		return entries.size();
+	}
+
+	/**
+	 * Removes the least recently used entries until the cache is below its capacity. Called by one thread at a time
+	 */
+	private void evict() {
+		ArrayList<Map.Entry<Path, Entry>> cached = new ArrayList<Map.Entry<Path, Entry>>(entries.entrySet());
+		int excess = cached.size() - (capacity - capacity / EVICTED_SHARE);
+		if (excess <= 0) {
+			return;
+		}
+		long[] used = new long[cached.size()];	// Read once, since lookups keep stamping the entries
+		for (int i = 0; i < used.length; i++) {
+			used[i] = cached.get(i).getValue().used;
+		}
+		long[] sorted = used.clone();
+		Arrays.sort(sorted);
+		long oldest = sorted[excess - 1];	// Stamp of the last entry evicted
+		for (int i = 0; i < used.length && excess > 0; i++) {
+			if (used[i] <= oldest) {
+				entries.remove(cached.get(i).getKey(), cached.get(i).getValue());
+				excess--;
+			}
+		}
+	}
+
+	/**
+	 * Cached node, with the time it was last used as given by System.nanoTime
+	 */
+	private static class Entry {
+		final Node node;
+		volatile long used = System.nanoTime();
+
+		Entry(Node node) {
+			this.node = node;
+		}
+	}
+}
@@ -0,0 +1,60 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * The set of directory locks held by one naming server operation.
+ *
+ * Each directory has a read-write lock. An operation locks the directories on its path from the root down: shared
+ * on the ancestors, and shared or exclusive on the directory it reads or modifies. Since every operation acquires
+ * locks in the same root to leaf order, operations cannot deadlock, operations on independent subtrees never wait
+ * for each other, and reads only wait for writes to the directories on their own path.
+ *
+ * Files have no locks of their own. A file is read under a shared lock on its directory, and added, removed or
+ * modified under an exclusive lock on its directory.
+ */
+class PathLock {
+	private final ArrayList<Lock> held = new ArrayList<Lock>();	// In order of acquisition
+
+	/**
+	 * Locks a directory in shared mode
+	 * @param branch
+	 */
+	public void shared(Branch branch) {
+		acquire(branch.lock.readLock());
+	}
+
+	/**
+	 * Locks a directory in exclusive mode
+	 * @param branch
+	 */
+	public void exclusive(Branch branch) {
+		acquire(branch.lock.writeLock());
+	}
+
+	/**
+	 * Replaces the shared lock on the directory locked last by an exclusive lock. The shared lock is released first,
+	 * since read-write locks cannot be upgraded, so the directory may have changed when this method returns
+	 * @param branch the directory locked last
+	 */
+	public void upgrade(Branch branch) {
+		held.remove(held.size() - 1).unlock();
+		exclusive(branch);
+	}
+
+	/**
+	 * Releases all locks, leaf first
+	 */
+	public void release() {
+		for (int i = held.size() - 1; i >= 0; i--) {
+			held.get(i).unlock();
+		}
+		held.clear();
+	}
+
+	private void acquire(Lock lock) {
+		lock.lock();
+		held.add(lock);
+	}
+}
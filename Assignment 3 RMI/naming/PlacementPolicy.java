@@ -0,0 +1,145 @@
+package naming;
+
+import java.util.Map;
+import java.util.TreeMap;
+
+import common.*;
+
+/**
+ * Chooses the storage server that hosts a file created through the naming server. Only servers that are available in
+ * the ServerTable are chosen. The policies are:
+ *
+ * round-robin: the available servers in turn.
+ * least-used: the server hosting the fewest files and replicas.
+ * least-loaded: the server with the lowest load in the ServerTable, the fewest client requests recently.
+ * consistent-hash: the server owning the hash of the path on a ring of virtual nodes, so that a path maps to the same
+ * server for as long as the set of servers does not change, and adding or removing a server only moves the paths on
+ * its own part of the ring.
+ *
+ * Policies are shared by all client threads and must be thread-safe.
+ */
+abstract class PlacementPolicy {
+	static final String ROUND_ROBIN = "round-robin", LEAST_USED = "least-used", LEAST_LOADED = "least-loaded",
+			CONSISTENT_HASH = "consistent-hash";
+
+	/**
+	 * Chooses the server for a new file
+	 * @param file path of the file
+	 * @param servers
+	 * @return the id of the server, or -1 if no server is available
+	 */
+	abstract int place(Path file, ServerTable servers);
+
+	/**
+	 * Returns a new policy
+	 * @param name one of ROUND_ROBIN, LEAST_USED, LEAST_LOADED or CONSISTENT_HASH
+	 * @throws IllegalArgumentException if there is no policy with that name
+	 */
+	static PlacementPolicy forName(String name) {
+		if (ROUND_ROBIN.equals(name)) {
+			return new RoundRobin();
+		} else if (LEAST_USED.equals(name)) {
+			return new LeastUsed();
+		} else if (LEAST_LOADED.equals(name)) {
+			return new LeastLoaded();
+		} else if (CONSISTENT_HASH.equals(name)) {
+			return new ConsistentHash();
+		}
+		throw new IllegalArgumentException("Unknown placement policy " + name);
+	}
+
+	/**
+	 * Returns the available server with the smallest cost, starting the search at the given index so that ties are
+	 * broken in turn
+	 */
+	private static int cheapest(ServerTable servers, long[] cost, int start) {
+		int best = -1;
+		for (int i = 0; i < cost.length; i++) {
+			int id = (start + i) % cost.length;
+			if (servers.available(id) && (best == -1 || cost[id] < cost[best])) {
+				best = id;
+			}
+		}
+		return best;
+	}
+
+	static class RoundRobin extends PlacementPolicy {
+		private int next = 0;
+
+		synchronized int place(Path file, ServerTable servers) {
+			int count = servers.size();
+			for (int i = 0; i < count; i++) {
+				int id = (next++ & Integer.MAX_VALUE) % count;
+				if (servers.available(id)) {
+					return id;
+				}
+			}
+			return -1;
+		}
+	}
+
+	static class LeastUsed extends PlacementPolicy {
+		private int start = 0;	// Rotates through the servers to break ties
+
+		int place(Path file, ServerTable servers) {
+			long[] files = new long[servers.size()];
+			for (int id = 0; id < files.length; id++) {
+				files[id] = servers.files(id);
+			}
+			return cheapest(servers, files, start++ & Integer.MAX_VALUE);	// Races on start only affect ties
+		}
+	}
+
+	static class LeastLoaded extends PlacementPolicy {
+		private int start = 0;	// Rotates through the servers to break ties
+
+		int place(Path file, ServerTable servers) {
+			long[] load = new long[servers.size()];
+			for (int id = 0; id < load.length; id++) {
+				load[id] = servers.load(id);
+			}
+			return cheapest(servers, load, start++ & Integer.MAX_VALUE);
+		}
+	}
+
+	static class ConsistentHash extends PlacementPolicy {
+		static final int VIRTUAL_NODES = 128;	// Points on the ring for each server
+
+		private volatile TreeMap<Long, Integer> ring = new TreeMap<Long, Integer>();	// Point to server id
+		private volatile int version = -1;	// Version of the server table the ring was built from
+
+		int place(Path file, ServerTable servers) {
+			TreeMap<Long, Integer> ring = this.ring;
+			int version = servers.version();	// Read first, a change made meanwhile triggers another rebuild
+			if (version != this.version) {
+				ring = new TreeMap<Long, Integer>();
+				for (int id = 0; id < servers.size(); id++) {
+					if (servers.available(id)) {
+						for (int v = 0; v < VIRTUAL_NODES; v++) {
+							ring.put(mix((long) id << 32 | v), id);
+						}
+					}
+				}
+				this.ring = ring;
+				this.version = version;
+			}
+			if (ring.isEmpty()) {
+				return -1;
+			}
+			Map.Entry<Long, Integer> owner = ring.ceilingEntry(mix(file.toString().hashCode()));
+			return owner != null ? owner.getValue() : ring.firstEntry().getValue();	// Wraps around the ring
+		}
+
+		/**
+		 * Spreads a hash over all 64 bits (the finalizer of MurmurHash3)
+		 */
+		static long mix(long hash) {
+			hash ^= hash >>> 33;
+			hash *= 0xff51afd7ed558ccdL;
+			hash ^= hash >>> 33;
+			hash *= 0xc4ceb9fe1a85ec53L;
+			hash ^= hash >>> 33;
+			return hash;
+		}
+	}
+}
@@ -0,0 +1,399 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+
+import common.*;
+import storage.*;
+
+/**
+ * Moves files from storage servers that host more than their share to servers that host less, so that a cluster
+ * skewed by an earlier placement policy, or by servers joining it, evens out over time.
+ *
+ * Each round compares the files hosted by the live servers, as counted in the ServerTable from registrations and
+ * creations. A server hosting more than slack above the mean, or reporting in its heartbeats less than MIN_FREE bytes
+ * of free space, is over-full, and a server hosting fewer than the mean that may be given new files is under-full.
+ * The round then plans up to maxMoves moves of originals from over-full servers to the under-full server with the
+ * fewest files that does not hold a copy yet and has room for it, until each server reaches the mean.
+ *
+ * A move is made like a replica: the target copies the file from the source with no naming server lock held, at no
+ * more than bandwidth bytes per second over the whole round. The file's Leaf is then switched to the target under the
+ * exclusive lock on its directory and the change is logged. Storage servers report writes in batches, so before the
+ * switch the attributes of the source copy are read from the source itself, under the lock so that no client is
+ * directed to the source after they are read, and the move is abandoned if they changed while the file was copied.
+ * If the file was deleted, replaced or written while it was copied, the copy on the target is deleted instead.
+ *
+ * Clients directed to the source before the switch may still write it through the stubs they hold. The copy on the
+ * source is therefore kept for settle milliseconds, and then deleted with Command.discard only if it is unchanged
+ * since the target copied it, the check and the deletion being made at once by the source. A source copy written
+ * since is kept: the file is moved back to the source if the target copy was not written too, and its target copy is
+ * then checked and deleted the same way; if both copies were written, both are kept. Copies are only deleted once the
+ * switch is durable and with no lock held. Until an old copy is deleted, the file is not moved again and the
+ * Replicator places no replica of it on that server.
+ */
+class Rebalancer implements Runnable {
+	long interval = 10000;	// Time between rounds, in milliseconds
+	double slack = 0.1;	// Share above the mean a server may host before it is over-full
+	int maxMoves = 100;	// Moves planned in a round
+	volatile long bandwidth = 0;	// Bytes per second copied by moves, 0 if files are not moved
+	long settle = 1000;	// Time the old copy of a moved file is kept before it is checked, in milliseconds
+
+	private final NamingServer server;
+	private final ConcurrentHashMap<Path, Integer> discarding = new ConcurrentHashMap<Path, Integer>();	// Moved file to the server of its old copy
+	private final ArrayList<Moved> moves = new ArrayList<Moved>();	// Moves whose old copy is to be checked and deleted
+	private long next = 0;	// Time from which the next copy may start, as given by System.nanoTime
+	private volatile boolean running = false;
+	private Thread thread = null;
+
+	Rebalancer(NamingServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Starts moving files, one round every interval
+	 */
+	synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "naming rebalancer");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops moving files. A move being copied is completed or abandoned first
+	 */
+	synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(interval);
+			} catch (InterruptedException e) {
+				return;
+			}
+			try {
+				round();
+			} catch (InterruptedException e) {
+				return;
+			}
+		}
+	}
+
+	/**
+	 * Plans and makes the moves of a round, then deletes the old copies of the files moved that were not written since.
+	 * Called by one thread at a time
+	 * @return the number of files moved
+	 * @throws InterruptedException if the thread is interrupted while waiting for bandwidth or for old copies to settle
+	 */
+	int round() throws InterruptedException {
+		int moved = moveFiles();
+		settle();
+		return moved;
+	}
+
+	/**
+	 * Plans and makes the moves of a round
+	 */
+	private int moveFiles() throws InterruptedException {
+		if (bandwidth <= 0) {
+			return 0;
+		}
+		ServerTable servers = server.servers;
+		int count = servers.size();
+		long[] files = new long[count];	// Files hosted, as the moves planned so far leave them
+		long[] free = new long[count];	// Free space reported, less the files planned onto the server, -1 if unknown
+		long total = 0;
+		int live = 0;
+		for (int id = 0; id < count; id++) {
+			files[id] = servers.files(id);
+			free[id] = servers.free(id);
+			if (servers.alive(id)) {
+				total += files[id];
+				live++;
+			}
+		}
+		if (live < 2) {
+			return 0;
+		}
+		double mean = (double) total / live;
+		boolean[] sources = new boolean[count];
+		boolean any = false;
+		for (int id = 0; id < count; id++) {
+			sources[id] = servers.alive(id) && (files[id] > mean * (1 + slack) || !servers.available(id));
+			any |= sources[id];
+		}
+		if (!any) {
+			return 0;
+		}
+		ArrayList<Leaf> leaves = new ArrayList<Leaf>();
+		ArrayList<Path> paths = new ArrayList<Path>();
+		collect(server.tree, new Path(), sources, leaves, paths);
+		int moved = 0;
+		for (int i = 0, planned = 0; i < leaves.size() && planned < maxMoves; i++) {
+			Leaf leaf = leaves.get(i);
+			int source = leaf.server();
+			if (source < 0 || source >= count || !sources[source]
+					|| (files[source] <= mean && servers.available(source))	// Already down to its share
+					|| discarding.containsKey(paths.get(i))) {	// The old copy of an earlier move is kept
+				continue;
+			}
+			long[] attributes = leaf.attributes();
+			long size = attributes == null ? 0 : attributes[0];
+			int target = -1;
+			for (int id = 0; id < count; id++) {
+				if (servers.available(id) && files[id] + 1 <= mean && !Replicator.holds(leaf, id)
+						&& (free[id] == -1 || free[id] - size >= ServerTable.MIN_FREE)
+						&& (target == -1 || files[id] < files[target])) {
+					target = id;
+				}
+			}
+			if (target == -1) {
+				continue;
+			}
+			files[source]--;
+			files[target]++;
+			if (free[target] != -1) {
+				free[target] -= size;
+			}
+			planned++;
+			pace(size);
+			if (move(leaf, paths.get(i), source, target, attributes)) {
+				moved++;
+			}
+		}
+		return moved;
+	}
+
+	/**
+	 * Finds the originals held by over-full servers, one directory at a time as for a checkpoint
+	 */
+	private static void collect(Branch branch, Path path, boolean[] sources, ArrayList<Leaf> leaves,
+			ArrayList<Path> paths) {
+		Node[] children;
+		branch.lock.readLock().lock();
+		try {
+			children = branch.nodes().toArray(new Node[branch.size()]);
+		} finally {
+			branch.lock.readLock().unlock();
+		}
+		for (Node node : children) {
+			if (node instanceof Branch) {
+				collect((Branch) node, new Path(path, node.name), sources, leaves, paths);
+			} else {
+				int id = ((Leaf) node).server();
+				if (id >= 0 && id < sources.length && sources[id]) {
+					leaves.add((Leaf) node);
+					paths.add(new Path(path, node.name));
+				}
+			}
+		}
+	}
+
+	/**
+	 * Waits until a copy of the given size fits within the bandwidth
+	 */
+	private void pace(long bytes) throws InterruptedException {
+		long now = System.nanoTime();
+		if (next - now > 0) {
+			Thread.sleep((next - now) / 1000000L, (int) ((next - now) % 1000000L));
+			now = next;
+		}
+		next = now + (long) (bytes * 1e9 / bandwidth);
+	}
+
+	/**
+	 * Copies a file to the target and switches its Leaf to the target, keeping the copy on the source to be checked
+	 * @param attributes the attributes of the file when the move was planned
+	 * @return whether the file was moved
+	 */
+	private boolean move(Leaf leaf, Path path, int source, int target, long[] attributes) {
+		ServerTable servers = server.servers;
+		Command command = servers.command(target);
+		long[] copied;	// Attributes of the source copy the target copies
+		try {
+			copied = servers.command(source).stat(path);
+			if (!command.copy(path, servers.storage(source))) {
+				return false;
+			}
+		} catch (Exception e) {	// The file may have been deleted meanwhile, or a server is unreachable
+			return false;
+		}
+		long[] made = stat(target, path);	// Attributes of the target copy, null if unknown
+		boolean switched = false;
+		boolean keep = false;	// Whether the copy on the target stays
+		long sequence = 0;
+		PathLock locks = new PathLock();
+		try {
+			Node parent = server.lockPath(path.parent(), locks, NamingServer.EXCLUSIVE);
+			Node current = parent instanceof Branch ? ((Branch) parent).getDirectory(path.last()) : null;
+			if (!leaf.equals(current) && current instanceof Leaf && Replicator.holds((Leaf) current, target)) {
+				keep = true;	// A new file at the same path is on the target
+			} else if (leaf.equals(current) && leaf.server() == source && leaf.attributes() == attributes
+					&& !Replicator.holds(leaf, target) && made != null
+					&& Arrays.equals(stat(source, path), copied)) {	// Not written while copied
+				leaf.setServer(target);
+				servers.hosted(source, -1);
+				servers.hosted(target, 1);
+				server.invalidations.record(path);
+				if (server.log != null) {
+					sequence = server.log.file(Snapshot.components(path), target);
+				}
+				discarding.put(path, source);	// Before the lock is released, so that no replica is placed on the source
+				moves.add(new Moved(leaf, path, source, target, copied, made, System.nanoTime() + settle * 1000000L));
+				switched = true;
+				keep = true;
+			}
+		} catch (FileNotFoundException e) {	// Deleted meanwhile
+		} finally {
+			locks.release();
+		}
+		server.durable(sequence);
+		if (!keep) {
+			discard(target, path);
+		}
+		return switched;
+	}
+
+	/**
+	 * Checks the old copies of the files moved, once each has been kept for settle milliseconds. Those that cannot be
+	 * checked yet, and those of files moved back, are kept for the next round
+	 */
+	private void settle() throws InterruptedException {
+		for (Iterator<Moved> i = moves.iterator(); i.hasNext();) {
+			Moved move = i.next();
+			long wait = move.due - System.nanoTime();
+			if (wait > 0) {
+				Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+			}
+			if (check(move)) {
+				i.remove();
+			}
+		}
+	}
+
+	/**
+	 * Deletes the old copy of a moved file unless it was written since the move, in which case the file is moved back
+	 * if its new copy was not written too, or both copies are kept
+	 * @return whether the old copy needs no further check
+	 */
+	private boolean check(Moved move) {
+		ServerTable servers = server.servers;
+		try {
+			if (servers.command(move.from).discard(move.path, move.fromAttributes)) {
+				discarding.remove(move.path, move.from);
+				return true;
+			}
+		} catch (Exception e) {	// Unreachable, checked again in the next round
+			return false;
+		}
+		boolean done = true;
+		boolean stale = false;	// Whether the old copy belongs to a file deleted since
+		long sequence = 0;
+		PathLock locks = new PathLock();
+		try {
+			Node parent = server.lockPath(move.path.parent(), locks, NamingServer.EXCLUSIVE);
+			Node current = parent instanceof Branch ? ((Branch) parent).getDirectory(move.path.last()) : null;
+			Leaf leaf = move.leaf;
+			if (!leaf.equals(current)) {
+				stale = !(current instanceof Leaf && Replicator.holds((Leaf) current, move.from));
+			} else if (leaf.server() == move.to && !Replicator.holds(leaf, move.from)
+					&& Arrays.equals(stat(move.to, move.path), move.toAttributes)) {	// Written through the old copy alone
+				leaf.setServer(move.from);
+				servers.hosted(move.to, -1);
+				servers.hosted(move.from, 1);
+				server.invalidations.record(move.path);
+				if (server.log != null) {
+					sequence = server.log.file(Snapshot.components(move.path), move.from);
+				}
+				long[] written = stat(move.from, move.path);
+				move.from = move.to;	// The copy moved to is now the old copy
+				move.to = leaf.server();
+				move.fromAttributes = move.toAttributes;
+				move.toAttributes = written;
+				move.due = System.nanoTime() + settle * 1000000L;
+				discarding.put(move.path, move.from);
+				done = false;
+			}	// Otherwise the copy referred to was written too, or the file was moved since: both copies are kept
+		} catch (FileNotFoundException e) {	// The directory was deleted
+			stale = true;
+		} finally {
+			locks.release();
+		}
+		server.durable(sequence);
+		if (stale) {
+			long[] attributes = stat(move.from, move.path);
+			try {
+				if (attributes != null) {
+					servers.command(move.from).discard(move.path, attributes);
+				}
+			} catch (Exception e) {}
+			discarding.remove(move.path, move.from);
+		}
+		return done;
+	}
+
+	/**
+	 * Returns whether the old copy of a moved file on a server is kept
+	 */
+	boolean discarding(Path path, int id) {
+		Integer source = discarding.get(path);
+		return source != null && source == id;
+	}
+
+	/**
+	 * Returns the attributes of the copy of a file on a server, or null if they cannot be read
+	 */
+	private long[] stat(int id, Path path) {
+		try {
+			return server.servers.command(id).stat(path);
+		} catch (Exception e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Deletes a copy that is no longer referenced
+	 */
+	private void discard(int id, Path path) {
+		try {
+			server.servers.command(id).delete(path);
+		} catch (Exception e) {	// Deleted when the server comes back from being dead
+			server.liveness.stale(id, path);
+		}
+	}
+
+	/**
+	 * A moved file whose old copy is kept until it is known not to have been written since the move
+	 */
+	private static class Moved {
+		final Leaf leaf;
+		final Path path;
+		int from;	// Server of the old copy
+		int to;	// Server of the copy the Leaf refers to
+		long[] fromAttributes;	// Attributes of the old copy when the other was copied from it
+		long[] toAttributes;	// Attributes of the copy referred to when it became referred to, null if unknown
+		long due;	// Time from which the old copy is checked, as given by System.nanoTime
+
+		Moved(Leaf leaf, Path path, int from, int to, long[] fromAttributes, long[] toAttributes, long due) {
+			this.leaf = leaf;
+			this.path = path;
+			this.from = from;
+			this.to = to;
+			this.fromAttributes = fromAttributes;
+			this.toAttributes = toAttributes;
+			this.due = due;
+		}
+	}
+}
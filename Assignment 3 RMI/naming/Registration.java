@@ -7,7 +7,15 @@ import rmi.RMIException;
 /** Naming server registration interface.
 
     <p>
-    This interface is used once, on startup, by each storage server.
+    This interface is used on startup by each storage server to register, and
+    then periodically to send heartbeats.
+
+    <p>
+    A storage server holding many files registers them in batches, so that no
+    single call carries all of them: it registers with the first batch, and
+    adds the others with <code>addFiles</code>, possibly several at a time.
+    Each call returns the duplicates in its own batch, which the storage server
+    may delete as soon as it receives them.
  */
 public interface Registration
 {
@@ -47,4 +55,84 @@ public interface Registration
      */
     public Path[] register(Storage client_stub, Command command_stub,
                            Path[] files) throws RMIException;
+
+    /** Adds a batch of files to the registration of a storage server.
+
+        <p>
+        The files are merged with the directory tree as for
+        <code>register</code>, and the duplicates among them are returned. The
+        storage server deletes them and prunes its directory tree in the same
+        way. Batches from the same storage server may be added concurrently,
+        and are merged concurrently with other operations on the naming
+        server.
+
+        @param client_stub Storage server client service stub, as given to
+                           <code>register</code>.
+        @param files A batch of the files stored on the storage server.
+        @return A list of the duplicate files in the batch, to delete on the
+                local storage of the storage server.
+        @throws IllegalStateException If the storage server is not registered.
+        @throws NullPointerException If either argument is <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Path[] addFiles(Storage client_stub, Path[] files)
+        throws RMIException;
+
+    /** Reports the attributes of files to the naming server.
+
+        <p>
+        Storage servers report the size and modification time of the files they
+        register, and of each file they create or write, in batches, so that
+        clients opening a file learn them from the naming server. Attributes
+        of files the storage server does not hold the original of, or that no
+        longer exist, are ignored.
+
+        @param client_stub Storage server client service stub, as given to
+                           <code>register</code>.
+        @param files The files.
+        @param sizes The size of each file, in bytes.
+        @param modified The modification time of each file, in milliseconds
+                        since the epoch.
+        @throws IllegalStateException If the storage server is not registered.
+        @throws IllegalArgumentException If the arrays differ in length.
+        @throws NullPointerException If any of the arguments is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void attributes(Storage client_stub, Path[] files, long[] sizes,
+                           long[] modified)
+        throws RMIException;
+
+    /** Reports that a registered storage server is alive.
+
+        <p>
+        Storage servers call this method every
+        <code>NamingStubs.HEARTBEAT_INTERVAL</code> milliseconds after they
+        register. A storage server that has sent a heartbeat and then misses
+        several in a row is considered dead: clients are no longer directed to
+        it, no new files are placed on it, and the files it held are copied
+        from their replicas onto other storage servers. Its next heartbeat
+        brings it back, after the copies it holds that are no longer needed
+        have been deleted.
+
+        @param client_stub Storage server client service stub, as given to
+                           <code>register</code>.
+        @param served Number of client requests the storage server served since
+                      its previous heartbeat.
+        @param free Free space on the storage server, in bytes. Storage servers
+                    with little free space are given no new files.
+        @return <code>true</code> if the storage server is registered,
+                <code>false</code> if the naming server does not know it, for
+                instance because the naming server was restarted without its
+                log. The storage server must then be restarted to register
+                again.
+        @throws NullPointerException If <code>client_stub</code> is
+                                     <code>null</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean heartbeat(Storage client_stub, long served, long free)
+        throws RMIException;
 }
@@ -0,0 +1,118 @@
+package naming;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+import rmi.*;
+
+/**
+ * Chooses which copy of a file a client is directed to. The copies are the original and its replicas, and only those
+ * on live servers are offered. The selections are:
+ *
+ * primary: always the original.
+ * round-robin: the copies in turn.
+ * least-loaded: the copy on the server with the lowest load in the ServerTable.
+ * nearest: the copy on the server whose address shares the longest prefix with the client's, so that a client on the
+ * same host or network as a copy reads it locally. Ties go to the least loaded server.
+ *
+ * Selectors are shared by all client threads and must be thread-safe.
+ */
+abstract class ReplicaSelector {
+	static final String PRIMARY = "primary", ROUND_ROBIN = "round-robin", LEAST_LOADED = "least-loaded",
+			NEAREST = "nearest";
+
+	/**
+	 * Chooses a copy
+	 * @param copies ids of the live servers holding the file, the original first if it is alive. Never empty
+	 * @param servers
+	 * @param client address of the client, or null if unknown
+	 * @return the index of the chosen copy in copies
+	 */
+	abstract int select(int[] copies, ServerTable servers, InetAddress client);
+
+	/**
+	 * Returns a new selector
+	 * @param name one of PRIMARY, ROUND_ROBIN, LEAST_LOADED or NEAREST
+	 * @throws IllegalArgumentException if there is no selector with that name
+	 */
+	static ReplicaSelector forName(String name) {
+		if (PRIMARY.equals(name)) {
+			return new Primary();
+		} else if (ROUND_ROBIN.equals(name)) {
+			return new RoundRobin();
+		} else if (LEAST_LOADED.equals(name)) {
+			return new LeastLoaded();
+		} else if (NEAREST.equals(name)) {
+			return new Nearest();
+		}
+		throw new IllegalArgumentException("Unknown replica selection " + name);
+	}
+
+	static class Primary extends ReplicaSelector {
+		int select(int[] copies, ServerTable servers, InetAddress client) {
+			return 0;
+		}
+	}
+
+	static class RoundRobin extends ReplicaSelector {
+		private int next = 0;	// Races only skew the rotation
+
+		int select(int[] copies, ServerTable servers, InetAddress client) {
+			return (next++ & Integer.MAX_VALUE) % copies.length;
+		}
+	}
+
+	static class LeastLoaded extends ReplicaSelector {
+		int select(int[] copies, ServerTable servers, InetAddress client) {
+			int best = 0;
+			for (int i = 1; i < copies.length; i++) {
+				if (servers.load(copies[i]) < servers.load(copies[best])) {
+					best = i;
+				}
+			}
+			return best;
+		}
+	}
+
+	static class Nearest extends LeastLoaded {
+		int select(int[] copies, ServerTable servers, InetAddress client) {
+			if (client == null) {
+				return super.select(copies, servers, client);
+			}
+			int best = 0;
+			int bestPrefix = -1;
+			for (int i = 0; i < copies.length; i++) {
+				int prefix = commonPrefix(client, Stub.address(servers.storage(copies[i])));
+				if (prefix > bestPrefix || (prefix == bestPrefix && servers.load(copies[i]) < servers.load(copies[best]))) {
+					best = i;
+					bestPrefix = prefix;
+				}
+			}
+			return best;
+		}
+
+		/**
+		 * Returns the number of leading bits two addresses have in common, 0 if the server address is unknown or of
+		 * another family
+		 */
+		static int commonPrefix(InetAddress client, InetSocketAddress server) {
+			if (server == null || server.getAddress() == null) {
+				return 0;
+			}
+			byte[] a = client.getAddress();
+			byte[] b = server.getAddress().getAddress();
+			if (a.length != b.length) {
+				return 0;
+			}
+			int bits = 0;
+			for (int i = 0; i < a.length; i++) {
+				int difference = (a[i] ^ b[i]) & 0xff;
+				if (difference != 0) {
+					return bits + Integer.numberOfLeadingZeros(difference) - 24;
+				}
+				bits += 8;
+			}
+			return bits;
+		}
+	}
+}
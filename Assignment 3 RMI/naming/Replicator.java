@@ -0,0 +1,390 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import common.*;
+import storage.*;
+
+/**
+ * Replicates files that clients read often onto additional storage servers, and drops the replicas when the files
+ * cool down.
+ *
+ * getStorage requests are counted per file over a window of time. Only files requested during the current window
+ * have a counter, so the counts cost nothing for the rest of the tree. At the end of each window, a file requested hot
+ * times gains a replica, one more for each further hot requests, up to maxReplicas. A replicated file requested fewer
+ * than cold times loses one. At most one replica is added or dropped per file and window, so a short burst does not
+ * copy a file everywhere.
+ *
+ * A replica is copied by the target storage server from the server of the original, with no naming server lock held.
+ * It is then recorded in the file's Leaf under the exclusive lock on its directory, unless the file was deleted or
+ * replaced meanwhile, in which case the copy is deleted. A replica is dropped from the Leaf first and deleted from its
+ * server afterwards.
+ *
+ * When a storage server dies, the files it held are repaired: each file with a copy on a live server drops the copy on
+ * the dead server, and a replica takes over as the original if needed. The file then gains a replica on another
+ * server in place of the lost copy, which is dropped like any other once the file cools down.
+ *
+ * Replicas are copies of the original at the time they were made. When the original's server reports that the file
+ * changed, every replica is dropped, and the file gains new ones from the new contents if it stays hot. A replica whose
+ * original is reported changed while it is copied is deleted rather than recorded.
+ *
+ * Replicas are not logged: after recovery, files are only known on the server that registered them, and the other
+ * copies are reported as duplicates when their servers register again.
+ */
+class Replicator implements Runnable {
+	long window = 1000;	// Length of a window, in milliseconds
+	int hot = 100;	// Requests in a window for each replica a file should have
+	int cold = 10;	// Requests in a window under which a replicated file loses a replica
+	int maxReplicas = 3;
+
+	private final NamingServer server;
+	private volatile ConcurrentHashMap<Leaf, Access> counts = new ConcurrentHashMap<Leaf, Access>();	// Current window
+	private final ConcurrentHashMap<Leaf, Path> replicated = new ConcurrentHashMap<Leaf, Path>();	// Files with replicas
+	private volatile boolean running = false;
+	private Thread thread = null;
+
+	Replicator(NamingServer server) {
+		this.server = server;
+	}
+
+	/**
+	 * Starts counting requests, and replicating at the end of each window
+	 */
+	synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "naming replicator");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops counting and replicating. Existing replicas are kept
+	 */
+	synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	/**
+	 * Counts a getStorage request for a file
+	 * @param leaf the file
+	 * @param path its path, used to copy it
+	 */
+	void record(Leaf leaf, Path path) {
+		if (!running) {
+			return;
+		}
+		ConcurrentHashMap<Leaf, Access> counts = this.counts;
+		Access access = counts.get(leaf);
+		if (access == null) {
+			access = new Access(path);
+			Access previous = counts.putIfAbsent(leaf, access);
+			if (previous != null) {
+				access = previous;
+			}
+		}
+		access.count.incrementAndGet();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				Thread.sleep(window);
+			} catch (InterruptedException e) {
+				return;
+			}
+			tick();
+		}
+	}
+
+	/**
+	 * Ends the current window: adds replicas to hot files and drops replicas of cold ones
+	 */
+	void tick() {
+		ConcurrentHashMap<Leaf, Access> counts = this.counts;
+		this.counts = new ConcurrentHashMap<Leaf, Access>();
+		for (Map.Entry<Leaf, Access> entry : counts.entrySet()) {
+			Leaf leaf = entry.getKey();
+			int requests = entry.getValue().count.get();
+			int[] copies = leaf.replicas();	// Read once, it is replaced as a whole
+			int replicas = copies == null ? 0 : copies.length;
+			if (requests >= hot * (replicas + 1) && replicas < maxReplicas && !leaf.isRemoved()) {
+				addReplica(leaf, entry.getValue().path);
+			}
+		}
+		for (Map.Entry<Leaf, Path> entry : replicated.entrySet()) {
+			Leaf leaf = entry.getKey();
+			Access access = counts.get(leaf);
+			if (leaf.isRemoved() || leaf.replicas() == null) {
+				replicated.remove(leaf);
+			} else if (access == null || access.count.get() < cold) {
+				dropReplica(leaf, entry.getValue());
+			}
+		}
+	}
+
+	/**
+	 * Repairs the files held by a dead server. The tree is walked one directory at a time, as for a checkpoint, and
+	 * each file is then repaired under the exclusive lock on its directory
+	 * @param dead id of the server
+	 * @param stale receives the paths of the copies on the dead server that are no longer referenced
+	 */
+	void repair(int dead, Collection<Path> stale) {
+		ArrayList<Leaf> leaves = new ArrayList<Leaf>();
+		ArrayList<Path> paths = new ArrayList<Path>();
+		collect(server.tree, new Path(), dead, leaves, paths);
+		for (int i = 0; i < leaves.size(); i++) {
+			if (release(leaves.get(i), paths.get(i), dead)) {
+				stale.add(paths.get(i));
+				addReplica(leaves.get(i), paths.get(i));
+			}
+		}
+	}
+
+	/**
+	 * Finds the files under a directory that have a copy on a server. The children are copied under a shared lock,
+	 * which is released before they are visited
+	 */
+	private static void collect(Branch branch, Path path, int id, ArrayList<Leaf> leaves, ArrayList<Path> paths) {
+		Node[] children;
+		branch.lock.readLock().lock();
+		try {
+			children = branch.nodes().toArray(new Node[branch.size()]);
+		} finally {
+			branch.lock.readLock().unlock();
+		}
+		for (Node node : children) {
+			if (node instanceof Branch) {
+				collect((Branch) node, new Path(path, node.name), id, leaves, paths);
+			} else if (holds((Leaf) node, id)) {
+				leaves.add((Leaf) node);
+				paths.add(new Path(path, node.name));
+			}
+		}
+	}
+
+	/**
+	 * Removes a dead server from the copies of a file, if the file has a copy on a live server. If the dead server
+	 * held the original, the first live replica becomes the original, and the change is logged
+	 * @return whether the copy was removed
+	 */
+	private boolean release(Leaf leaf, Path path, int dead) {
+		ServerTable servers = server.servers;
+		boolean released = false;
+		long sequence = 0;
+		PathLock locks = new PathLock();
+		try {
+			Node parent = server.lockPath(path.parent(), locks, NamingServer.EXCLUSIVE);
+			int[] replicas = leaf.replicas();
+			int live = -1;	// Index in replicas of a live copy, or replicas.length for the original
+			if (parent instanceof Branch && leaf.equals(((Branch) parent).getDirectory(path.last())) && replicas != null
+					&& servers.dead(dead)) {
+				if (leaf.server() != dead && servers.alive(leaf.server())) {
+					live = replicas.length;
+				}
+				for (int i = 0; i < replicas.length && live == -1; i++) {
+					if (servers.alive(replicas[i])) {
+						live = i;
+					}
+				}
+			}
+			if (live != -1) {
+				if (leaf.server() == dead) {	// The live replica takes over
+					leaf.setServer(replicas[live]);
+					leaf.setReplicas(without(replicas, live));
+					server.invalidations.record(path);
+					if (server.log != null) {
+						sequence = server.log.file(Snapshot.components(path), leaf.server());
+					}
+				} else {
+					for (int i = 0; i < replicas.length; i++) {
+						if (replicas[i] == dead) {
+							leaf.setReplicas(without(replicas, i));
+						}
+					}
+				}
+				servers.hosted(dead, -1);
+				released = true;
+			}
+		} catch (FileNotFoundException e) {	// Deleted meanwhile
+		} finally {
+			locks.release();
+		}
+		server.durable(sequence);
+		return released;
+	}
+
+	/**
+	 * Returns replicas without the one at index, or null if none is left
+	 */
+	private static int[] without(int[] replicas, int index) {
+		if (replicas.length == 1) {
+			return null;
+		}
+		int[] remaining = new int[replicas.length - 1];
+		System.arraycopy(replicas, 0, remaining, 0, index);
+		System.arraycopy(replicas, index + 1, remaining, index, remaining.length - index);
+		return remaining;
+	}
+
+	/**
+	 * Copies a file to the available server with the fewest files among those that do not hold it yet
+	 */
+	private void addReplica(Leaf leaf, Path path) {
+		ServerTable servers = server.servers;
+		int target = -1;
+		for (int id = 0; id < servers.size(); id++) {
+			if (servers.available(id) && !holds(leaf, id) && !server.rebalancer.discarding(path, id)
+					&& (target == -1 || servers.files(id) < servers.files(target))) {
+				target = id;
+			}
+		}
+		Storage source = servers.alive(leaf.server()) ? servers.storage(leaf.server()) : null;	// Copied from the original
+		if (target == -1 || source == null) {
+			return;
+		}
+		Command command = servers.command(target);
+		long[] attributes = leaf.attributes();	// Replaced as a whole when the original is written
+		try {
+			if (!command.copy(path, source)) {
+				return;
+			}
+		} catch (Exception e) {	// The file may have been deleted meanwhile, or a server is unreachable
+			return;
+		}
+		boolean keep = false;	// Whether the copy on the target stays
+		PathLock locks = new PathLock();
+		try {
+			Node parent = server.lockPath(path.parent(), locks, NamingServer.EXCLUSIVE);
+			Node current = parent instanceof Branch ? ((Branch) parent).getDirectory(path.last()) : null;
+			if (!leaf.equals(current) && current instanceof Leaf && holds((Leaf) current, target)) {
+				keep = true;	// A new file at the same path is on the target
+			} else if (leaf.equals(current) && !holds(leaf, target) && leaf.attributes() == attributes
+					&& !server.rebalancer.discarding(path, target)) {	// The copy of a moved file may be deleted after it
+				int[] replicas = leaf.replicas();
+				replicas = replicas == null ? new int[0] : replicas;
+				replicas = Arrays.copyOf(replicas, replicas.length + 1);
+				replicas[replicas.length - 1] = target;
+				leaf.setReplicas(replicas);
+				servers.hosted(target, 1);
+				replicated.put(leaf, path);
+				keep = true;
+			}
+		} catch (FileNotFoundException e) {	// Deleted meanwhile
+		} finally {
+			locks.release();
+		}
+		if (!keep) {
+			try {
+				command.delete(path);
+			} catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Drops every replica of a file whose original was written, since they no longer hold its contents. The replicas
+	 * are removed from the Leaf under the exclusive lock on its directory, then deleted from their servers
+	 */
+	void written(Leaf leaf, Path path) {
+		int[] dropped = null;
+		PathLock locks = new PathLock();
+		try {
+			Node parent = server.lockPath(path.parent(), locks, NamingServer.EXCLUSIVE);
+			if (parent instanceof Branch && leaf.equals(((Branch) parent).getDirectory(path.last()))) {
+				dropped = leaf.replicas();
+				leaf.setReplicas(null);
+				if (dropped != null) {
+					for (int id : dropped) {
+						server.servers.hosted(id, -1);
+					}
+					server.invalidations.record(path);
+				}
+			}
+		} catch (FileNotFoundException e) {	// Deleted meanwhile, with its replicas
+		} finally {
+			locks.release();
+		}
+		replicated.remove(leaf);
+		if (dropped != null) {
+			for (int id : dropped) {
+				Command command = server.servers.command(id);
+				try {
+					command.delete(path);
+				} catch (Exception e) {	// Deleted when the server comes back from being dead
+					server.liveness.stale(id, path);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Removes the last replica of a file from its Leaf, then from its server
+	 */
+	private void dropReplica(Leaf leaf, Path path) {
+		int target = -1;
+		PathLock locks = new PathLock();
+		try {
+			Node parent = server.lockPath(path.parent(), locks, NamingServer.EXCLUSIVE);
+			int[] replicas = leaf.replicas();
+			if (parent instanceof Branch && leaf.equals(((Branch) parent).getDirectory(path.last())) && replicas != null) {
+				target = replicas[replicas.length - 1];
+				leaf.setReplicas(without(replicas, replicas.length - 1));
+				server.servers.hosted(target, -1);
+			}
+		} catch (FileNotFoundException e) {
+		} finally {
+			locks.release();
+		}
+		if (leaf.replicas() == null) {
+			replicated.remove(leaf);
+		}
+		Command command = server.servers.command(target);
+		if (command != null) {
+			try {
+				command.delete(path);
+			} catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Returns whether a server holds the original or a replica of a file
+	 */
+	static boolean holds(Leaf leaf, int id) {
+		if (leaf.server() == id) {
+			return true;
+		}
+		int[] replicas = leaf.replicas();
+		if (replicas != null) {
+			for (int replica : replicas) {
+				if (replica == id) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Requests counted for a file in the current window
+	 */
+	private static class Access {
+		final Path path;
+		final AtomicInteger count = new AtomicInteger();
+
+		Access(Path path) {
+			this.path = path;
+		}
+	}
+}
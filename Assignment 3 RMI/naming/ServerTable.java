@@ -0,0 +1,263 @@
+package naming;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import storage.*;
+
+/**
+ * Table of the storage servers registered with the naming server. Each server is known by a small integer id, its
+ * index in the table, so that files refer to their servers by id instead of holding stubs.
+ *
+ * The stubs are kept in arrays that are replaced as a whole when a server is added or changed, so lookups by id take
+ * no lock. Changes are made under the table's monitor, which callers also hold to make a check and a change atomic.
+ *
+ * The table also counts, for each server, the files and replicas it hosts and the client requests the naming server
+ * has sent to it. Placement policies and replica selection use the counts to spread new files and reads. The load of
+ * a server is the number of requests sent to it during the last complete window of LOAD_WINDOW and the current one,
+ * so that it reflects recent traffic only, and does not drop to nothing when a window ends. Servers that send
+ * heartbeats also report the requests they served since the previous one, which includes the reads of clients that
+ * keep a stub, and the load is the larger of the two figures.
+ *
+ * A server that sent a heartbeat is tracked for liveness: it is alive until marked dead, and dead until its next
+ * heartbeat. Servers that never send one are assumed alive. Dead servers are neither read from nor given new files,
+ * and neither are servers that reported less than MIN_FREE bytes of free space.
+ */
+class ServerTable {
+	private volatile Storage[] storage = new Storage[0];
+	private volatile Command[] command = new Command[0];
+	private volatile Usage[] usage = new Usage[0];
+	private volatile int version = 0;	// Incremented on every change to the servers
+	private volatile long windowStart = System.nanoTime();	// Start of the current load window
+
+	static final long LOAD_WINDOW = 1000000000L;	// Length of a load window, in nanoseconds
+	static final long MIN_FREE = 1 << 20;	// Free space, in bytes, under which a server is given no new files
+
+	/**
+	 * Adds a server to the table
+	 * @return the id of the server
+	 */
+	public synchronized int add(Storage storageStub, Command commandStub) {
+		int id = storage.length;
+		set(id, storageStub, commandStub);
+		return id;
+	}
+
+	/**
+	 * Sets the stubs of a server, growing the table if needed
+	 */
+	public synchronized void set(int id, Storage storageStub, Command commandStub) {
+		Storage[] storage = Arrays.copyOf(this.storage, Math.max(this.storage.length, id + 1));
+		Command[] command = Arrays.copyOf(this.command, storage.length);
+		Usage[] usage = Arrays.copyOf(this.usage, storage.length);
+		for (int i = this.usage.length; i < usage.length; i++) {
+			usage[i] = new Usage();
+		}
+		storage[id] = storageStub;
+		command[id] = commandStub;
+		this.usage = usage;	// Written first, so that a reader that sees the new server also sees its other fields
+		this.command = command;
+		this.storage = storage;
+		version++;
+	}
+
+	/**
+	 * Returns the id of a server, or -1 if it is not in the table
+	 */
+	public int find(Storage storageStub) {
+		if (storageStub == null) {
+			return -1;
+		}
+		Storage[] storage = this.storage;
+		for (int i = 0; i < storage.length; i++) {
+			if (storageStub.equals(storage[i])) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the storage stub of a server, or null for an unknown id
+	 */
+	public Storage storage(int id) {
+		Storage[] storage = this.storage;
+		return id >= 0 && id < storage.length ? storage[id] : null;
+	}
+
+	/**
+	 * Returns the command stub of a server, or null for an unknown id
+	 */
+	public Command command(int id) {
+		Command[] command = this.command;
+		return id >= 0 && id < command.length ? command[id] : null;
+	}
+
+	/**
+	 * Returns whether clients may be directed to a server
+	 */
+	public boolean alive(int id) {
+		Usage usage = usage(id);
+		return storage(id) != null && !usage.dead;
+	}
+
+	/**
+	 * Returns whether new files may be placed on a server
+	 */
+	public boolean available(int id) {
+		Usage usage = usage(id);
+		return storage(id) != null && !usage.dead && (usage.free == -1 || usage.free >= MIN_FREE);
+	}
+
+	/**
+	 * Records a heartbeat from a server. A dead server is not revived: the caller does so with revive, once the
+	 * server has been brought up to date
+	 * @param served client requests the server served since its previous heartbeat
+	 * @param free free space on the server, in bytes
+	 */
+	public void heartbeat(int id, long served, long free) {
+		Usage usage = usage(id);
+		if (usage != null) {
+			boolean full = free < MIN_FREE;
+			if (full != (usage.free != -1 && usage.free < MIN_FREE)) {	// Placement changes with the server's space
+				synchronized (this) {
+					version++;
+				}
+			}
+			usage.served = served;
+			usage.free = free;
+			usage.heartbeat = System.nanoTime();
+		}
+	}
+
+	/**
+	 * Returns the free space last reported by a server, in bytes, or -1 if unknown
+	 */
+	public long free(int id) {
+		Usage usage = usage(id);
+		return usage == null ? -1 : usage.free;
+	}
+
+	/**
+	 * Returns the time of the last heartbeat of a server, as given by System.nanoTime, or 0 if it never sent one
+	 */
+	public long lastHeartbeat(int id) {
+		Usage usage = usage(id);
+		return usage == null ? 0 : usage.heartbeat;
+	}
+
+	/**
+	 * Returns whether a server was marked dead
+	 */
+	public boolean dead(int id) {
+		Usage usage = usage(id);
+		return usage != null && usage.dead;
+	}
+
+	/**
+	 * Marks a server dead, or alive again
+	 */
+	public synchronized void setDead(int id, boolean dead) {
+		Usage usage = usage(id);
+		if (usage != null && usage.dead != dead) {
+			usage.dead = dead;
+			version++;
+		}
+	}
+
+	/**
+	 * Adds to the number of files and replicas hosted by a server. Unknown ids are ignored
+	 */
+	public void hosted(int id, long files) {
+		Usage usage = usage(id);
+		if (usage != null) {
+			usage.files.addAndGet(files);
+		}
+	}
+
+	/**
+	 * Counts a client request sent to a server. Unknown ids are ignored
+	 */
+	public void requested(int id) {
+		Usage usage = usage(id);
+		if (usage != null) {
+			usage.requests.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the number of files and replicas hosted by a server
+	 */
+	public long files(int id) {
+		Usage usage = usage(id);
+		return usage == null ? 0 : usage.files.get();
+	}
+
+	/**
+	 * Returns the number of client requests sent to a server so far
+	 */
+	public long requests(int id) {
+		Usage usage = usage(id);
+		return usage == null ? 0 : usage.requests.get();
+	}
+
+	/**
+	 * Returns the number of client requests sent to a server recently
+	 */
+	public long load(int id) {
+		if (System.nanoTime() - windowStart >= LOAD_WINDOW) {
+			roll();
+		}
+		Usage usage = usage(id);
+		return usage == null ? 0 : Math.max(usage.requests.get() - usage.previous, usage.served);
+	}
+
+	/**
+	 * Starts a new load window
+	 */
+	private synchronized void roll() {
+		long now = System.nanoTime();
+		if (now - windowStart < LOAD_WINDOW) {	// Rolled by another thread meanwhile
+			return;
+		}
+		for (Usage usage : this.usage) {
+			usage.previous = usage.start;
+			usage.start = usage.requests.get();
+		}
+		windowStart = now;
+	}
+
+	/**
+	 * Returns the number of servers in the table
+	 */
+	public int size() {
+		return storage.length;
+	}
+
+	/**
+	 * Returns a number that changes whenever a server is added, changed, marked dead or alive, or fills up or frees
+	 * space
+	 */
+	public int version() {
+		return version;
+	}
+
+	private Usage usage(int id) {
+		Usage[] usage = this.usage;
+		return id >= 0 && id < usage.length ? usage[id] : null;
+	}
+
+	/**
+	 * Counts kept for a storage server
+	 */
+	private static class Usage {
+		final AtomicLong files = new AtomicLong();	// Files and replicas hosted
+		final AtomicLong requests = new AtomicLong();	// Client requests sent to the server
+		volatile long start = 0;	// Value of requests when the current load window started
+		volatile long previous = 0;	// Value of requests when the previous load window started
+		volatile long served = 0;	// Requests served between the last two heartbeats, as reported by the server
+		volatile long free = -1;	// Free space reported by the server, in bytes, -1 if unknown
+		volatile long heartbeat = 0;	// Time of the last heartbeat, 0 if none
+		volatile boolean dead = false;
+	}
+}
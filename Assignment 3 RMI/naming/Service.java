@@ -13,6 +13,13 @@ import storage.Storage;
     <p>
     The term <em>object</em> in the documentation below refers to any filesystem
     object: either a file or a directory.
+
+    <p>
+    A standby naming server, which follows a primary as described in
+    <code>NamingServer.follow</code>, serves the methods that do not change
+    the directory tree, and throws <code>IllegalStateException</code> from the
+    others. It also throws <code>IllegalStateException</code> from all methods
+    while its tree may be older than its staleness bound.
  */
 public interface Service
 {
@@ -50,7 +57,8 @@ public interface Service
                 or directory with the given name already exists.
         @throws FileNotFoundException If the parent directory does not exist.
         @throws IllegalStateException If no storage servers are connected to the
-                                      naming server.
+                                      naming server, or if the quota of a
+                                      directory above the file is full.
         @throws RMIException If the call cannot be completed due to a network
                              error.
      */
@@ -72,6 +80,14 @@ public interface Service
 
     /** Deletes a file or directory.
 
+        <p>
+        The file or directory is removed from the directory tree, and each
+        storage server holding a copy of anything under it is then commanded
+        once to delete the path. The commands are sent to all the storage
+        servers at once, and the call returns when they have all answered. A
+        storage server that is considered dead, or that sends heartbeats but
+        cannot be reached, deletes the path when it comes back.
+
         @param path Path to the file or directory to be deleted.
         @return <code>true</code> if the file or directory is deleted;
                 <code>false</code> otherwise. The root directory cannot be
@@ -85,6 +101,13 @@ public interface Service
 
     /** Returns a stub for the storage server hosting a file.
 
+        <p>
+        If the file is replicated on several storage servers, one of them is
+        chosen by the naming server's replica selection, which may take into
+        account the load of the servers and the address of the client. The
+        stub may refer to a replica, so it must only be used to read the file:
+        clients writing the file use <code>getWriteStorage</code>.
+
         @param file Path to the file.
         @return A stub for communicating with the storage server.
         @throws FileNotFoundException If the file does not exist.
@@ -93,4 +116,330 @@ public interface Service
      */
     public Storage getStorage(Path file)
         throws RMIException, FileNotFoundException;
+
+    /** Returns a stub for the storage server hosting the original of a file.
+
+        <p>
+        Files are written through this stub. The naming server drops the
+        replicas of a file once its original is written, so that clients are
+        not directed to stale copies.
+
+        @param file Path to the file.
+        @return A stub for the storage server holding the original of the file.
+        @throws FileNotFoundException If the file does not exist.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Storage getWriteStorage(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Returns stubs for all storage servers hosting a copy of a file.
+
+        <p>
+        The first stub is the one <code>getStorage</code> would have returned.
+        Clients may read from any of the others, for example when the first
+        cannot be contacted. Copies are read-only: files must be written on
+        the server returned by <code>getWriteStorage</code>.
+
+        @param file Path to the file.
+        @return Stubs for the storage servers holding the file. The array has
+                at least one element.
+        @throws FileNotFoundException If the file does not exist.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Storage[] getReplicas(Path file)
+        throws RMIException, FileNotFoundException;
+
+    /** Determines whether each of several paths refers to a directory.
+
+        <p>
+        The paths are resolved in one call, and the paths in the same directory
+        are looked up together.
+
+        @param paths The objects to be checked.
+        @return An array holding, for each path, <code>true</code> if the
+                object is a directory, and <code>false</code> if it is a
+                file.
+        @throws FileNotFoundException If any of the objects cannot be found.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean[] isDirectories(Path[] paths)
+        throws RMIException, FileNotFoundException;
+
+    /** Creates several files, each if it does not exist.
+
+        <p>
+        The files in the same directory are added together, and each storage
+        server is then commanded once to create all the files placed on it in
+        that directory. The call returns once the files are durable. Unlike
+        <code>createFile</code>, a file whose parent directory does not exist
+        is reported as not created rather than failing the whole call. A
+        directory created by <code>createDirectories</code> beforehand may be
+        the parent.
+
+        @param files Paths at which the files are to be created.
+        @return An array holding, for each file, <code>true</code> if it is
+                created, and <code>false</code> if a file or directory with the
+                same name already exists, if the parent directory does not
+                exist, if the quota of a directory above it is full, or if the
+                path is the root directory.
+        @throws IllegalStateException If no storage servers are connected to the
+                                      naming server. The files placed before
+                                      then are created on their storage
+                                      servers, and the rest are not.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, or if a storage server cannot be commanded
+                             to create files. The files are then in the
+                             directory tree.
+     */
+    public boolean[] createFiles(Path[] files) throws RMIException;
+
+    /** Creates several directories, each if it does not exist.
+
+        <p>
+        The directories are created parents first, so that a directory may be
+        created in another directory of the same call.
+
+        @param directories Paths at which the directories are to be created.
+        @return An array holding, for each directory, <code>true</code> if it
+                is created, and <code>false</code> if a file or directory with
+                the same name already exists, if the parent directory does not
+                exist, or if the path is the root directory.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean[] createDirectories(Path[] directories) throws RMIException;
+
+    /** Returns stubs for the storage servers hosting several files.
+
+        <p>
+        Each stub is chosen as by <code>getStorage</code>.
+
+        @param files Paths to the files.
+        @return An array holding, for each file, a stub for communicating with
+                the storage server.
+        @throws FileNotFoundException If any of the files does not exist.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Storage[] getStorages(Path[] files)
+        throws RMIException, FileNotFoundException;
+
+    /** Lists one page of the contents of a directory.
+
+        <p>
+        A directory is listed page by page: the first page is requested with
+        a <code>null</code> token, and each following page with the token
+        returned with the previous one, until a page is returned without a
+        token. Entries present throughout the listing are listed exactly once,
+        and entries added or removed meanwhile may or may not be. Only the
+        entries of the page requested are held in memory, so directories of
+        any size can be listed.
+
+        <p>
+        If <code>ordered</code> is set, entries are listed in lexicographic
+        order. Otherwise they are listed in whichever order the naming server
+        can list them fastest; a listing continues in the order of its first
+        page.
+
+        @param directory The directory to be listed.
+        @param token The continuation token returned with the previous page,
+                     or <code>null</code> for the first page.
+        @param count The largest number of entries to return. The naming
+                     server may return fewer, even when there are more pages.
+        @param ordered Whether the entries are listed in lexicographic order.
+        @return The page.
+        @throws FileNotFoundException If the given path does not refer to a
+                                      directory.
+        @throws IllegalArgumentException If <code>count</code> is not
+                                         positive, if the token is malformed,
+                                         or if <code>ordered</code> is set and
+                                         the token is from an unordered
+                                         listing.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Page listPage(Path directory, String token, int count,
+                         boolean ordered)
+        throws RMIException, FileNotFoundException;
+
+    /** Walks the directory tree below a directory, and returns one page of
+        the entries found.
+
+        <p>
+        The tree is walked on the naming server, in pre-order with the entries
+        of each directory in lexicographic order. The first page is requested
+        with a <code>null</code> token, and each following page with the token
+        returned with the previous one, until a page is returned without a
+        token. Entries present throughout the walk are visited exactly once.
+        A page may hold fewer entries than requested, even none, when the
+        filter matches few of the entries visited.
+
+        <p>
+        The filter is a glob, optionally prefixed with <code>glob:</code>, or
+        a regular expression prefixed with <code>regex:</code>. In a glob,
+        <code>*</code> matches any characters within a component,
+        <code>**</code> any characters across components, <code>?</code> any
+        one character, <code>[...]</code> and <code>[!...]</code> a character
+        class, <code>{a,b}</code> either alternative, and <code>\</code>
+        quotes the next character. A filter containing a forward slash is
+        matched against the full path of each entry, and any other filter
+        against its last component.
+
+        @param root The directory at the root of the walk. It is not itself
+                    among the entries found.
+        @param filter The filter the entries found must match, or
+                      <code>null</code> to find every entry.
+        @param depth The depth below <code>root</code> of the deepest entries
+                     visited, <code>1</code> for the entries of
+                     <code>root</code> itself, or <code>0</code> for no
+                     limit.
+        @param token The continuation token returned with the previous page,
+                     or <code>null</code> for the first page.
+        @param count The largest number of entries to return. The naming
+                     server may return fewer, even when there are more pages.
+        @return The page.
+        @throws FileNotFoundException If <code>root</code> does not refer to a
+                                      directory.
+        @throws IllegalArgumentException If the filter is malformed, if
+                                         <code>depth</code> is negative or
+                                         <code>count</code> not positive, or
+                                         if the token is not from a walk of
+                                         <code>root</code>.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Walk walk(Path root, String filter, int depth, String token,
+                     int count)
+        throws RMIException, FileNotFoundException;
+
+    /** Returns the usage of a directory.
+
+        <p>
+        The naming server keeps the usage of every directory up to date as
+        files are created, deleted and written, so this call does not walk the
+        directory tree. Sizes are those last reported by the storage servers,
+        as returned by <code>open</code>; files of unknown size are counted as
+        empty.
+
+        @param directory The directory.
+        @return The number of files under the directory, the bytes they hold,
+                and the quota of the directory.
+        @throws FileNotFoundException If the path does not refer to a
+                                      directory.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Usage usage(Path directory)
+        throws RMIException, FileNotFoundException;
+
+    /** Opens a file for reading.
+
+        <p>
+        The storage server is chosen as by <code>getStorage</code>, and
+        returned with the size and modification time of the file, so that a
+        client opening a file makes a single call. Storage servers report the
+        attributes of their files to the naming server after each change,
+        so they may lag a write that has just completed; they are unknown for
+        files not changed since the naming server started.
+
+        @param file Path to the file.
+        @return The storage server, and the attributes of the file.
+        @throws FileNotFoundException If the file does not exist.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Handle open(Path file) throws RMIException, FileNotFoundException;
+
+    /** Looks up a path and grants a lease on the result.
+
+        <p>
+        The lease holds what <code>isDirectory</code> returns for the path, and
+        what <code>list</code> returns for a directory, or what
+        <code>open</code> and <code>getWriteStorage</code> return for a file,
+        as described in <code>Lease</code>. Changes to the directory tree are not delayed by
+        leases: a client caching lookups sees them when its lease expires, or
+        when a later lease reports them.
+
+        @param path The path to be looked up.
+        @param since The sequence number of the last change reported to the
+                     client by its previous lease, or <code>0</code>.
+        @return The lease.
+        @throws FileNotFoundException If the object cannot be found.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Lease lease(Path path, long since)
+        throws RMIException, FileNotFoundException;
+
+    /** Locks a path for use by the client.
+
+        <p>
+        Every directory above the path is locked for shared access, and the
+        path itself for shared or exclusive access. A path locked for exclusive
+        access is locked by no other client, and neither is anything below it,
+        while a path locked for shared access may be locked for shared access
+        by other clients as well. Clients locking paths in disjoint subtrees do
+        not wait for each other.
+
+        <p>
+        This method blocks until the locks are granted. Requests for the lock on
+        each path are granted in the order in which they were made, so that a
+        request for exclusive access is not delayed indefinitely by later
+        requests for shared access.
+
+        <p>
+        Locks are advisory: the other methods of this interface neither take
+        them nor wait for them. They are not tied to the calling thread or
+        connection, but to the token this method returns, which only the
+        caller knows. They are leased: they are held until <code>unlock</code>
+        is called with the token, or until thirty seconds have passed since
+        they were granted or last renewed with <code>renewLock</code>, so that
+        the locks of a client that fails are eventually released. A standby
+        naming server does not grant locks.
+
+        @param path The path to be locked.
+        @param exclusive <code>true</code> for exclusive access,
+                         <code>false</code> for shared access.
+        @return The token of the locks, to be given to <code>renewLock</code>
+                and <code>unlock</code>.
+        @throws FileNotFoundException If the object cannot be found.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public long lock(Path path, boolean exclusive)
+        throws RMIException, FileNotFoundException;
+
+    /** Renews the lease of the locks taken by a call to <code>lock</code>.
+
+        <p>
+        The locks are then held for thirty seconds from this call, unless
+        unlocked before. Clients holding locks longer renew them well within
+        that time.
+
+        @param path The path locked.
+        @param token The token <code>lock</code> returned.
+        @throws IllegalArgumentException If the path is not locked under the
+                                         token, or if its lease ran out.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void renewLock(Path path, long token) throws RMIException;
+
+    /** Unlocks a path locked with <code>lock</code>.
+
+        <p>
+        The directories above the path are unlocked as well. The path need not
+        exist any more.
+
+        @param path The path to be unlocked.
+        @param token The token <code>lock</code> returned.
+        @throws IllegalArgumentException If the path is not locked under the
+                                         token, or if its lease ran out.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public void unlock(Path path, long token) throws RMIException;
 }
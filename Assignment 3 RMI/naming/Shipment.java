@@ -0,0 +1,39 @@
+package naming;
+
+import java.io.*;
+
+/** Changes to the directory tree of a naming server, shipped to a standby.
+
+    <p>
+    A shipment holds log records, and is either the whole directory tree or
+    the changes after a given record. Its contents are only read by naming
+    servers.
+ */
+public class Shipment implements Serializable
+{
+    /** Epoch of the log the records belong to. */
+    final long          epoch;
+    /** Sequence number of the last record in the log that the standby has
+        applied once it has applied the shipment. */
+    final long          last;
+    /** Whether the records are the whole directory tree, rather than
+        changes to the standby's tree. */
+    final boolean       image;
+    /** The records, in order. */
+    final byte[][]      records;
+
+    /** Creates a shipment.
+
+        @param epoch Epoch of the log.
+        @param last Sequence number reached by applying the shipment.
+        @param image Whether the records are the whole directory tree.
+        @param records The records.
+     */
+    Shipment(long epoch, long last, boolean image, byte[][] records)
+    {
+        this.epoch = epoch;
+        this.last = last;
+        this.image = image;
+        this.records = records;
+    }
+}
@@ -0,0 +1,36 @@
+package naming;
+
+import rmi.RMIException;
+
+/** Naming server log shipping interface.
+
+    <p>
+    A naming server that logs its changes, as set up by
+    <code>NamingServer.recover</code>, ships them through this interface to its
+    standby naming servers. Each standby first receives the whole directory
+    tree, then repeatedly asks for the changes after the last one it applied.
+    The changes are shipped once they are durable on the primary naming server.
+ */
+public interface Shipping
+{
+    /** Returns the changes to the directory tree after the given one.
+
+        <p>
+        If there are none yet, the call waits for one to become durable, for at
+        most the given time. If the changes requested are no longer kept by the
+        naming server, or belong to another of its logs, the whole directory
+        tree is returned instead.
+
+        @param epoch The epoch of the log of the last change the caller
+                     applied, or <code>0</code> if it has applied none.
+        @param after The sequence number of that change in its log.
+        @param wait The maximum time to wait for a change, in milliseconds.
+        @return The changes, or the whole directory tree.
+        @throws IllegalStateException If the naming server does not log its
+                                      changes.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public Shipment ship(long epoch, long after, long wait)
+        throws RMIException;
+}
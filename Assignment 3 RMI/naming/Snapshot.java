@@ -0,0 +1,371 @@
+package naming;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicReference;
+
+import common.*;
+
+/**
+ * Immutable copy of the directory tree, for reads that take no locks.
+ *
+ * The naming server can keep a persistent copy of its directory tree next to the locked Branch tree. Each version
+ * of the copy is immutable: a writer that has changed the locked tree builds a new version, copying only the
+ * directories on the changed path, and publishes it by compare-and-set on the root reference. If another writer
+ * published first, the change is applied again to the newer version. Readers fetch the current root once and
+ * traverse that version, which no writer ever modifies, so they never block and always see a consistent tree.
+ *
+ * Writers update the copy while they still hold the locks on their path in the Branch tree. Changes to the same
+ * directory therefore reach the copy in the same order as they reached the tree, and a directory is always in the
+ * copy before anything is added under it.
+ *
+ * Directories are Dir objects. Files are Leaf handles on the inodes of the Branch tree, shared between all versions.
+ */
+class Snapshot {
+	private final AtomicReference<Dir> root = new AtomicReference<Dir>(Dir.EMPTY);
+
+	/**
+	 * Replaces the copy with an empty tree
+	 */
+	public void clear() {
+		root.set(Dir.EMPTY);
+	}
+
+	/**
+	 * Returns the node for a path in the current version, without locking
+	 * @param path
+	 * @return a Dir for a directory, a Leaf for a file, or null if the path does not exist
+	 */
+	public Object lookup(Path path) {
+		Object node = root.get();
+		if (path.isRoot()) {	// The root path has a single empty component
+			return node;
+		}
+		for (String component : path) {
+			if (!(node instanceof Dir)) {	// Missing, or a file used as a directory
+				return null;
+			}
+			node = ((Dir) node).children.get(component);
+		}
+		return node;
+	}
+
+	/**
+	 * Adds an empty directory or a file, replacing any node with the same name
+	 * @param parent components of the path of the parent directory
+	 * @param depth number of components of parent to use
+	 * @param name name of the new node
+	 * @param node Dir.EMPTY for a directory, or the Leaf of a file
+	 */
+	public void put(String[] parent, int depth, String name, Object node) {
+		Dir current;
+		do {
+			current = root.get();
+		} while (!root.compareAndSet(current, current.put(parent, 0, depth, name, node)));
+	}
+
+	/**
+	 * Removes a file or directory, with everything under it
+	 * @param path components of the path of the node
+	 */
+	public void remove(String[] path) {
+		Dir current;
+		do {
+			current = root.get();
+		} while (!root.compareAndSet(current, current.remove(path, 0)));
+	}
+
+	/**
+	 * Returns the components of a path
+	 */
+	public static String[] components(Path path) {
+		ArrayList<String> components = new ArrayList<String>();
+		if (path.isRoot()) {
+			return new String[0];
+		}
+		for (String component : path) {
+			components.add(component);
+		}
+		return components.toArray(new String[components.size()]);
+	}
+
+	/**
+	 * Immutable directory
+	 */
+	static final class Dir {
+		static final Dir EMPTY = new Dir(Children.EMPTY);
+
+		final Children children;
+
+		private Dir(Children children) {
+			this.children = children;
+		}
+
+		/**
+		 * Returns the names of the immediate files and directories
+		 */
+		public String[] names() {
+			ArrayList<String> names = new ArrayList<String>();
+			children.names(names);
+			return names.toArray(new String[names.size()]);
+		}
+
+		/**
+		 * Returns a copy of the directory with a node added at the given path below it
+		 */
+		Dir put(String[] parent, int index, int depth, String name, Object node) {
+			if (index == depth) {
+				return new Dir(children.put(name, node));
+			}
+			Object child = children.get(parent[index]);
+			if (!(child instanceof Dir)) {	// Writers add directories before their contents
+				throw new IllegalStateException("Directory missing from snapshot");
+			}
+			return new Dir(children.put(parent[index], ((Dir) child).put(parent, index + 1, depth, name, node)));
+		}
+
+		/**
+		 * Returns a copy of the directory with the node at the given path below it removed
+		 */
+		Dir remove(String[] path, int index) {
+			if (index == path.length - 1) {
+				return new Dir(children.remove(path[index]));
+			}
+			Object child = children.get(path[index]);
+			if (!(child instanceof Dir)) {	// Already gone
+				return this;
+			}
+			return new Dir(children.put(path[index], ((Dir) child).remove(path, index + 1)));
+		}
+	}
+
+	/**
+	 * Persistent map from names to nodes, implemented as a hash array mapped trie. Each level of the trie uses five
+	 * bits of the hash of the name, so a version is derived from the previous one by copying at most seven small
+	 * arrays, however many entries the directory has.
+	 *
+	 * Each slot of a trie node holds either an Entry or a lower level trie node. Names with the same hash are chained
+	 * in a single Entry slot.
+	 */
+	static final class Children {
+		static final Children EMPTY = new Children(0, new Object[0]);
+
+		private static final int BITS = 5;
+		private static final int MASK = (1 << BITS) - 1;
+
+		private final int bitmap;	// Bit i is set if the slot for hash chunk i is present
+		private final Object[] slots;	// Present slots, in order of their chunk
+
+		private Children(int bitmap, Object[] slots) {
+			this.bitmap = bitmap;
+			this.slots = slots;
+		}
+
+		/**
+		 * Returns the node with the given name, or null
+		 */
+		public Object get(String name) {
+			int hash = name.hashCode();
+			Children node = this;
+			for (int shift = 0; ; shift += BITS) {
+				int bit = 1 << ((hash >>> shift) & MASK);
+				if ((node.bitmap & bit) == 0) {
+					return null;
+				}
+				Object slot = node.slots[Integer.bitCount(node.bitmap & (bit - 1))];
+				if (slot instanceof Children) {
+					node = (Children) slot;
+					continue;
+				}
+				for (Entry entry = (Entry) slot; entry != null; entry = entry.next) {
+					if (entry.name.equals(name)) {
+						return entry.node;
+					}
+				}
+				return null;
+			}
+		}
+
+		/**
+		 * Returns a copy of the map with the given name mapped to the given node
+		 */
+		public Children put(String name, Object node) {
+			return put(new Entry(name, name.hashCode(), node, null), 0);
+		}
+
+		/**
+		 * Returns a copy of the map without the given name, or this map if the name is not present
+		 */
+		public Children remove(String name) {
+			return remove(name, name.hashCode(), 0);
+		}
+
+		/**
+		 * Adds the names in the map to a list
+		 */
+		void names(ArrayList<String> names) {
+			for (Object slot : slots) {
+				if (slot instanceof Children) {
+					((Children) slot).names(names);
+				} else {
+					for (Entry entry = (Entry) slot; entry != null; entry = entry.next) {
+						names.add(entry.name);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Offers the names in the map to a selection
+		 */
+		void select(Paging.Selection selection) {
+			for (Object slot : slots) {
+				if (slot instanceof Children) {
+					((Children) slot).select(selection);
+				} else {
+					for (Entry entry = (Entry) slot; entry != null; entry = entry.next) {
+						selection.offer(entry.name);
+					}
+				}
+			}
+		}
+
+		/**
+		 * Adds the names that follow a name in the order of the trie, Paging.HASH_ORDER, to a list until it holds a
+		 * given number. Only the slots on the path to the name and the names added are visited
+		 * @param after the name, or null to start at the first name
+		 */
+		void namesAfter(String after, int count, ArrayList<String> names) {
+			namesAfter(after, after == null ? 0 : after.hashCode(), 0, after != null, count, names);
+		}
+
+		/**
+		 * @param bounded the slots of this node are on the path to after, so those before it are skipped
+		 * @return true once the list holds the number of names
+		 */
+		private boolean namesAfter(String after, int hash, int shift, boolean bounded, int count,
+				ArrayList<String> names) {
+			int start = bounded ? (hash >>> shift) & MASK : 0;
+			int index = 0;
+			for (int bits = bitmap; bits != 0; bits &= bits - 1, index++) {	// Present slots, in order of their chunk
+				int chunk = Integer.numberOfTrailingZeros(bits);
+				if (chunk < start) {
+					continue;
+				}
+				boolean path = bounded && chunk == start;
+				Object slot = slots[index];
+				if (slot instanceof Children) {
+					if (((Children) slot).namesAfter(after, hash, shift + BITS, path, count, names)) {
+						return true;
+					}
+					continue;
+				}
+				ArrayList<String> chain = new ArrayList<String>();	// Names with the same hash, ordered by name
+				for (Entry entry = (Entry) slot; entry != null; entry = entry.next) {
+					if (!path || Paging.HASH_ORDER.compare(entry.name, after) > 0) {
+						chain.add(entry.name);
+					}
+				}
+				Collections.sort(chain);
+				for (String name : chain) {
+					if (names.size() >= count) {
+						return true;
+					}
+					names.add(name);
+				}
+			}
+			return names.size() >= count;
+		}
+
+		private Children put(Entry added, int shift) {
+			int bit = 1 << ((added.hash >>> shift) & MASK);
+			int index = Integer.bitCount(bitmap & (bit - 1));
+			if ((bitmap & bit) == 0) {	// Free slot
+				Object[] copy = new Object[slots.length + 1];
+				System.arraycopy(slots, 0, copy, 0, index);
+				copy[index] = added;
+				System.arraycopy(slots, index, copy, index + 1, slots.length - index);
+				return new Children(bitmap | bit, copy);
+			}
+			Object slot = slots[index];
+			Object replacement;
+			if (slot instanceof Children) {
+				replacement = ((Children) slot).put(added, shift + BITS);
+			} else if (((Entry) slot).hash == added.hash) {	// Same hash: replace the name in the chain, or chain it
+				replacement = new Entry(added.name, added.hash, added.node, ((Entry) slot).without(added.name));
+			} else {	// Different hash in the same slot: split into a lower level. The hashes differ in some bit, so this
+					// ends by the last level
+				replacement = EMPTY.put((Entry) slot, shift + BITS).put(added, shift + BITS);
+			}
+			Object[] copy = slots.clone();
+			copy[index] = replacement;
+			return new Children(bitmap, copy);
+		}
+
+		private Children remove(String name, int hash, int shift) {
+			int bit = 1 << ((hash >>> shift) & MASK);
+			if ((bitmap & bit) == 0) {
+				return this;
+			}
+			int index = Integer.bitCount(bitmap & (bit - 1));
+			Object slot = slots[index];
+			Object replacement;
+			if (slot instanceof Children) {
+				Children child = ((Children) slot).remove(name, hash, shift + BITS);
+				if (child == slot) {
+					return this;
+				}
+				replacement = child.slots.length == 0 ? null : child;
+			} else {
+				if (((Entry) slot).hash != hash) {
+					return this;
+				}
+				replacement = ((Entry) slot).without(name);
+				if (replacement == slot) {
+					return this;
+				}
+			}
+			if (replacement == null) {	// Slot now empty
+				Object[] copy = new Object[slots.length - 1];
+				System.arraycopy(slots, 0, copy, 0, index);
+				System.arraycopy(slots, index + 1, copy, index, slots.length - index - 1);
+				return new Children(bitmap & ~bit, copy);
+			}
+			Object[] copy = slots.clone();
+			copy[index] = replacement;
+			return new Children(bitmap, copy);
+		}
+	}
+
+	/**
+	 * Name and node in a trie slot, chained to the other names with the same hash
+	 */
+	private static final class Entry {
+		final String name;
+		final int hash;
+		final Object node;
+		final Entry next;
+
+		Entry(String name, int hash, Object node, Entry next) {
+			this.name = name;
+			this.hash = hash;
+			this.node = node;
+			this.next = next;
+		}
+
+		/**
+		 * Returns the chain starting at this entry without the given name. Returns this entry if the name is not in
+		 * the chain, and null if the chain becomes empty
+		 */
+		Entry without(String name) {
+			if (this.name.equals(name)) {
+				return next;
+			}
+			if (next == null) {
+				return this;
+			}
+			Entry rest = next.without(name);
+			return rest == next ? this : new Entry(this.name, hash, node, rest);
+		}
+	}
+}
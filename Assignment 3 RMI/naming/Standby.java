@@ -0,0 +1,97 @@
+package naming;
+
+import java.io.IOException;
+
+import rmi.*;
+
+/**
+ * Keeps a standby naming server's directory tree up to date with its primary's.
+ *
+ * The standby asks the primary for the changes after the last one it applied, and the primary answers as soon as
+ * there are some, or after wait milliseconds. The first answer, and any answer after the standby fell too far behind
+ * or the primary started a new log, is the whole tree, which replaces the standby's.
+ *
+ * The standby serves reads from its snapshot while changes are applied. It refuses them while it replaces its tree,
+ * and when it has not been answered for staleness milliseconds, so that what it serves is never older than that.
+ */
+class Standby implements Runnable {
+	static final long WAIT = 1000;	// Default for wait
+	static final long STALENESS = 5000;	// Default for staleness
+
+	long wait = WAIT;	// Longest the primary holds a request without changes, in milliseconds
+	long staleness = STALENESS;	// Age after which the tree is not served, in milliseconds
+
+	private final NamingServer server;
+	private final Shipping primary;
+	private long epoch = 0;	// Epoch of the primary's log, 0 until the tree is received
+	private long applied = 0;	// Sequence number of the last change applied
+	private volatile long current = 0;	// System.nanoTime() when the tree was last known current, 0 while it is not
+	private volatile boolean running = false;
+	private Thread thread = null;
+
+	Standby(NamingServer server, Shipping primary) {
+		this.server = server;
+		this.primary = primary;
+	}
+
+	synchronized void start() {
+		if (running) {
+			return;
+		}
+		running = true;
+		thread = new Thread(this, "naming standby");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Stops following the primary. The tree is left as it is
+	 */
+	synchronized void stop() {
+		running = false;
+		if (thread != null) {
+			thread.interrupt();
+			thread = null;
+		}
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				poll();
+			} catch (Exception e) {	// Primary unreachable, or a malformed record: the tree is received again
+				if (e instanceof IOException) {
+					epoch = 0;
+				}
+				try {
+					Thread.sleep(wait);
+				} catch (InterruptedException interrupted) {
+					return;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Asks the primary for changes once, and applies them
+	 */
+	void poll() throws RMIException, IOException {
+		long asked = System.nanoTime();	// The answer is at least as recent as the request
+		Shipment shipment = primary.ship(epoch, applied, wait);
+		if (shipment.image) {
+			current = 0;
+		}
+		server.apply(shipment.records, shipment.image);
+		epoch = shipment.epoch;
+		applied = shipment.last;
+		current = asked == 0 ? 1 : asked;
+	}
+
+	/**
+	 * Returns whether the tree may be served
+	 */
+	boolean current() {
+		long current = this.current;
+		return current != 0 && System.nanoTime() - current <= staleness * 1000000L;
+	}
+}
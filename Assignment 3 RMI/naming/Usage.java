@@ -0,0 +1,75 @@
+package naming;
+
+import java.io.*;
+
+/** Usage of a directory.
+
+    <p>
+    Usage is returned by <code>Service.usage</code>. It counts the files
+    anywhere under a directory and the bytes they hold, and carries the quota of
+    the directory.
+ */
+public class Usage implements Serializable
+{
+    /** Files under the directory. */
+    private final long          files;
+    /** Bytes held by the files under the directory. */
+    private final long          bytes;
+    /** Most files allowed under the directory, or <code>-1</code>. */
+    private final long          fileQuota;
+    /** Most bytes allowed under the directory, or <code>-1</code>. */
+    private final long          byteQuota;
+
+    /** Creates a usage.
+
+        @param files Files under the directory.
+        @param bytes Bytes held by the files under the directory.
+        @param fileQuota Most files allowed under the directory, or
+                         <code>-1</code> for no limit.
+        @param byteQuota Most bytes allowed under the directory, or
+                         <code>-1</code> for no limit.
+     */
+    Usage(long files, long bytes, long fileQuota, long byteQuota)
+    {
+        this.files = files;
+        this.bytes = bytes;
+        this.fileQuota = fileQuota;
+        this.byteQuota = byteQuota;
+    }
+
+    /** Returns the number of files under the directory.
+
+        @return The number of files, in the directory and below it.
+     */
+    public long files()
+    {
+        return files;
+    }
+
+    /** Returns the number of bytes held by the files under the directory.
+
+        @return The number of bytes.
+     */
+    public long bytes()
+    {
+        return bytes;
+    }
+
+    /** Returns the quota on the number of files under the directory.
+
+        @return The most files allowed, or <code>-1</code> for no limit.
+     */
+    public long fileQuota()
+    {
+        return fileQuota;
+    }
+
+    /** Returns the quota on the number of bytes under the directory.
+
+        @return The most bytes allowed, or <code>-1</code> for no limit.
+     */
+    public long byteQuota()
+    {
+        return byteQuota;
+    }
+}
@@ -0,0 +1,67 @@
+package naming;
+
+import java.io.*;
+
+import common.*;
+
+/** Page of the entries found by a walk of a directory tree.
+
+    <p>
+    Pages are returned by <code>Service.walk</code>. A page holds the paths of
+    some of the entries found, whether each is a directory, and a continuation
+    token from which the walk resumes.
+ */
+public class Walk implements Serializable
+{
+    /** Paths of the entries found. */
+    private final Path[]        paths;
+    /** Whether each entry is a directory. */
+    private final boolean[]     directories;
+    /** Token from which the walk resumes, or <code>null</code> if the walk
+        is complete. */
+    private final String        token;
+
+    /** Creates a page.
+
+        @param paths Paths of the entries found.
+        @param directories Whether each entry is a directory.
+        @param token Token from which the walk resumes, or <code>null</code>
+                     if the walk is complete.
+     */
+    Walk(Path[] paths, boolean[] directories, String token)
+    {
+        this.paths = paths;
+        this.directories = directories;
+        this.token = token;
+    }
+
+    /** Returns the paths of the entries found.
+
+        @return The paths, in the order of the walk.
+     */
+    public Path[] paths()
+    {
+        return paths.clone();
+    }
+
+    /** Returns the types of the entries found.
+
+        @return For each path returned by <code>paths</code>,
+                <code>true</code> if it is a directory and <code>false</code>
+                if it is a file.
+     */
+    public boolean[] directories()
+    {
+        return directories.clone();
+    }
+
+    /** Returns the continuation token of the walk.
+
+        @return The token from which the walk resumes, or <code>null</code> if
+                the walk is complete.
+     */
+    public String next()
+    {
+        return token;
+    }
+}
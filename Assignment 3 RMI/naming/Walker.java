@@ -0,0 +1,287 @@
+package naming;
+
+import java.io.FileNotFoundException;
+import java.util.ArrayList;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+import common.*;
+import rmi.*;
+
+/**
+ * Walk of a directory tree, one page at a time.
+ *
+ * Entries are visited in pre-order, the entries of each directory by name, so the path of the last entry visited
+ * orders all the others: a walk resumes from it as the continuation token, visiting only the entries that come
+ * after it. A page ends when it holds the number of entries requested, or once VISITS entries were visited, so that
+ * a sparse filter does not hold the naming server for the whole tree.
+ *
+ * A walker reads a tree through children and isDirectory. Subclasses read the snapshot, the locked tree, or another
+ * Service.
+ */
+abstract class Walker {
+	static final int MAX_COUNT = 4096;	// Most entries returned in a page
+	static final int VISITS = 1 << 16;	// Most entries visited for a page
+
+	private final Pattern pattern;	// null to match every entry
+	private final boolean byName;	// The pattern matches names rather than full paths
+	private final int depth;	// Deepest level returned, 0 for no limit
+	private final int count;
+	private final ArrayList<Path> paths = new ArrayList<Path>();
+	private final ArrayList<Boolean> directories = new ArrayList<Boolean>();
+	private int visits = 0;
+	private Path last = null;	// Last entry visited
+	private boolean more = false;	// Entries are left for another page
+
+	Walker(String pattern, int depth, int count) {
+		if (depth < 0) {
+			throw new IllegalArgumentException("Depth must not be negative");
+		}
+		if (count < 1) {
+			throw new IllegalArgumentException("Page size must be positive");
+		}
+		this.pattern = pattern == null ? null : compile(pattern);
+		this.byName = pattern != null && !pattern.contains("/");
+		this.depth = depth;
+		this.count = Math.min(count, MAX_COUNT);
+	}
+
+	/**
+	 * Returns the entries of a directory by name, as the objects children and isDirectory are called with
+	 * @param directory the directory, as returned by children or given to walk
+	 * @param path the path of the directory
+	 */
+	abstract SortedMap<String, Object> children(Object directory, Path path) throws RMIException, FileNotFoundException;
+
+	abstract boolean isDirectory(Object node);
+
+	/**
+	 * Walks the tree below a directory, resuming after a token
+	 * @throws IllegalArgumentException if the token is not a path below the directory
+	 */
+	Walk walk(Object directory, Path root, String token) throws RMIException, FileNotFoundException {
+		String[] after = null;	// Components below the root of the last entry visited
+		if (token != null) {
+			String[] prefix = Snapshot.components(root);
+			String[] components = Snapshot.components(new Path(token));
+			if (components.length <= prefix.length) {
+				throw new IllegalArgumentException("Token of another walk");
+			}
+			for (int i = 0; i < prefix.length; i++) {
+				if (!prefix[i].equals(components[i])) {
+					throw new IllegalArgumentException("Token of another walk");
+				}
+			}
+			after = new String[components.length - prefix.length];
+			System.arraycopy(components, prefix.length, after, 0, after.length);
+		}
+		walk(directory, root, 0, after);
+		boolean[] types = new boolean[directories.size()];
+		for (int i = 0; i < types.length; i++) {
+			types[i] = directories.get(i);
+		}
+		return new Walk(paths.toArray(new Path[paths.size()]), types, more ? last.toString() : null);
+	}
+
+	/**
+	 * Visits the entries of a directory and the trees below them
+	 * @param level depth of the directory below the root
+	 * @param after components of the last entry visited, or null to visit every entry
+	 * @return true once the page is complete
+	 */
+	private boolean walk(Object directory, Path path, int level, String[] after)
+			throws RMIException, FileNotFoundException {
+		SortedMap<String, Object> children = children(directory, path);
+		String from = after != null && level < after.length ? after[level] : null;
+		if (from != null) {	// Skip the entries before it
+			children = children.tailMap(from);
+		}
+		for (Map.Entry<String, Object> child : children.entrySet()) {
+			Path childPath = new Path(path, child.getKey());
+			boolean visited = from != null && child.getKey().equals(from);	// It, or the last entry below it
+			boolean isDirectory = isDirectory(child.getValue());
+			if (!visited) {
+				if (paths.size() >= count || visits >= VISITS) {
+					more = true;
+					return true;
+				}
+				visits++;
+				last = childPath;
+				if (matches(childPath)) {
+					paths.add(childPath);
+					directories.add(isDirectory);
+				}
+			}
+			if (isDirectory && (depth == 0 || level + 1 < depth)
+					&& walk(child.getValue(), childPath, level + 1, visited ? after : null)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private boolean matches(Path path) {
+		return pattern == null || pattern.matcher(byName ? path.last() : path.toString()).matches();
+	}
+
+	/**
+	 * Compiles a filter: "regex:" followed by a regular expression, or a glob, optionally after "glob:"
+	 * @throws IllegalArgumentException if the filter is malformed
+	 */
+	static Pattern compile(String filter) {
+		if (filter.startsWith("regex:")) {
+			return Pattern.compile(filter.substring("regex:".length()));
+		}
+		return Pattern.compile(glob(filter.startsWith("glob:") ? filter.substring("glob:".length()) : filter));
+	}
+
+	/**
+	 * Translates a glob into a regular expression. * matches within a component, ** across components, ? one
+	 * character, [...] and [!...] a character class, {a,b} either alternative, and \ quotes the next character
+	 */
+	static String glob(String glob) {
+		StringBuilder regex = new StringBuilder();
+		boolean group = false;	// Within {}
+		for (int i = 0; i < glob.length(); i++) {
+			char c = glob.charAt(i);
+			if (c == '*') {
+				if (i + 1 < glob.length() && glob.charAt(i + 1) == '*') {
+					regex.append(".*");
+					i++;
+				} else {
+					regex.append("[^/]*");
+				}
+			} else if (c == '?') {
+				regex.append("[^/]");
+			} else if (c == '[') {
+				int end = glob.indexOf(']', i + 2);
+				if (end == -1) {
+					throw new IllegalArgumentException("Unclosed character class in " + glob);
+				}
+				regex.append('[');
+				for (int j = i + 1; j < end; j++) {
+					char d = glob.charAt(j);
+					if (j == i + 1 && d == '!') {
+						regex.append('^');
+					} else if (d == '-' || Character.isLetterOrDigit(d)) {
+						regex.append(d);
+					} else {
+						regex.append('\\').append(d);
+					}
+				}
+				regex.append(']');
+				i = end;
+			} else if (c == '{' && !group) {
+				regex.append("(?:");
+				group = true;
+			} else if (c == '}' && group) {
+				regex.append(')');
+				group = false;
+			} else if (c == ',' && group) {
+				regex.append('|');
+			} else if (c == '\\' && i + 1 < glob.length()) {
+				regex.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+			} else if (Character.isLetterOrDigit(c)) {
+				regex.append(c);
+			} else {
+				regex.append('\\').append(c);
+			}
+		}
+		if (group) {
+			throw new IllegalArgumentException("Unclosed group in " + glob);
+		}
+		return regex.toString();
+	}
+
+	/**
+	 * Walks the snapshot, without locks
+	 */
+	static class Snapshots extends Walker {
+		Snapshots(String pattern, int depth, int count) {
+			super(pattern, depth, count);
+		}
+
+		SortedMap<String, Object> children(Object directory, Path path) {
+			Snapshot.Children children = ((Snapshot.Dir) directory).children;
+			ArrayList<String> names = new ArrayList<String>();
+			children.names(names);
+			TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+			for (String name : names) {
+				sorted.put(name, children.get(name));
+			}
+			return sorted;
+		}
+
+		boolean isDirectory(Object node) {
+			return node instanceof Snapshot.Dir;
+		}
+	}
+
+	/**
+	 * Walks the locked tree. Each directory is read under its shared lock, which is released before its entries
+	 * are walked, so the walk never blocks a writer for longer than reading one directory
+	 */
+	static class Branches extends Walker {
+		Branches(String pattern, int depth, int count) {
+			super(pattern, depth, count);
+		}
+
+		SortedMap<String, Object> children(Object directory, Path path) {
+			Branch branch = (Branch) directory;
+			TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+			PathLock locks = new PathLock();
+			locks.shared(branch);
+			try {
+				for (Node node : branch.nodes()) {
+					sorted.put(node.name, node);
+				}
+			} finally {
+				locks.release();
+			}
+			return sorted;
+		}
+
+		boolean isDirectory(Object node) {
+			return node instanceof Branch;
+		}
+	}
+
+	/**
+	 * Walks the tree of another service, one list and one isDirectories call per directory. The objects are the
+	 * types of the entries
+	 */
+	static class Services extends Walker {
+		private final Service service;
+
+		Services(Service service, String pattern, int depth, int count) {
+			super(pattern, depth, count);
+			this.service = service;
+		}
+
+		SortedMap<String, Object> children(Object directory, Path path) throws RMIException, FileNotFoundException {
+			TreeMap<String, Object> sorted = new TreeMap<String, Object>();
+			String[] names;
+			boolean[] types;
+			try {
+				names = service.list(path);
+				Path[] paths = new Path[names.length];
+				for (int i = 0; i < names.length; i++) {
+					paths[i] = new Path(path, names[i]);
+				}
+				types = service.isDirectories(paths);
+			} catch (FileNotFoundException e) {	// Removed during the walk
+				return sorted;
+			}
+			for (int i = 0; i < names.length; i++) {
+				sorted.put(names[i], types[i]);
+			}
+			return sorted;
+		}
+
+		boolean isDirectory(Object node) {
+			return (Boolean) node;
+		}
+	}
+}
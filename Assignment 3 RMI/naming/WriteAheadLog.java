@@ -0,0 +1,452 @@
+package naming;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+/**
+ * Write-ahead log of changes to the naming server directory tree.
+ *
+ * The log is a sequence of segment files named log.0, log.1, ... in the log directory. Each record is framed by its
+ * length and a CRC32 of its contents, so that a record torn by a crash is detected and, with everything after it in
+ * the same segment, ignored on replay. Such records were never reported as durable.
+ *
+ * Records are appended to a buffer in memory. A flusher thread writes the buffer to the current segment and forces
+ * it to disk, then wakes the callers waiting for their records. While it does so, further records collect in a new
+ * buffer, and are all made durable by the next force: concurrent writers share fsyncs instead of queueing for one
+ * each.
+ *
+ * A checkpoint starts by rotating the log to a new segment. The checkpoint then only needs the segments from that
+ * one on, and the earlier segments are deleted once it has been written. Records are idempotent - they state that a
+ * path is a directory, a file on some server, or absent - so replaying a record already reflected in the checkpoint
+ * is harmless.
+ *
+ * The most recent records are also kept in memory, so that standby naming servers can be shipped the records made
+ * durable since the last one they applied. Sequence numbers restart with each log, which is told apart by its
+ * epoch.
+ */
+class WriteAheadLog {
+	static final byte END = 0, SERVER = 1, DIRECTORY = 2, FILE = 3, DELETE = 4;	// Record types
+
+	static final int SHIPPED_RECORDS = 1 << 16;	// Records kept in memory for shipping
+
+	private static final String SEGMENT = "log.";
+
+	private final File directory;
+	private final Object io = new Object();	// Held while writing to the channel. Taken before the log's monitor
+	private FileChannel channel;
+	private long segment;	// Number of the segment being written
+	private ByteArrayOutputStream buffer = new ByteArrayOutputStream();	// Records not yet written
+	private DataOutputStream out = new DataOutputStream(buffer);
+	private long appended = 0;	// Number of records appended
+	private long durable = 0;	// Number of records forced to disk
+	private long rotated = 0;	// Value of appended at the last rotation
+	private long flushes = 0;	// Number of times the log was forced to disk
+	private boolean closed = false;
+	private IOException failure = null;	// Set when a write fails, the log is unusable afterwards
+	private Thread flusher;
+	private final long epoch = new Random().nextLong() | 1;	// Tells this log's sequence numbers from another's, never 0
+	private final byte[][] shipped = new byte[SHIPPED_RECORDS][];	// Record with sequence number s at s % SHIPPED_RECORDS
+
+	/**
+	 * Opens a log in a directory, writing to a new segment after the existing ones
+	 * @param directory
+	 * @throws IOException if the directory cannot be created or the segment cannot be opened
+	 */
+	public WriteAheadLog(File directory) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create log directory " + directory);
+		}
+		this.directory = directory;
+		ArrayList<Long> segments = segments(directory);
+		this.segment = segments.isEmpty() ? 0 : segments.get(segments.size() - 1) + 1;
+		this.channel = open(segment);
+		this.flusher = new Thread(new Flusher(), "naming log flusher");
+		this.flusher.setDaemon(true);
+		this.flusher.start();
+	}
+
+	/**
+	 * Appends a record for a registered storage server
+	 * @param server id of the server
+	 * @param stubs serialized storage and command stubs
+	 * @return sequence number of the record, to be passed to sync
+	 */
+	public synchronized long server(int server, byte[] stubs) {
+		return append(serverRecord(server, stubs));
+	}
+
+	/**
+	 * Appends a record stating that a path is a directory
+	 * @return sequence number of the record, to be passed to sync
+	 */
+	public synchronized long directory(String[] path) {
+		return append(pathRecord(DIRECTORY, path, 0));
+	}
+
+	/**
+	 * Appends a record stating that a path is a file hosted by the given storage server
+	 * @param server id of the server, or -1
+	 * @return sequence number of the record, to be passed to sync
+	 */
+	public synchronized long file(String[] path, int server) {
+		return append(pathRecord(FILE, path, server));
+	}
+
+	/**
+	 * Appends a record stating that a path and everything under it was deleted
+	 * @return sequence number of the record, to be passed to sync
+	 */
+	public synchronized long delete(String[] path) {
+		return append(pathRecord(DELETE, path, 0));
+	}
+
+	/**
+	 * Waits until a record and all records before it are on disk
+	 * @param sequence sequence number returned when the record was appended
+	 * @throws IOException if the log could not be written
+	 */
+	public synchronized void sync(long sequence) throws IOException {
+		while (durable < sequence && failure == null) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for the log");
+			}
+		}
+		if (durable < sequence) {
+			throw new IOException("Naming server log failed", failure);
+		}
+	}
+
+	/**
+	 * Returns the sequence number of the last record appended
+	 */
+	public synchronized long appended() {
+		return appended;
+	}
+
+	/**
+	 * Returns the epoch of the log, which is never 0
+	 */
+	public long epoch() {
+		return epoch;
+	}
+
+	/**
+	 * Returns the durable records after the given one that are still kept in memory, waiting for one if there is none
+	 * yet
+	 * @param after sequence number of the last record the caller has
+	 * @param max maximum number of records returned
+	 * @param wait maximum time to wait, in milliseconds
+	 * @return the records, possibly none, or null if some of those after the given one are no longer kept or it was
+	 *         never appended
+	 */
+	public synchronized byte[][] shipped(long after, int max, long wait) throws InterruptedException {
+		long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(wait);
+		while (durable <= after && after <= appended && !closed && failure == null) {
+			long remaining = deadline - System.nanoTime();
+			if (remaining <= 0) {
+				break;
+			}
+			TimeUnit.NANOSECONDS.timedWait(this, remaining);
+		}
+		if (after < appended - SHIPPED_RECORDS || after > appended) {
+			return null;
+		}
+		byte[][] records = new byte[(int) Math.max(0, Math.min(max, durable - after))][];
+		for (int i = 0; i < records.length; i++) {
+			records[i] = shipped[(int) ((after + 1 + i) % SHIPPED_RECORDS)];
+		}
+		return records;
+	}
+
+	/**
+	 * Waits until the given number of records have been appended since the last rotation
+	 * @return false if the log was closed first
+	 */
+	public synchronized boolean awaitRecords(long count) throws InterruptedException {
+		while (!closed && appended - rotated < count) {
+			wait();
+		}
+		return !closed;
+	}
+
+	/**
+	 * Makes all records appended so far durable in the current segment, and starts a new segment for the records
+	 * appended from now on
+	 * @return the number of the new segment
+	 * @throws IOException if the log could not be written
+	 */
+	public long rotate() throws IOException {
+		synchronized (io) {
+			write();
+			channel.close();
+			synchronized (this) {
+				segment++;
+				rotated = appended;
+			}
+			channel = open(segment);
+			return segment;
+		}
+	}
+
+	/**
+	 * Deletes the segments before the given one
+	 */
+	public void truncate(long first) {
+		for (long number : segments(directory)) {
+			if (number < first) {
+				new File(directory, SEGMENT + number).delete();
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of times the log was forced to disk
+	 */
+	public synchronized long flushes() {
+		return flushes;
+	}
+
+	/**
+	 * Writes the remaining records, stops the flusher and closes the current segment
+	 */
+	public void close() {
+		synchronized (this) {
+			closed = true;
+			notifyAll();
+		}
+		try {
+			flusher.join();
+		} catch (InterruptedException e) {}
+		synchronized (io) {
+			try {
+				write();
+				channel.close();
+			} catch (IOException e) {}
+		}
+	}
+
+	/**
+	 * Replays the segments of a log directory, from the given segment on
+	 * @param directory
+	 * @param first number of the first segment to replay
+	 * @param replay receives the records
+	 * @throws IOException if a segment cannot be read
+	 */
+	public static void replay(File directory, long first, Replay replay) throws IOException {
+		for (long number : segments(directory)) {
+			if (number < first) {
+				continue;
+			}
+			File file = new File(directory, SEGMENT + number);
+			long remaining = file.length();
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				while (remaining >= 8) {
+					int length = in.readInt();
+					int crc = in.readInt();
+					remaining -= 8;
+					if (length <= 0 || length > remaining) {	// Torn record
+						break;
+					}
+					byte[] record = new byte[length];
+					in.readFully(record);
+					remaining -= length;
+					if (crc(record) != crc) {	// Torn record, nothing after it was reported durable
+						break;
+					}
+					apply(record, replay);
+				}
+			} finally {
+				in.close();
+			}
+		}
+	}
+
+	/**
+	 * Receives the records of a log or checkpoint. The path arrays passed to the methods may be reused after they
+	 * return, and only their first length elements are valid
+	 */
+	interface Replay {
+		void server(int server, byte[] stubs) throws IOException;
+		void directory(String[] path, int length);
+		void file(String[] path, int length, int server);
+		void delete(String[] path, int length);
+	}
+
+	/**
+	 * Applies a record, as framed by append without its length and CRC
+	 */
+	static void apply(byte[] record, Replay replay) throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(record));
+		byte type = in.readByte();
+		if (type == SERVER) {
+			int server = in.readInt();
+			byte[] stubs = new byte[in.readInt()];
+			in.readFully(stubs);
+			replay.server(server, stubs);
+			return;
+		}
+		String[] path = new String[in.readShort()];
+		for (int i = 0; i < path.length; i++) {
+			path[i] = in.readUTF();
+		}
+		if (type == DIRECTORY) {
+			replay.directory(path, path.length);
+		} else if (type == FILE) {
+			replay.file(path, path.length, in.readInt());
+		} else if (type == DELETE) {
+			replay.delete(path, path.length);
+		} else {
+			throw new IOException("Unknown log record type " + type);
+		}
+	}
+
+	static byte[] serverRecord(int server, byte[] stubs) {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(record);
+		try {
+			data.writeByte(SERVER);
+			data.writeInt(server);
+			data.writeInt(stubs.length);
+			data.write(stubs);
+		} catch (IOException e) {}	// Cannot happen on a byte array
+		return record.toByteArray();
+	}
+
+	static byte[] pathRecord(byte type, String[] path, int server) {
+		ByteArrayOutputStream record = new ByteArrayOutputStream();
+		DataOutputStream data = new DataOutputStream(record);
+		try {
+			data.writeByte(type);
+			data.writeShort(path.length);
+			for (String component : path) {
+				data.writeUTF(component);
+			}
+			if (type == FILE) {
+				data.writeInt(server);
+			}
+		} catch (IOException e) {}	// Cannot happen on a byte array
+		return record.toByteArray();
+	}
+
+	/**
+	 * Frames a record into the buffer. Called with the monitor held
+	 */
+	private long append(byte[] record) {
+		if (closed) {
+			throw new IllegalStateException("Naming server log closed");
+		}
+		try {
+			out.writeInt(record.length);
+			out.writeInt(crc(record));
+			out.write(record);
+		} catch (IOException e) {}	// Cannot happen on a byte array
+		appended++;
+		shipped[(int) (appended % SHIPPED_RECORDS)] = record;
+		notifyAll();
+		return appended;
+	}
+
+	/**
+	 * Writes the buffered records to the current segment and forces them to disk. Called with io held
+	 */
+	private void write() throws IOException {
+		byte[] pending;
+		long target;
+		synchronized (this) {
+			if (failure != null) {
+				throw failure;
+			}
+			if (buffer.size() == 0) {
+				return;
+			}
+			pending = buffer.toByteArray();
+			target = appended;
+			buffer = new ByteArrayOutputStream();
+			out = new DataOutputStream(buffer);
+		}
+		try {
+			ByteBuffer bytes = ByteBuffer.wrap(pending);
+			while (bytes.hasRemaining()) {
+				channel.write(bytes);
+			}
+			channel.force(false);
+		} catch (IOException e) {
+			synchronized (this) {
+				failure = e;
+				notifyAll();
+			}
+			throw e;
+		}
+		synchronized (this) {
+			durable = target;
+			flushes++;
+			notifyAll();
+		}
+	}
+
+	private FileChannel open(long number) throws IOException {
+		return FileChannel.open(new File(directory, SEGMENT + number).toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+	}
+
+	private static ArrayList<Long> segments(File directory) {
+		ArrayList<Long> segments = new ArrayList<Long>();
+		String[] names = directory.list();
+		if (names != null) {
+			for (String name : names) {
+				if (name.startsWith(SEGMENT)) {
+					try {
+						segments.add(Long.parseLong(name.substring(SEGMENT.length())));
+					} catch (NumberFormatException e) {}
+				}
+			}
+		}
+		Collections.sort(segments);
+		return segments;
+	}
+
+	private static int crc(byte[] record) {
+		CRC32 crc = new CRC32();
+		crc.update(record);
+		return (int) crc.getValue();
+	}
+
+	/**
+	 * Writes records to disk as they are appended, until the log is closed
+	 */
+	private class Flusher implements Runnable {
+		public void run() {
+			while (true) {
+				synchronized (WriteAheadLog.this) {
+					while (buffer.size() == 0 && !closed) {
+						try {
+							WriteAheadLog.this.wait();
+						} catch (InterruptedException e) {
+							return;
+						}
+					}
+					if (buffer.size() == 0) {	// Closed
+						return;
+					}
+				}
+				synchronized (io) {
+					try {
+						write();
+					} catch (IOException e) {
+						return;	// Waiting callers are woken with the failure
+					}
+				}
+			}
+		}
+	}
+}
@@ -37,6 +37,7 @@ public class Skeleton<T>
 		public Class<T> ServerInterface = null;	// An object representing the class of the interface for which the skeleton server is to handle method call requests.
 		public T ServerImpl = null;	// An object implementing said interface. Requests for method calls are forwarded by the skeleton to this object.
 		public boolean isConnected = false;	// checks if skeleton has started
+		private static final ThreadLocal<InetSocketAddress> client = new ThreadLocal<InetSocketAddress>();	// Client of the call the thread is serving
     /** Creates a <code>Skeleton</code> with no initial server address. The
         address will be determined by the system when <code>start</code> is
         called. Equivalent to using <code>Skeleton(null)</code>.
@@ -127,6 +128,22 @@ public class Skeleton<T>
 		return false;
 	}
 
+    /** Returns the address of the client whose call the current thread is
+        serving.
+
+        <p>
+        A server object may use the address, for example, to direct the client
+        to nearby resources.
+
+        @return The remote address of the connection on which the call was
+                received, or <code>null</code> if the current thread is not
+                serving a call.
+     */
+    public static InetSocketAddress caller()
+    {
+    	return client.get();
+    }
+
     /** Called when the listening thread exits.
 
         <p>
@@ -221,6 +238,7 @@ public class Skeleton<T>
 				Socket serviceSocket;
 				try {
 					serviceSocket = listenSocket.accept();
+					serviceSocket.setTcpNoDelay(true);	// Requests and responses are small writes, do not wait to coalesce them
 					Thread newServiceThread = new Thread(new Service(serviceSocket));
 					newServiceThread.start();
 				} catch (IOException e) {}
@@ -244,23 +262,64 @@ public class Skeleton<T>
 		}
 		
 		/*
-		 * The service thread reads the method, arg and argtypes from the input stream and gets the method from
-		 * the Interface that the skeleton can handle and invokes it. It writes the object into the output stream
+		 * The service thread reads the trace context, method, arg and argtypes from the input stream and gets the
+		 * method from the Interface that the skeleton can handle and invokes it. It writes the object into the output
+		 * stream. The contents of large byte array arguments follow the header in chunks, and are only accepted once
+		 * the method has been resolved. The call is invoked within a new span, child of the caller's span, so that
+		 * calls made by the server object while serving it belong to the same trace
 		 */
 		public void run() {
 
 			try {
+				TraceContext caller = (TraceContext) (in.readObject());
 				String methodName = (String) (in.readObject());
 				Object[] args = (Object[]) (in.readObject());
 				Class[] argTypes = (Class[]) (in.readObject());
+				TraceContext span = TraceContext.child(caller);
+				long start = System.currentTimeMillis();
+				long startNanos = System.nanoTime();
 				Method m = null;
 				Object resultSkeleton = null;
 				try {m = ServerInterface.getMethod(methodName, argTypes);
-				resultSkeleton = m.invoke(ServerImpl, args);	
 				} catch (Exception e) {
 					resultSkeleton = e;	// If result was a exception, set result to the exception
 				}
-				out.writeObject(resultSkeleton);
+				TraceContext previous = TraceContext.set(span);
+				client.set((InetSocketAddress) serviceSocket.getRemoteSocketAddress());
+				try {
+					if (args != null) {
+						for (int i = 0; i < args.length; i++) {
+							if (args[i] instanceof Transfer.Chunked) {
+								if (m == null) {	// Unknown method, refuse the payload
+									Transfer.reject(out);
+									break;
+								}
+								args[i] = Transfer.receive(out, in, (Transfer.Chunked) args[i]);
+							}
+						}
+					}
+					if (m != null) {
+						try {
+							resultSkeleton = m.invoke(ServerImpl, args);
+						} catch (Exception e) {
+							resultSkeleton = e;
+						}
+					}
+				} finally {
+					client.remove();
+					TraceContext.set(previous);
+					SpanLog.record(span, caller, "server", ServerInterface.getName() + "." + methodName,
+							(InetSocketAddress) serviceSocket.getRemoteSocketAddress(), start, startNanos,
+							resultSkeleton instanceof Throwable);
+				}
+				if (Transfer.isLarge(resultSkeleton)) {	// Send large byte array results in chunks
+					out.writeObject(new Transfer.Chunked(((byte[]) resultSkeleton).length));
+					Transfer.send(out, in, (byte[]) resultSkeleton);
+				}
+				else {
+					out.writeObject(resultSkeleton);
+				}
+				out.flush();
 
 			} catch (Exception e) {}
 			finally {	// After the service is completed , close all the streams and sockets
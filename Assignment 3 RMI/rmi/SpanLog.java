@@ -0,0 +1,215 @@
+package rmi;
+
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/** Local log of completed RMI spans.
+
+    <p>
+    Every call made through a stub is recorded as a <em>client</em> span, and
+    every call served by a skeleton as a <em>server</em> span. Each record
+    carries the trace and span ids, the id of the parent span, the name of the
+    remote method, the address of the other party, the start time and the
+    duration of the call. Following the parent ids from the spans of the same
+    trace, recorded on each of the hosts involved, shows which hop of an
+    operation is responsible for its latency.
+
+    <p>
+    The most recent spans are kept in memory and can be retrieved with
+    <code>recent</code>. If the system property <code>rmi.spanlog</code> names a
+    file, or a file is set with <code>setFile</code>, each span is also appended
+    to that file as a line of text.
+
+    <p>
+    Recording a span takes no lock, so that calls do not wait for each other or
+    for the disk. The recent spans are kept in a ring buffer, and spans for the
+    file are handed to a queue of <code>QUEUED</code> spans that a background
+    thread writes out, flushing the file once the queue is empty. Spans
+    recorded while the queue is full are not written to the file, and are
+    counted by <code>dropped</code>.
+ */
+public class SpanLog
+{
+	/** Number of recent spans kept in memory. */
+	public static final int CAPACITY = 4096;
+	/** Number of spans waiting to be written to the file. */
+	public static final int QUEUED = 4096;
+
+	private static final AtomicReferenceArray<Span> recent = new AtomicReferenceArray<Span>(CAPACITY);	// Span i in slot i % CAPACITY
+	private static final AtomicLong recorded = new AtomicLong();	// Spans recorded so far
+	private static final ArrayBlockingQueue<Span> queue = new ArrayBlockingQueue<Span>(QUEUED);	// Spans to write to the file
+	private static final AtomicLong dropped = new AtomicLong();	// Spans not written since the queue was full
+	private static Thread thread;	// Writes queued spans, started with the first file
+	private static volatile Writer writer = open(System.getProperty("rmi.spanlog"));	// Guarded by SpanLog.class
+
+	/** A completed span. */
+	public static class Span
+	{
+		public final long traceId;
+		public final long spanId;
+		public final long parentId;	// 0 if the span is the root of its trace
+		public final String kind;	// "client" or "server"
+		public final String name;	// Fully qualified name of the remote method
+		public final String peer;	// Address of the skeleton, or of the calling stub
+		public final long start;	// Wall clock start time, in milliseconds
+		public final long duration;	// Duration of the call, in microseconds
+		public final boolean failed;	// True if the call ended with an exception
+
+		Span(TraceContext context, TraceContext parent, String kind, String name, String peer,
+				long start, long duration, boolean failed) {
+			this.traceId = context.traceId;
+			this.spanId = context.spanId;
+			this.parentId = parent == null ? 0 : parent.spanId;
+			this.kind = kind;
+			this.name = name;
+			this.peer = peer;
+			this.start = start;
+			this.duration = duration;
+			this.failed = failed;
+		}
+
+		/**
+		 * Returns the span as a single line of the span log
+		 */
+		public String toString() {
+			return start + " trace=" + Long.toHexString(traceId) + " span=" + Long.toHexString(spanId)
+					+ " parent=" + (parentId == 0 ? "-" : Long.toHexString(parentId)) + " " + kind + " "
+					+ name + " " + peer + " " + duration + "us" + (failed ? " failed" : "");
+		}
+	}
+
+	/**
+	 * Opens the span log file for appending
+	 * @param filename name of the file, or null if spans are only kept in memory
+	 * @return writer for the file, or null
+	 */
+	private static Writer open(String filename) {
+		if (filename == null) {
+			return null;
+		}
+		try {
+			Writer opened = new BufferedWriter(new FileWriter(filename, true));
+			start();
+			return opened;
+		} catch (IOException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Starts the thread writing queued spans to the file, unless it is running
+	 */
+	private static synchronized void start() {
+		if (thread != null) {
+			return;
+		}
+		thread = new Thread(new Runnable() {
+			public void run() {
+				while (true) {
+					try {
+						write(queue.take());
+					} catch (InterruptedException e) {
+						return;
+					}
+				}
+			}
+		}, "rmi span log");
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Writes a span and every span queued after it to the file, then flushes it
+	 */
+	private static synchronized void write(Span span) {
+		try {
+			while (span != null) {
+				if (writer != null) {	// Spans queued before the file was closed are dropped
+					writer.write(span.toString());
+					writer.write(System.lineSeparator());
+				}
+				span = queue.poll();
+			}
+			if (writer != null) {
+				writer.flush();
+			}
+		} catch (IOException e) {}
+	}
+
+	/**
+	 * Sets the file to which spans are appended
+	 * @param file the span log file, or null to stop writing spans to a file
+	 * @throws IOException If the file cannot be opened
+	 */
+	public static synchronized void setFile(File file) throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+		if (file != null) {
+			writer = new BufferedWriter(new FileWriter(file, true));
+			start();
+		}
+	}
+
+	/**
+	 * Returns the number of spans not written to the file because the queue was full
+	 */
+	public static long dropped() {
+		return dropped.get();
+	}
+
+	/**
+	 * Records a completed span
+	 * @param context context of the span
+	 * @param parent context of the parent span, or null
+	 * @param kind "client" or "server"
+	 * @param name name of the remote method
+	 * @param peer address of the other party, may be null
+	 * @param start wall clock start time in milliseconds
+	 * @param startNanos value of System.nanoTime when the span started
+	 * @param failed whether the call ended with an exception
+	 */
+	static void record(TraceContext context, TraceContext parent, String kind, String name,
+			InetSocketAddress peer, long start, long startNanos, boolean failed) {
+		long duration = (System.nanoTime() - startNanos) / 1000;
+		Span span = new Span(context, parent, kind, name, String.valueOf(peer), start, duration, failed);
+		recent.set((int) (recorded.getAndIncrement() % CAPACITY), span);
+		if (writer != null && !queue.offer(span)) {
+			dropped.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Returns the most recently completed spans, oldest first. Spans recorded while it runs may be missing
+	 */
+	public static Span[] recent() {
+		long end = recorded.get();
+		ArrayList<Span> spans = new ArrayList<Span>(CAPACITY);
+		for (long i = Math.max(0, end - CAPACITY); i < end; i++) {
+			Span span = recent.get((int) (i % CAPACITY));
+			if (span != null) {	// Null until the slot is first filled
+				spans.add(span);
+			}
+		}
+		return spans.toArray(new Span[spans.size()]);
+	}
+
+	/**
+	 * Returns the recent spans that belong to the given trace, oldest first
+	 * @param traceId id of the trace
+	 */
+	public static Span[] trace(long traceId) {
+		ArrayList<Span> spans = new ArrayList<Span>();
+		for (Span span : recent()) {
+			if (span.traceId == traceId) {
+				spans.add(span);
+			}
+		}
+		return spans.toArray(new Span[spans.size()]);
+	}
+}
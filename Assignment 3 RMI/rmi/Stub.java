@@ -182,6 +182,21 @@ public abstract class Stub
 		return proxyInstance;
     }
     
+    /** Returns the address of the skeleton a stub connects to.
+
+        @param stub The stub.
+        @return The address, or <code>null</code> if <code>stub</code> is
+                <code>null</code> or was not created by this class.
+     */
+    public static InetSocketAddress address(Object stub)
+    {
+    	if (stub == null || !Proxy.isProxyClass(stub.getClass())) {
+			return null;
+		}
+		InvocationHandler handler = Proxy.getInvocationHandler(stub);
+		return handler instanceof ProxyHandler ? ((ProxyHandler) handler).skeleton_address : null;
+    }
+
     /**
 	 * Function checks if interface is a remote interface 
 	 * @param <T>
@@ -238,39 +253,75 @@ public abstract class Stub
 				result = this.hashCode();
 				return result;
 			}
-			else {	
-				Socket stubSocket = new Socket();	//Creates new socket and binds it to the skeleton address
+			else {
+				TraceContext parent = TraceContext.current();	// The call is a span, child of the span the calling thread is in
+				TraceContext span = TraceContext.child(parent);
+				long start = System.currentTimeMillis();
+				long startNanos = System.nanoTime();
+				boolean failed = true;
 				try {
-					stubSocket.connect(skeleton_address);
-				} catch (IOException e2) {}
-				ObjectOutputStream outStub = null;
-				ObjectInputStream inStub = null;
-
-				try {
-					// For marshalling of data
-					outStub = new ObjectOutputStream(stubSocket.getOutputStream());
-					inStub = new ObjectInputStream(stubSocket.getInputStream());
-					//Writes methodname, args and argtypes to output stream
-					outStub.writeObject(methodname);
-					outStub.writeObject(args);
-					outStub.writeObject(method.getParameterTypes());
-				
-					result = inStub.readObject();	//Gets response back
-				} catch (Exception e) {
-					throw new RMIException("Error in creating input/output streams", e);
+					result = call(method, args, span);
+					failed = result instanceof Throwable;
+				} finally {
+					SpanLog.record(span, parent, "client", method.getDeclaringClass().getName() + "." + methodname,
+							skeleton_address, start, startNanos, failed);
 				}
 				if (result instanceof Throwable) {	// If invoked on skeleton-end caused an exception, throw that exception	
 					throw ((Throwable)result).getCause();
 				}
-				if (stubSocket != null && inStub != null && outStub != null) {	// Close all sockets and streams - Clean up activity
+				return result;
+			}
+		}
+
+		/**
+		 * Sends a call to the skeleton and returns its result
+		 * @param method the method called
+		 * @param args arguments of the call
+		 * @param span trace context sent in the request header
+		 * @return result of the call, or the exception raised on the skeleton-end
+		 * @throws RMIException if the call cannot be completed
+		 */
+		private Object call(Method method, Object[] args, TraceContext span) throws RMIException {
+			Transport transport = Transport.get();
+			Socket stubSocket = null;
+			ObjectOutputStream outStub = null;
+			ObjectInputStream inStub = null;
+			Object result = null;
+
+			try {
+				stubSocket = transport.connect(skeleton_address);	//Opens a connection to the skeleton address
+				// For marshalling of data
+				outStub = new ObjectOutputStream(transport.output(stubSocket));
+				inStub = new ObjectInputStream(transport.input(stubSocket));
+				//Writes trace context, methodname, args and argtypes to output stream. Large byte arrays are replaced by placeholders
+				outStub.writeObject(span);
+				outStub.writeObject(method.getName());
+				outStub.writeObject(Transfer.placeholders(args));
+				outStub.writeObject(method.getParameterTypes());
+				outStub.flush();
+
+				if (args != null) {	// Stream the contents of the large arrays, unless the skeleton rejects the call
+					for (int i = 0; i < args.length; i++) {
+						if (Transfer.isLarge(args[i]) && !Transfer.send(outStub, inStub, (byte[]) args[i])) {
+							break;
+						}
+					}
+				}
+
+				result = inStub.readObject();	//Gets response back
+				if (result instanceof Transfer.Chunked) {	// Large byte array result follows in chunks
+					result = Transfer.receive(outStub, inStub, (Transfer.Chunked) result);
+				}
+			} catch (Exception e) {
+				throw new RMIException("Error in creating input/output streams", e);
+			} finally {	// Close all sockets and streams - Clean up activity
+				if (stubSocket != null) {
 					try {
 						stubSocket.close();
-						inStub.close();
-						outStub.close();
 					} catch (IOException e) {}
 				}
-			return result;
 			}
+			return result;
 		}
 		
 		public boolean equals(Object other) {
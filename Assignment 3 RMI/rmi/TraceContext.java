@@ -0,0 +1,112 @@
+package rmi;
+
+import java.io.Serializable;
+import java.util.concurrent.ThreadLocalRandom;
+
+/** Trace context carried in the header of each RMI request.
+
+    <p>
+    A trace ties together all the calls made on behalf of a single operation.
+    Each call is a <em>span</em> within the trace. The context identifies the
+    trace and the span of the call during which it was sent.
+
+    <p>
+    Stubs attach the context of the calling thread to every request, so that the
+    call becomes a child span of whatever span the calling thread is currently
+    in. Skeletons make the received context current in the service thread for
+    the duration of the call, so calls made by the server object while serving
+    a request - for example, a naming server issuing commands to a storage
+    server - are automatically recorded as children of that request. Threads
+    started to perform work on behalf of a call can inherit the context by
+    running a task wrapped with <code>wrap</code>.
+
+    <p>
+    Completed spans are recorded in the {@link SpanLog}.
+ */
+public class TraceContext implements Serializable
+{
+	private static final ThreadLocal<TraceContext> current = new ThreadLocal<TraceContext>();	// Context of the span the thread is currently in
+
+	public final long traceId;	// Identifies the operation the span belongs to
+	public final long spanId;	// Identifies the span itself
+
+	private TraceContext(long traceId, long spanId) {
+		this.traceId = traceId;
+		this.spanId = spanId;
+	}
+
+	/**
+	 * Creates the context of a new span
+	 * @param parent context of the enclosing span, or null to start a new trace
+	 * @return context with a fresh span id, in the same trace as the parent
+	 */
+	static TraceContext child(TraceContext parent) {
+		long spanId = nextId();
+		if (parent == null) {
+			return new TraceContext(spanId, spanId);	// The root span of a trace shares its id with the trace
+		}
+		return new TraceContext(parent.traceId, spanId);
+	}
+
+	private static long nextId() {
+		long id = 0;
+		while (id == 0) {	// 0 is reserved for "no span"
+			id = ThreadLocalRandom.current().nextLong();
+		}
+		return id;
+	}
+
+	/**
+	 * Returns the context of the span the calling thread is currently in
+	 * @return the context, or null if the thread is not serving a traced call
+	 */
+	public static TraceContext current() {
+		return current.get();
+	}
+
+	/**
+	 * Makes the given context current in the calling thread
+	 * @param context the new context, or null to leave the trace
+	 * @return the context that was previously current
+	 */
+	static TraceContext set(TraceContext context) {
+		TraceContext previous = current.get();
+		if (context == null) {
+			current.remove();
+		} else {
+			current.set(context);
+		}
+		return previous;
+	}
+
+	/**
+	 * Wraps a task so that it runs within the trace context of the calling thread.
+	 * Calls made by the task then belong to the same span as calls made by the
+	 * caller.
+	 * @param task the task to run
+	 * @return the wrapped task, or task itself if the caller is not in a trace
+	 */
+	public static Runnable wrap(final Runnable task) {
+		final TraceContext context = current();
+		if (context == null) {
+			return task;
+		}
+		return new Runnable() {
+			public void run() {
+				TraceContext previous = set(context);
+				try {
+					task.run();
+				} finally {
+					set(previous);
+				}
+			}
+		};
+	}
+
+	/**
+	 * Returns the trace and span ids, as hexadecimal strings
+	 */
+	public String toString() {
+		return Long.toHexString(traceId) + "/" + Long.toHexString(spanId);
+	}
+}
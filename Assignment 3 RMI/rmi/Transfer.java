@@ -0,0 +1,141 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.io.Serializable;
+
+/**
+ * Chunked, flow-controlled transfer of large byte array arguments and results.
+ *
+ * Byte arrays longer than CHUNK_SIZE are not serialized together with the rest of
+ * the call. Instead, a Chunked placeholder carrying the array length takes their
+ * place, and the contents follow the call as raw chunks of at most CHUNK_SIZE
+ * bytes. The receiving side controls the pace of the transfer by granting
+ * credits: the sender may only have as many unacknowledged chunks in flight as
+ * it has been granted, so no more than WINDOW chunks are ever in flight.
+ *
+ * Since the receiver grants the first credits only after it has read the call
+ * header, the skeleton can resolve the method before any payload is sent, and
+ * reject the call without receiving the payload at all by granting a negative
+ * credit.
+ */
+class Transfer {
+	static final int CHUNK_SIZE = 64 * 1024;	// Maximum number of bytes sent in a single chunk
+	static final int WINDOW = 16;	// Maximum number of chunks in flight before the sender waits for credits
+	static final int REJECTED = -1;	// Credit sent by a receiver that will not accept the payload
+
+	/**
+	 * Placeholder sent in place of a large byte array. The contents of the array
+	 * follow the call as chunks.
+	 */
+	static class Chunked implements Serializable {
+		final int length;
+
+		Chunked(int length) {
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Checks if the given object should be sent in chunks
+	 * @param value
+	 * @return true if value is a byte array longer than a single chunk
+	 */
+	static boolean isLarge(Object value) {
+		return value instanceof byte[] && ((byte[]) value).length > CHUNK_SIZE;
+	}
+
+	/**
+	 * Returns a copy of args in which large byte arrays are replaced by placeholders
+	 * @param args arguments of the call, may be null
+	 * @return args if there are no large arrays, else a copy with placeholders
+	 */
+	static Object[] placeholders(Object[] args) {
+		if (args == null) {
+			return null;
+		}
+		Object[] replaced = args;
+		for (int i = 0; i < args.length; i++) {
+			if (isLarge(args[i])) {
+				if (replaced == args) {
+					replaced = args.clone();
+				}
+				replaced[i] = new Chunked(((byte[]) args[i]).length);
+			}
+		}
+		return replaced;
+	}
+
+	/**
+	 * Sends the contents of a large array, waiting for credits from the receiver
+	 * @param out stream to the receiver
+	 * @param in stream from the receiver, on which credits arrive
+	 * @param data the array to be sent
+	 * @return false if the receiver rejected the transfer, else true
+	 * @throws IOException
+	 */
+	static boolean send(ObjectOutputStream out, ObjectInputStream in, byte[] data) throws IOException {
+		out.flush();
+		int credits = in.readInt();	// Initial credit, granted once the receiver is ready
+		if (credits == REJECTED) {
+			return false;
+		}
+		int offset = 0;
+		while (offset < data.length) {
+			if (credits == 0) {	// Window is full, wait for the receiver to consume some chunks
+				out.flush();
+				credits = in.readInt();
+			}
+			int length = Math.min(CHUNK_SIZE, data.length - offset);
+			out.write(data, offset, length);
+			offset += length;
+			credits--;
+		}
+		out.flush();
+		return true;
+	}
+
+	/**
+	 * Receives the contents of a large array, granting credits to the sender
+	 * @param out stream to the sender, on which credits are granted
+	 * @param in stream from the sender
+	 * @param placeholder the placeholder received in place of the array
+	 * @return the received array
+	 * @throws IOException
+	 */
+	static byte[] receive(ObjectOutputStream out, ObjectInputStream in, Chunked placeholder) throws IOException {
+		byte[] data = new byte[placeholder.length];
+		int chunks = (data.length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+		int granted = Math.min(WINDOW, chunks);
+		out.writeInt(granted);
+		out.flush();
+		int offset = 0;
+		int consumed = 0;
+		while (offset < data.length) {
+			int length = Math.min(CHUNK_SIZE, data.length - offset);
+			in.readFully(data, offset, length);
+			offset += length;
+			consumed++;
+			// Re-open half of the window at a time. Credits are never granted beyond the
+			// last chunk, so that the sender reads every credit it is given
+			if (granted < chunks && granted - consumed <= WINDOW / 2) {
+				int credits = Math.min(WINDOW / 2, chunks - granted);
+				out.writeInt(credits);
+				out.flush();
+				granted += credits;
+			}
+		}
+		return data;
+	}
+
+	/**
+	 * Refuses the payload of a call, so that the sender stops before sending any chunk
+	 * @param out stream to the sender
+	 * @throws IOException
+	 */
+	static void reject(ObjectOutputStream out) throws IOException {
+		out.writeInt(REJECTED);
+		out.flush();
+	}
+}
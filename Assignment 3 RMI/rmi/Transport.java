@@ -0,0 +1,77 @@
+package rmi;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/** Transport used by stubs to reach skeletons.
+
+    <p>
+    The default transport opens a plain TCP connection to the skeleton for each
+    call. Subclasses may override any of the methods to change how connections
+    are opened, or to interpose on the streams carrying requests to the skeleton
+    and responses back - for example, to emulate the latency and bandwidth of a
+    wide area network in tests.
+
+    <p>
+    The transport is process-wide: it is used by every stub in the virtual
+    machine, including stubs received from other hosts. Since each call is a
+    request followed by a response on the same connection, a transport that
+    shapes both streams on the stub side affects both directions of the call, and
+    skeletons are left unchanged.
+ */
+public class Transport
+{
+	private static volatile Transport current = new Transport();
+
+	/**
+	 * Returns the transport currently used by stubs
+	 */
+	public static Transport get() {
+		return current;
+	}
+
+	/**
+	 * Sets the transport used by stubs for all subsequent calls
+	 * @param transport the new transport, or null to restore the default TCP transport
+	 * @return the transport that was previously in use
+	 */
+	public static synchronized Transport set(Transport transport) {
+		Transport previous = current;
+		current = transport == null ? new Transport() : transport;
+		return previous;
+	}
+
+	/**
+	 * Opens a connection to a skeleton
+	 * @param address address of the skeleton
+	 * @return the connected socket
+	 * @throws IOException if the connection cannot be established
+	 */
+	public Socket connect(InetSocketAddress address) throws IOException {
+		Socket socket = new Socket();
+		socket.setTcpNoDelay(true);
+		socket.connect(address);
+		return socket;
+	}
+
+	/**
+	 * Returns the stream on which the stub sends its request
+	 * @param socket socket returned by connect
+	 * @throws IOException
+	 */
+	public OutputStream output(Socket socket) throws IOException {
+		return socket.getOutputStream();
+	}
+
+	/**
+	 * Returns the stream on which the stub receives the response
+	 * @param socket socket returned by connect
+	 * @throws IOException
+	 */
+	public InputStream input(Socket socket) throws IOException {
+		return socket.getInputStream();
+	}
+}
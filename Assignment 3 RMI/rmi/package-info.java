@@ -60,6 +60,21 @@
     In case an exception is thrown remotely, it is transmitted back to the
     client.
 
+    <p>
+    Large byte arrays, whether arguments or results, are not serialized with the
+    rest of the call. They are transferred in bounded chunks after the call
+    header, and the receiving side paces the transfer by granting credits to the
+    sender. This keeps the amount of data in flight bounded regardless of the
+    size of the array, and allows the skeleton to refuse the payload of a call
+    to a method that does not exist before any of it is sent.
+
+    <p>
+    Each request carries a {@link rmi.TraceContext} in its header. Calls made
+    by a server object while it is serving a request inherit the context of
+    that request, so all the calls made on behalf of one operation form a
+    single trace. Completed calls are recorded with their timings in the
+    {@link rmi.SpanLog}.
+
     <p>
     In the typical case, the server will create both the skeleton and the
     corresponding stub, as above. The stub will then be transmitted to any
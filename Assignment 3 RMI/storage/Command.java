@@ -30,6 +30,19 @@ public interface Command
      */
     public boolean create(Path file) throws RMIException;
 
+    /** Creates several files on the storage server.
+
+        <p>
+        Each file is created as by <code>create</code>, in one call.
+
+        @param files Paths to the files to be created.
+        @return An array holding, for each file, <code>true</code> if it is
+                created, and <code>false</code> if it cannot be created.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean[] createFiles(Path[] files) throws RMIException;
+
     /** Deletes a file or directory on the storage server.
 
         <p>
@@ -44,4 +57,61 @@ public interface Command
                              error.
      */
     public boolean delete(Path path) throws RMIException;
+
+    /** Copies a file from another storage server.
+
+        <p>
+        The file is downloaded from the other server and written to the same
+        path on this server, replacing any file already there. Its parent
+        directories are created if they do not exist.
+
+        @param file Path to the file to be copied.
+        @param server Storage server from which the file is to be downloaded.
+        @return <code>true</code> if the file is copied; <code>false</code> if
+                it cannot be created on this server.
+        @throws FileNotFoundException If the file is not present on the other
+                                      storage server, or the path refers to a
+                                      directory.
+        @throws IOException If the file cannot be read from the other storage
+                            server or written on this one.
+        @throws RMIException If the call cannot be completed due to a network
+                             error, either when this call is made or when
+                             the file is downloaded.
+     */
+    public boolean copy(Path file, Storage server)
+        throws RMIException, FileNotFoundException, IOException;
+
+    /** Returns the size and modification time of a file.
+
+        <p>
+        Every write to a file and every copy over it advances its modification
+        time, so a file with the same attributes as before has not been
+        changed since.
+
+        @param file Path to the file.
+        @return An array holding the size of the file in bytes, and its
+                modification time in milliseconds since the epoch.
+        @throws FileNotFoundException If the file is not present, or the path
+                                      refers to a directory.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public long[] stat(Path file) throws RMIException, FileNotFoundException;
+
+    /** Deletes a file unless it has changed.
+
+        <p>
+        The attributes are checked and the file deleted at once, so that no
+        write made in between is lost.
+
+        @param file Path to the file to be deleted.
+        @param attributes The size and modification time of the file, as
+                          returned by <code>stat</code>.
+        @return <code>true</code> if the file is deleted or is not present;
+                <code>false</code> if its attributes differ from those given,
+                in which case it is kept.
+        @throws RMIException If the call cannot be completed due to a network
+                             error.
+     */
+    public boolean discard(Path file, long[] attributes) throws RMIException;
 }
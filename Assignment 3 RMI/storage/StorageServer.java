@@ -2,7 +2,16 @@ package storage;
 
 import java.io.*;
 import java.net.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
 
 import common.*;
 import rmi.*;
@@ -20,6 +29,18 @@ public class StorageServer implements Storage, Command
 	Skeleton<Storage> storageSkeleton = null;
 	Skeleton<Command> commandSkeleton = null;
 	File root;
+	Thread heartbeat = null;	// Sends heartbeats to the naming server once registered
+	Thread reporter = null;	// Reports the attributes of changed files to the naming server once registered
+	private final LinkedHashSet<Path> changed = new LinkedHashSet<Path>();	// Files whose attributes are not reported yet, guarded by itself
+	final AtomicLong served = new AtomicLong();	// Client requests served since the last heartbeat
+	int registrationBatch = REGISTRATION_BATCH;	// Files sent to the naming server by each registration call
+
+	static final int COPY_CHUNK = 1 << 20;	// Bytes downloaded by each read when copying a file from another server
+	static final String COPY_PREFIX = ".copy";	// Name of a copy being downloaded into the root directory, with a suffix
+	static final String COPY_SUFFIX = ".partial";
+	static final int REGISTRATION_BATCH = 10000;	// Default for registrationBatch
+	static final int REGISTRATION_STREAMS = 4;	// Registration calls in flight at once
+	static final int REPORT_BATCH = 1000;	// Most files whose attributes are reported by one call
 	
     /** Creates a storage server, given a directory on the local filesystem.
 
@@ -55,6 +76,12 @@ public class StorageServer implements Storage, Command
     /** Starts the storage server and registers it with the given naming
         server.
 
+        <p>
+        The files are registered in batches, as the directory tree is walked.
+        The duplicates the naming server reports in each batch are deleted as
+        soon as they are received. The method returns once all the files are
+        registered.
+
         @param hostname The externally-routable hostname of the local host on
                         which the storage server is running. This is used to
                         ensure that the stub which is provided to the naming
@@ -78,28 +105,34 @@ public class StorageServer implements Storage, Command
     	if (hostname == null || naming_server == null) {
 			throw new NullPointerException("Arguments cannot be null");
 		}
+		File[] files = root.listFiles();
+		if (files != null) {	// Copies left by a crash, before any new one can start
+			for (File file : files) {
+				if (partialCopy(file)) {
+					file.delete();
+				}
+			}
+		}
 		this.storageSkeleton.start();
 		this.commandSkeleton.start();
 		Storage storageStub = Stub.create(Storage.class, this.storageSkeleton, hostname);
 		Command commandStub = Stub.create(Command.class, this.commandSkeleton, hostname);
 
-		Path[] paths = Path.list(this.root);	// List all the files on the storage server
-		Path[] duplicates = naming_server.register(storageStub, commandStub, paths);	// Register these files with the naming server and get back duplicates
-
-		for (int i = 0; i < duplicates.length; i++) {	// Delete the duplicates and prune empty directories
-			File file = new File(this.root + duplicates[i].name);
-			if (!file.delete()) {
-				System.out.println("Cannot be deleted");
-			} else {	// Pruning empty directories
-				File parent = file.getParentFile();
-				int len = parent.listFiles().length;
-				while (len == 0) {
-					File grandParent = parent.getParentFile();
-					parent.delete();
-					parent = grandParent;
-					len = parent.listFiles().length;
-				}
-			}
+		if (!root.exists()) {
+			throw new FileNotFoundException("Directory does not exist");
+		}
+		if (!root.isDirectory()) {
+			throw new IllegalArgumentException("Not a directory");
+		}
+		new Registrar(naming_server, storageStub, commandStub).run();	// Register the files and delete the duplicates
+
+		heartbeat = new Thread(new Heartbeat(naming_server, storageStub), "storage heartbeat");
+		heartbeat.setDaemon(true);
+		heartbeat.start();
+		synchronized (changed) {
+			reporter = new Thread(new Reporter(naming_server, storageStub), "storage reporter");
+			reporter.setDaemon(true);
+			reporter.start();
 		}
     }
 
@@ -114,6 +147,14 @@ public class StorageServer implements Storage, Command
 			storageSkeleton.stop();
 			commandSkeleton.stop();
 		}
+		if (heartbeat != null) {
+			heartbeat.interrupt();
+		}
+		synchronized (changed) {
+			if (reporter != null) {
+				reporter.interrupt();
+			}
+		}
 		stopped(null);
     }
 
@@ -133,6 +174,7 @@ public class StorageServer implements Storage, Command
     	if (file == null) {
 			throw new NullPointerException("Null path found");
 		}
+		served.incrementAndGet();
 		File currFile = new File(this.root + file.name);
 		if (!currFile.exists()) {
 			throw new FileNotFoundException("File not found");
@@ -150,28 +192,22 @@ public class StorageServer implements Storage, Command
     	if (file == null) {
 			throw new NullPointerException("Null path found");
 		}
+		served.incrementAndGet();
 		File currFile = new File(this.root + file.name);
 		if (!currFile.exists() || currFile.isDirectory()) {
 			throw new FileNotFoundException("File not found");
 		}
-		if (length < 0 || offset > currFile.length() || offset + length > currFile.length()) {
+		if (length < 0 || offset < 0 || offset > currFile.length() || offset + length > currFile.length()) {
 			throw new IndexOutOfBoundsException("invalid offset and/or length");
 		}
-		byte[] bytes = null;
-		FileInputStream fis = null;
+		byte[] bytes = new byte[length];
+		RandomAccessFile raf = new RandomAccessFile(currFile, "r");
 		try {
-			fis = new FileInputStream(currFile);
-			bytes = new byte[length];
-			fis.read(bytes, (int) offset, length);	// Read file into byte array
-			
-			if (bytes.length != length) {
-				throw new IOException("Read could not be completed");
-			}
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			raf.seek(offset);	// Read the requested range of the file into the byte array
+			raf.readFully(bytes);
+		} finally {
+			raf.close();
 		}
-
 		return bytes;
     }
 
@@ -182,6 +218,7 @@ public class StorageServer implements Storage, Command
     	if (file == null || data == null) {
             throw new NullPointerException("File or data is null");
         }
+		served.incrementAndGet();
 		if (offset < 0 || offset > Integer.MAX_VALUE) {
             throw new IndexOutOfBoundsException("Invalid offset and/or length");
         }
@@ -190,6 +227,7 @@ public class StorageServer implements Storage, Command
 			throw new FileNotFoundException("File does not exist or is a directory");
 		}
 
+		long previous = currFile.lastModified();
 		if (offset > currFile.length()) {	// If true, write to the file, with the given difference of file length and offset
 			FileOutputStream fos = new FileOutputStream(currFile, true);	// to write at the EOF
 
@@ -208,9 +246,24 @@ public class StorageServer implements Storage, Command
 			fos.write(data, (int) offset, data.length);
 			fos.close();
 		}
+		advance(currFile, previous);
+		changed(file);
     }
 
     // The following methods are documented in Command.java.
+    @Override
+    public synchronized boolean[] createFiles(Path[] files)
+    {
+    	if (files == null) {
+			throw new NullPointerException("Null paths found");
+		}
+		boolean[] created = new boolean[files.length];
+		for (int i = 0; i < files.length; i++) {
+			created[i] = create(files[i]);
+		}
+		return created;
+    }
+
     @Override
     public synchronized boolean create(Path file)
     {
@@ -245,6 +298,7 @@ public class StorageServer implements Storage, Command
 		try {
 			if (newFile.createNewFile()) {
 				isSuccess = true;
+				changed(file);
 			} else {
 				isSuccess = false;
 			}
@@ -265,6 +319,94 @@ public class StorageServer implements Storage, Command
 		return deleteUtil(deleteFile);
     }
     
+    @Override
+    public boolean copy(Path file, Storage server)
+        throws RMIException, FileNotFoundException, IOException
+    {
+    	if (file == null || server == null) {
+			throw new NullPointerException("Null argument found");
+		}
+		/*
+		 * The file is downloaded without holding this server's lock: the other server may be copying from this one at
+		 * the same time. It is written to a temporary file, and moved into place under the lock, so that readers never
+		 * see a partial copy. The temporary file is in the root directory, so that the move does not cross
+		 * filesystems, and is neither registered nor kept when the server starts again
+		 */
+		long size = server.size(file);
+		File temporary = File.createTempFile(COPY_PREFIX, COPY_SUFFIX, this.root);
+		try {
+			FileOutputStream fos = new FileOutputStream(temporary);
+			try {
+				for (long offset = 0; offset < size; offset += COPY_CHUNK) {
+					fos.write(server.read(file, offset, (int) Math.min(COPY_CHUNK, size - offset)));
+				}
+			} finally {
+				fos.close();
+			}
+			synchronized (this) {
+				File target = new File(this.root + file.name);
+				File parent = target.getParentFile();
+				if (target.isDirectory() || (!parent.isDirectory() && !parent.mkdirs())) {
+					return false;
+				}
+				long previous = target.lastModified();	// 0 if there is no file yet
+				Files.move(temporary.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+				advance(target, previous);
+				changed(file);
+				return true;
+			}
+		} finally {
+			temporary.delete();	// Nothing left to delete once moved
+		}
+    }
+
+    @Override
+    public synchronized long[] stat(Path file) throws FileNotFoundException
+    {
+    	if (file == null) {
+			throw new NullPointerException("Null path found");
+		}
+		File currFile = new File(this.root + file.name);
+		if (!currFile.isFile()) {
+			throw new FileNotFoundException("File not found");
+		}
+		return new long[] {currFile.length(), currFile.lastModified()};
+    }
+
+    @Override
+    public synchronized boolean discard(Path file, long[] attributes)
+    {
+    	if (file == null || attributes == null) {
+			throw new NullPointerException("Null argument found");
+		}
+		File currFile = new File(this.root + file.name);
+		if (!currFile.exists()) {
+			return true;
+		}
+		if (!currFile.isFile() || currFile.length() != attributes[0] || currFile.lastModified() != attributes[1]) {
+			return false;	// Changed since, under this server's lock so that no write comes in between
+		}
+		return delete(file);
+    }
+
+    /**
+	 * Moves the modification time of a file past the given time, unless it is already, so that every change to the
+	 * file changes its attributes even within the precision of the clock
+	 */
+	private static void advance(File file, long previous) {
+		if (file.lastModified() <= previous) {
+			file.setLastModified(previous + 1);
+		}
+	}
+
+    /**
+	 * Returns whether a file in the root directory is a copy being downloaded, or left by a crash
+	 */
+	private static boolean partialCopy(File file) {
+		String name = file.getName();
+		return file.isFile() && name.startsWith(COPY_PREFIX) && name.endsWith(COPY_SUFFIX);
+	}
+
     /**
 	 * Recursively deletes all files in a directory and at the end
 	 * @param file
@@ -292,4 +434,235 @@ public class StorageServer implements Storage, Command
 		}
 		return false;
 	}
+
+	/**
+	 * Records that the attributes of a file changed, for the reporter to send them
+	 */
+	private void changed(Path file) {
+		synchronized (changed) {
+			if (reporter != null && changed.add(file)) {
+				changed.notify();
+			}
+		}
+	}
+
+	/**
+	 * Reports the size and modification time of files to the naming server, leaving out those that are gone or are
+	 * directories
+	 */
+	private void report(Registration naming_server, Storage storageStub, Path[] files) throws RMIException {
+		ArrayList<Path> kept = new ArrayList<Path>(files.length);
+		long[] sizes = new long[files.length];
+		long[] modified = new long[files.length];
+		for (Path path : files) {
+			File file = path.toFile(root);
+			long time = file.lastModified();	// 0 if the file does not exist
+			if (time != 0 && file.isFile()) {
+				sizes[kept.size()] = file.length();
+				modified[kept.size()] = time;
+				kept.add(path);
+			}
+		}
+		int count = kept.size();
+		if (count != 0) {
+			naming_server.attributes(storageStub, kept.toArray(new Path[count]), Arrays.copyOf(sizes, count),
+					Arrays.copyOf(modified, count));
+		}
+	}
+
+	/**
+	 * Reports the attributes of the files created or written since the previous report, as soon as there are any.
+	 * Changes made while a report is in flight are sent together with the next one, so a busy server makes one call
+	 * for many writes. Failed reports are retried after a heartbeat interval. Stops when the server is stopped
+	 */
+	private class Reporter implements Runnable {
+		private final Registration naming_server;
+		private final Storage storageStub;
+
+		Reporter(Registration naming_server, Storage storageStub) {
+			this.naming_server = naming_server;
+			this.storageStub = storageStub;
+		}
+
+		public void run() {
+			while (true) {
+				ArrayList<Path> batch = new ArrayList<Path>();
+				try {
+					synchronized (changed) {
+						while (changed.isEmpty()) {
+							changed.wait();
+						}
+						for (Iterator<Path> i = changed.iterator(); i.hasNext() && batch.size() < REPORT_BATCH;) {
+							batch.add(i.next());
+							i.remove();
+						}
+					}
+					report(naming_server, storageStub, batch.toArray(new Path[batch.size()]));
+				} catch (InterruptedException e) {
+					return;
+				} catch (RMIException e) {	// The naming server is unreachable, send the batch again later
+					synchronized (changed) {
+						changed.addAll(batch);
+					}
+					try {
+						Thread.sleep(NamingStubs.HEARTBEAT_INTERVAL);
+					} catch (InterruptedException stop) {
+						return;
+					}
+				} catch (RuntimeException e) {}	// Refused by the naming server, which forgot this server
+			}
+		}
+	}
+
+	/**
+	 * Sends a heartbeat to the naming server every NamingStubs.HEARTBEAT_INTERVAL milliseconds, reporting the requests
+	 * served since the previous one and the free space under the root. Heartbeats that fail are not retried, the next
+	 * one is sent on time. Stops when the naming server no longer knows the server, or when the server is stopped
+	 */
+	private class Heartbeat implements Runnable {
+		private final Registration naming_server;
+		private final Storage storageStub;
+
+		Heartbeat(Registration naming_server, Storage storageStub) {
+			this.naming_server = naming_server;
+			this.storageStub = storageStub;
+		}
+
+		public void run() {
+			while (true) {
+				try {
+					Thread.sleep(NamingStubs.HEARTBEAT_INTERVAL);
+				} catch (InterruptedException e) {
+					return;
+				}
+				try {
+					if (!naming_server.heartbeat(storageStub, served.getAndSet(0), root.getUsableSpace())) {
+						return;
+					}
+				} catch (RMIException e) {}	// The naming server is unreachable, it marks this server dead if this lasts
+			}
+		}
+	}
+
+	/**
+	 * Registers the files under the root with the naming server in batches of registrationBatch, as the tree is
+	 * walked, so that no call carries all the files. The first batch registers the server. The others are added from
+	 * a pool of threads, up to REGISTRATION_STREAMS at a time, while the walk goes on. The duplicates in each batch
+	 * are deleted as soon as the naming server returns them.
+	 *
+	 * A directory is only pruned once it is empty, and a directory only empties once the walk has sent all the files
+	 * under it, so deletions never remove a directory the walk has yet to visit
+	 */
+	private class Registrar {
+		private final Registration naming_server;
+		private final Storage storageStub;
+		private final Command commandStub;
+		private ArrayList<Path> batch = new ArrayList<Path>();	// Files walked and not sent yet
+		private boolean registered = false;
+		private final Semaphore streams = new Semaphore(REGISTRATION_STREAMS);
+		private ExecutorService senders = null;	// Started with the second batch
+		private volatile RMIException failure = null;	// First failed call, reported once the walk ends
+
+		Registrar(Registration naming_server, Storage storageStub, Command commandStub) {
+			this.naming_server = naming_server;
+			this.storageStub = storageStub;
+			this.commandStub = commandStub;
+		}
+
+		/**
+		 * Walks the tree and registers its files, returning once the naming server has received them all
+		 * @throws RMIException if a batch cannot be registered
+		 */
+		void run() throws RMIException {
+			try {
+				walk(root, new Path());
+				send();	// The last batch, which registers the server if the tree fits in one
+				streams.acquireUninterruptibly(REGISTRATION_STREAMS);	// Wait for the batches in flight
+			} finally {
+				if (senders != null) {
+					senders.shutdown();
+				}
+			}
+			if (failure != null) {
+				throw failure;
+			}
+		}
+
+		private void walk(File directory, Path path) throws RMIException {
+			File[] files = directory.listFiles();
+			if (files == null) {	// No longer a directory
+				return;
+			}
+			for (File file : files) {
+				if (path.isRoot() && partialCopy(file)) {	// Being downloaded
+					continue;
+				}
+				Path child = new Path(path, file.getName());
+				if (file.isDirectory()) {
+					walk(file, child);
+				} else {
+					batch.add(child);
+					if (batch.size() == registrationBatch) {
+						send();
+					}
+				}
+			}
+		}
+
+		/**
+		 * Sends the current batch. The first one is sent from the walking thread, so that the server is registered
+		 * before other batches are added
+		 */
+		private void send() throws RMIException {
+			final Path[] files = batch.toArray(new Path[batch.size()]);
+			batch.clear();
+			if (!registered) {
+				delete(naming_server.register(storageStub, commandStub, files));
+				registered = true;
+				report(naming_server, storageStub, files);
+				return;
+			}
+			if (failure != null) {	// Stop walking, run reports the failure
+				throw failure;
+			}
+			if (files.length == 0) {
+				return;
+			}
+			if (senders == null) {
+				senders = Executors.newFixedThreadPool(REGISTRATION_STREAMS);
+			}
+			streams.acquireUninterruptibly();
+			senders.execute(new Runnable() {
+				public void run() {
+					try {
+						delete(naming_server.addFiles(storageStub, files));
+						report(naming_server, storageStub, files);
+					} catch (RMIException e) {
+						failure = e;
+					} finally {
+						streams.release();
+					}
+				}
+			});
+		}
+
+		/**
+		 * Deletes duplicate files, and prunes the directories left empty up to the root
+		 */
+		private synchronized void delete(Path[] duplicates) {
+			for (Path duplicate : duplicates) {
+				File file = duplicate.toFile(root);
+				if (!file.delete()) {
+					continue;
+				}
+				for (File parent = file.getParentFile(); parent != null && !parent.equals(root);
+						parent = parent.getParentFile()) {
+					String[] entries = parent.list();
+					if (entries == null || entries.length != 0 || !parent.delete()) {
+						break;
+					}
+				}
+			}
+		}
+	}
 }
@@ -7,6 +7,7 @@ package test;
     <ul>
     <li>{@link test.InfiniteLoopTest}</li>
     <li>{@link test.TemporaryDirectoryTest}</li>
+    <li>{@link test.ShapedTransportTest}</li>
     </ul>
  */
 public class SelfTest
@@ -20,7 +21,8 @@ public class SelfTest
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {InfiniteLoopTest.class, TemporaryDirectoryTest.class};
+            new Class[] {InfiniteLoopTest.class, TemporaryDirectoryTest.class,
+                         ShapedTransportTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
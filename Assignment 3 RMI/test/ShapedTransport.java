@@ -0,0 +1,479 @@
+package test;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+import rmi.*;
+
+/** RMI transport emulating a wide area network on the loopback interface.
+
+    <p>
+    The transport is installed with {@link rmi.Transport#set} for the duration
+    of a test or benchmark, and shapes the traffic of every stub in the virtual
+    machine. Data written on a connection is cut into packets. Each packet
+    occupies the link for a time given by the bandwidth cap, and is delivered
+    after the one-way latency plus a random jitter. Delivery is pipelined and
+    in order, as on a TCP connection: many packets may be in flight at once,
+    but no packet overtakes an earlier one.
+
+    <p>
+    Two kinds of failure can be injected. A lost packet is retransmitted after
+    a retransmission timeout, which delays it and everything sent after it. A
+    failed connection attempt raises <code>ConnectException</code> in the stub,
+    which reports it as an <code>RMIException</code>.
+
+    <p>
+    Both directions of a call are shaped on the stub side of the connection,
+    so the round trip time of a call is twice the latency. Skeletons are not
+    affected.
+
+    <p>
+    A typical use in a test is:
+    <pre>
+    protected void initialize()
+    {
+        previous = Transport.set(new ShapedTransport(40, 5, 1000000, 0.001, 0));
+    }
+
+    protected void clean()
+    {
+        Transport.set(previous);
+    }
+    </pre>
+ */
+public class ShapedTransport extends Transport
+{
+    /** Size of the packets into which data is cut, in bytes. */
+    public static final int     PACKET_SIZE = 1460;
+    /** Delay added to a lost packet before it is retransmitted, in
+        milliseconds. */
+    public static final long    RETRANSMISSION_TIMEOUT = 200;
+    /** Maximum number of packets buffered in each direction of a connection
+        before the sender is blocked. */
+    private static final int    QUEUE_PACKETS = 1024;
+    /** Interval at which idle delivery threads check whether their connection
+        has been closed, in milliseconds. */
+    private static final long   POLL_INTERVAL = 100;
+
+    /** One-way latency, in milliseconds. */
+    private final long          latency;
+    /** Maximum random delay added to the latency of each packet, in
+        milliseconds. */
+    private final long          jitter;
+    /** Bandwidth of each direction of each connection, in bytes per second,
+        or zero for unlimited bandwidth. */
+    private final long          bandwidth;
+    /** Probability that a packet is lost and must be retransmitted. */
+    private final double        loss;
+    /** Probability that a connection attempt fails. */
+    private final double        failure;
+    /** Random number generator for jitter and failures. */
+    private final Random        random;
+
+    /** Creates a shaping transport.
+
+        @param latency One-way latency, in milliseconds.
+        @param jitter Maximum random delay added to the latency of each packet,
+                      in milliseconds.
+        @param bandwidth Bandwidth of each direction of each connection, in
+                         bytes per second. Zero means unlimited.
+        @param loss Probability, between <code>0</code> and <code>1</code>,
+                    that a packet is lost and retransmitted.
+        @param failure Probability, between <code>0</code> and <code>1</code>,
+                       that a connection attempt fails.
+        @throws IllegalArgumentException If any argument is negative, or if
+                                         either probability is greater than
+                                         <code>1</code>.
+     */
+    public ShapedTransport(long latency, long jitter, long bandwidth,
+                           double loss, double failure)
+    {
+        if(latency < 0 || jitter < 0 || bandwidth < 0)
+            throw new IllegalArgumentException("negative network parameter");
+
+        if(loss < 0 || loss > 1 || failure < 0 || failure > 1)
+            throw new IllegalArgumentException("probability out of range");
+
+        this.latency = latency;
+        this.jitter = jitter;
+        this.bandwidth = bandwidth;
+        this.loss = loss;
+        this.failure = failure;
+        this.random = new Random();
+    }
+
+    /** Opens a connection, unless a connection failure is injected.
+
+        @throws ConnectException If a connection failure is injected.
+        @throws IOException If the connection cannot be established.
+     */
+    @Override
+    public Socket connect(InetSocketAddress address) throws IOException
+    {
+        if(chance(failure))
+            throw new ConnectException("injected connection failure");
+
+        return super.connect(address);
+    }
+
+    /** Returns a stream that delivers the request to the skeleton through a
+        shaped link. */
+    @Override
+    public OutputStream output(Socket socket) throws IOException
+    {
+        return new ShapedOutputStream(socket, super.output(socket));
+    }
+
+    /** Returns a stream that delivers the response from the skeleton through a
+        shaped link. */
+    @Override
+    public InputStream input(Socket socket) throws IOException
+    {
+        return new ShapedInputStream(socket, super.input(socket));
+    }
+
+    /** Returns <code>true</code> with the given probability. */
+    private boolean chance(double probability)
+    {
+        if(probability == 0)
+            return false;
+
+        synchronized(random)
+        {
+            return random.nextDouble() < probability;
+        }
+    }
+
+    /** Returns a random jitter delay, in milliseconds. */
+    private long jitter()
+    {
+        if(jitter == 0)
+            return 0;
+
+        synchronized(random)
+        {
+            return (long)(random.nextDouble() * jitter);
+        }
+    }
+
+    /** Packet in flight on a shaped link. */
+    private static class Packet
+    {
+        /** Packet contents, or <code>null</code> for the end of stream. */
+        final byte[]    data;
+        /** Time at which the packet is delivered, in milliseconds. */
+        final long      arrival;
+
+        Packet(byte[] data, long arrival)
+        {
+            this.data = data;
+            this.arrival = arrival;
+        }
+    }
+
+    /** One direction of a shaped connection.
+
+        <p>
+        The link computes the time at which each packet sent on it is
+        delivered, and buffers the packets until then.
+     */
+    private class Link
+    {
+        /** The connection to which the link belongs. */
+        private final Socket                socket;
+        /** Packets in flight, in order of arrival. */
+        private final BlockingQueue<Packet> queue =
+            new ArrayBlockingQueue<Packet>(QUEUE_PACKETS);
+        /** Time at which the link finishes sending the last packet queued.
+            This is kept with sub-millisecond precision, so that the bandwidth
+            cap holds for small packets on fast links. */
+        private double                      free = 0;
+        /** Arrival time of the last packet queued. */
+        private long                        last_arrival = 0;
+
+        Link(Socket socket)
+        {
+            this.socket = socket;
+        }
+
+        /** Cuts data into packets and queues them for delivery.
+
+            @throws IOException If the connection is closed or the thread is
+                                interrupted while waiting for space in the
+                                queue.
+         */
+        void send(byte[] buffer, int offset, int length) throws IOException
+        {
+            while(length > 0)
+            {
+                int     size = Math.min(length, PACKET_SIZE);
+                byte[]  data = Arrays.copyOfRange(buffer, offset, offset + size);
+
+                put(new Packet(data, schedule(size)));
+
+                offset += size;
+                length -= size;
+            }
+        }
+
+        /** Queues the end of stream marker. */
+        void end() throws IOException
+        {
+            put(new Packet(null, schedule(0)));
+        }
+
+        /** Computes the arrival time of a packet of the given size. */
+        private synchronized long schedule(int size)
+        {
+            long    now = System.currentTimeMillis();
+            double  departure = Math.max(now, free);
+
+            if(bandwidth > 0)
+                departure += size * 1000.0 / bandwidth;
+
+            free = departure;
+
+            long    arrival = (long)departure + latency + jitter();
+
+            if(chance(loss))
+                arrival += RETRANSMISSION_TIMEOUT;
+
+            // Packets are delivered in order: a delayed packet holds back the
+            // packets behind it.
+            arrival = Math.max(arrival, last_arrival);
+            last_arrival = arrival;
+
+            return arrival;
+        }
+
+        /** Places a packet in the queue, waiting for space if necessary. */
+        private void put(Packet packet) throws IOException
+        {
+            try
+            {
+                while(!queue.offer(packet, POLL_INTERVAL,
+                                   TimeUnit.MILLISECONDS))
+                {
+                    if(socket.isClosed())
+                        throw new SocketException("socket closed");
+                }
+            }
+            catch(InterruptedException e)
+            {
+                throw new InterruptedIOException("interrupted while sending");
+            }
+        }
+
+        /** Takes the next packet from the queue once it has arrived.
+
+            @return The packet, or <code>null</code> if the connection was
+                    closed before a packet became available.
+         */
+        Packet receive() throws InterruptedIOException
+        {
+            try
+            {
+                Packet  packet = null;
+
+                while(packet == null)
+                {
+                    if(socket.isClosed())
+                        return null;
+
+                    packet = queue.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                }
+
+                long    delay = packet.arrival - System.currentTimeMillis();
+
+                if(delay > 0)
+                    Thread.sleep(delay);
+
+                return packet;
+            }
+            catch(InterruptedException e)
+            {
+                throw new InterruptedIOException("interrupted while receiving");
+            }
+        }
+    }
+
+    /** Output stream which delivers data to the socket through a link.
+
+        <p>
+        Writes return as soon as the data is queued. A daemon thread writes
+        each packet to the socket once it has arrived.
+     */
+    private class ShapedOutputStream extends OutputStream implements Runnable
+    {
+        /** The connection. */
+        private final Socket        socket;
+        /** Underlying socket stream. */
+        private final OutputStream  out;
+        /** Link over which the data is sent. */
+        private final Link          link;
+
+        ShapedOutputStream(Socket socket, OutputStream out)
+        {
+            this.socket = socket;
+            this.out = out;
+            this.link = new Link(socket);
+
+            Thread  thread = new Thread(this, "shaped output");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public void write(int b) throws IOException
+        {
+            write(new byte[] {(byte)b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] buffer, int offset, int length)
+            throws IOException
+        {
+            link.send(buffer, offset, length);
+        }
+
+        @Override
+        public void close() throws IOException
+        {
+            link.end();
+        }
+
+        /** Delivers packets to the socket as they arrive. */
+        @Override
+        public void run()
+        {
+            try
+            {
+                while(true)
+                {
+                    Packet  packet = link.receive();
+
+                    if(packet == null || packet.data == null)
+                        break;
+
+                    out.write(packet.data);
+                    out.flush();
+                }
+            }
+            catch(IOException e) { }
+        }
+    }
+
+    /** Input stream which receives data from the socket through a link.
+
+        <p>
+        A daemon thread reads data from the socket as soon as it is available
+        and queues it on the link. Reads return the data once it has arrived.
+     */
+    private class ShapedInputStream extends InputStream implements Runnable
+    {
+        /** The connection. */
+        private final Socket        socket;
+        /** Underlying socket stream. */
+        private final InputStream   in;
+        /** Link over which the data is received. */
+        private final Link          link;
+        /** Packet currently being read, or <code>null</code>. */
+        private byte[]              current = null;
+        /** Read position in the current packet. */
+        private int                 position = 0;
+        /** Indicates that the end of stream has been reached. */
+        private boolean             ended = false;
+
+        ShapedInputStream(Socket socket, InputStream in)
+        {
+            this.socket = socket;
+            this.in = in;
+            this.link = new Link(socket);
+
+            Thread  thread = new Thread(this, "shaped input");
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        @Override
+        public int read() throws IOException
+        {
+            byte[]  buffer = new byte[1];
+
+            if(read(buffer, 0, 1) == -1)
+                return -1;
+
+            return buffer[0] & 0xff;
+        }
+
+        @Override
+        public int read(byte[] buffer, int offset, int length)
+            throws IOException
+        {
+            if(length == 0)
+                return 0;
+
+            if(current == null || position == current.length)
+            {
+                if(ended)
+                    return -1;
+
+                Packet  packet = link.receive();
+
+                if(packet == null)
+                    throw new SocketException("socket closed");
+
+                if(packet.data == null)
+                {
+                    ended = true;
+                    return -1;
+                }
+
+                current = packet.data;
+                position = 0;
+            }
+
+            int     count = Math.min(length, current.length - position);
+
+            System.arraycopy(current, position, buffer, offset, count);
+            position += count;
+
+            return count;
+        }
+
+        /** Queues data from the socket on the link until the end of stream. */
+        @Override
+        public void run()
+        {
+            byte[]  buffer = new byte[16 * PACKET_SIZE];
+
+            try
+            {
+                while(true)
+                {
+                    int     count;
+
+                    try
+                    {
+                        count = in.read(buffer);
+                    }
+                    catch(IOException e)
+                    {
+                        count = -1;
+                    }
+
+                    if(count == -1)
+                    {
+                        link.end();
+                        break;
+                    }
+
+                    link.send(buffer, 0, count);
+                }
+            }
+            catch(IOException e) { }
+        }
+    }
+}
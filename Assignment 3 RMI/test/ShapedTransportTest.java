@@ -0,0 +1,139 @@
+package test;
+
+import java.net.*;
+
+import rmi.*;
+
+/** Checks <code>ShapedTransport</code>.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Calls are delayed by the round trip time.</li>
+    <li>Large transfers are limited by the bandwidth cap.</li>
+    <li>Injected connection failures are reported as
+        <code>RMIException</code>.</li>
+    </ul>
+ */
+public class ShapedTransportTest extends Test
+{
+    /** Test notice. */
+    public final static String  notice =
+        "checking latency and bandwidth shaping transport";
+
+    /** One-way latency used in the test, in milliseconds. */
+    private static final long   LATENCY = 50;
+    /** Bandwidth used in the test, in bytes per second. */
+    private static final long   BANDWIDTH = 1000000;
+    /** Size of the large transfer, in bytes. */
+    private static final int    TRANSFER = 500000;
+
+    /** Skeleton used in the test. */
+    private Skeleton<Sink>      skeleton;
+    /** Stub for the skeleton. */
+    private Sink                stub;
+    /** Transport in use before the test. */
+    private Transport           previous;
+
+    /** Remote interface receiving data. */
+    public interface Sink
+    {
+        /** Returns the length of the given array. */
+        public int accept(byte[] data) throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Sink>(Sink.class, new Sink()
+        {
+            @Override
+            public int accept(byte[] data)
+            {
+                return data.length;
+            }
+        });
+
+        try
+        {
+            skeleton.start();
+            stub = Stub.create(Sink.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the tests. */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        // Measure a small call. It must take at least one round trip.
+        previous = Transport.set(new ShapedTransport(LATENCY, 0, 0, 0, 0));
+
+        long        start = System.currentTimeMillis();
+
+        call(new byte[1]);
+
+        if(System.currentTimeMillis() - start < 2 * LATENCY)
+            throw new TestFailed("call completed faster than round trip time");
+
+        // Measure a large transfer. It must take at least as long as the
+        // bandwidth cap allows.
+        Transport.set(new ShapedTransport(0, 0, BANDWIDTH, 0, 0));
+
+        start = System.currentTimeMillis();
+
+        call(new byte[TRANSFER]);
+
+        if(System.currentTimeMillis() - start < TRANSFER * 1000L / BANDWIDTH)
+            throw new TestFailed("transfer faster than bandwidth cap");
+
+        // Connection failures must reach the caller.
+        Transport.set(new ShapedTransport(0, 0, 0, 0, 1));
+
+        try
+        {
+            stub.accept(new byte[1]);
+            throw new TestFailed("injected connection failure not reported");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(RMIException e) { }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception for injected " +
+                                 "connection failure", t);
+        }
+    }
+
+    /** Calls the skeleton and checks the result. */
+    private void call(byte[] data) throws TestFailed
+    {
+        try
+        {
+            if(stub.accept(data) != data.length)
+                throw new TestFailed("wrong result through shaped transport");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("call through shaped transport failed", t);
+        }
+    }
+
+    /** Restores the previous transport and stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(previous != null)
+            Transport.set(previous);
+
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+}
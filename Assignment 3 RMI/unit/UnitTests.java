@@ -8,6 +8,30 @@ import test.*;
     Tests run are:
     <ul>
     <li>{@link common.SampleUnitTest}</li>
+    <li>{@link rmi.TransferTest}</li>
+    <li>{@link rmi.TraceTest}</li>
+    <li>{@link naming.BranchTest}</li>
+    <li>{@link naming.PathCacheTest}</li>
+    <li>{@link naming.LockingTest}</li>
+    <li>{@link naming.SnapshotTest}</li>
+    <li>{@link naming.WriteAheadLogTest}</li>
+    <li>{@link naming.ReplicationTest}</li>
+    <li>{@link naming.ReplicaWriteTest}</li>
+    <li>{@link naming.ReplicaSelectionTest}</li>
+    <li>{@link naming.LivenessTest}</li>
+    <li>{@link naming.DeleteTest}</li>
+    <li>{@link storage.BatchRegistrationTest}</li>
+    <li>{@link storage.AttributesTest}</li>
+    <li>{@link naming.BatchTest}</li>
+    <li>{@link naming.PlacementTest}</li>
+    <li>{@link naming.FederationTest}</li>
+    <li>{@link naming.StandbyTest}</li>
+    <li>{@link naming.LeaseTest}</li>
+    <li>{@link naming.PagingTest}</li>
+    <li>{@link naming.WalkTest}</li>
+    <li>{@link naming.UsageTest}</li>
+    <li>{@link naming.RebalanceTest}</li>
+    <li>{@link naming.LockTest}</li>
     </ul>
  */
 public class UnitTests
@@ -21,7 +45,31 @@ public class UnitTests
         // Create the test list, the series object, and run the test series.
         @SuppressWarnings("unchecked")
         Class<? extends Test>[]     tests =
-            new Class[] {common.SampleUnitTest.class};
+            new Class[] {common.SampleUnitTest.class,
+                         rmi.TransferTest.class,
+                         rmi.TraceTest.class,
+                         naming.BranchTest.class,
+                         naming.PathCacheTest.class,
+                         naming.LockingTest.class,
+                         naming.SnapshotTest.class,
+                         naming.WriteAheadLogTest.class,
+                         naming.ReplicationTest.class,
+                         naming.ReplicaWriteTest.class,
+                         naming.ReplicaSelectionTest.class,
+                         naming.LivenessTest.class,
+                         naming.DeleteTest.class,
+                         storage.BatchRegistrationTest.class,
+                         storage.AttributesTest.class,
+                         naming.BatchTest.class,
+                         naming.PlacementTest.class,
+                         naming.FederationTest.class,
+                         naming.StandbyTest.class,
+                         naming.LeaseTest.class,
+                         naming.PagingTest.class,
+                         naming.WalkTest.class,
+                         naming.UsageTest.class,
+                         naming.RebalanceTest.class,
+                         naming.LockTest.class};
         Series                      series = new Series(tests);
         SeriesReport                report = series.run(3, System.out);
 
@@ -0,0 +1,255 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+import test.*;
+
+/** Unit test for the batch metadata operations of the naming server.
+
+    <p>
+    The storage servers are local objects that record the create commands
+    they receive.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li><code>createDirectories</code> creates parents first, and reports
+        existing directories, missing parents and the root as not
+        created.</li>
+    <li><code>createFiles</code> reports each file, and commands each storage
+        server once per directory to create all the files placed on it
+        there.</li>
+    <li>When no server can be given a file, the files placed before it are
+        created on their servers, and the rest are not added.</li>
+    <li><code>isDirectories</code> and <code>getStorages</code> answer for each
+        path, and reject missing paths.</li>
+    </ul>
+ */
+public class BatchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server batch operations";
+
+    /** Number of storage servers. */
+    private static final int        SERVERS = 2;
+
+    /** Naming server. */
+    private NamingServer            server;
+    /** Storage servers, by id in the naming server's table. */
+    private RecordingServer[]       storage = new RecordingServer[SERVERS];
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+
+            for(int index = 0; index < SERVERS; ++index)
+            {
+                storage[index] = new RecordingServer();
+                server.register(storage[index], storage[index], new Path[0]);
+            }
+
+            checkDirectories();
+            checkFiles();
+            checkLookups();
+            checkUnplaced();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Creates directories in one call. */
+    private void checkDirectories() throws Throwable
+    {
+        Path[]      directories = {new Path("/a/b"), new Path("/a"),
+                                   new Path("/"), new Path("/x/y"),
+                                   new Path("/a")};
+        boolean[]   created = server.createDirectories(directories);
+
+        if(!Arrays.equals(created,
+                          new boolean[] {true, true, false, false, false}))
+        {
+            throw new TestFailed("directories not created parents first, " +
+                                 "or created more than once: " +
+                                 Arrays.toString(created));
+        }
+
+        if(!server.isDirectory(new Path("/a/b")) ||
+           server.exist(new Path("/x")))
+        {
+            throw new TestFailed("directory tree not as created");
+        }
+    }
+
+    /** Creates files in one call, and checks the commands received. */
+    private void checkFiles() throws Throwable
+    {
+        Path[]      files = {new Path("/a/f1"), new Path("/a/b/f2"),
+                             new Path("/a/f3"), new Path("/a/f4"),
+                             new Path("/a/b"), new Path("/missing/f"),
+                             new Path("/a/b/f5"), new Path("/a/f1")};
+        boolean[]   created = server.createFiles(files);
+
+        if(!Arrays.equals(created, new boolean[] {true, true, true, true,
+                                                  false, false, true, false}))
+        {
+            throw new TestFailed("files not reported correctly: " +
+                                 Arrays.toString(created));
+        }
+
+        Set<Path>   commanded = new HashSet<Path>();
+
+        for(RecordingServer recording : storage)
+        {
+            Set<Path>   directories = new HashSet<Path>();
+
+            for(Path[] call : recording.calls)
+            {
+                if(!directories.add(call[0].parent()))
+                {
+                    throw new TestFailed("server commanded more than once " +
+                                         "for a directory");
+                }
+
+                for(Path file : call)
+                {
+                    if(!file.parent().equals(call[0].parent()))
+                    {
+                        throw new TestFailed("command carries files from " +
+                                             "several directories");
+                    }
+
+                    if(!commanded.add(file))
+                        throw new TestFailed("file created more than once");
+                }
+            }
+        }
+
+        if(commanded.size() != 5)
+            throw new TestFailed("created files not all commanded");
+
+        for(Path file : commanded)
+        {
+            if(!server.exist(file) || server.isDirectory(file))
+                throw new TestFailed("created file not in directory tree");
+        }
+    }
+
+    /** Looks up several paths at once. */
+    private void checkLookups() throws Throwable
+    {
+        Path[]      paths = {new Path("/a/f1"), new Path("/"),
+                             new Path("/a/b"), new Path("/a/b/f2")};
+        boolean[]   directories = server.isDirectories(paths);
+
+        if(!Arrays.equals(directories,
+                          new boolean[] {false, true, true, false}))
+        {
+            throw new TestFailed("isDirectories answered wrongly: " +
+                                 Arrays.toString(directories));
+        }
+
+        Path[]      files = {new Path("/a/f3"), new Path("/a/b/f5"),
+                             new Path("/a/f1")};
+        Storage[]   stubs = server.getStorages(files);
+
+        for(int index = 0; index < files.length; ++index)
+        {
+            if(stubs[index] != server.getStorage(files[index]))
+            {
+                throw new TestFailed("getStorages returned a server not " +
+                                     "holding the file");
+            }
+        }
+
+        try
+        {
+            server.isDirectories(new Path[] {new Path("/a"),
+                                             new Path("/a/missing")});
+            throw new TestFailed("isDirectories accepted a missing path");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            server.getStorages(new Path[] {new Path("/a/f1"),
+                                           new Path("/a/b")});
+            throw new TestFailed("getStorages accepted a directory");
+        }
+        catch(FileNotFoundException e) { }
+    }
+
+    /** Creates files until the placement policy finds no server. */
+    private void checkUnplaced() throws Throwable
+    {
+        Path[]      files = {new Path("/a/b/g1"), new Path("/a/b/g2")};
+
+        storage[0].calls.clear();
+        storage[1].calls.clear();
+
+        server.placement = new PlacementPolicy()
+        {
+            private int         placed = 0;
+
+            @Override
+            synchronized int place(Path file, ServerTable servers)
+            {
+                return placed++ == 0 ? 0 : -1;
+            }
+        };
+
+        try
+        {
+            server.createFiles(files);
+            throw new TestFailed("files created with no server to hold them");
+        }
+        catch(IllegalStateException e) { }
+
+        if(storage[0].calls.size() != 1 ||
+           !Arrays.equals(storage[0].calls.get(0), new Path[] {files[0]}) ||
+           !storage[1].calls.isEmpty())
+        {
+            throw new TestFailed("placed file not created on its server");
+        }
+
+        if(!server.exist(files[0]) || server.exist(files[1]))
+            throw new TestFailed("unplaced file added to the directory tree");
+    }
+
+    /** Storage server that records the batch create commands it
+        receives. */
+    private class RecordingServer extends NullServer
+    {
+        /** Files carried by each batch create command. */
+        final List<Path[]>  calls =
+            Collections.synchronizedList(new ArrayList<Path[]>());
+
+        @Override
+        public boolean create(Path file)
+        {
+            failure(new TestFailed("file created one at a time"));
+            return true;
+        }
+
+        @Override
+        public boolean[] createFiles(Path[] files) throws RMIException
+        {
+            calls.add(files);
+            return super.createFiles(files);
+        }
+    }
+}
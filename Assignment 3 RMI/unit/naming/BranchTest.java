@@ -0,0 +1,150 @@
+package naming;
+
+import java.util.*;
+
+import test.*;
+
+/** Unit test for the child index of <code>Branch</code>.
+
+    <p>
+    The test adds, looks up and removes a large number of entries in a hashed
+    and in a sorted branch, adds them again over the remaining ones, and checks
+    that the sorted branch lists its entries in lexicographic order. It then
+    checks that removing files and directories frees their inodes and names.
+ */
+public class BranchTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice = "checking naming server child index";
+
+    /** Number of entries added to each branch. */
+    private static final int    ENTRIES = 10000;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkBranch(new Branch("/"));
+        checkBranch(new Branch("/", true));
+
+        Branch      sorted = new Branch("/", true);
+
+        sorted.addFile("c", -1);
+        sorted.addFile("a", -1);
+        sorted.addBranch("b");
+
+        if(!Arrays.equals(sorted.names(), new String[] {"a", "b", "c"}))
+            throw new TestFailed("sorted branch not listed in order");
+
+        if(!(sorted.getDirectory("b") instanceof Branch))
+            throw new TestFailed("added branch not found");
+
+        if(sorted.getDirectory("b") == null ||
+           sorted.addBranch("d").names().length != 0)
+        {
+            throw new TestFailed("new branch is not empty");
+        }
+
+        checkRelease();
+    }
+
+    /** Checks that removing files and directories frees their inodes and
+        names, and that leaves of removed files know they were removed.
+
+        @throws TestFailed If an inode or a name is kept after its last use.
+     */
+    private void checkRelease() throws TestFailed
+    {
+        Branch      root = new Branch("/");
+        Branch      directory = root.addBranch("d");
+        Branch      nested = directory.addBranch("e");
+        Leaf        leaf = root.addFile("f", 0);
+
+        for(int index = 0; index < ENTRIES; ++index)
+            nested.addFile("file" + index, index);
+
+        directory.addFile("f", 1);
+
+        if(root.inodes.size() != ENTRIES + 2 ||
+           root.inodes.names.size() != ENTRIES + 3)
+        {
+            throw new TestFailed("wrong number of inodes or names");
+        }
+
+        root.remove("f");
+
+        Leaf        added = root.addFile("g", 2);
+
+        if(!leaf.isRemoved() || added.isRemoved() || leaf.equals(added))
+            throw new TestFailed("removed file not known as removed");
+
+        root.remove("d");
+
+        if(!directory.isRemoved() || nested.names().length != 0 ||
+           root.inodes.size() != 1 || root.inodes.names.size() != 1)
+        {
+            throw new TestFailed("removed directory not freed");
+        }
+    }
+
+    /** Adds, looks up and removes entries in the given branch.
+
+        @throws TestFailed If the branch does not behave as a map from names to
+                           nodes.
+     */
+    private void checkBranch(Branch branch) throws TestFailed
+    {
+        for(int index = 0; index < ENTRIES; ++index)
+            branch.addFile("file" + index, -1);
+
+        if(branch.size() != ENTRIES || branch.names().length != ENTRIES)
+            throw new TestFailed("wrong number of entries in branch");
+
+        for(int index = 0; index < ENTRIES; ++index)
+        {
+            Node    node = branch.getDirectory("file" + index);
+
+            if(node == null || !node.name.equals("file" + index))
+                throw new TestFailed("entry not found in branch");
+        }
+
+        if(branch.getDirectory("missing") != null)
+            throw new TestFailed("missing entry found in branch");
+
+        for(int index = 0; index < ENTRIES; index += 2)
+        {
+            if(branch.remove("file" + index) == null)
+                throw new TestFailed("entry not removed from branch");
+        }
+
+        if(branch.size() != ENTRIES / 2 ||
+           branch.getDirectory("file0") != null ||
+           branch.getDirectory("file1") == null)
+        {
+            throw new TestFailed("wrong entries left after removal");
+        }
+
+        if(branch.remove("file0") != null)
+            throw new TestFailed("removed entry removed again");
+
+        // Entries that were moved back after the removals must still be
+        // found, and adding an existing name replaces its entry.
+        for(int index = 1; index < ENTRIES; index += 2)
+        {
+            if(branch.getDirectory("file" + index) == null)
+                throw new TestFailed("entry lost after removal of another");
+        }
+
+        for(int index = 0; index < ENTRIES; ++index)
+            branch.addFile("file" + index, index);
+
+        if(branch.size() != ENTRIES || branch.names().length != ENTRIES ||
+           ((Leaf)branch.getDirectory("file1")).server() != 1)
+        {
+            throw new TestFailed("entries not replaced or added again");
+        }
+    }
+}
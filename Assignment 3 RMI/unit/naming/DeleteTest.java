@@ -0,0 +1,177 @@
+package naming;
+
+import java.util.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+import test.*;
+
+/** Unit test for the deletion of files and directories on storage servers.
+
+    <p>
+    The storage servers are local objects that record the delete commands
+    they receive, and take a while to answer each one.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Deleting a directory sends one command for the directory to each
+        storage server holding a file anywhere under it, including replicas,
+        and to no other server.</li>
+    <li>The commands are sent to all the servers at once.</li>
+    <li>A server that cannot be reached does not keep the path from being
+        deleted from the tree. If it sends heartbeats, it is commanded again
+        when it comes back from being dead.</li>
+    </ul>
+ */
+public class DeleteTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server deletion on storage servers";
+
+    /** Number of storage servers. */
+    private static final int        SERVERS = 5;
+    /** Time each server takes to answer a delete command, in
+        milliseconds. */
+    private static final long       DELAY = 200;
+
+    /** Naming server. */
+    private NamingServer            server;
+    /** Storage servers, by id in the naming server's table. */
+    private RecordingServer[]       storage = new RecordingServer[SERVERS];
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+
+            // Server 0 holds a file in the directory, servers 1 and 2 files
+            // in nested directories, and server 3 a replica. Server 4 holds
+            // nothing under it.
+            String[][]  files = {{"/d/a"}, {"/d/e/b"}, {"/d/e/f/c"},
+                                 {"/d/g/h"}, {"/other"}};
+
+            for(int index = 0; index < SERVERS; ++index)
+            {
+                Path[]  paths = new Path[files[index].length];
+
+                for(int file = 0; file < paths.length; ++file)
+                    paths[file] = new Path(files[index][file]);
+
+                storage[index] = new RecordingServer();
+                server.register(storage[index], storage[index], paths);
+            }
+
+            ((Leaf)server.resolve(new Path("/d/a"))).setReplicas(new int[] {3});
+            server.servers.hosted(3, 1);
+            ((Leaf)server.resolve(new Path("/d/g/h"))).setReplicas(new int[] {0});
+            server.servers.hosted(0, 1);
+
+            checkFanOut();
+            checkFailure();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Deletes the directory and checks the commands received. */
+    private void checkFanOut() throws Throwable
+    {
+        Path        directory = new Path("/d");
+        long        start = System.currentTimeMillis();
+
+        if(!server.delete(directory))
+            throw new TestFailed("directory not deleted");
+
+        long        elapsed = System.currentTimeMillis() - start;
+
+        for(int index = 0; index < SERVERS - 1; ++index)
+        {
+            if(!storage[index].deleted.equals(
+                    Collections.singletonList(directory)))
+            {
+                throw new TestFailed("server holding files under the " +
+                                     "directory not commanded once to " +
+                                     "delete it");
+            }
+        }
+
+        if(!storage[SERVERS - 1].deleted.isEmpty())
+            throw new TestFailed("unrelated server commanded to delete");
+
+        if(elapsed >= 2 * DELAY)
+        {
+            throw new TestFailed("delete commands sent one at a time: " +
+                                 elapsed + " ms");
+        }
+
+        for(int index = 0; index < SERVERS; ++index)
+        {
+            if(server.servers.files(index) != (index == SERVERS - 1 ? 1 : 0))
+                throw new TestFailed("deleted files still counted on server");
+        }
+    }
+
+    /** Deletes a file on a server that cannot be reached, then brings the
+        server back. */
+    private void checkFailure() throws Throwable
+    {
+        Path                other = new Path("/other");
+        RecordingServer     failing = storage[SERVERS - 1];
+
+        server.heartbeat(failing, 0, 1L << 30);
+        failing.reachable = false;
+
+        if(!server.delete(other) || server.exist(other))
+            throw new TestFailed("unreachable server kept file from deletion");
+
+        // The server is marked dead, then sends a heartbeat again.
+        failing.reachable = true;
+        failing.deleted.clear();
+        server.servers.setDead(SERVERS - 1, true);
+        server.heartbeat(failing, 0, 1L << 30);
+
+        if(!failing.deleted.equals(Collections.singletonList(other)))
+        {
+            throw new TestFailed("unreachable server not commanded again " +
+                                 "when it came back");
+        }
+    }
+
+    /** Storage server that records the delete commands it receives. */
+    private static class RecordingServer extends NullServer
+    {
+        /** Paths the server was commanded to delete. */
+        final List<Path>    deleted =
+            Collections.synchronizedList(new ArrayList<Path>());
+        /** Whether commands reach the server. */
+        volatile boolean    reachable = true;
+
+        @Override
+        public boolean delete(Path path) throws RMIException
+        {
+            if(!reachable)
+                throw new RMIException("server unreachable");
+
+            try
+            {
+                Thread.sleep(DELAY);
+            }
+            catch(InterruptedException e) { }
+
+            deleted.add(path);
+            return true;
+        }
+    }
+}
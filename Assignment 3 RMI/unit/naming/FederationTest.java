@@ -0,0 +1,239 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import storage.*;
+import test.*;
+
+/** Unit test for the routing of client calls among the naming servers of a
+    federated filesystem.
+
+    <p>
+    Three naming servers, called as local objects, are mounted at the root
+    directory, at <code>/users</code> and at <code>/home/data</code>. Each has a
+    storage server of its own, a local object that does nothing.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Mount tables are read from text, and malformed lines are
+        rejected.</li>
+    <li>The mount points and the directories above them exist and are listed
+        once, before and after their owners create them.</li>
+    <li>Files and directories are created on the naming server owning them,
+        and a mounted directory is created on its owner when needed.</li>
+    <li>Mounted directories cannot be deleted, and other paths are deleted on
+        their owner.</li>
+    <li>Batch calls are split among the owners, and their answers put back in
+        order.</li>
+    </ul>
+ */
+public class FederationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking federation of naming servers by mount table";
+
+    /** Mount points, in the order of the naming servers. */
+    private static final String[]   PREFIXES = {"/", "/users", "/home/data"};
+
+    /** Naming servers, in the order of their mount points. */
+    private NamingServer[]          servers =
+        new NamingServer[PREFIXES.length];
+    /** Storage servers, one per naming server. */
+    private NullServer[]            storage = new NullServer[PREFIXES.length];
+    /** Service routing among the naming servers. */
+    private Service                 service;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkRead();
+
+            MountTable      table = new MountTable();
+
+            for(int index = 0; index < PREFIXES.length; ++index)
+            {
+                servers[index] = new NamingServer();
+                storage[index] = new NullServer();
+                servers[index].register(storage[index], storage[index],
+                                        new Path[0]);
+                table.mount(new Path(PREFIXES[index]), servers[index]);
+            }
+
+            service = NamingStubs.service(table);
+
+            checkMounted();
+            checkCreate();
+            checkDelete();
+            checkBatches();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Reads mount tables from text. */
+    private void checkRead() throws Throwable
+    {
+        MountTable      table = MountTable.read(new StringReader(
+            "# Mount table\n/  localhost\n\n  /users   localhost:7000\n"));
+
+        if(table.prefixes().length != 2)
+            throw new TestFailed("mount table not read");
+
+        if(table.route(new Path("/users/a")) ==
+           table.route(new Path("/home/a")))
+        {
+            throw new TestFailed("paths not routed by prefix");
+        }
+
+        try
+        {
+            MountTable.read(new StringReader("/ localhost extra\n"));
+            throw new TestFailed("malformed mount table accepted");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            new MountTable().route(new Path("/a"));
+            throw new TestFailed("mount table without root routed a path");
+        }
+        catch(IllegalStateException e) { }
+    }
+
+    /** Checks the mount points and the directories above them. */
+    private void checkMounted() throws Throwable
+    {
+        checkList(new Path("/"), "home", "users");
+        checkList(new Path("/home"), "data");
+
+        if(!service.isDirectory(new Path("/home")) ||
+           !service.isDirectory(new Path("/home/data")))
+        {
+            throw new TestFailed("mounted directory not a directory");
+        }
+    }
+
+    /** Creates files and directories, and checks their owners. */
+    private void checkCreate() throws Throwable
+    {
+        if(!service.createFile(new Path("/home/f")) ||
+           !servers[0].exist(new Path("/home/f")))
+        {
+            throw new TestFailed("file not created on naming server owning " +
+                                 "its parent");
+        }
+
+        // The root naming server now has /home as well, which is listed once.
+        checkList(new Path("/"), "home", "users");
+        checkList(new Path("/home"), "data", "f");
+
+        if(!service.createFile(new Path("/users/u")) ||
+           !servers[1].exist(new Path("/users/u")) ||
+           servers[0].exist(new Path("/users/u")))
+        {
+            throw new TestFailed("file not created on mounted naming server " +
+                                 "alone");
+        }
+
+        if(service.createFile(new Path("/users")))
+            throw new TestFailed("file created at mount point");
+
+        try
+        {
+            service.createFile(new Path("/home/data/x/y"));
+            throw new TestFailed("file created in missing directory");
+        }
+        catch(FileNotFoundException e) { }
+
+        if(!service.createDirectory(new Path("/home/data/x")) ||
+           !servers[2].isDirectory(new Path("/home/data/x")))
+        {
+            throw new TestFailed("directory not created on mounted naming " +
+                                 "server");
+        }
+    }
+
+    /** Deletes paths through the routing service. */
+    private void checkDelete() throws Throwable
+    {
+        if(service.delete(new Path("/home")) ||
+           service.delete(new Path("/home/data")))
+        {
+            throw new TestFailed("mounted directory deleted");
+        }
+
+        if(!service.delete(new Path("/home/f")) ||
+           servers[0].exist(new Path("/home/f")))
+        {
+            throw new TestFailed("file not deleted on its owner");
+        }
+    }
+
+    /** Sends batch calls through the routing service. */
+    private void checkBatches() throws Throwable
+    {
+        Path[]      files = {new Path("/a1"), new Path("/users/g"),
+                             new Path("/home/data/x/z"), new Path("/home"),
+                             new Path("/home/data/w")};
+        boolean[]   created = service.createFiles(files);
+
+        if(!Arrays.equals(created,
+                          new boolean[] {true, true, true, false, true}))
+        {
+            throw new TestFailed("createFiles answered wrongly: " +
+                                 Arrays.toString(created));
+        }
+
+        boolean[]   directories = service.isDirectories(new Path[] {
+            new Path("/home"), new Path("/home/data/x"), new Path("/a1"),
+            new Path("/users")});
+
+        if(!Arrays.equals(directories,
+                          new boolean[] {true, true, false, true}))
+        {
+            throw new TestFailed("isDirectories answered wrongly: " +
+                                 Arrays.toString(directories));
+        }
+
+        Storage[]   stubs = service.getStorages(
+            new Path[] {files[0], files[1], files[2]});
+
+        for(int index = 0; index < stubs.length; ++index)
+        {
+            if(stubs[index] != storage[index])
+            {
+                throw new TestFailed("getStorages returned a storage server " +
+                                     "of another naming server");
+            }
+        }
+    }
+
+    /** Checks the entries of a directory listed through the routing
+        service. */
+    private void checkList(Path directory, String... expected)
+        throws Throwable
+    {
+        String[]    names = service.list(directory);
+
+        Arrays.sort(names);
+
+        if(!Arrays.equals(names, expected))
+        {
+            throw new TestFailed("listing of " + directory + " is " +
+                                 Arrays.toString(names));
+        }
+    }
+}
@@ -0,0 +1,243 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import client.*;
+import common.*;
+import storage.*;
+import test.*;
+
+/** Unit test for the client cache of naming server lookups under leases.
+
+    <p>
+    The cache calls the naming server as a local object, and is told apart
+    from other clients, which call the naming server directly. The storage
+    server is a local object that does nothing.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Repeated lookups of a path are served from the cache.</li>
+    <li>Streams opened repeatedly on a file are directed by the cache.</li>
+    <li>Changes made by other clients are reported with the next lease, and
+        the cached lookups of the changed paths and of their parents are
+        dropped.</li>
+    <li>Changes made through the cache are seen by it at once.</li>
+    <li>Cached lookups are dropped when their lease expires, when the cache
+        falls too far behind the changes, and when the naming server
+        restarts.</li>
+    </ul>
+ */
+public class LeaseTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking client cache of naming server lookups under leases";
+
+    /** Naming server. */
+    private NamingServer        server;
+    /** Storage server. */
+    private NullServer          storage;
+    /** Client cache. */
+    private CachingService      cache;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+            server.leaseTerm = 60000;
+            storage = new NullServer();
+            server.register(storage, storage,
+                            new Path[] {new Path("/a/f1"),
+                                        new Path("/a/f2")});
+
+            cache = (CachingService)NamingStubs.cached(server);
+
+            checkHits();
+            checkStreams();
+            checkInvalidations();
+            checkOwnChanges();
+            checkExpiry();
+            checkDropped();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Looks up the same paths repeatedly. */
+    private void checkHits() throws Throwable
+    {
+        for(int round = 0; round < 3; ++round)
+        {
+            String[]    names = cache.list(new Path("/a"));
+
+            Arrays.sort(names);
+
+            if(cache.getStorage(new Path("/a/f1")) != storage ||
+               !Arrays.equals(names, new String[] {"f1", "f2"}) ||
+               !cache.isDirectory(new Path("/a")))
+            {
+                throw new TestFailed("cached lookup differs from naming " +
+                                     "server");
+            }
+        }
+
+        checkCounts(2, 7, "repeated lookups not served from the cache");
+
+        try
+        {
+            cache.getStorage(new Path("/a"));
+            throw new TestFailed("cache returned storage server for a " +
+                                 "directory");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            cache.list(new Path("/a/f1"));
+            throw new TestFailed("cache listed a file");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            cache.isDirectory(new Path("/missing"));
+            throw new TestFailed("cache found a missing path");
+        }
+        catch(FileNotFoundException e) { }
+    }
+
+    /** Opens streams on the same file repeatedly. */
+    private void checkStreams() throws Throwable
+    {
+        Path        file = new Path("/a/f1");
+        long        misses = cache.misses;
+        long        hits = cache.hits;
+
+        for(int round = 0; round < 5; ++round)
+        {
+            new DFSInputStream(cache, file).close();
+            new DFSOutputStream(cache, file).close();
+
+            if(cache.open(file).storage() != storage ||
+               cache.getWriteStorage(file) != storage)
+            {
+                throw new TestFailed("cached handle differs from naming " +
+                                     "server");
+            }
+        }
+
+        checkCounts(misses, hits + 20, "streams not opened from the cache");
+    }
+
+    /** Changes the tree through another client. */
+    private void checkInvalidations() throws Throwable
+    {
+        server.delete(new Path("/a/f2"));
+
+        // The change is reported with the next lease, on any path.
+        cache.isDirectory(new Path("/"));
+
+        if(!Arrays.equals(cache.list(new Path("/a")), new String[] {"f1"}))
+            throw new TestFailed("change reported with lease not applied");
+
+        if(cache.getStorage(new Path("/a/f1")) != storage)
+            throw new TestFailed("unchanged lookup not served");
+    }
+
+    /** Changes the tree through the cache. */
+    private void checkOwnChanges() throws Throwable
+    {
+        cache.createFile(new Path("/a/g"));
+
+        String[]    names = cache.list(new Path("/a"));
+
+        Arrays.sort(names);
+
+        if(!Arrays.equals(names, new String[] {"f1", "g"}))
+            throw new TestFailed("change made through the cache not seen");
+
+        cache.delete(new Path("/a"));
+
+        try
+        {
+            cache.getStorage(new Path("/a/f1"));
+            throw new TestFailed("lookup under deleted directory served");
+        }
+        catch(FileNotFoundException e) { }
+    }
+
+    /** Lets a lease expire. */
+    private void checkExpiry() throws Throwable
+    {
+        server.leaseTerm = 20;
+        server.createDirectory(new Path("/e"));
+        cache.isDirectory(new Path("/e"));
+
+        long        misses = cache.misses;
+
+        Thread.sleep(50);
+        cache.isDirectory(new Path("/e"));
+
+        if(cache.misses != misses + 1)
+            throw new TestFailed("lookup served after its lease expired");
+
+        server.leaseTerm = 60000;
+    }
+
+    /** Drops all cached lookups when the changes are no longer known. */
+    private void checkDropped() throws Throwable
+    {
+        server.createDirectory(new Path("/r1"));
+        server.createDirectory(new Path("/r2"));
+        cache.isDirectory(new Path("/e"));
+
+        long        misses = cache.misses;
+
+        cache.isDirectory(new Path("/e"));
+
+        if(cache.misses != misses)
+            throw new TestFailed("lookup not served from the cache");
+
+        // More changes than the naming server keeps.
+        for(int index = 0; index <= Invalidations.KEPT; ++index)
+            server.invalidations.record(new Path("/other"));
+
+        cache.isDirectory(new Path("/r1"));
+        cache.isDirectory(new Path("/e"));
+
+        if(cache.misses != misses + 2)
+            throw new TestFailed("lookup served after changes were lost");
+
+        // A restarted naming server numbers its changes anew.
+        server.invalidations = new Invalidations();
+        cache.isDirectory(new Path("/r2"));
+        cache.isDirectory(new Path("/e"));
+
+        if(cache.misses != misses + 4)
+            throw new TestFailed("lookup served after naming server restart");
+    }
+
+    /** Checks the numbers of lookups served by the naming server and by the
+        cache. */
+    private void checkCounts(long misses, long hits, String message)
+        throws TestFailed
+    {
+        if(cache.misses != misses || cache.hits != hits)
+        {
+            throw new TestFailed(message + ": " + misses + " misses and " +
+                                 hits + " hits expected, " + cache.misses +
+                                 " and " + cache.hits + " counted");
+        }
+    }
+}
@@ -0,0 +1,247 @@
+package naming;
+
+import java.io.*;
+
+import common.*;
+import storage.*;
+import test.*;
+
+/** Unit test for storage server liveness and the repair of the files held by
+    dead servers.
+
+    <p>
+    The storage servers are local objects over temporary directories, called
+    directly by the naming server. The test sends their heartbeats, and checks
+    for missed heartbeats itself rather than through the liveness thread.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Heartbeats from an unregistered server are refused.</li>
+    <li>A server that misses its heartbeats is marked dead, and servers that
+        send them, or never sent one, are not.</li>
+    <li>A replicated file whose original was on the dead server is taken over
+        by its replica, and gains a new replica on another server.</li>
+    <li>A file held only by the dead server still refers to it.</li>
+    <li>No new files are placed on the dead server.</li>
+    <li>When the dead server sends a heartbeat again, the copies on it that
+        are no longer referenced, and the files deleted while it was dead, are
+        deleted from it.</li>
+    <li>A server that reports little free space is given no new files.</li>
+    </ul>
+ */
+public class LivenessTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server liveness of storage servers";
+
+    /** Number of storage servers that send heartbeats. A further server sends
+        none. */
+    private static final int        SERVERS = 3;
+    /** Interval between heartbeats, in milliseconds. */
+    private static final long       INTERVAL = 100;
+    /** Free space reported by the servers, in bytes. */
+    private static final long       FREE = 1L << 30;
+
+    /** Directories of the storage servers. */
+    private TemporaryDirectory[]    directories =
+        new TemporaryDirectory[SERVERS + 1];
+    /** Storage servers, by id in the naming server's table. */
+    private StorageServer[]         storage =
+        new StorageServer[SERVERS + 1];
+    /** Naming server. */
+    private NamingServer            server;
+    /** File replicated on the first two servers. */
+    private final Path              replicated =
+        new Path(new Path(new Path(), "dir"), "replicated");
+    /** File held only by the first server. */
+    private final Path              single =
+        new Path(new Path(new Path(), "dir"), "single");
+
+    /** Creates the storage server directories and the files. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            for(int index = 0; index <= SERVERS; ++index)
+                directories[index] = new TemporaryDirectory();
+
+            directories[0].add(new String[] {"dir", "replicated"},
+                               "contents");
+            directories[0].add(new String[] {"dir", "single"}, "contents");
+            directories[1].add(new String[] {"dir", "replicated"},
+                               "contents");
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage directories", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+            server.liveness.interval = INTERVAL;
+            server.liveness.misses = 1;
+
+            for(int index = 0; index <= SERVERS; ++index)
+            {
+                storage[index] = new StorageServer(directories[index].root());
+                server.register(storage[index], storage[index],
+                                index == 0 ? new Path[] {replicated, single}
+                                           : new Path[0]);
+            }
+
+            ((Leaf)server.resolve(replicated)).setReplicas(new int[] {1});
+            server.servers.hosted(1, 1);
+
+            checkUnregistered();
+            checkDeath();
+            checkRevival();
+            checkFull();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that heartbeats from an unregistered server are refused. */
+    private void checkUnregistered() throws Throwable
+    {
+        StorageServer   unregistered =
+            new StorageServer(directories[0].root());
+
+        if(server.heartbeat(unregistered, 0, FREE))
+            throw new TestFailed("heartbeat from unregistered server accepted");
+    }
+
+    /** Lets the first server miss its heartbeats, and checks that it is
+        marked dead and its files repaired. */
+    private void checkDeath() throws Throwable
+    {
+        for(int index = 0; index < SERVERS; ++index)
+            server.heartbeat(storage[index], 0, FREE);
+
+        Thread.sleep(3 * INTERVAL);
+
+        for(int index = 1; index < SERVERS; ++index)
+            server.heartbeat(storage[index], 0, FREE);
+
+        server.liveness.check();
+
+        if(!server.servers.dead(0))
+            throw new TestFailed("server missing heartbeats not marked dead");
+
+        if(server.servers.dead(1) || server.servers.dead(2) ||
+           server.servers.dead(SERVERS))
+        {
+            throw new TestFailed("live server marked dead");
+        }
+
+        // The replica takes over, and a new replica is made on the server
+        // that sends heartbeats and holds the fewest files.
+        Leaf            leaf = (Leaf)server.resolve(replicated);
+
+        if(leaf.server() != 1)
+            throw new TestFailed("replica did not take over from dead server");
+
+        if(leaf.replicas() == null || leaf.replicas().length != 1 ||
+           leaf.replicas()[0] == 0 || leaf.replicas()[0] == 1)
+        {
+            throw new TestFailed("file not replicated again after server " +
+                                 "died");
+        }
+
+        if(!replicated.toFile(directories[leaf.replicas()[0]].root()).exists())
+            throw new TestFailed("new replica not copied");
+
+        if(server.getStorage(replicated) == storage[0] ||
+           server.servers.files(0) != 1)
+        {
+            throw new TestFailed("dead server still holds replicated file");
+        }
+
+        // The file held only by the dead server keeps referring to it.
+        if(server.getStorage(single) != storage[0])
+            throw new TestFailed("file on dead server lost");
+
+        for(int index = 0; index < 2 * SERVERS; ++index)
+        {
+            Path        file = new Path(new Path(new Path(), "dir"),
+                                        "new" + index);
+
+            server.createFile(file);
+
+            if(((Leaf)server.resolve(file)).server() == 0)
+                throw new TestFailed("new file placed on dead server");
+        }
+
+        server.delete(single);
+
+        if(!single.toFile(directories[0].root()).exists())
+            throw new TestFailed("file deleted on dead server");
+    }
+
+    /** Brings the first server back, and checks that the copies it held that
+        are no longer needed are deleted. */
+    private void checkRevival() throws Throwable
+    {
+        server.heartbeat(storage[0], 0, FREE);
+
+        if(server.servers.dead(0))
+            throw new TestFailed("server not brought back by heartbeat");
+
+        if(replicated.toFile(directories[0].root()).exists() ||
+           single.toFile(directories[0].root()).exists())
+        {
+            throw new TestFailed("stale copy left on server brought back");
+        }
+    }
+
+    /** Checks that a server reporting little free space is given no new
+        files. */
+    private void checkFull() throws Throwable
+    {
+        for(int index = 0; index < SERVERS; ++index)
+        {
+            server.heartbeat(storage[index], 0,
+                             index == 2 ? 0 : FREE);
+        }
+
+        for(int index = 0; index < 2 * SERVERS; ++index)
+        {
+            Path        file = new Path(new Path(new Path(), "dir"),
+                                        "full" + index);
+
+            server.createFile(file);
+
+            if(((Leaf)server.resolve(file)).server() == 2)
+                throw new TestFailed("new file placed on full server");
+        }
+    }
+
+    /** Removes the storage server directories. */
+    @Override
+    protected void clean()
+    {
+        for(int index = 0; index <= SERVERS; ++index)
+        {
+            if(directories[index] != null)
+            {
+                directories[index].remove();
+                directories[index] = null;
+            }
+        }
+    }
+}
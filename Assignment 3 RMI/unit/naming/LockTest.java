@@ -0,0 +1,323 @@
+package naming;
+
+import java.io.*;
+
+import common.*;
+import test.*;
+
+/** Unit test for the locks taken by clients on paths.
+
+    <p>
+    The naming server is called as a local object, and each client waiting for
+    a lock is a thread of its own.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>An exclusive lock excludes locks on the path and below it, and locks
+        in disjoint subtrees are granted at once.</li>
+    <li>Shared locks are held together, and a waiting exclusive request is
+        granted before shared requests made after it.</li>
+    <li>Unlocking a path that is not locked under the given token, and
+        locking a missing path, are rejected.</li>
+    <li>An interrupted request keeps no lock.</li>
+    <li>Locks neither unlocked nor renewed are released once their lease runs
+        out, and a renewed lock is kept.</li>
+    <li>Statistics count the lock calls and the time they waited and held
+        their locks.</li>
+    </ul>
+ */
+public class LockTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server locks taken by clients";
+
+    /** Time after which a request not granted is taken to be waiting, in
+        milliseconds. */
+    private static final long       BLOCKED = 200;
+    /** Time allowed for a request to be granted, in milliseconds. */
+    private static final long       WAIT = 5000;
+
+    /** Naming server. */
+    private NamingServer            server;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+
+            for(String directory : new String[] {"/a", "/a/b", "/b", "/b/y",
+                                                 "/f"})
+            {
+                server.createDirectory(new Path(directory));
+            }
+
+            checkExclusive();
+            checkFairness();
+            checkErrors();
+            checkInterrupted();
+            checkStatistics();
+            checkExpiry();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Locks a path exclusively, then paths under it and elsewhere. */
+    private void checkExclusive() throws Throwable
+    {
+        long        a = server.lock(new Path("/a"), true);
+
+        Locker      below = new Locker("/a/b", false);
+
+        // A disjoint subtree is locked at once, in either mode.
+        long        y = server.lock(new Path("/b/y"), true);
+        long        b = server.lock(new Path("/b"), false);
+
+        if(below.granted(BLOCKED))
+            throw new TestFailed("path locked under an exclusive lock");
+
+        server.unlock(new Path("/a"), a);
+
+        if(!below.granted(WAIT))
+            throw new TestFailed("lock not granted once the path above it " +
+                                 "was unlocked");
+
+        server.unlock(new Path("/a/b"), below.token);
+        server.unlock(new Path("/b"), b);
+        server.unlock(new Path("/b/y"), y);
+    }
+
+    /** Queues an exclusive request between shared ones. */
+    private void checkFairness() throws Throwable
+    {
+        long        first = server.lock(new Path("/f"), false);
+        long        second = server.lock(new Path("/f"), false);
+
+        Locker      writer = new Locker("/f", true);
+
+        if(writer.granted(BLOCKED))
+            throw new TestFailed("exclusive lock granted with shared holders");
+
+        Locker      reader = new Locker("/f", false);
+
+        if(reader.granted(BLOCKED))
+        {
+            throw new TestFailed("shared lock granted before an earlier " +
+                                 "exclusive request");
+        }
+
+        server.unlock(new Path("/f"), first);
+        server.unlock(new Path("/f"), second);
+
+        if(!writer.granted(WAIT) || reader.granted(BLOCKED))
+            throw new TestFailed("exclusive request not granted first");
+
+        server.unlock(new Path("/f"), writer.token);
+
+        if(!reader.granted(WAIT))
+            throw new TestFailed("shared request not granted after writer");
+
+        server.unlock(new Path("/f"), reader.token);
+    }
+
+    /** Unlocks paths that are not locked, and locks a missing path. */
+    private void checkErrors() throws Throwable
+    {
+        try
+        {
+            server.unlock(new Path("/a"), 0);
+            throw new TestFailed("unlocked path that is not locked");
+        }
+        catch(IllegalArgumentException e) { }
+
+        long        token = server.lock(new Path("/a/b"), false);
+
+        try
+        {
+            server.unlock(new Path("/a/b"), token + 1);
+            throw new TestFailed("unlocked path under another token");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            server.unlock(new Path("/a"), token);
+            throw new TestFailed("unlocked directory above a locked path");
+        }
+        catch(IllegalArgumentException e) { }
+
+        server.unlock(new Path("/a/b"), token);
+
+        try
+        {
+            server.unlock(new Path("/a/b"), token);
+            throw new TestFailed("unlocked path twice");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            server.lock(new Path("/missing"), true);
+            throw new TestFailed("locked missing path");
+        }
+        catch(FileNotFoundException e) { }
+    }
+
+    /** Interrupts a waiting request. */
+    private void checkInterrupted() throws Throwable
+    {
+        long        token = server.lock(new Path("/a/b"), true);
+
+        Locker      waiting = new Locker("/a/b", false);
+
+        if(waiting.granted(BLOCKED))
+            throw new TestFailed("shared lock granted with exclusive holder");
+
+        waiting.interrupt();
+        waiting.join(WAIT);
+        server.unlock(new Path("/a/b"), token);
+
+        // The interrupted request holds no shared lock above the path.
+        server.unlock(new Path("/a"), server.lock(new Path("/a"), true));
+        server.unlock(new Path("/"), server.lock(new Path("/"), true));
+    }
+
+    /** Checks the statistics of the calls so far. */
+    private void checkStatistics() throws Throwable
+    {
+        LockStatistics  before = server.lockStatistics();
+
+        if(before.held() != 0 || before.waiting() != 0)
+            throw new TestFailed("locks counted as held or waiting");
+
+        long            token = server.lock(new Path("/b"), true);
+        Thread.sleep(BLOCKED);
+        server.unlock(new Path("/b"), token);
+
+        LockStatistics  after = server.lockStatistics();
+
+        if(after.acquired() != before.acquired() + 1)
+            throw new TestFailed("lock call not counted");
+
+        if(after.holdTime() - before.holdTime() < BLOCKED * 1000000L)
+            throw new TestFailed("hold time not counted");
+
+        if(before.maxWaitTime() < BLOCKED * 1000000L ||
+           before.waitTime() < before.maxWaitTime())
+        {
+            throw new TestFailed("wait time not counted");
+        }
+    }
+
+    /** Lets leases run out, and renews one. */
+    private void checkExpiry() throws Throwable
+    {
+        server.lockTerm = BLOCKED * 2;
+
+        long        expiring = server.lock(new Path("/a"), true);
+        long        renewed = server.lock(new Path("/b"), true);
+
+        server.lockTerm = NamingServer.LOCK_TERM;
+
+        Locker      waiting = new Locker("/a/b", false);
+
+        Thread.sleep(BLOCKED);
+        server.renewLock(new Path("/b"), renewed);
+
+        // The waiting request is granted once the lease of the holder runs
+        // out, with no further call to the naming server.
+        if(!waiting.granted(WAIT))
+            throw new TestFailed("lock not granted once the lease ran out");
+
+        try
+        {
+            server.unlock(new Path("/a"), expiring);
+            throw new TestFailed("unlocked path whose lease ran out");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            server.renewLock(new Path("/a"), expiring);
+            throw new TestFailed("renewed lock whose lease ran out");
+        }
+        catch(IllegalArgumentException e) { }
+
+        server.unlock(new Path("/b"), renewed);
+        server.unlock(new Path("/a/b"), waiting.token);
+
+        if(server.lockStatistics().expired() != 1)
+            throw new TestFailed("expired lock not counted");
+    }
+
+    /** Client locking a path from a thread of its own. */
+    private class Locker extends Thread
+    {
+        /** Path locked. */
+        private final String        path;
+        /** Access asked for. */
+        private final boolean       exclusive;
+        /** Whether the lock was granted. */
+        private boolean             locked = false;
+        /** Token of the lock, once granted. */
+        volatile long               token;
+
+        /** Starts locking a path. */
+        Locker(String path, boolean exclusive)
+        {
+            this.path = path;
+            this.exclusive = exclusive;
+            start();
+        }
+
+        @Override
+        public void run()
+        {
+            try
+            {
+                token = server.lock(new Path(path), exclusive);
+
+                synchronized(this)
+                {
+                    locked = true;
+                    notifyAll();
+                }
+            }
+            catch(IllegalStateException e) { }
+            catch(Throwable t)
+            {
+                failure(t);
+            }
+        }
+
+        /** Waits for the lock to be granted.
+
+            @param timeout Time to wait, in milliseconds.
+            @return Whether the lock was granted in time.
+         */
+        synchronized boolean granted(long timeout) throws InterruptedException
+        {
+            long    end = System.currentTimeMillis() + timeout;
+            long    remaining = timeout;
+
+            while(!locked && remaining > 0)
+            {
+                wait(remaining);
+                remaining = end - System.currentTimeMillis();
+            }
+
+            return locked;
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package naming;
+
+import java.util.*;
+
+import common.*;
+import test.*;
+
+/** Unit test for hierarchical locking in the naming server.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>While a directory is locked exclusively, operations in an independent
+        subtree complete, and reads of the locked directory wait.</li>
+    <li>Many threads creating and deleting directories concurrently, partly in
+        the same directories, leave the tree consistent.</li>
+    </ul>
+ */
+public class LockingTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server hierarchical locking";
+
+    /** Number of threads used in the concurrent test. */
+    private static final int    THREADS = 8;
+    /** Number of directories created by each thread. */
+    private static final int    DIRECTORIES = 200;
+    /** Time for which a blocked operation is expected to stay blocked, in
+        milliseconds. */
+    private static final long   WAIT = 200;
+
+    /** Naming server under test. */
+    private NamingServer        server;
+    /** Root directory path. */
+    private final Path          root = new Path();
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        server = new NamingServer();
+
+        try
+        {
+            checkIndependence();
+            checkConcurrency();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks that an exclusive lock blocks only its own subtree. */
+    private void checkIndependence() throws Throwable
+    {
+        final Path          a = new Path(root, "a");
+        final Path          b = new Path(root, "b");
+
+        server.createDirectory(a);
+        server.createDirectory(b);
+
+        PathLock            locks = new PathLock();
+        Branch              locked = (Branch)server.lockPath(a, locks,
+                                                    NamingServer.EXCLUSIVE);
+
+        Thread              reader;
+        final boolean[]     listed = new boolean[1];
+
+        try
+        {
+            // Operations under /b do not touch the lock of /a.
+            server.createDirectory(new Path(b, "x"));
+
+            if(!server.isDirectory(new Path(b, "x")))
+                throw new TestFailed("directory not created in /b");
+
+            // Checking the type of /a only needs the lock on the root.
+            if(!server.isDirectory(a))
+                throw new TestFailed("/a not reported as directory");
+
+            reader = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        server.list(a);
+
+                        synchronized(listed)
+                        {
+                            listed[0] = true;
+                        }
+                    }
+                    catch(Throwable t) { }
+                }
+            });
+
+            reader.start();
+            reader.join(WAIT);
+
+            synchronized(listed)
+            {
+                if(listed[0])
+                    throw new TestFailed("directory listed while locked");
+            }
+
+            if(locked.size() != 0)
+                throw new TestFailed("locked directory modified");
+        }
+        finally
+        {
+            locks.release();
+        }
+
+        reader.join();
+
+        if(!listed[0])
+            throw new TestFailed("directory not listed after lock release");
+    }
+
+    /** Creates and deletes directories from many threads. */
+    private void checkConcurrency() throws Throwable
+    {
+        final Path          shared = new Path(root, "shared");
+        final List<Throwable>   errors =
+            Collections.synchronizedList(new ArrayList<Throwable>());
+        Thread[]            threads = new Thread[THREADS];
+
+        server.createDirectory(shared);
+
+        for(int index = 0; index < THREADS; ++index)
+        {
+            final Path      own = new Path(root, "thread" + index);
+            final int       number = index;
+
+            threads[index] = new Thread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    try
+                    {
+                        server.createDirectory(own);
+
+                        for(int count = 0; count < DIRECTORIES; ++count)
+                        {
+                            Path    mine = new Path(own, "d" + count);
+                            Path    common = new Path(shared,
+                                                      number + "d" + count);
+
+                            server.createDirectory(mine);
+                            server.createDirectory(common);
+                            server.isDirectory(mine);
+
+                            // Delete every other directory again.
+                            if(count % 2 == 0)
+                            {
+                                server.delete(mine);
+                                server.delete(common);
+                            }
+                        }
+                    }
+                    catch(Throwable t)
+                    {
+                        errors.add(t);
+                    }
+                }
+            });
+
+            threads[index].start();
+        }
+
+        for(Thread thread : threads)
+            thread.join();
+
+        if(!errors.isEmpty())
+            throw new TestFailed("concurrent operation failed", errors.get(0));
+
+        if(server.list(shared).length != THREADS * DIRECTORIES / 2)
+            throw new TestFailed("wrong number of entries in shared directory");
+
+        for(int index = 0; index < THREADS; ++index)
+        {
+            Path            own = new Path(root, "thread" + index);
+
+            if(server.list(own).length != DIRECTORIES / 2)
+                throw new TestFailed("wrong number of entries in directory");
+
+            if(server.exist(new Path(own, "d0")) ||
+               !server.exist(new Path(own, "d1")))
+            {
+                throw new TestFailed("wrong entries left in directory");
+            }
+        }
+    }
+}
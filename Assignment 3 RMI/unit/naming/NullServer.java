@@ -0,0 +1,76 @@
+package naming;
+
+import java.util.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+
+/** Storage server that does nothing, used to test the naming server.
+
+    <p>
+    Instances are registered with a naming server that is called as a local
+    object, as both the client and the command interface. Every command
+    succeeds, and every file is empty. Tests that monitor the calls made by
+    the naming server override the methods they watch.
+ */
+class NullServer implements Storage, Command
+{
+    @Override
+    public boolean create(Path file) throws RMIException
+    {
+        return true;
+    }
+
+    @Override
+    public boolean[] createFiles(Path[] files) throws RMIException
+    {
+        boolean[]   created = new boolean[files.length];
+
+        Arrays.fill(created, true);
+        return created;
+    }
+
+    @Override
+    public boolean delete(Path path) throws RMIException
+    {
+        return true;
+    }
+
+    @Override
+    public boolean copy(Path file, Storage server) throws RMIException
+    {
+        return true;
+    }
+
+    @Override
+    public long[] stat(Path file) throws RMIException
+    {
+        return new long[] {0, 0};
+    }
+
+    @Override
+    public boolean discard(Path file, long[] attributes) throws RMIException
+    {
+        return true;
+    }
+
+    @Override
+    public long size(Path file) throws RMIException
+    {
+        return 0;
+    }
+
+    @Override
+    public byte[] read(Path file, long offset, int length)
+        throws RMIException
+    {
+        return new byte[0];
+    }
+
+    @Override
+    public void write(Path file, long offset, byte[] data)
+        throws RMIException
+    {
+    }
+}
@@ -0,0 +1,271 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import storage.*;
+import test.*;
+
+/** Unit test for paged directory listings.
+
+    <p>
+    Naming servers with and without sorted directories and snapshots are
+    called as local objects. The storage server is a local object that does
+    nothing.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Listings in lexicographic order return every entry once, in
+        order.</li>
+    <li>Unordered listings return every entry once, each page in the order of
+        its continuation token.</li>
+    <li>Entries present throughout a listing are listed exactly once when
+        entries are added and removed meanwhile.</li>
+    <li>Bad page sizes and tokens, files and missing directories are
+        rejected.</li>
+    <li>A mounted directory of a federated filesystem is listed page by page
+        with the mount points in it.</li>
+    </ul>
+ */
+public class PagingTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking paged directory listings";
+
+    /** Number of files in the listed directory. */
+    private static final int    FILES = 500;
+    /** Number of entries requested per page. */
+    private static final int    COUNT = 7;
+
+    /** Storage server. */
+    private final NullServer    storage = new NullServer();
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            for(int mode = 0; mode < 4; ++mode)
+            {
+                boolean         sorted = (mode & 1) != 0;
+                boolean         snapshots = (mode & 2) != 0;
+                NamingServer    server = new NamingServer(sorted, snapshots);
+                String          context = (sorted ? "sorted" : "unsorted") +
+                    " directories, " + (snapshots ? "with" : "without") +
+                    " snapshots: ";
+
+                server.register(storage, storage, files("/d", FILES));
+                server.createDirectory(new Path("/d/sub"));
+
+                checkListing(server, true, context);
+                checkListing(server, false, context);
+                checkChanges(server, context);
+                checkRejected(server, context);
+            }
+
+            checkFederated();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Lists <code>/d</code> page by page, and compares the entries with a
+        full listing. */
+    private void checkListing(NamingServer server, boolean ordered,
+                              String context) throws Throwable
+    {
+        List<String>    listed = listAll(server, new Path("/d"), ordered,
+                                         context);
+        String[]        expected = server.list(new Path("/d"));
+
+        Arrays.sort(expected);
+
+        List<String>    sorted = new ArrayList<String>(listed);
+
+        Collections.sort(sorted);
+
+        if(!sorted.equals(Arrays.asList(expected)))
+        {
+            throw new TestFailed(context + "entries not listed exactly once " +
+                                 "in " + (ordered ? "ordered" : "unordered") +
+                                 " listing");
+        }
+
+        if(ordered && !listed.equals(sorted))
+            throw new TestFailed(context + "ordered listing not in order");
+    }
+
+    /** Adds and removes entries in the middle of a listing. */
+    private void checkChanges(NamingServer server, String context)
+        throws Throwable
+    {
+        Path            directory = new Path("/c");
+        Set<String>     kept = new HashSet<String>();
+
+        server.createDirectory(directory);
+        server.createFiles(files("/c", 100));
+
+        for(int index = 0; index < 100; index += 2)
+            kept.add("f" + index);
+
+        Page            page = server.listPage(directory, null, COUNT, false);
+        List<String>    listed = new ArrayList<String>(
+            Arrays.asList(page.names()));
+
+        // Remove every odd file, and add as many new ones.
+        for(int index = 1; index < 100; index += 2)
+        {
+            server.delete(new Path("/c/f" + index));
+            server.createDirectory(new Path("/c/n" + index));
+        }
+
+        while(page.next() != null)
+        {
+            page = server.listPage(directory, page.next(), COUNT, false);
+            listed.addAll(Arrays.asList(page.names()));
+        }
+
+        for(String name : kept)
+        {
+            if(Collections.frequency(listed, name) != 1)
+            {
+                throw new TestFailed(context + "entry present throughout " +
+                                     "listing not listed exactly once");
+            }
+        }
+
+        if(new HashSet<String>(listed).size() != listed.size())
+            throw new TestFailed(context + "entry listed twice");
+    }
+
+    /** Checks the calls that are rejected. */
+    private void checkRejected(NamingServer server, String context)
+        throws Throwable
+    {
+        String[]    tokens = {"", "x", "hf1"};
+        boolean[]   ordered = {false, false, true};
+
+        for(int index = 0; index < tokens.length; ++index)
+        {
+            try
+            {
+                server.listPage(new Path("/d"), tokens[index], COUNT,
+                                ordered[index]);
+                throw new TestFailed(context + "bad token accepted");
+            }
+            catch(IllegalArgumentException e) { }
+        }
+
+        try
+        {
+            server.listPage(new Path("/d"), null, 0, true);
+            throw new TestFailed(context + "empty page requested");
+        }
+        catch(IllegalArgumentException e) { }
+
+        try
+        {
+            server.listPage(new Path("/d/f1"), null, COUNT, true);
+            throw new TestFailed(context + "file listed");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            server.listPage(new Path("/missing"), null, COUNT, false);
+            throw new TestFailed(context + "missing directory listed");
+        }
+        catch(FileNotFoundException e) { }
+    }
+
+    /** Lists a mounted directory holding entries and mount points. */
+    private void checkFederated() throws Throwable
+    {
+        NamingServer    root = new NamingServer();
+        NamingServer    mounted = new NamingServer();
+        MountTable      table = new MountTable();
+
+        root.register(storage, storage, files("/d", 20));
+        mounted.register(storage, storage, new Path[0]);
+        table.mount(new Path("/"), root);
+        table.mount(new Path("/d/f10a"), mounted);
+        table.mount(new Path("/d/zz"), mounted);
+
+        Service         service = NamingStubs.service(table);
+        List<String>    listed = listAll(service, new Path("/d"), true,
+                                         "federated: ");
+        String[]        expected = service.list(new Path("/d"));
+
+        Arrays.sort(expected);
+
+        if(!listed.equals(Arrays.asList(expected)))
+        {
+            throw new TestFailed("federated: mounted directory listed as " +
+                                 listed);
+        }
+    }
+
+    /** Lists a directory page by page.
+
+        <p>
+        Each page is checked to hold at most <code>COUNT</code> entries, in
+        the order of its token.
+     */
+    private List<String> listAll(Service service, Path directory,
+                                 boolean ordered, String context)
+        throws Throwable
+    {
+        List<String>    listed = new ArrayList<String>();
+        String          token = null;
+
+        do
+        {
+            Page        page = service.listPage(directory, token, COUNT,
+                                                ordered);
+            String[]    names = page.names();
+
+            if(names.length > COUNT)
+                throw new TestFailed(context + "page larger than requested");
+
+            if(page.next() != null)
+            {
+                Comparator<String>  order =
+                    Paging.comparator(Paging.order(page.next()));
+
+                for(int index = 1; index < names.length; ++index)
+                {
+                    if(order.compare(names[index - 1], names[index]) >= 0)
+                        throw new TestFailed(context + "page out of order");
+                }
+            }
+
+            listed.addAll(Arrays.asList(names));
+            token = page.next();
+        }
+        while(token != null);
+
+        return listed;
+    }
+
+    /** Returns the paths of files <code>f0</code> to <code>f(count - 1)</code>
+        in a directory. */
+    private static Path[] files(String directory, int count)
+    {
+        Path[]      files = new Path[count];
+
+        for(int index = 0; index < count; ++index)
+            files[index] = new Path(directory + "/f" + index);
+
+        return files;
+    }
+}
@@ -0,0 +1,129 @@
+package naming;
+
+import java.io.*;
+
+import common.*;
+import test.*;
+
+/** Unit test for path resolution and the path cache of the naming server.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>The cache evicts the least recently used path once full.</li>
+    <li>A node found before an invalidation is not cached.</li>
+    <li>Paths under a deleted directory no longer resolve, even if they were
+        cached, and do not resolve to the old nodes once the directory is
+        created again.</li>
+    <li>Resolution fails when a file is used as a directory.</li>
+    </ul>
+ */
+public class PathCacheTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server path resolution and cache";
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkEviction();
+        checkGeneration();
+
+        try
+        {
+            checkInvalidation();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception during resolution", t);
+        }
+    }
+
+    /** Checks that the least recently used path is evicted. */
+    private void checkEviction() throws TestFailed
+    {
+        PathCache   cache = new PathCache(2);
+        Path        a = new Path(new Path(), "a");
+        Path        b = new Path(new Path(), "b");
+        Path        c = new Path(new Path(), "c");
+
+        cache.put(a, new Branch("a"), cache.generation());
+        cache.put(b, new Branch("b"), cache.generation());
+
+        // Access a, so that b becomes the least recently used path.
+        cache.get(a);
+        cache.put(c, new Branch("c"), cache.generation());
+
+        if(cache.size() != 2)
+            throw new TestFailed("cache grew beyond its capacity");
+
+        if(cache.get(a) == null || cache.get(b) != null || cache.get(c) == null)
+            throw new TestFailed("cache did not evict least recently used path");
+    }
+
+    /** Checks that nodes found before an invalidation are not cached. */
+    private void checkGeneration() throws TestFailed
+    {
+        PathCache   cache = new PathCache(16);
+        Path        a = new Path(new Path(), "a");
+        long        generation = cache.generation();
+
+        cache.remove(new Path(new Path(), "b"));
+        cache.put(a, new Branch("a"), generation);
+
+        if(cache.get(a) != null)
+            throw new TestFailed("node cached after concurrent invalidation");
+    }
+
+    /** Checks that deleting a directory invalidates cached paths under it. */
+    private void checkInvalidation() throws Throwable
+    {
+        NamingServer    server = new NamingServer();
+        Path            a = new Path(new Path(), "a");
+        Path            b = new Path(a, "b");
+        Path            c = new Path(b, "c");
+
+        server.createDirectory(a);
+        server.createDirectory(b);
+        server.createDirectory(c);
+
+        Node            node = server.resolve(c);
+
+        if(node.parent != server.resolve(b) ||
+           node.parent.parent.parent != server.tree)
+        {
+            throw new TestFailed("resolved node has wrong parent");
+        }
+
+        if(server.resolve(c) != node)
+            throw new TestFailed("repeated resolution returned different node");
+
+        server.delete(a);
+
+        if(server.exist(c))
+            throw new TestFailed("cached path resolves after delete");
+
+        server.createDirectory(a);
+        server.createDirectory(b);
+        server.createDirectory(c);
+
+        if(server.resolve(c) == node)
+            throw new TestFailed("recreated path resolves to deleted node");
+
+        // A leaf in the middle of a path must stop resolution.
+        server.tree.addFile("file", -1);
+
+        try
+        {
+            server.resolve(new Path(new Path(new Path(), "file"), "x"));
+            throw new TestFailed("file resolved as directory");
+        }
+        catch(FileNotFoundException e) { }
+    }
+}
@@ -0,0 +1,109 @@
+package naming;
+
+import java.io.*;
+
+import common.*;
+import test.*;
+
+/** Unit test for the placement of files created through the naming server.
+
+    <p>
+    The storage servers are local objects that do nothing, and the placement
+    policy counts the files it is asked to place.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Creating a file under a missing parent fails for the parent, even with
+        no storage servers connected.</li>
+    <li>Files that already exist are not placed.</li>
+    <li>New files are placed once each, and fail when no storage server is
+        connected.</li>
+    </ul>
+ */
+public class PlacementTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server placement of new files";
+
+    /** Naming server. */
+    private NamingServer            server;
+    /** Number of files placed. */
+    private int                     placed = 0;
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+            server.placement = new PlacementPolicy.RoundRobin()
+            {
+                @Override
+                synchronized int place(Path file, ServerTable servers)
+                {
+                    ++placed;
+                    return super.place(file, servers);
+                }
+            };
+
+            checkUnconnected();
+            checkPlaced();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Creates files before any storage server is connected. */
+    private void checkUnconnected() throws Throwable
+    {
+        try
+        {
+            server.createFile(new Path("/missing/f"));
+            throw new TestFailed("file created under a missing parent");
+        }
+        catch(FileNotFoundException e) { }
+
+        if(placed != 0)
+            throw new TestFailed("file under a missing parent placed");
+
+        try
+        {
+            server.createFile(new Path("/f"));
+            throw new TestFailed("file created with no storage server");
+        }
+        catch(IllegalStateException e) { }
+
+        if(server.exist(new Path("/f")))
+            throw new TestFailed("unplaced file added to the directory tree");
+    }
+
+    /** Creates new and existing files. */
+    private void checkPlaced() throws Throwable
+    {
+        NullServer  storage = new NullServer();
+
+        server.register(storage, storage, new Path[] {new Path("/d/old")});
+        placed = 0;
+
+        if(!server.createFile(new Path("/d/new")) || placed != 1)
+            throw new TestFailed("new file not placed once");
+
+        if(server.createFile(new Path("/d/old")) ||
+           server.createFile(new Path("/d/new")))
+        {
+            throw new TestFailed("existing file created again");
+        }
+
+        if(placed != 1)
+            throw new TestFailed("existing file placed");
+    }
+}
@@ -0,0 +1,348 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+import test.*;
+
+/** Unit test for the moving of files between storage servers to even out
+    the files each hosts.
+
+    <p>
+    The storage servers are local objects over temporary directories, called
+    directly by the naming server. Rounds are run by the test rather than by
+    the rebalancer's thread.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Nothing is moved while rebalancing is disabled.</li>
+    <li>Files move from a server hosting all of them until each server hosts
+        its share, clients are directed to the new copies, and the old copies
+        are deleted.</li>
+    <li>Copies take at least as long as the bandwidth allows.</li>
+    <li>A balanced cluster is left alone.</li>
+    <li>A file reported written while it is copied is not moved, and the copy
+        is deleted.</li>
+    <li>A file written through its old copy after it is moved is moved back,
+        and the write is kept.</li>
+    </ul>
+ */
+public class RebalanceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server rebalancing of files among storage servers";
+
+    /** Number of storage servers. */
+    private static final int        SERVERS = 4;
+    /** Number of files, all registered by the first storage server. */
+    private static final int        FILES = 12;
+    /** Size reported for each file, in bytes. */
+    private static final long       SIZE = 100;
+    /** Bytes per second copied by moves. */
+    private static final long       BANDWIDTH = 10000;
+    /** Time the old copy of a moved file is kept, in milliseconds. */
+    private static final long       SETTLE = 50;
+
+    /** Directories of the storage servers. */
+    private TemporaryDirectory[]    directories =
+        new TemporaryDirectory[SERVERS];
+    /** Storage servers. */
+    private StorageServer[]         storage = new StorageServer[SERVERS];
+    /** Naming server. */
+    private NamingServer            server;
+    /** Files registered by the first storage server. */
+    private final Path[]            files = new Path[FILES];
+
+    /** Creates the storage server directories and the files. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            for(int index = 0; index < SERVERS; ++index)
+                directories[index] = new TemporaryDirectory();
+
+            for(int index = 0; index < FILES; ++index)
+            {
+                directories[0].add(new String[] {"d", "f" + index},
+                                   "contents");
+                files[index] = new Path("/d/f" + index);
+            }
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage directories", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+
+            for(int index = 0; index < SERVERS; ++index)
+            {
+                storage[index] = new StorageServer(directories[index].root());
+                server.register(storage[index], storage[index],
+                                index == 0 ? files : new Path[0]);
+            }
+
+            long[]  sizes = new long[FILES];
+            long[]  modified = new long[FILES];
+
+            Arrays.fill(sizes, SIZE);
+            server.attributes(storage[0], files, sizes, modified);
+
+            server.rebalancer.settle = SETTLE;
+
+            checkDisabled();
+            checkMoves();
+            checkWritten();
+            checkWrittenAfter();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Runs a round with rebalancing disabled. */
+    private void checkDisabled() throws Throwable
+    {
+        if(server.rebalancer.round() != 0 || server.servers.files(0) != FILES)
+            throw new TestFailed("files moved with rebalancing disabled");
+    }
+
+    /** Moves files until the servers are balanced. */
+    private void checkMoves() throws Throwable
+    {
+        int         share = FILES / SERVERS;
+        int         moves = FILES - share;
+
+        server.setRebalancing(BANDWIDTH);
+
+        long        start = System.nanoTime();
+        int         moved = server.rebalancer.round();
+        long        elapsed = System.nanoTime() - start;
+
+        if(moved != moves)
+            throw new TestFailed(moved + " files moved, expected " + moves);
+
+        // The first copy starts at once, and each other one waits for the
+        // bandwidth used by the previous one.
+        if(elapsed < (moves - 1) * SIZE * 1000000000L / BANDWIDTH)
+            throw new TestFailed("files copied faster than the bandwidth");
+
+        int[]       hosted = new int[SERVERS];
+
+        for(Path file : files)
+        {
+            Storage     stub = server.getStorage(file);
+            int         index = Arrays.asList(storage).indexOf(stub);
+
+            ++hosted[index];
+
+            for(int other = 0; other < SERVERS; ++other)
+            {
+                if(file.toFile(directories[other].root()).exists() !=
+                   (other == index))
+                {
+                    throw new TestFailed("file not held by the server " +
+                                         "clients are directed to alone");
+                }
+            }
+        }
+
+        for(int index = 0; index < SERVERS; ++index)
+        {
+            if(hosted[index] != share || server.servers.files(index) != share)
+                throw new TestFailed("servers not balanced");
+        }
+
+        if(server.rebalancer.round() != 0)
+            throw new TestFailed("files moved in a balanced cluster");
+    }
+
+    /** Writes a file while it is copied. */
+    private void checkWritten() throws Throwable
+    {
+        final NamingServer  naming = new NamingServer();
+        final Path          file = new Path("/w");
+        Command             writing = new Command()
+        {
+            @Override
+            public boolean create(Path path) throws RMIException
+            {
+                return storage[2].create(path);
+            }
+
+            @Override
+            public boolean[] createFiles(Path[] paths) throws RMIException
+            {
+                return storage[2].createFiles(paths);
+            }
+
+            @Override
+            public boolean delete(Path path) throws RMIException
+            {
+                return storage[2].delete(path);
+            }
+
+            @Override
+            public boolean copy(Path path, Storage source)
+                throws RMIException, FileNotFoundException, IOException
+            {
+                naming.attributes(storage[3], new Path[] {path},
+                                  new long[] {SIZE}, new long[] {1});
+                return storage[2].copy(path, source);
+            }
+
+            @Override
+            public long[] stat(Path path) throws FileNotFoundException
+            {
+                return storage[2].stat(path);
+            }
+
+            @Override
+            public boolean discard(Path path, long[] attributes)
+            {
+                return storage[2].discard(path, attributes);
+            }
+        };
+
+        directories[3].add(new String[] {"w"}, "contents");
+        directories[3].add(new String[] {"x"}, "contents");
+        naming.register(storage[3], storage[3],
+                        new Path[] {file, new Path("/x")});
+        naming.register(storage[2], writing, new Path[0]);
+        naming.setRebalancing(BANDWIDTH);
+
+        if(naming.rebalancer.round() != 0)
+            throw new TestFailed("file written during its copy moved");
+
+        for(Path path : new Path[] {file, new Path("/x")})
+        {
+            if(naming.getStorage(path) != storage[3] ||
+               path.toFile(directories[2].root()).exists())
+            {
+                throw new TestFailed("copy of written file not discarded");
+            }
+        }
+    }
+
+    /** Writes a file through its old copy once it is moved. */
+    private void checkWrittenAfter() throws Throwable
+    {
+        final NamingServer  naming = new NamingServer();
+        final byte[]        data = "written late".getBytes();
+        final List<Path>    written =
+            Collections.synchronizedList(new ArrayList<Path>());
+        Command             late = new Command()
+        {
+            @Override
+            public boolean create(Path path) throws RMIException
+            {
+                return storage[3].create(path);
+            }
+
+            @Override
+            public boolean[] createFiles(Path[] paths) throws RMIException
+            {
+                return storage[3].createFiles(paths);
+            }
+
+            @Override
+            public boolean delete(Path path) throws RMIException
+            {
+                return storage[3].delete(path);
+            }
+
+            @Override
+            public boolean copy(Path path, Storage source)
+                throws RMIException, FileNotFoundException, IOException
+            {
+                return storage[3].copy(path, source);
+            }
+
+            @Override
+            public long[] stat(Path path) throws FileNotFoundException
+            {
+                return storage[3].stat(path);
+            }
+
+            // A client directed to this server before the move writes the
+            // file just before the old copy is checked.
+            @Override
+            public boolean discard(Path path, long[] attributes)
+            {
+                try
+                {
+                    storage[3].write(path, 0, data);
+                    written.add(path);
+                }
+                catch(IOException e)
+                {
+                    failure(e);
+                }
+
+                return storage[3].discard(path, attributes);
+            }
+        };
+
+        directories[3].add(new String[] {"late"}, "contents");
+        directories[3].add(new String[] {"other"}, "contents");
+        naming.register(storage[3], late,
+                        new Path[] {new Path("/late"), new Path("/other")});
+        naming.register(storage[1], storage[1], new Path[0]);
+        naming.setRebalancing(BANDWIDTH);
+        naming.rebalancer.settle = SETTLE;
+
+        if(naming.rebalancer.round() != 1 || written.size() != 1)
+            throw new TestFailed("file not moved");
+
+        Path        file = written.get(0);
+
+        if(naming.getStorage(file) != storage[3] ||
+           !new String(storage[3].read(file, 0, data.length))
+                .equals(new String(data)))
+        {
+            throw new TestFailed("file written through its old copy not " +
+                                 "moved back");
+        }
+
+        // The copy left on the target is deleted once it has settled.
+        naming.rebalancer.round();
+
+        if(file.toFile(directories[1].root()).exists() ||
+           !file.toFile(directories[3].root()).exists())
+        {
+            throw new TestFailed("copies not kept or deleted as expected");
+        }
+    }
+
+    /** Removes the storage server directories. */
+    @Override
+    protected void clean()
+    {
+        for(int index = 0; index < SERVERS; ++index)
+        {
+            if(directories[index] != null)
+            {
+                directories[index].remove();
+                directories[index] = null;
+            }
+        }
+    }
+}
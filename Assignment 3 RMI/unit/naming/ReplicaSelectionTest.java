@@ -0,0 +1,241 @@
+package naming;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import common.*;
+import storage.*;
+import test.*;
+
+/** Unit test for the choice among the copies of a replicated file.
+
+    <p>
+    The storage servers are local objects, and the file is given its replicas
+    directly rather than by the replicator. Nothing is read from the servers.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>The common prefix of two addresses is counted in bits.</li>
+    <li>With the <code>primary</code> selection, <code>getStorage</code> always
+        returns the original copy.</li>
+    <li>With the <code>round-robin</code> selection, <code>getStorage</code>
+        returns each copy in turn.</li>
+    <li>With the <code>least-loaded</code> selection, <code>getStorage</code>
+        evens out the requests sent to the servers.</li>
+    <li><code>getReplicas</code> returns every copy once, the selected copy
+        first, and leaves out copies on servers that are not available.</li>
+    <li><code>getReplicas</code> rejects directories and missing files.</li>
+    </ul>
+ */
+public class ReplicaSelectionTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server selection among file replicas";
+
+    /** Number of storage servers, each holding a copy of the file. */
+    private static final int        SERVERS = 3;
+
+    /** Directory of the storage servers. Nothing is stored in it. */
+    private TemporaryDirectory      directory;
+    /** Naming server. */
+    private NamingServer            server;
+    /** Storage servers, by id in the naming server's table. */
+    private StorageServer[]         storage = new StorageServer[SERVERS];
+    /** Replicated file. */
+    private final Path              file =
+        new Path(new Path(new Path(), "dir"), "file");
+
+    /** Creates the storage server directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage directory", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkPrefix();
+
+            server = new NamingServer();
+
+            for(int index = 0; index < SERVERS; ++index)
+            {
+                storage[index] = new StorageServer(directory.root());
+                server.register(storage[index], storage[index],
+                                index == 0 ? new Path[] {file} : new Path[0]);
+            }
+
+            ((Leaf)server.resolve(file)).setReplicas(new int[] {1, 2});
+
+            checkPrimary();
+            checkRoundRobin();
+            checkLeastLoaded();
+            checkReplicas();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the common prefix of addresses used by the nearest
+        selection. */
+    private void checkPrefix() throws Throwable
+    {
+        InetAddress     client = InetAddress.getByName("10.0.0.1");
+
+        if(ReplicaSelector.Nearest.commonPrefix(client,
+               new InetSocketAddress("10.0.0.1", 1)) != 32 ||
+           ReplicaSelector.Nearest.commonPrefix(client,
+               new InetSocketAddress("10.0.0.2", 1)) != 30 ||
+           ReplicaSelector.Nearest.commonPrefix(client,
+               new InetSocketAddress("10.0.1.1", 1)) != 23)
+        {
+            throw new TestFailed("common prefix of addresses miscounted");
+        }
+
+        if(ReplicaSelector.Nearest.commonPrefix(client,
+               new InetSocketAddress("::1", 1)) != 0 ||
+           ReplicaSelector.Nearest.commonPrefix(client, null) != 0)
+        {
+            throw new TestFailed("common prefix with an address of another " +
+                                 "family or an unknown address not zero");
+        }
+    }
+
+    /** Checks that the primary selection returns the original copy. */
+    private void checkPrimary() throws Throwable
+    {
+        server.setReplicaSelection(ReplicaSelector.PRIMARY);
+
+        for(int request = 0; request < SERVERS; ++request)
+        {
+            if(server.getStorage(file) != storage[0])
+                throw new TestFailed("primary selection returned a replica");
+        }
+    }
+
+    /** Checks that the round-robin selection returns each copy in turn. */
+    private void checkRoundRobin() throws Throwable
+    {
+        server.setReplicaSelection(ReplicaSelector.ROUND_ROBIN);
+
+        Set<Storage>    returned = new HashSet<Storage>();
+
+        for(int request = 0; request < SERVERS; ++request)
+            returned.add(server.getStorage(file));
+
+        if(returned.size() != SERVERS)
+        {
+            throw new TestFailed("round-robin selection did not return " +
+                                 "each copy");
+        }
+    }
+
+    /** Checks that the least-loaded selection evens out requests. */
+    private void checkLeastLoaded() throws Throwable
+    {
+        server.setReplicaSelection(ReplicaSelector.LEAST_LOADED);
+
+        for(int request = 0; request < 10; ++request)
+            server.servers.requested(0);
+
+        if(server.getStorage(file) == storage[0])
+        {
+            throw new TestFailed("least-loaded selection returned the " +
+                                 "busiest copy");
+        }
+
+        for(int request = 0; request < 30; ++request)
+            server.getStorage(file);
+
+        long            most = 0;
+        long            least = Long.MAX_VALUE;
+
+        for(int id = 0; id < SERVERS; ++id)
+        {
+            most = Math.max(most, server.servers.load(id));
+            least = Math.min(least, server.servers.load(id));
+        }
+
+        if(most - least > 1)
+        {
+            throw new TestFailed("least-loaded selection did not even out " +
+                                 "requests");
+        }
+    }
+
+    /** Checks the stubs returned by <code>getReplicas</code>. */
+    private void checkReplicas() throws Throwable
+    {
+        server.setReplicaSelection(ReplicaSelector.PRIMARY);
+
+        Storage[]       replicas = server.getReplicas(file);
+
+        if(replicas.length != SERVERS ||
+           new HashSet<Storage>(Arrays.asList(replicas)).size() != SERVERS)
+        {
+            throw new TestFailed("getReplicas did not return each copy once");
+        }
+
+        if(replicas[0] != storage[0])
+        {
+            throw new TestFailed("getReplicas did not return the selected " +
+                                 "copy first");
+        }
+
+        server.servers.set(1, null, null);
+        replicas = server.getReplicas(file);
+
+        if(replicas.length != SERVERS - 1 ||
+           Arrays.asList(replicas).contains(null) ||
+           Arrays.asList(replicas).contains(storage[1]))
+        {
+            throw new TestFailed("getReplicas returned a copy on a server " +
+                                 "that is not available");
+        }
+
+        try
+        {
+            server.getReplicas(file.parent());
+            throw new TestFailed("getReplicas accepted a directory");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            server.getReplicas(new Path(file.parent(), "missing"));
+            throw new TestFailed("getReplicas accepted a missing file");
+        }
+        catch(FileNotFoundException e) { }
+    }
+
+    /** Removes the storage server directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
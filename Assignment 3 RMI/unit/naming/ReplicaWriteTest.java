@@ -0,0 +1,217 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import client.*;
+import common.*;
+import storage.*;
+import test.*;
+
+/** Unit test for writes to replicated files.
+
+    <p>
+    The storage servers run over temporary directories, and register with a
+    naming server that is called as a local object. The replicator's windows
+    are ended by the test rather than by its thread. Clients are directed among
+    the copies of the file in turn, the default replica selection.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>An output stream writes the original of a replicated file, whichever
+        copy <code>getStorage</code> would return.</li>
+    <li>Once the write is reported, every copy clients may read holds the new
+        contents, before and after the file is replicated again.</li>
+    </ul>
+ */
+public class ReplicaWriteTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking writes to replicated files";
+
+    /** Number of storage servers. */
+    private static final int        SERVERS = 3;
+    /** Requests per window for each replica. */
+    private static final int        HOT = 10;
+    /** Time allowed for a write to be reported, in milliseconds. */
+    private static final long       WAIT = 5000;
+    /** Contents of the file when it is replicated. */
+    private static final String     BEFORE = "contents";
+    /** Contents written through the output stream. */
+    private static final String     AFTER = "new contents, longer";
+
+    /** Directories of the storage servers. */
+    private TemporaryDirectory[]    directories =
+        new TemporaryDirectory[SERVERS];
+    /** Storage servers. */
+    private StorageServer[]         storage = new StorageServer[SERVERS];
+    /** Naming server. */
+    private NamingServer            server;
+    /** Replicated file. */
+    private final Path              file = new Path("/dir/hot");
+
+    /** Creates the storage server directories and the file. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            for(int index = 0; index < SERVERS; ++index)
+                directories[index] = new TemporaryDirectory();
+
+            directories[0].add(new String[] {"dir", "hot"}, BEFORE);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage directories", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+            server.replicator.window = Long.MAX_VALUE;
+            server.replicator.hot = HOT;
+            server.replicator.maxReplicas = SERVERS - 1;
+            server.replicator.start();
+
+            for(int index = 0; index < SERVERS; ++index)
+            {
+                storage[index] = new StorageServer(directories[index].root());
+                storage[index].start("127.0.0.1", server);
+            }
+
+            // The attributes reported with the registration would drop
+            // replicas made before them.
+            long        deadline = System.currentTimeMillis() + WAIT;
+
+            while(server.open(file).size() != BEFORE.length())
+            {
+                if(System.currentTimeMillis() > deadline)
+                    throw new TestFailed("registered file not reported");
+
+                Thread.sleep(10);
+            }
+
+            replicate();
+            awaitCopies(BEFORE, SERVERS, "replica does not hold the file");
+
+            OutputStream    stream = new DFSOutputStream(server, file);
+
+            try
+            {
+                stream.write(AFTER.getBytes());
+            }
+            finally
+            {
+                stream.close();
+            }
+
+            awaitCopies(AFTER, 1, "copy holds the file as it was before " +
+                                  "the write");
+
+            replicate();
+            awaitCopies(AFTER, SERVERS, "copy made after the write does not " +
+                                        "hold the new contents");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Reads the file until it has a replica on every other server. */
+    private void replicate() throws Throwable
+    {
+        for(int replicas = 1; replicas < SERVERS; ++replicas)
+        {
+            for(int request = 0; request < HOT * replicas; ++request)
+                server.getStorage(file);
+
+            server.replicator.tick();
+        }
+    }
+
+    /** Waits until every copy clients may be directed to holds the given
+        contents.
+
+        @param contents The contents expected.
+        @param copies The least number of copies expected.
+        @param failure Reason given if the copies do not hold the contents in
+                       time.
+     */
+    private void awaitCopies(String contents, int copies, String failure)
+        throws Throwable
+    {
+        long        deadline = System.currentTimeMillis() + WAIT;
+
+        while(true)
+        {
+            Storage[]   stubs = server.getReplicas(file);
+            boolean     current = stubs.length >= copies;
+
+            for(Storage stub : stubs)
+            {
+                try
+                {
+                    current = current && read(stub).equals(contents);
+                }
+                catch(FileNotFoundException e)  // Stale replica dropped
+                {
+                    current = false;
+                }
+            }
+
+            // Every stub getStorage returns is among the copies.
+            if(current &&
+               Arrays.asList(stubs).contains(server.getStorage(file)))
+            {
+                return;
+            }
+
+            if(System.currentTimeMillis() > deadline)
+                throw new TestFailed(failure);
+
+            Thread.sleep(10);
+        }
+    }
+
+    /** Reads the whole file from a storage server. */
+    private String read(Storage stub) throws Throwable
+    {
+        return new String(stub.read(file, 0, (int)stub.size(file)));
+    }
+
+    /** Stops the storage servers and removes their directories. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+            server.replicator.stop();
+
+        for(int index = 0; index < SERVERS; ++index)
+        {
+            if(storage[index] != null)
+            {
+                storage[index].stop();
+                storage[index] = null;
+            }
+
+            if(directories[index] != null)
+            {
+                directories[index].remove();
+                directories[index] = null;
+            }
+        }
+    }
+}
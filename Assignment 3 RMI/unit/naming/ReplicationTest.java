@@ -0,0 +1,239 @@
+package naming;
+
+import java.io.*;
+
+import common.*;
+import storage.*;
+import test.*;
+
+/** Unit test for replication of frequently read files.
+
+    <p>
+    The storage servers are local objects over temporary directories, called
+    directly by the naming server. The replicator's windows are ended by the
+    test rather than by its thread.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>A file read often gains one replica per window, up to the maximum, and
+        the replicas hold the contents of the file.</li>
+    <li>A replicated file that is no longer read loses one replica per window,
+        and the dropped replicas are deleted from their servers.</li>
+    <li>A write reported by the server of the original drops the replicas,
+        and a report from a replica's server does not.</li>
+    <li>Deleting a replicated file deletes its replicas.</li>
+    </ul>
+ */
+public class ReplicationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server replication of frequently read files";
+
+    /** Number of storage servers. */
+    private static final int        SERVERS = 3;
+    /** Requests per window for each replica. */
+    private static final int        HOT = 10;
+
+    /** Directories of the storage servers. */
+    private TemporaryDirectory[]    directories =
+        new TemporaryDirectory[SERVERS];
+    /** Storage servers. */
+    private StorageServer[]         storage = new StorageServer[SERVERS];
+    /** Naming server. */
+    private NamingServer            server;
+    /** Replicated file. */
+    private final Path              file =
+        new Path(new Path(new Path(), "dir"), "hot");
+
+    /** Creates the storage server directories and the file. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            for(int index = 0; index < SERVERS; ++index)
+                directories[index] = new TemporaryDirectory();
+
+            directories[0].add(new String[] {"dir", "hot"}, "contents");
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage directories", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+            server.replicator.window = Long.MAX_VALUE;
+            server.replicator.hot = HOT;
+            server.replicator.cold = 2;
+            server.replicator.maxReplicas = SERVERS - 1;
+            server.replicator.start();
+
+            for(int index = 0; index < SERVERS; ++index)
+            {
+                storage[index] = new StorageServer(directories[index].root());
+                server.register(storage[index], storage[index],
+                                index == 0 ? new Path[] {file} : new Path[0]);
+            }
+
+            checkReplication();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+        finally
+        {
+            if(server != null)
+                server.replicator.stop();
+        }
+    }
+
+    /** Reads the file until it is replicated everywhere, lets it cool down,
+        then replicates and deletes it. */
+    private void checkReplication() throws Throwable
+    {
+        Leaf        leaf = (Leaf)server.resolve(file);
+
+        // One more replica per hot window. Each further replica needs HOT
+        // more requests.
+        for(int replicas = 1; replicas < SERVERS; ++replicas)
+        {
+            request(HOT * replicas);
+            server.replicator.tick();
+
+            if(leaf.replicas() == null || leaf.replicas().length != replicas)
+                throw new TestFailed("replica not added to hot file");
+        }
+
+        request(HOT * SERVERS);
+        server.replicator.tick();
+
+        if(leaf.replicas().length != SERVERS - 1)
+            throw new TestFailed("more replicas than the maximum");
+
+        for(int index = 1; index < SERVERS; ++index)
+        {
+            if(!contents(index).equals("contents"))
+                throw new TestFailed("replica does not hold the file");
+        }
+
+        if(server.servers.files(1) != 1 || server.servers.files(2) != 1)
+            throw new TestFailed("replicas not counted on their servers");
+
+        // Cool down: one replica dropped per window.
+        server.replicator.tick();
+
+        if(leaf.replicas() == null || leaf.replicas().length != SERVERS - 2 ||
+           onServers() != SERVERS - 1)
+        {
+            throw new TestFailed("replica not dropped from cold file");
+        }
+
+        server.replicator.tick();
+
+        if(leaf.replicas() != null || onServers() != 1)
+            throw new TestFailed("replica not dropped from cold file");
+
+        // Write the original of a replicated file.
+        request(HOT);
+        server.replicator.tick();
+
+        if(onServers() != 2)
+            throw new TestFailed("replica not added to hot file");
+
+        int         replica = leaf.replicas()[0];
+
+        server.attributes(storage[replica], new Path[] {file},
+                          new long[] {100}, new long[] {1});
+
+        if(leaf.replicas() == null)
+            throw new TestFailed("replicas dropped on report from a replica");
+
+        server.attributes(storage[0], new Path[] {file},
+                          new long[] {100}, new long[] {1});
+
+        if(leaf.replicas() != null || onServers() != 1 ||
+           server.servers.files(replica) != 0)
+        {
+            throw new TestFailed("stale replica kept after the original was " +
+                                 "written");
+        }
+
+        // Delete a replicated file.
+        request(HOT);
+        server.replicator.tick();
+
+        if(onServers() != 2)
+            throw new TestFailed("replica not added to hot file");
+
+        server.delete(file);
+
+        if(onServers() != 0)
+            throw new TestFailed("replica left after file deleted");
+    }
+
+    /** Requests the storage server of the file the given number of times. */
+    private void request(int count) throws FileNotFoundException
+    {
+        for(int request = 0; request < count; ++request)
+            server.getStorage(file);
+    }
+
+    /** Returns the contents of the file on the given storage server. */
+    private String contents(int index) throws IOException
+    {
+        BufferedReader  reader =
+            new BufferedReader(new FileReader(file.toFile(
+                directories[index].root())));
+
+        try
+        {
+            return reader.readLine();
+        }
+        finally
+        {
+            reader.close();
+        }
+    }
+
+    /** Returns the number of storage servers on which the file exists. */
+    private int onServers()
+    {
+        int         count = 0;
+
+        for(TemporaryDirectory directory : directories)
+        {
+            if(file.toFile(directory.root()).exists())
+                ++count;
+        }
+
+        return count;
+    }
+
+    /** Removes the storage server directories. */
+    @Override
+    protected void clean()
+    {
+        for(int index = 0; index < SERVERS; ++index)
+        {
+            if(directories[index] != null)
+            {
+                directories[index].remove();
+                directories[index] = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,165 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import test.*;
+
+/** Unit test for the lock-free snapshot of the naming server directory tree.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>The persistent child map stores, replaces and removes many names,
+        including names with equal hash codes, and leaves earlier versions
+        unchanged.</li>
+    <li>A naming server with snapshots answers reads about a directory while
+        the directory is locked exclusively, and reflects creations and
+        deletions.</li>
+    </ul>
+ */
+public class SnapshotTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server lock-free snapshots";
+
+    /** Number of names stored in the child map. */
+    private static final int    NAMES = 20000;
+    /** Names with equal hash codes. */
+    private static final String[]   COLLIDING =
+        new String[] {"AaAa", "AaBB", "BBAa", "BBBB"};
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        checkChildren();
+
+        try
+        {
+            checkServer();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the persistent child map. */
+    private void checkChildren() throws TestFailed
+    {
+        Snapshot.Children   empty = Snapshot.Children.EMPTY;
+        Snapshot.Children   full = empty;
+
+        for(int index = 0; index < NAMES; ++index)
+            full = full.put("name" + index, index);
+
+        for(String name : COLLIDING)
+            full = full.put(name, name);
+
+        if(empty.get("name0") != null)
+            throw new TestFailed("earlier version modified by put");
+
+        for(int index = 0; index < NAMES; ++index)
+        {
+            if(!Integer.valueOf(index).equals(full.get("name" + index)))
+                throw new TestFailed("stored name not found");
+        }
+
+        for(String name : COLLIDING)
+        {
+            if(!name.equals(full.get(name)))
+                throw new TestFailed("name with colliding hash not found");
+        }
+
+        ArrayList<String>   names = new ArrayList<String>();
+
+        full.names(names);
+
+        if(names.size() != NAMES + COLLIDING.length)
+            throw new TestFailed("wrong number of names in map");
+
+        // Replace one name, and remove half of the names and one of the
+        // colliding names.
+        Snapshot.Children   changed = full.put("name1", "replaced");
+
+        for(int index = 0; index < NAMES; index += 2)
+            changed = changed.remove("name" + index);
+
+        changed = changed.remove("AaBB");
+
+        if(changed.remove("missing") != changed)
+            throw new TestFailed("removing missing name copied map");
+
+        if(!"replaced".equals(changed.get("name1")) ||
+           changed.get("name0") != null || changed.get("name3") == null)
+        {
+            throw new TestFailed("wrong names after removal");
+        }
+
+        if(changed.get("AaBB") != null || !"BBBB".equals(changed.get("BBBB")) ||
+           !"AaAa".equals(changed.get("AaAa")))
+        {
+            throw new TestFailed("wrong colliding names after removal");
+        }
+
+        if(!Integer.valueOf(1).equals(full.get("name1")) ||
+           full.get("name0") == null || full.get("AaBB") == null)
+        {
+            throw new TestFailed("earlier version modified by remove");
+        }
+    }
+
+    /** Checks reads from a naming server with snapshots. */
+    private void checkServer() throws Throwable
+    {
+        NamingServer        server = new NamingServer(true, true);
+        Path                root = new Path();
+        Path                a = new Path(root, "a");
+        Path                b = new Path(a, "b");
+        Path                d = new Path(b, "d");
+        Path                file = new Path(new Path(a, "c"), "file");
+
+        server.createDirectory(a);
+        server.createDirectory(b);
+        server.createDirectory(d);
+        server.createTree(new Path[] {file}, null, null);
+
+        PathLock            locks = new PathLock();
+
+        server.lockPath(a, locks, NamingServer.EXCLUSIVE);
+
+        try
+        {
+            if(!Arrays.equals(server.list(a), new String[] {"b", "c"}))
+                throw new TestFailed("locked directory listed wrongly");
+
+            if(server.isDirectory(file) || !server.isDirectory(d))
+                throw new TestFailed("wrong node types in locked directory");
+
+            server.getStorage(file);
+        }
+        finally
+        {
+            locks.release();
+        }
+
+        server.delete(b);
+
+        if(!Arrays.equals(server.list(a), new String[] {"c"}))
+            throw new TestFailed("deleted directory still listed");
+
+        try
+        {
+            server.isDirectory(d);
+            throw new TestFailed("deleted directory still in snapshot");
+        }
+        catch(FileNotFoundException e) { }
+    }
+}
@@ -0,0 +1,245 @@
+package naming;
+
+import java.net.*;
+import java.util.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+import test.*;
+
+/** Unit test for standby naming servers fed by log shipping.
+
+    <p>
+    The standby calls the primary as a local object, and the test asks for
+    shipments itself rather than through the standby thread. The storage server
+    stubs refer to no server.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>A standby serves nothing until it has received the primary's tree,
+        then serves the same tree.</li>
+    <li>Changes are shipped once durable, each once, and a request waiting for
+        changes is answered as soon as there is one.</li>
+    <li>The whole tree is shipped again when the changes requested are from
+        another log or were never made.</li>
+    <li>A standby refuses calls that change the tree, and all calls once it
+        has not heard from the primary for longer than its staleness
+        bound.</li>
+    <li>A promoted standby accepts changes.</li>
+    </ul>
+ */
+public class StandbyTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server standby by log shipping";
+
+    /** Directory holding the primary's checkpoint and log. */
+    private TemporaryDirectory  directory;
+    /** Primary naming server. */
+    private NamingServer        primary;
+    /** Standby naming server. */
+    private NamingServer        standby;
+    /** Storage server client stub. */
+    private final Storage       storage =
+        Stub.create(Storage.class, new InetSocketAddress("127.0.0.1", 7101));
+    /** Storage server command stub. */
+    private final Command       command =
+        Stub.create(Command.class, new InetSocketAddress("127.0.0.1", 8101));
+
+    /** Creates the log directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create log directory", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            primary = new NamingServer();
+            primary.recover(directory.root());
+            primary.register(storage, command,
+                             new Path[] {new Path("/a/f1"),
+                                         new Path("/b/f2")});
+            primary.createDirectory(new Path("/d"));
+
+            standby = new NamingServer();
+            standby.follow(primary);
+            standby.standby.wait = 10;
+
+            checkImage();
+            checkChanges();
+            checkShipments();
+            checkRefused();
+            checkPromotion();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the standby before and after it receives the tree. */
+    private void checkImage() throws Throwable
+    {
+        try
+        {
+            standby.isDirectory(new Path("/d"));
+            throw new TestFailed("standby served a tree it has not received");
+        }
+        catch(IllegalStateException e) { }
+
+        standby.standby.poll();
+
+        if(!standby.isDirectory(new Path("/d")) ||
+           !Arrays.equals(standby.list(new Path("/a")), new String[] {"f1"}) ||
+           !storage.equals(standby.getStorage(new Path("/b/f2"))))
+        {
+            throw new TestFailed("standby tree differs from primary tree");
+        }
+    }
+
+    /** Changes the primary tree and checks that the standby follows. */
+    private void checkChanges() throws Throwable
+    {
+        primary.createDirectory(new Path("/d/e"));
+        primary.delete(new Path("/b"));
+        standby.standby.poll();
+
+        if(!standby.isDirectory(new Path("/d/e")) ||
+           standby.exist(new Path("/b")))
+        {
+            throw new TestFailed("standby did not apply changes");
+        }
+    }
+
+    /** Asks the primary for shipments directly. */
+    private void checkShipments() throws Throwable
+    {
+        Shipment        image = primary.ship(0, 0, 0);
+
+        if(!image.image)
+            throw new TestFailed("tree not shipped to new standby");
+
+        Shipment        changes = primary.ship(image.epoch, image.last, 0);
+
+        if(changes.image || changes.records.length != 0 ||
+           changes.last != image.last)
+        {
+            throw new TestFailed("changes shipped to current standby");
+        }
+
+        // A request waiting for changes is answered when one is durable.
+        final Shipment  after = changes;
+        final Shipment[] answer = new Shipment[1];
+        Thread          waiting = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                answer[0] = primary.ship(after.epoch, after.last, 10000);
+            }
+        };
+        long            start = System.currentTimeMillis();
+
+        waiting.start();
+        Thread.sleep(50);
+        primary.createDirectory(new Path("/w"));
+        waiting.join(5000);
+
+        if(answer[0] == null || answer[0].records.length != 1 ||
+           answer[0].last != after.last + 1 ||
+           System.currentTimeMillis() - start >= 5000)
+        {
+            throw new TestFailed("waiting request not answered with the " +
+                                 "change");
+        }
+
+        if(!primary.ship(image.epoch + 1, image.last, 0).image ||
+           !primary.ship(image.epoch, answer[0].last + 10, 0).image)
+        {
+            throw new TestFailed("changes shipped from another log");
+        }
+    }
+
+    /** Checks the calls the standby refuses. */
+    private void checkRefused() throws Throwable
+    {
+        try
+        {
+            standby.createDirectory(new Path("/x"));
+            throw new TestFailed("standby changed its tree for a client");
+        }
+        catch(IllegalStateException e) { }
+
+        try
+        {
+            standby.register(storage, command, new Path[0]);
+            throw new TestFailed("standby accepted a registration");
+        }
+        catch(IllegalStateException e) { }
+
+        standby.standby.staleness = 20;
+        Thread.sleep(50);
+
+        try
+        {
+            standby.list(new Path("/"));
+            throw new TestFailed("standby served a tree older than its " +
+                                 "staleness bound");
+        }
+        catch(IllegalStateException e) { }
+
+        standby.standby.poll();
+
+        if(!standby.isDirectory(new Path("/w")))
+            throw new TestFailed("standby did not catch up");
+    }
+
+    /** Promotes the standby. */
+    private void checkPromotion() throws Throwable
+    {
+        standby.promote();
+
+        if(!standby.createDirectory(new Path("/p")) ||
+           !standby.isDirectory(new Path("/p")) ||
+           !standby.isDirectory(new Path("/d/e")))
+        {
+            throw new TestFailed("promoted standby did not accept changes");
+        }
+    }
+
+    /** Stops the primary and removes the log directory. */
+    @Override
+    protected void clean()
+    {
+        if(primary != null)
+        {
+            primary.stop();
+            primary = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
@@ -0,0 +1,251 @@
+package naming;
+
+import java.util.*;
+import java.util.concurrent.atomic.*;
+
+import common.*;
+import storage.*;
+import test.*;
+
+/** Unit test for directory usage and quotas on the naming server.
+
+    <p>
+    The storage server is a local object that does nothing, and file sizes are
+    reported by the test itself.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>The usage of each directory above a file follows its registration,
+        creation, deletion and reported size, and that of a deleted
+        directory.</li>
+    <li>A full file quota refuses <code>createFile</code>, and files over it
+        are reported as not created by <code>createFiles</code>.</li>
+    <li>A byte quota refuses new files once the files under the directory hold
+        that many bytes.</li>
+    <li>Concurrent creations never exceed a quota.</li>
+    </ul>
+ */
+public class UsageTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server directory usage and quotas";
+
+    /** Number of threads creating files concurrently. */
+    private static final int        THREADS = 8;
+    /** Number of files each thread tries to create. */
+    private static final int        ATTEMPTS = 50;
+    /** File quota of the directory the threads create files in. */
+    private static final int        QUOTA = 100;
+
+    /** Naming server. */
+    private NamingServer            server;
+    /** Storage server. */
+    private final NullServer        storage = new NullServer();
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            server = new NamingServer();
+            server.register(storage, storage,
+                            new Path[] {new Path("/a/f1"),
+                                        new Path("/a/b/f2")});
+
+            checkCounts();
+            checkFileQuota();
+            checkByteQuota();
+            checkConcurrent();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the usage as the tree changes. */
+    private void checkCounts() throws Throwable
+    {
+        checkUsage("/", 2, 0);
+        checkUsage("/a/b", 1, 0);
+
+        server.createFile(new Path("/a/b/f3"));
+        server.attributes(storage, new Path[] {new Path("/a/f1"),
+                                               new Path("/a/b/f3")},
+                          new long[] {10, 20}, new long[] {1, 1});
+        checkUsage("/", 3, 30);
+        checkUsage("/a/b", 2, 20);
+
+        // A later report replaces the size, rather than adding to it.
+        server.attributes(storage, new Path[] {new Path("/a/b/f3")},
+                          new long[] {5}, new long[] {2});
+        checkUsage("/a", 3, 15);
+
+        server.delete(new Path("/a/f1"));
+        checkUsage("/", 2, 5);
+
+        server.delete(new Path("/a/b"));
+        checkUsage("/", 0, 0);
+        checkUsage("/a", 0, 0);
+
+        try
+        {
+            server.usage(new Path("/a/missing"));
+            throw new TestFailed("usage of missing directory returned");
+        }
+        catch(java.io.FileNotFoundException e) { }
+    }
+
+    /** Fills a file quota. */
+    private void checkFileQuota() throws Throwable
+    {
+        server.createDirectory(new Path("/q"));
+        server.createDirectory(new Path("/q/r"));
+        server.createFile(new Path("/q/f"));
+        server.setQuota(new Path("/q"), 2, -1);
+
+        Usage       usage = server.usage(new Path("/q"));
+
+        if(usage.fileQuota() != 2 || usage.byteQuota() != -1)
+            throw new TestFailed("quota not returned with usage");
+
+        if(!server.createFile(new Path("/q/r/g")))
+            throw new TestFailed("file within quota not created");
+
+        try
+        {
+            server.createFile(new Path("/q/r/h"));
+            throw new TestFailed("file over quota created");
+        }
+        catch(IllegalStateException e) { }
+
+        if(server.exist(new Path("/q/r/h")))
+            throw new TestFailed("refused file left in directory tree");
+
+        server.delete(new Path("/q/f"));
+
+        boolean[]   created = server.createFiles(
+            new Path[] {new Path("/q/x"), new Path("/q/r/y"),
+                        new Path("/z")});
+
+        if(!Arrays.equals(created, new boolean[] {true, false, true}))
+        {
+            throw new TestFailed("createFiles answered wrongly: " +
+                                 Arrays.toString(created));
+        }
+
+        checkUsage("/q", 2, 0);
+
+        // Registered files are not refused.
+        server.register(new NullServer(), new NullServer(),
+                        new Path[] {new Path("/q/s")});
+        checkUsage("/q", 3, 0);
+
+        server.setQuota(new Path("/q"), -1, -1);
+
+        if(!server.createFile(new Path("/q/t")) ||
+           server.usage(new Path("/q")).fileQuota() != -1)
+        {
+            throw new TestFailed("quota not cleared");
+        }
+    }
+
+    /** Fills a byte quota. */
+    private void checkByteQuota() throws Throwable
+    {
+        server.createDirectory(new Path("/bytes"));
+        server.setQuota(new Path("/bytes"), -1, 100);
+        server.createFile(new Path("/bytes/f"));
+        server.attributes(storage, new Path[] {new Path("/bytes/f")},
+                          new long[] {100}, new long[] {1});
+
+        try
+        {
+            server.createFile(new Path("/bytes/g"));
+            throw new TestFailed("file created in directory over byte quota");
+        }
+        catch(IllegalStateException e) { }
+
+        server.attributes(storage, new Path[] {new Path("/bytes/f")},
+                          new long[] {99}, new long[] {2});
+
+        if(!server.createFile(new Path("/bytes/g")))
+            throw new TestFailed("file within byte quota not created");
+    }
+
+    /** Creates files from several threads in a directory with a quota. */
+    private void checkConcurrent() throws Throwable
+    {
+        server.createDirectory(new Path("/c"));
+        server.setQuota(new Path("/c"), QUOTA, -1);
+
+        final AtomicInteger created = new AtomicInteger();
+        Thread[]            threads = new Thread[THREADS];
+
+        for(int index = 0; index < THREADS; ++index)
+        {
+            final int       thread = index;
+
+            threads[index] = new Thread()
+            {
+                @Override
+                public void run()
+                {
+                    for(int attempt = 0; attempt < ATTEMPTS; ++attempt)
+                    {
+                        Path    file = new Path("/c/d" + (attempt % 4) +
+                                                "/f" + thread + "-" + attempt);
+
+                        try
+                        {
+                            server.createDirectory(file.parent());
+
+                            if(server.createFile(file))
+                                created.incrementAndGet();
+                        }
+                        catch(IllegalStateException e) { }
+                        catch(Throwable t)
+                        {
+                            failure(t);
+                            return;
+                        }
+                    }
+                }
+            };
+            threads[index].start();
+        }
+
+        for(Thread thread : threads)
+            thread.join();
+
+        if(created.get() != QUOTA)
+        {
+            throw new TestFailed(created.get() + " files created under a " +
+                                 "quota of " + QUOTA);
+        }
+
+        checkUsage("/c", QUOTA, 0);
+    }
+
+    /** Checks the usage of a directory. */
+    private void checkUsage(String directory, long files, long bytes)
+        throws Throwable
+    {
+        Usage       usage = server.usage(new Path(directory));
+
+        if(usage.files() != files || usage.bytes() != bytes)
+        {
+            throw new TestFailed("usage of " + directory + " is " +
+                                 usage.files() + " files, " + usage.bytes() +
+                                 " bytes, expected " + files + " files, " +
+                                 bytes + " bytes");
+        }
+    }
+}
@@ -0,0 +1,283 @@
+package naming;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import storage.*;
+import test.*;
+
+/** Unit test for walks of the directory tree on the naming server.
+
+    <p>
+    Naming servers with and without snapshots are called as local objects.
+    The storage server is a local object that does nothing.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>A walk finds every entry below its root once, in pre-order by name,
+        with its type, down to the depth requested.</li>
+    <li>Globs and regular expressions filter the entries found, by name or by
+        full path.</li>
+    <li>A walk resumes from its token, and visits entries present throughout
+        exactly once when entries are added and removed meanwhile.</li>
+    <li>Bad filters, depths, page sizes and tokens, and roots that are not
+        directories, are rejected.</li>
+    <li>A walk through a federated filesystem crosses mount points.</li>
+    </ul>
+ */
+public class WalkTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server walks of the directory tree";
+
+    /** Files in the tree walked. */
+    private static final String[]   FILES = {"/t/a/x.txt", "/t/a/y.dat",
+                                             "/t/a/b/z.txt", "/t/c.txt",
+                                             "/t/e/f/g.txt"};
+    /** Entries below <code>/t</code>, in the order of a walk. Directories
+        end with a forward slash. */
+    private static final String[]   WALK = {"/t/a/", "/t/a/b/", "/t/a/b/z.txt",
+                                            "/t/a/x.txt", "/t/a/y.dat",
+                                            "/t/c.txt", "/t/d/", "/t/e/",
+                                            "/t/e/f/", "/t/e/f/g.txt"};
+
+    /** Storage server. */
+    private final NullServer    storage = new NullServer();
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkGlobs();
+
+            for(int mode = 0; mode < 2; ++mode)
+            {
+                boolean         snapshots = mode == 1;
+                NamingServer    server = new NamingServer(false, snapshots);
+                String          context = (snapshots ? "with" : "without") +
+                                          " snapshots: ";
+
+                server.register(storage, storage, paths(FILES));
+                server.createDirectory(new Path("/t/d"));
+
+                checkFind(server, context);
+                checkResume(server, context);
+                checkRejected(server, context);
+            }
+
+            checkFederated();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Translates globs into regular expressions. */
+    private void checkGlobs() throws TestFailed
+    {
+        String[][]  cases = {{"*.txt", "a.txt", "a/b.txt"},
+                             {"**.txt", "a/b.txt", "a/b.dat"},
+                             {"?[!a-c]{x,yz}", "qdyz", "qbx"},
+                             {"a\\*", "a*", "ab"},
+                             {"a+(b)", "a+(b)", "aab"}};
+
+        for(String[] test : cases)
+        {
+            if(!Walker.compile(test[0]).matcher(test[1]).matches() ||
+               Walker.compile(test[0]).matcher(test[2]).matches())
+            {
+                throw new TestFailed("glob " + test[0] + " translated " +
+                                     "wrongly as " + Walker.glob(test[0]));
+            }
+        }
+    }
+
+    /** Walks the tree with filters and depths. */
+    private void checkFind(Service service, String context) throws Throwable
+    {
+        checkWalk(service, null, 0, context, WALK);
+        checkWalk(service, null, 1, context,
+                  "/t/a/", "/t/c.txt", "/t/d/", "/t/e/");
+        checkWalk(service, "*.txt", 0, context,
+                  "/t/a/b/z.txt", "/t/a/x.txt", "/t/c.txt", "/t/e/f/g.txt");
+        checkWalk(service, "glob:/t/a/**", 0, context,
+                  "/t/a/b/", "/t/a/b/z.txt", "/t/a/x.txt", "/t/a/y.dat");
+        checkWalk(service, "regex:.*/[xz]\\.txt", 0, context,
+                  "/t/a/b/z.txt", "/t/a/x.txt");
+        checkWalk(service, "{b,f,g.txt}", 2, context, "/t/a/b/", "/t/e/f/");
+    }
+
+    /** Walks the tree a page at a time while changing it. */
+    private void checkResume(NamingServer server, String context)
+        throws Throwable
+    {
+        // Every page holds one entry.
+        List<String>    listed = walkAll(server, null, 1);
+
+        if(!listed.equals(Arrays.asList(WALK)))
+            throw new TestFailed(context + "walk did not resume from token");
+
+        Walk            page = server.walk(new Path("/t"), null, 0, null, 3);
+
+        listed = describe(page);
+        server.delete(new Path("/t/a/y.dat"));
+        server.createFile(new Path("/t/a/w"));
+        server.createFile(new Path("/t/a/b/a"));
+
+        while(page.next() != null)
+        {
+            page = server.walk(new Path("/t"), null, 0, page.next(), 3);
+            listed.addAll(describe(page));
+        }
+
+        List<String>    expected = new ArrayList<String>(Arrays.asList(WALK));
+
+        expected.remove("/t/a/y.dat");
+        expected.add(3, "/t/a/w");
+
+        if(!listed.equals(expected))
+        {
+            throw new TestFailed(context + "walk changed during paging " +
+                                 "returned " + listed);
+        }
+    }
+
+    /** Checks the calls that are rejected. */
+    private void checkRejected(Service service, String context)
+        throws Throwable
+    {
+        Object[][]  calls = {{"[ab", 0, null, 5}, {"{a,b", 0, null, 5},
+                             {null, -1, null, 5}, {null, 0, null, 0},
+                             {null, 0, "/u/a", 5}, {null, 0, "/t", 5},
+                             {null, 0, "t/a", 5}};
+
+        for(Object[] call : calls)
+        {
+            try
+            {
+                service.walk(new Path("/t"), (String)call[0], (Integer)call[1],
+                             (String)call[2], (Integer)call[3]);
+                throw new TestFailed(context + "bad walk accepted: " +
+                                     Arrays.toString(call));
+            }
+            catch(IllegalArgumentException e) { }
+        }
+
+        try
+        {
+            service.walk(new Path("/t/c.txt"), null, 0, null, 5);
+            throw new TestFailed(context + "walk of a file accepted");
+        }
+        catch(FileNotFoundException e) { }
+
+        try
+        {
+            service.walk(new Path("/missing"), null, 0, null, 5);
+            throw new TestFailed(context + "walk of a missing directory " +
+                                 "accepted");
+        }
+        catch(FileNotFoundException e) { }
+    }
+
+    /** Walks a tree split between two naming servers. */
+    private void checkFederated() throws Throwable
+    {
+        NamingServer    root = new NamingServer();
+        NamingServer    mounted = new NamingServer();
+        MountTable      table = new MountTable();
+
+        root.register(storage, storage,
+                      paths(Arrays.copyOf(FILES, FILES.length - 1)));
+        root.createDirectory(new Path("/t/d"));
+        mounted.register(storage, storage,
+                         new Path[] {new Path(FILES[FILES.length - 1])});
+        table.mount(new Path("/"), root);
+        table.mount(new Path("/t/e"), mounted);
+
+        Service         service = NamingStubs.service(table);
+
+        checkWalk(service, null, 0, "federated: ", WALK);
+        checkWalk(service, "*.txt", 0, "federated: ", "/t/a/b/z.txt",
+                  "/t/a/x.txt", "/t/c.txt", "/t/e/f/g.txt");
+
+        Walk            page = service.walk(new Path("/t/e"), null, 0, null,
+                                            5);
+
+        if(!describe(page).equals(Arrays.asList("/t/e/f/", "/t/e/f/g.txt")))
+            throw new TestFailed("federated: mounted tree not walked");
+    }
+
+    /** Walks <code>/t</code> in one page, and checks the entries found. */
+    private void checkWalk(Service service, String filter, int depth,
+                           String context, String... expected)
+        throws Throwable
+    {
+        Walk            page = service.walk(new Path("/t"), filter, depth,
+                                            null, 100);
+
+        if(page.next() != null)
+            throw new TestFailed(context + "walk not complete in one page");
+
+        if(!describe(page).equals(Arrays.asList(expected)))
+        {
+            throw new TestFailed(context + "walk with filter " + filter +
+                                 " and depth " + depth + " returned " +
+                                 describe(page));
+        }
+    }
+
+    /** Walks <code>/t</code> page by page. */
+    private List<String> walkAll(Service service, String filter, int count)
+        throws Throwable
+    {
+        List<String>    listed = new ArrayList<String>();
+        String          token = null;
+
+        do
+        {
+            Walk        page = service.walk(new Path("/t"), filter, 0, token,
+                                            count);
+
+            listed.addAll(describe(page));
+            token = page.next();
+        }
+        while(token != null);
+
+        return listed;
+    }
+
+    /** Returns the entries of a page, directories ending with a forward
+        slash. */
+    private static List<String> describe(Walk page)
+    {
+        List<String>    entries = new ArrayList<String>();
+        Path[]          paths = page.paths();
+        boolean[]       directories = page.directories();
+
+        for(int index = 0; index < paths.length; ++index)
+            entries.add(paths[index] + (directories[index] ? "/" : ""));
+
+        return entries;
+    }
+
+    /** Converts path strings to paths. */
+    private static Path[] paths(String[] names)
+    {
+        Path[]      paths = new Path[names.length];
+
+        for(int index = 0; index < names.length; ++index)
+            paths[index] = new Path(names[index]);
+
+        return paths;
+    }
+}
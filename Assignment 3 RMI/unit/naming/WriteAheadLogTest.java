@@ -0,0 +1,178 @@
+package naming;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+
+import common.*;
+import rmi.*;
+import storage.*;
+import test.*;
+
+/** Unit test for the naming server write-ahead log and checkpoints.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>Registrations, directory creations and deletions are restored by a new
+        naming server recovering from the log.</li>
+    <li>A storage server restored from the log may register again, and its own
+        files are not reported as duplicates.</li>
+    <li>A checkpoint replaces the log written before it, and changes made after
+        it are replayed on top of it.</li>
+    <li>A torn record at the end of the log is ignored.</li>
+    </ul>
+ */
+public class WriteAheadLogTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking naming server write-ahead log and recovery";
+
+    /** Directory holding the checkpoint and the log. */
+    private TemporaryDirectory  directory;
+    /** Root directory path. */
+    private final Path          root = new Path();
+
+    /** Creates the log directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create log directory", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            checkRecovery();
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Logs changes, recovers them, checkpoints and recovers again. */
+    private void checkRecovery() throws Throwable
+    {
+        File            log = directory.root();
+        Storage         storage = storageStub(7001);
+        Command         command = commandStub(7001);
+        Path            a = new Path(root, "a");
+        Path            file = new Path(a, "file");
+        Path            b = new Path(root, "b");
+        Path            d = new Path(root, "d");
+        Path            e = new Path(d, "e");
+
+        NamingServer    server = new NamingServer();
+
+        server.recover(log);
+        server.register(storage, command,
+                        new Path[] {file, new Path(new Path(b, "c"), "f")});
+        server.createDirectory(d);
+        server.createDirectory(e);
+        server.delete(b);
+        server.stop();
+
+        // Recover the changes. The storage server registers again.
+        server = new NamingServer();
+        server.recover(log);
+
+        if(!server.isDirectory(e) || server.exist(b) ||
+           !storage.equals(server.getStorage(file)))
+        {
+            throw new TestFailed("changes not recovered from log");
+        }
+
+        Path            other = new Path(new Path(root, "x"), "other");
+        Path[]          duplicates =
+            server.register(storage, command, new Path[] {file, other});
+
+        if(duplicates.length != 0)
+            throw new TestFailed("recovered file reported as duplicate");
+
+        duplicates = server.register(storageStub(7002), commandStub(7002),
+                                     new Path[] {file});
+
+        if(duplicates.length != 1)
+            throw new TestFailed("file of other server not a duplicate");
+
+        // Checkpoint, then change the tree further.
+        server.checkpoint();
+
+        String[]        names = log.list();
+
+        Arrays.sort(names);
+
+        if(!Arrays.equals(names, new String[] {"checkpoint", "log.2"}))
+        {
+            throw new TestFailed("unexpected files after checkpoint: " +
+                                 Arrays.toString(names));
+        }
+
+        Path            y = new Path(root, "y");
+
+        server.createDirectory(y);
+        server.delete(d);
+        server.stop();
+
+        // Tear the last record of the log.
+        FileOutputStream    tail =
+            new FileOutputStream(new File(log, "log.2"), true);
+
+        tail.write(new byte[] {0, 0, 0, 40, 1, 2, 3});
+        tail.close();
+
+        server = new NamingServer(false, true);
+        server.recover(log);
+
+        if(!server.isDirectory(y) || server.exist(d) ||
+           !storage.equals(server.getStorage(other)) ||
+           !storage.equals(server.getStorage(file)))
+        {
+            throw new TestFailed("changes not recovered from checkpoint and " +
+                                 "log");
+        }
+
+        server.stop();
+    }
+
+    /** Returns a storage stub for the given local port. */
+    private Storage storageStub(int port)
+    {
+        return Stub.create(Storage.class,
+                           new InetSocketAddress("127.0.0.1", port));
+    }
+
+    /** Returns a command stub for the given local port. */
+    private Command commandStub(int port)
+    {
+        return Stub.create(Command.class,
+                           new InetSocketAddress("127.0.0.1", port + 1000));
+    }
+
+    /** Removes the log directory. */
+    @Override
+    protected void clean()
+    {
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package rmi;
+
+import test.*;
+
+/** Unit test for trace context propagation.
+
+    <p>
+    The test starts two skeletons. The server object behind the first one calls
+    the second one through a stub while serving a request. All four spans - the
+    client and server spans of each call - must belong to the same trace, and
+    the nested call must be a child of the span of the outer call.
+ */
+public class TraceTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking trace context propagation through nested calls";
+
+    /** Skeleton for the outer server. */
+    private Skeleton<Hop>       outer;
+    /** Skeleton for the inner server. */
+    private Skeleton<Hop>       inner;
+
+    /** Remote interface of both servers. */
+    public interface Hop
+    {
+        /** Returns the trace context of the call on the server. */
+        public TraceContext call() throws RMIException;
+    }
+
+    /** Starts both skeletons. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        inner = new Skeleton<Hop>(Hop.class, new Hop()
+        {
+            @Override
+            public TraceContext call()
+            {
+                return TraceContext.current();
+            }
+        });
+
+        try
+        {
+            inner.start();
+
+            final Hop   inner_stub = Stub.create(Hop.class, inner);
+
+            outer = new Skeleton<Hop>(Hop.class, new Hop()
+            {
+                @Override
+                public TraceContext call() throws RMIException
+                {
+                    return inner_stub.call();
+                }
+            });
+
+            outer.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeletons", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        TraceContext        context;
+
+        try
+        {
+            context = Stub.create(Hop.class, outer).call();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to call outer server", t);
+        }
+
+        if(context == null)
+            throw new TestFailed("no trace context in nested call");
+
+        if(TraceContext.current() != null)
+            throw new TestFailed("trace context leaked into calling thread");
+
+        SpanLog.Span[]      spans = SpanLog.trace(context.traceId);
+
+        if(spans.length != 4)
+        {
+            throw new TestFailed("expected 4 spans in trace, found " +
+                                 spans.length);
+        }
+
+        // Spans are recorded when they complete: innermost first.
+        SpanLog.Span        inner_server = spans[0];
+        SpanLog.Span        inner_client = spans[1];
+        SpanLog.Span        outer_server = spans[2];
+        SpanLog.Span        outer_client = spans[3];
+
+        if(inner_server.spanId != context.spanId ||
+           !inner_server.kind.equals("server"))
+        {
+            throw new TestFailed("inner server span not recorded");
+        }
+
+        if(outer_client.parentId != 0 ||
+           outer_server.parentId != outer_client.spanId ||
+           inner_client.parentId != outer_server.spanId ||
+           inner_server.parentId != inner_client.spanId)
+        {
+            throw new TestFailed("spans not linked to their parents");
+        }
+
+        if(outer_client.duration < inner_server.duration)
+            throw new TestFailed("outer span shorter than nested span");
+    }
+
+    /** Stops both skeletons. */
+    @Override
+    protected void clean()
+    {
+        if(outer != null)
+        {
+            outer.stop();
+            outer = null;
+        }
+
+        if(inner != null)
+        {
+            inner.stop();
+            inner = null;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+package rmi;
+
+import test.*;
+
+/** Unit test for chunked transfer of large byte arrays.
+
+    <p>
+    The test starts a skeleton for an interface whose methods take and return
+    byte arrays, and calls it through a stub with arrays that span many chunks.
+    The array contents must survive the round trip unchanged in both
+    directions.
+ */
+public class TransferTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking chunked transfer of large byte arrays";
+
+    /** Length of the arrays used in the test. This is not a multiple of the
+        chunk size, and spans more than one window of chunks. */
+    private static final int    LENGTH =
+        Transfer.CHUNK_SIZE * Transfer.WINDOW * 2 + 12345;
+
+    /** Skeleton used in the test. */
+    private Skeleton<Echo>      skeleton;
+
+    /** Remote interface with byte array arguments and results. */
+    public interface Echo
+    {
+        /** Returns the given array, with each byte incremented by one. */
+        public byte[] echo(byte[] data) throws RMIException;
+
+        /** Returns the sum of the lengths of the given arrays. */
+        public int length(byte[] first, byte[] second) throws RMIException;
+    }
+
+    /** Starts the skeleton. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        skeleton = new Skeleton<Echo>(Echo.class, new Echo()
+        {
+            @Override
+            public byte[] echo(byte[] data)
+            {
+                byte[]  result = new byte[data.length];
+
+                for(int index = 0; index < data.length; ++index)
+                    result[index] = (byte)(data[index] + 1);
+
+                return result;
+            }
+
+            @Override
+            public int length(byte[] first, byte[] second)
+            {
+                return first.length + second.length;
+            }
+        });
+
+        try
+        {
+            skeleton.start();
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to start skeleton", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        Echo        stub;
+
+        try
+        {
+            stub = Stub.create(Echo.class, skeleton);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create stub", t);
+        }
+
+        byte[]      data = new byte[LENGTH];
+
+        for(int index = 0; index < data.length; ++index)
+            data[index] = (byte)(index * 31);
+
+        byte[]      result;
+
+        try
+        {
+            result = stub.echo(data);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to transfer large array", t);
+        }
+
+        if(result.length != data.length)
+            throw new TestFailed("large array result has wrong length");
+
+        for(int index = 0; index < data.length; ++index)
+        {
+            if(result[index] != (byte)(data[index] + 1))
+                throw new TestFailed("large array corrupted in transfer");
+        }
+
+        // Send two large arrays and a small one in the same call.
+        try
+        {
+            if(stub.length(data, new byte[1]) != LENGTH + 1)
+                throw new TestFailed("wrong result for mixed array sizes");
+
+            if(stub.length(data, data) != 2 * LENGTH)
+                throw new TestFailed("wrong result for two large arrays");
+
+            if(stub.echo(new byte[3]).length != 3)
+                throw new TestFailed("wrong result for small array");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to transfer several arrays", t);
+        }
+    }
+
+    /** Stops the skeleton. */
+    @Override
+    protected void clean()
+    {
+        if(skeleton != null)
+        {
+            skeleton.stop();
+            skeleton = null;
+        }
+    }
+}
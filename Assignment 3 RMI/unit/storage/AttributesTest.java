@@ -0,0 +1,239 @@
+package storage;
+
+import java.io.*;
+import java.net.*;
+
+import client.*;
+import common.*;
+import naming.*;
+import rmi.*;
+import test.*;
+
+/** Unit test for the file attributes reported by storage servers to the
+    naming server.
+
+    <p>
+    A storage server registers with a naming server that is called as a local
+    object. Clients open files through the naming server.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>The attributes of registered files are reported with their
+        registration.</li>
+    <li>Files written and created are reported again soon after.</li>
+    <li>Input streams open files with a single call to the naming server.</li>
+    <li>Input streams read the whole of a file written just before they are
+        opened, and of a file changed without being reported.</li>
+    <li>Reports from unregistered storage servers, and malformed reports, are
+        rejected.</li>
+    </ul>
+ */
+public class AttributesTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking file attributes reported to the naming server";
+
+    /** Contents of the registered file. */
+    private static final String     CONTENTS = "hello";
+    /** Time allowed for a report to reach the naming server, in
+        milliseconds. */
+    private static final long       WAIT = 5000;
+
+    /** Directory of the storage server. */
+    private TemporaryDirectory      directory;
+    /** Storage server. */
+    private StorageServer           server;
+
+    /** Creates the storage server directory. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directory = new TemporaryDirectory();
+            directory.add(new String[] {"d", "f"}, CONTENTS);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage directory", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            NamingServer    naming = new NamingServer();
+            Path            file = new Path("/d/f");
+
+            server = new StorageServer(directory.root());
+            server.start("127.0.0.1", naming);
+
+            Handle          handle = naming.open(file);
+
+            if(handle.size() != CONTENTS.length() ||
+               handle.modified() != new File(directory.root(), "d/f")
+                                        .lastModified())
+            {
+                throw new TestFailed("attributes not reported with " +
+                                     "registration");
+            }
+
+            byte[]          data = "hello, world".getBytes();
+
+            server.write(file, 0, data);
+            awaitSize(naming, file, data.length, "written");
+
+            naming.createFile(new Path("/d/g"));
+            awaitSize(naming, new Path("/d/g"), 0, "created");
+
+            checkStream(naming, file, data);
+            checkUnreported(naming, file);
+            checkRejected(naming);
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Waits for the naming server to learn the size of a file. */
+    private void awaitSize(NamingServer naming, Path file, long size,
+                           String change) throws Throwable
+    {
+        long        deadline = System.currentTimeMillis() + WAIT;
+
+        while(naming.open(file).size() != size)
+        {
+            if(System.currentTimeMillis() > deadline)
+            {
+                throw new TestFailed("attributes of " + change + " file " +
+                                     "not reported");
+            }
+
+            Thread.sleep(10);
+        }
+
+        if(naming.open(file).modified() <= 0)
+            throw new TestFailed("modification time of " + change + " file " +
+                                 "not reported");
+    }
+
+    /** Reads a file through an input stream. */
+    private void checkStream(NamingServer naming, Path file, byte[] data)
+        throws Throwable
+    {
+        InputStream     stream = new DFSInputStream(naming, file);
+        byte[]          read = new byte[data.length + 1];
+        int             total = 0;
+        int             count;
+
+        try
+        {
+            while((count = stream.read(read, total, read.length - total)) > 0)
+                total += count;
+        }
+        finally
+        {
+            stream.close();
+        }
+
+        if(total != data.length ||
+           !new String(read, 0, total).equals(new String(data)))
+        {
+            throw new TestFailed("file read through input stream differs");
+        }
+    }
+
+    /** Reads files straight after they are written, before the naming server
+        learns their new size. */
+    private void checkUnreported(NamingServer naming, Path file)
+        throws Throwable
+    {
+        for(int round = 1; round <= 20; ++round)
+        {
+            byte[]          data = new byte[1000 * round];
+            OutputStream    stream = new DFSOutputStream(naming, file);
+
+            for(int index = 0; index < data.length; ++index)
+                data[index] = (byte)('a' + index % 26);
+
+            try
+            {
+                stream.write(data);
+            }
+            finally
+            {
+                stream.close();
+            }
+
+            checkStream(naming, file, data);
+        }
+
+        // Written on disk, so never reported to the naming server.
+        byte[]              data = "changed behind the naming server's back"
+                                       .getBytes();
+        FileOutputStream    local =
+            new FileOutputStream(new File(directory.root(), "d/g"));
+
+        try
+        {
+            local.write(data);
+        }
+        finally
+        {
+            local.close();
+        }
+
+        checkStream(naming, new Path("/d/g"), data);
+    }
+
+    /** Checks the reports that are rejected. */
+    private void checkRejected(NamingServer naming) throws Throwable
+    {
+        Storage     stranger = Stub.create(Storage.class,
+            new InetSocketAddress("127.0.0.1", 7199));
+
+        try
+        {
+            naming.attributes(stranger, new Path[] {new Path("/d/f")},
+                              new long[] {1}, new long[] {1});
+            throw new TestFailed("report from unregistered storage server " +
+                                 "accepted");
+        }
+        catch(IllegalStateException e) { }
+
+        try
+        {
+            naming.attributes(stranger, new Path[] {new Path("/d/f")},
+                              new long[0], new long[] {1});
+            throw new TestFailed("malformed report accepted");
+        }
+        catch(IllegalArgumentException e) { }
+    }
+
+    /** Stops the storage server and removes its directory. */
+    @Override
+    protected void clean()
+    {
+        if(server != null)
+        {
+            server.stop();
+            server = null;
+        }
+
+        if(directory != null)
+        {
+            directory.remove();
+            directory = null;
+        }
+    }
+}
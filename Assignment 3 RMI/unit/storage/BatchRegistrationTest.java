@@ -0,0 +1,245 @@
+package storage;
+
+import java.io.*;
+import java.util.*;
+
+import common.*;
+import naming.*;
+import rmi.*;
+import test.*;
+
+/** Unit test for the registration of storage server files in batches.
+
+    <p>
+    Two storage servers register with a naming server that is called as a
+    local object, through a wrapper that records the calls. The second server
+    holds some of the files of the first, in nested directories. The batch
+    size is lowered so that a few files need several calls.
+
+    <p>
+    Tests performed are:
+    <ul>
+    <li>No registration call carries more than a batch of files, and the calls
+        together carry every file once.</li>
+    <li>The server registers with the first batch, before adding the
+        others.</li>
+    <li>The duplicates reported for each batch are deleted, the directories
+        left empty are pruned, and the root directory is kept.</li>
+    <li>A partial copy left in the root directory by a crash is deleted, and
+        not registered.</li>
+    </ul>
+ */
+public class BatchRegistrationTest extends Test
+{
+    /** Test notice. */
+    public static final String  notice =
+        "checking storage server registration in batches";
+
+    /** Files in each registration call. */
+    private static final int        BATCH = 3;
+    /** Files held by the first storage server. */
+    private static final String[][] FIRST =
+        {{"shared", "a"}, {"shared", "b"}, {"shared", "deep", "c"},
+         {"first"}};
+    /** Files held by the second storage server. */
+    private static final String[][] SECOND =
+        {{"shared", "a"}, {"shared", "b"}, {"shared", "deep", "c"},
+         {"second", "d"}, {"second", "e"}, {"second", "f"}, {"second", "g"},
+         {"h"}};
+    /** Partial copy left in the root directory of the first storage
+        server. */
+    private static final String     PARTIAL =
+        StorageServer.COPY_PREFIX + "123" + StorageServer.COPY_SUFFIX;
+
+    /** Directories of the storage servers. */
+    private TemporaryDirectory[]    directories = new TemporaryDirectory[2];
+    /** Storage servers. */
+    private StorageServer[]         servers = new StorageServer[2];
+
+    /** Creates the storage server directories. */
+    @Override
+    protected void initialize() throws TestFailed
+    {
+        try
+        {
+            directories[0] = new TemporaryDirectory();
+            directories[1] = new TemporaryDirectory();
+
+            for(String[] file : FIRST)
+                directories[0].add(file);
+
+            directories[0].add(new String[] {PARTIAL});
+
+            for(String[] file : SECOND)
+                directories[1].add(file);
+        }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unable to create storage directories", t);
+        }
+    }
+
+    /** Performs the test.
+
+        @throws TestFailed If the test fails.
+     */
+    @Override
+    protected void perform() throws TestFailed
+    {
+        try
+        {
+            NamingServer        naming = new NamingServer();
+            RecordingRegistration registration =
+                new RecordingRegistration(naming);
+
+            for(int index = 0; index < 2; ++index)
+            {
+                servers[index] = new StorageServer(directories[index].root());
+                servers[index].registrationBatch = BATCH;
+                registration.calls.clear();
+                servers[index].start("127.0.0.1", registration);
+                checkCalls(registration.calls,
+                           index == 0 ? FIRST.length : SECOND.length);
+            }
+
+            checkDeleted();
+
+            if(new File(directories[0].root(), PARTIAL).exists())
+                throw new TestFailed("partial copy not deleted");
+        }
+        catch(TestFailed e) { throw e; }
+        catch(Throwable t)
+        {
+            throw new TestFailed("unexpected exception", t);
+        }
+    }
+
+    /** Checks the calls made by a storage server to register.
+
+        @param calls The files carried by each call, the first one being the
+                     call to <code>register</code>.
+        @param files The number of files held by the server.
+     */
+    private void checkCalls(List<Path[]> calls, int files) throws TestFailed
+    {
+        Set<Path>       registered = new HashSet<Path>();
+        int             carried = 0;
+
+        for(Path[] call : calls)
+        {
+            if(call.length > BATCH)
+                throw new TestFailed("registration call carries " +
+                                     call.length + " files");
+
+            registered.addAll(Arrays.asList(call));
+            carried += call.length;
+        }
+
+        if(carried != files || registered.size() != files)
+        {
+            throw new TestFailed("registration calls do not carry every " +
+                                 "file once");
+        }
+
+        if(calls.size() < (files + BATCH - 1) / BATCH)
+            throw new TestFailed("too few registration calls");
+    }
+
+    /** Checks that the duplicates on the second server were deleted. */
+    private void checkDeleted() throws TestFailed
+    {
+        File            root = directories[1].root();
+
+        if(new File(root, "shared").exists())
+        {
+            throw new TestFailed("duplicates not deleted, or directories " +
+                                 "not pruned");
+        }
+
+        if(!root.isDirectory() || !new File(root, "h").exists() ||
+           new File(root, "second").list().length != 4)
+        {
+            throw new TestFailed("file that is not a duplicate deleted");
+        }
+    }
+
+    /** Stops the storage servers and removes their directories. */
+    @Override
+    protected void clean()
+    {
+        for(int index = 0; index < 2; ++index)
+        {
+            if(servers[index] != null)
+            {
+                servers[index].stop();
+                servers[index] = null;
+            }
+
+            if(directories[index] != null)
+            {
+                directories[index].remove();
+                directories[index] = null;
+            }
+        }
+    }
+
+    /** Registration interface that records the files carried by each call
+        before passing it on to a naming server. */
+    private class RecordingRegistration implements Registration
+    {
+        /** Naming server to which calls are passed on. */
+        private final Registration  naming;
+        /** Files carried by each call, in order. */
+        final List<Path[]>          calls =
+            Collections.synchronizedList(new ArrayList<Path[]>());
+
+        /** Creates the wrapper.
+
+            @param naming Naming server to which calls are passed on.
+         */
+        RecordingRegistration(Registration naming)
+        {
+            this.naming = naming;
+        }
+
+        @Override
+        public Path[] register(Storage client_stub, Command command_stub,
+                               Path[] files) throws RMIException
+        {
+            if(!calls.isEmpty())
+            {
+                failure(new TestFailed("register called after another " +
+                                       "registration call"));
+            }
+
+            calls.add(files);
+            return naming.register(client_stub, command_stub, files);
+        }
+
+        @Override
+        public Path[] addFiles(Storage client_stub, Path[] files)
+            throws RMIException
+        {
+            if(calls.isEmpty())
+                failure(new TestFailed("files added before registration"));
+
+            calls.add(files);
+            return naming.addFiles(client_stub, files);
+        }
+
+        @Override
+        public void attributes(Storage client_stub, Path[] files,
+                               long[] sizes, long[] modified)
+            throws RMIException
+        {
+            naming.attributes(client_stub, files, sizes, modified);
+        }
+
+        @Override
+        public boolean heartbeat(Storage client_stub, long served, long free)
+            throws RMIException
+        {
+            return naming.heartbeat(client_stub, served, free);
+        }
+    }
+}